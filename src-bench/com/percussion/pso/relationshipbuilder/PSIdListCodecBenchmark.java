@@ -0,0 +1,131 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link PSIdListCodec} with the split, isNumeric and boxing code it
+ * replaced in <code>PSExtensionHelper.convert</code> and
+ * <code>convertToFieldValue</code>. Run with <code>ant bench</code>, which
+ * reports the allocation rate with <code>-prof gc</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PSIdListCodecBenchmark {
+
+    /**
+     * The number of ids in the field value.
+     */
+    @Param({"10", "1000", "20000"})
+    public int size;
+
+    private String m_value;
+    private List<Integer> m_ids;
+    private PSIntSet m_idSet;
+    private final PSIntSet m_parsed = new PSIntSet();
+    private final StringBuilder m_out = new StringBuilder();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        PSIntSet ids = new PSIntSet(size);
+        while (ids.size() < size) {
+            ids.add(300 + random.nextInt(size * 10));
+        }
+        m_ids = new ArrayList<Integer>(ids);
+        m_idSet = ids;
+        m_value = PSIdListCodec.format(ids);
+    }
+
+    @Benchmark
+    public Set<Integer> parseLegacy() {
+        Set<Integer> output = new HashSet<Integer>();
+        legacyConvert(new Object[] {m_value}, output);
+        return output;
+    }
+
+    @Benchmark
+    public int parseCodec() {
+        m_parsed.clear();
+        return PSIdListCodec.parse(m_value, m_parsed, null) + m_parsed.size();
+    }
+
+    @Benchmark
+    public String formatLegacy() {
+        return legacyConvertToFieldValue(m_ids);
+    }
+
+    @Benchmark
+    public String formatCodec() {
+        return PSIdListCodec.format(m_ids);
+    }
+
+    @Benchmark
+    public int appendCodec() {
+        m_out.setLength(0);
+        return PSIdListCodec.append(m_out, m_idSet).length();
+    }
+
+    /**
+     * The convert code before {@link PSIdListCodec}.
+     */
+    private static Collection<Object> legacyConvert(Object[] inputIds, Set<Integer> output) {
+        Collection<Object> invalid = new ArrayList<Object>();
+        if (inputIds.length == 1) {
+            inputIds = inputIds[0].toString().split(";");
+        }
+        for (int i = 0; i < inputIds.length; i++) {
+            Object contentId = inputIds[i];
+            if (contentId instanceof Integer) {
+                output.add((Integer) contentId);
+            }
+            else if (contentId != null && StringUtils.isNotBlank(contentId.toString())
+                    && StringUtils.isNumeric(contentId.toString())) {
+                output.add(Integer.valueOf(contentId.toString()));
+            }
+            else {
+                invalid.add(contentId);
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * The convertToFieldValue code before {@link PSIdListCodec}.
+     */
+    private static String legacyConvertToFieldValue(Collection<Integer> ids) {
+        StringBuffer idsStringBuffer = new StringBuffer();
+        Iterator<Integer> iter = ids.iterator();
+        while (iter.hasNext()) {
+            int id = iter.next();
+            idsStringBuffer.append("" + id);
+            if (iter.hasNext()) {
+                idsStringBuffer.append(";");
+            }
+        }
+        return idsStringBuffer.toString();
+    }
+}
@@ -0,0 +1,128 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import test.percussion.pso.relationshipbuilder.PSTestServices;
+
+/**
+ * Measures retrieving and synchronizing the owners of an item used from
+ * <code>fanOut</code> other items, against the
+ * {@link PSTestServices} stand-ins, which only count the writes. {@link #retrieve()} is the
+ * relationship query followed by <code>filterRelationships</code>, which
+ * loads the owner summaries and drops the relationships of revisions that
+ * are not the tip and the duplicates. {@link #synchronize()} replaces a
+ * twentieth of the owners with new ones, the service is not changed so
+ * every invocation does the same work.
+ * <p>
+ * Run with <code>ant bench -Dbench.args="PSRelationshipBuilderBenchmark"</code>,
+ * the <code>bench</code> target adds <code>-prof gc</code> for the
+ * allocation rate. Add <code>-p revisionStrategy=none</code> to compare with
+ * skipping the revision check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PSRelationshipBuilderBenchmark {
+
+    private static final int ITEM_ID = 301;
+    private static final int FIRST_OWNER_ID = 1000;
+
+    /**
+     * The number of owners of the item.
+     */
+    @Param({"10", "1000", "100000"})
+    public int fanOut;
+
+    /**
+     * The share of the owners with a duplicate relationship.
+     */
+    @Param({"0", "0.05"})
+    public double duplicateRatio;
+
+    /**
+     * The share of the owners that are checked out, their relationships are
+     * returned for two revisions.
+     */
+    @Param({"0", "0.3"})
+    public double checkedOutRatio;
+
+    @Param({PSAbstractRevisionStrategy.TIP})
+    public String revisionStrategy;
+
+    private PSAaDependentRelationshipBuilder m_builder;
+    private PSIntSet m_currentIds;
+    private PSIntSet m_targetIds;
+    private Set<Integer> m_currentIdSet;
+    private Set<Integer> m_targetIdSet;
+
+    @Setup
+    public void setUp() throws Exception {
+        PSTestServices services = new PSTestServices();
+        services.setRecording(false);
+        services.addOwners(ITEM_ID, FIRST_OWNER_ID, fanOut, duplicateRatio, checkedOutRatio, 42);
+        m_builder = new PSAaDependentRelationshipBuilder(PSTestServices.SLOT_NAME,
+                PSTestServices.TEMPLATE_NAME);
+        services.wire(m_builder);
+        m_builder.setRevisionStrategy(PSAbstractRevisionStrategy.forName(revisionStrategy));
+
+        m_currentIds = PSIntSet.valueOf(m_builder.retrieve(ITEM_ID));
+        m_targetIds = new PSIntSet(m_currentIds.size());
+        int replaced = Math.max(1, m_currentIds.size() / 20);
+        for (int i = replaced; i < m_currentIds.size(); i++) {
+            m_targetIds.add(m_currentIds.get(i));
+        }
+        int newId = FIRST_OWNER_ID + fanOut;
+        for (int i = 0; i < replaced; i++, newId++) {
+            services.addItem(newId, 1, 1);
+            m_targetIds.add(newId);
+        }
+        m_currentIdSet = new HashSet<Integer>(m_currentIds);
+        m_targetIdSet = new HashSet<Integer>(m_targetIds);
+    }
+
+    @Benchmark
+    public Collection<Integer> retrieve() throws Exception {
+        return m_builder.retrieve(ITEM_ID);
+    }
+
+    @Benchmark
+    public void synchronize() throws Exception {
+        m_builder.synchronize(ITEM_ID, m_targetIds);
+    }
+
+    /**
+     * The ids to add and remove when synchronizing, from sets of ids.
+     */
+    @Benchmark
+    public int createComplement() {
+        return PSAbstractRelationshipBuilder.createComplement(m_targetIds, m_currentIds).size()
+            + PSAbstractRelationshipBuilder.createComplement(m_currentIds, m_targetIds).size();
+    }
+
+    /**
+     * Same as {@link #createComplement()} from the boxed sets the exits pass.
+     */
+    @Benchmark
+    public int createComplementBoxed() {
+        return PSAbstractRelationshipBuilder.createComplement(m_targetIdSet, m_currentIdSet).size()
+            + PSAbstractRelationshipBuilder.createComplement(m_currentIdSet, m_targetIdSet).size();
+    }
+}
@@ -0,0 +1,139 @@
+package com.percussion.pso.relationshipbuilder;
+
+import static java.util.Collections.singleton;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import test.percussion.pso.relationshipbuilder.PSTestServices;
+
+import com.percussion.design.objectstore.PSRelationship;
+
+/**
+ * Measures the queries of {@link PSRelationshipHelperService} against the
+ * {@link PSTestServices} stand-ins: finding the relationships of an
+ * item used from <code>fanOut</code> other items, and the folders of an item
+ * among the folders selected by a query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PSRelationshipHelperServiceBenchmark {
+
+    private static final int ITEM_ID = 301;
+    private static final int FIRST_RELATED_ID = 1000;
+    private static final String FOLDER_QUERY =
+        "select rx:sys_contentid, rx:sys_folderid from nt:base where jcr:path like '//Sites/%'";
+
+    /**
+     * The item is used from <code>fanOut</code> other items.
+     */
+    @State(Scope.Thread)
+    public static class Relationships {
+
+        @Param({"10", "1000", "100000"})
+        public int fanOut;
+
+        /**
+         * The share of the owners with a duplicate relationship.
+         */
+        @Param({"0", "0.05"})
+        public double duplicateRatio;
+
+        /**
+         * The share of the owners that are checked out.
+         */
+        @Param({"0", "0.3"})
+        public double checkedOutRatio;
+
+        private PSRelationshipHelperService m_helper;
+
+        @Setup
+        public void setUp() {
+            PSTestServices services = new PSTestServices();
+            services.setRecording(false);
+            services.addOwners(ITEM_ID, FIRST_RELATED_ID, fanOut, duplicateRatio,
+                    checkedOutRatio, 42);
+            m_helper = new PSRelationshipHelperService();
+            services.wire(m_helper);
+        }
+    }
+
+    @Benchmark
+    public Collection<PSRelationship> getRelationships(Relationships relationships)
+            throws Exception {
+        return relationships.m_helper.getRelationships(null,
+                singleton(ITEM_ID), PSTestServices.SLOT_NAME,
+                PSTestServices.TEMPLATE_NAME);
+    }
+
+    /**
+     * {@link #getRelationships(Relationships)} and the owner ids.
+     */
+    @Benchmark
+    public PSIntSet getOwners(Relationships relationships) throws Exception {
+        return relationships.m_helper.getOwners(ITEM_ID,
+                PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+    }
+
+    /**
+     * The item is in a few of the <code>folderCount</code> folders selected
+     * by the folder query.
+     */
+    @State(Scope.Thread)
+    public static class Folders {
+
+        @Param({"10", "1000", "100000"})
+        public int folderCount;
+
+        private PSRelationshipHelperService m_helper;
+
+        @Setup
+        public void setUp() {
+            PSTestServices services = new PSTestServices();
+            services.setRecording(false);
+            PSIntSet folderIds = new PSIntSet(folderCount);
+            for (int i = 0; i < folderCount; i++) {
+                folderIds.add(FIRST_RELATED_ID + i);
+            }
+            PSIntSet itemFolderIds = new PSIntSet(5);
+            for (int i = 0; i < 5; i++) {
+                itemFolderIds.add(folderIds.get(i * folderCount / 5));
+            }
+            services.setFolders(folderIds, itemFolderIds);
+            m_helper = new PSRelationshipHelperService();
+            services.wire(m_helper);
+        }
+    }
+
+    /**
+     * The folder ids of the query are cached, the folders of the item are
+     * queried every time.
+     */
+    @Benchmark
+    public PSIntSet getFolders(Folders folders) {
+        return folders.m_helper.getFolders(ITEM_ID, FOLDER_QUERY);
+    }
+
+    /**
+     * The item is added to the conditions of the folder query.
+     */
+    @Benchmark
+    public PSIntSet getFoldersSingleQuery(Folders folders) {
+        return folders.m_helper.getFolders(ITEM_ID, FOLDER_QUERY, true);
+    }
+}
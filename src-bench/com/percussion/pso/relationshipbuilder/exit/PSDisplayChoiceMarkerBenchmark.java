@@ -0,0 +1,106 @@
+package com.percussion.pso.relationshipbuilder.exit;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+
+/**
+ * Measures {@link PSDisplayChoiceMarker} on a taxonomy tree control with
+ * <code>entryCount</code> display entries behind other fields with as many
+ * display choices, half of the entries are selected. The document is marked
+ * again on every invocation, marking an entry that is already selected costs
+ * the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PSDisplayChoiceMarkerBenchmark {
+
+    private static final String FIELD_NAME = "tree";
+
+    /**
+     * The number of fields before the tree.
+     */
+    private static final int OTHER_FIELD_COUNT = 5;
+
+    @Param({"1000", "20000"})
+    public int entryCount;
+
+    private Document m_doc;
+    private PSIntSet m_ids;
+
+    @Setup
+    public void setUp() throws Exception {
+        m_doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element itemContent = (Element) m_doc.appendChild(m_doc.createElement("ContentEditor"))
+            .appendChild(m_doc.createElement("ItemContent"));
+        for (int f = 0; f < OTHER_FIELD_COUNT; f++) {
+            addField(itemContent, "other" + f, 1000000 * (f + 1));
+        }
+        addField(itemContent, FIELD_NAME, 0);
+        m_ids = new PSIntSet(entryCount / 2 + 1);
+        for (int i = 2; i <= entryCount; i += 2) {
+            m_ids.add(i);
+        }
+        m_ids.add(entryCount + 1);
+    }
+
+    /**
+     * Adds a field listing <code>entryCount</code> choices with ids from
+     * <code>base + 1</code>.
+     */
+    private void addField(Element itemContent, String paramName, int base) {
+        Element control = (Element) itemContent.appendChild(
+                m_doc.createElement("DisplayField")).appendChild(m_doc.createElement("Control"));
+        control.setAttribute("paramName", paramName);
+        Element displayChoices = (Element) control.appendChild(
+                m_doc.createElement("DisplayChoices"));
+        for (int i = 1; i <= entryCount; i++) {
+            String id = String.valueOf(base + i);
+            Element entry = (Element) displayChoices.appendChild(
+                    m_doc.createElement("DisplayEntry"));
+            entry.appendChild(m_doc.createElement("Value")).setTextContent(id);
+            entry.appendChild(m_doc.createElement("DisplayLabel")).setTextContent(id);
+        }
+    }
+
+    /**
+     * Finds the control, indexes its entries and marks the ids selected.
+     */
+    @Benchmark
+    public int select() {
+        Element tree = PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), FIELD_NAME);
+        PSDisplayChoiceMarker marker = PSDisplayChoiceMarker.index(
+                PSDisplayChoiceMarker.firstChild(tree, "DisplayChoices"));
+        return marker.select(m_ids);
+    }
+
+    /**
+     * Finds the control and marks every entry without indexing them.
+     */
+    @Benchmark
+    public int selectAll() {
+        Element tree = PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), FIELD_NAME);
+        return PSDisplayChoiceMarker.selectAll(
+                PSDisplayChoiceMarker.firstChild(tree, "DisplayChoices"));
+    }
+}
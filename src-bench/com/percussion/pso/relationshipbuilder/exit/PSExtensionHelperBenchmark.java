@@ -0,0 +1,261 @@
+package com.percussion.pso.relationshipbuilder.exit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import test.percussion.pso.relationshipbuilder.PSTestServices;
+
+import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSAaRelationshipIndex;
+import com.percussion.pso.relationshipbuilder.PSDesignObjectCache;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+import com.percussion.util.IPSHtmlParameters;
+
+/**
+ * Measures the field value conversions of {@link PSExtensionHelper} and
+ * marking the related items selected in a content editor document, against
+ * the {@link PSTestServices} stand-ins.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PSExtensionHelperBenchmark {
+
+    private static final String FIELD_NAME = "related";
+    private static final int ITEM_ID = 301;
+    private static final int FIRST_RELATED_ID = 1000;
+
+    /**
+     * The values of a field with <code>size</code> ids.
+     */
+    @State(Scope.Thread)
+    public static class FieldValues {
+
+        @Param({"10", "1000", "100000"})
+        public int size;
+
+        private List<Integer> m_ids;
+        /**
+         * The ids separated by ';' in one value.
+         */
+        private Object[] m_joined;
+        /**
+         * One value per id.
+         */
+        private Object[] m_values;
+
+        @Setup
+        public void setUp() {
+            m_ids = new ArrayList<Integer>(size);
+            m_values = new Object[size];
+            for (int i = 0; i < size; i++) {
+                m_ids.add(FIRST_RELATED_ID + i);
+                m_values[i] = String.valueOf(m_ids.get(i));
+            }
+            m_joined = new Object[] {PSExtensionHelper.convertToFieldValue(m_ids)};
+        }
+    }
+
+    /**
+     * The content editor of an item used from <code>fanOut</code> other
+     * items, the field lists twice as many choices. The document is marked
+     * again on every invocation, marking an entry that is already selected
+     * costs the same.
+     */
+    @State(Scope.Thread)
+    public static class Editor {
+
+        @Param({"10", "1000", "100000"})
+        public int fanOut;
+
+        /**
+         * The share of the owners with a duplicate relationship.
+         */
+        @Param({"0", "0.05"})
+        public double duplicateRatio;
+
+        /**
+         * The share of the owners that are checked out.
+         */
+        @Param({"0", "0.3"})
+        public double checkedOutRatio;
+
+        private PSExtensionHelper m_helper;
+        private Document m_doc;
+
+        @Setup
+        public void setUp() throws Exception {
+            PSTestServices services = new PSTestServices();
+            services.setRecording(false);
+            services.addOwners(ITEM_ID, FIRST_RELATED_ID, fanOut, duplicateRatio,
+                    checkedOutRatio, 42);
+            PSAaDependentRelationshipBuilder builder = new PSAaDependentRelationshipBuilder(
+                    PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+            services.wire(builder);
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put(PSExtensionHelper.IDS_FIELD_NAME, FIELD_NAME);
+            parameters.put(IPSHtmlParameters.SYS_CONTENTID,
+                    String.valueOf(ITEM_ID));
+            m_helper = new PSExtensionHelper(builder, parameters,
+                    PSTestServices.requestContext(parameters));
+            m_doc = createEditor(FIRST_RELATED_ID, 2 * fanOut);
+        }
+
+        /**
+         * A content editor document with a control for the field listing
+         * <code>count</code> choices from <code>firstId</code>.
+         */
+        private static Document createEditor(int firstId, int count) throws Exception {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .newDocument();
+            Element itemContent = (Element) doc.appendChild(doc.createElement("ContentEditor"))
+                .appendChild(doc.createElement("ItemContent"));
+            Element control = (Element) itemContent.appendChild(
+                    doc.createElement("DisplayField")).appendChild(doc.createElement("Control"));
+            control.setAttribute("paramName", FIELD_NAME);
+            Element displayChoices = (Element) control.appendChild(
+                    doc.createElement("DisplayChoices"));
+            for (int i = 0; i < count; i++) {
+                String id = String.valueOf(firstId + i);
+                Element entry = (Element) displayChoices.appendChild(
+                        doc.createElement("DisplayEntry"));
+                entry.setAttribute("selected", "no");
+                entry.appendChild(doc.createElement("Value")).setTextContent(id);
+                entry.appendChild(doc.createElement("DisplayLabel")).setTextContent(id);
+            }
+            return doc;
+        }
+    }
+
+    /**
+     * The save of the content editor of an item used from
+     * <code>fanOut</code> other items, with the ids that were displayed and
+     * their fingerprint. The builder has a warm relationship index.
+     */
+    @State(Scope.Thread)
+    public static class Save {
+
+        @Param({"10", "1000", "100000"})
+        public int fanOut;
+
+        private PSAaDependentRelationshipBuilder m_builder;
+        private PSExtensionHelper m_helper;
+        private Object[] m_values;
+
+        @Setup
+        public void setUp() throws Exception {
+            PSTestServices services = new PSTestServices();
+            services.setRecording(false);
+            services.addOwners(ITEM_ID, FIRST_RELATED_ID, fanOut, 0, 0, 42);
+            m_builder = new PSAaDependentRelationshipBuilder(
+                    PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+            services.wire(m_builder);
+            PSAaRelationshipIndex index = new PSAaRelationshipIndex(
+                    PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+            index.setRelationshipService(services.getRelationshipService());
+            index.setAssemblyService(services.getAssemblyService());
+            index.setDesignObjectCache(new PSDesignObjectCache(
+                    PSDesignObjectCache.DEFAULT_MAX_SIZE, PSDesignObjectCache.DEFAULT_TIME_TO_LIVE));
+            index.warm();
+            m_builder.setRelationshipIndex(index);
+
+            PSIntSet ids = m_builder.getIndexedIds(ITEM_ID);
+            PSRelationshipCache cache = new PSRelationshipCache(
+                    PSRelationshipCache.DEFAULT_MAX_SIZE, PSRelationshipCache.DEFAULT_TIME_TO_LIVE);
+            String token = cache.issueToken(ITEM_ID, FIELD_NAME, ids,
+                    cache.getGeneration(ITEM_ID));
+            m_values = new Object[] {PSExtensionHelper.convertToFieldValue(ids)};
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put(FIELD_NAME, (String) m_values[0]);
+            parameters.put(FIELD_NAME + PSExtensionHelper.FINGERPRINT_FIELD_SUFFIX, token);
+            m_helper = new PSExtensionHelper(m_builder, parameters,
+                    PSTestServices.requestContext(parameters));
+            m_helper.setRelationshipCache(cache);
+        }
+    }
+
+    /**
+     * The fingerprint is checked against the relationship index, nothing is
+     * queried or synchronized.
+     */
+    @Benchmark
+    public Object saveUnchangedWithFingerprint(Save save) {
+        return save.m_helper.getSubmittedIds(ITEM_ID, FIELD_NAME);
+    }
+
+    /**
+     * What the fingerprint saves: synchronize queries the relationships,
+     * checks the owner revisions and finds nothing to write. Against the
+     * stand-ins the query costs no round trip, so this is the least the
+     * fingerprint saves.
+     */
+    @Benchmark
+    public void saveUnchanged(Save save) throws Exception {
+        save.m_helper.buildFromFieldValues(save.m_builder, ITEM_ID, FIELD_NAME, save.m_values);
+    }
+
+    /**
+     * A submitted field value with the ids separated by ';'.
+     */
+    @Benchmark
+    public PSIntSet convert(FieldValues field) {
+        PSIntSet ids = new PSIntSet();
+        PSExtensionHelper.convert(field.m_joined, ids);
+        return ids;
+    }
+
+    /**
+     * A submitted field with one value per id.
+     */
+    @Benchmark
+    public PSIntSet convertValues(FieldValues field) {
+        PSIntSet ids = new PSIntSet();
+        PSExtensionHelper.convert(field.m_values, ids);
+        return ids;
+    }
+
+    @Benchmark
+    public String convertToFieldValue(FieldValues field) {
+        return PSExtensionHelper.convertToFieldValue(field.m_ids);
+    }
+
+    /**
+     * Reads the related ids through the builder and marks their choices.
+     */
+    @Benchmark
+    public Document updateDisplayChoices(Editor editor) throws Exception {
+        editor.m_helper.updateDisplayChoices(editor.m_doc, false);
+        return editor.m_doc;
+    }
+
+    /**
+     * Marks every choice without reading the related ids.
+     */
+    @Benchmark
+    public Document updateDisplayChoicesSelectAll(Editor editor) throws Exception {
+        editor.m_helper.updateDisplayChoices(editor.m_doc, true);
+        return editor.m_doc;
+    }
+}
@@ -0,0 +1,34 @@
+package com.percussion.pso.relationshipbuilder;
+
+import com.percussion.error.PSException;
+import com.percussion.services.assembly.PSAssemblyException;
+
+/**
+ * Returns the ids related to an item a page at a time so that callers that
+ * only need some of the ids do not pay for finding all of them. The
+ * relationships behind the ids may all be in memory, see
+ * {@link IPSRelationshipBuilder#openCursor(int, int)}.
+ * 
+ * @see IPSRelationshipBuilder#openCursor(int, int)
+ */
+public interface IPSRelatedIdCursor {
+
+    /**
+     * @return <code>true</code> if there may be more ids. The next page can
+     *         still be empty.
+     */
+    public abstract boolean hasNext();
+
+    /**
+     * Gets the next page of related ids. An id is only returned once.
+     * 
+     * @return at most the page size ids, never <code>null</code>, may be
+     *         empty.
+     * @throws java.util.NoSuchElementException if {@link #hasNext()} is
+     *             <code>false</code>.
+     * @throws PSAssemblyException see {@link IPSRelationshipBuilder#retrieve(int)}
+     * @throws PSException see {@link IPSRelationshipBuilder#retrieve(int)}
+     */
+    public abstract PSIntSet nextPage() throws PSAssemblyException, PSException;
+
+}
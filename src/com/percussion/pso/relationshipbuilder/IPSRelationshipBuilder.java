@@ -1,6 +1,7 @@
 package com.percussion.pso.relationshipbuilder;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 import com.percussion.cms.PSCmsException;
@@ -24,6 +25,48 @@ public interface IPSRelationshipBuilder {
     public abstract Collection<Integer> retrieve(int sourceId)
             throws PSAssemblyException, PSException;
     
+    /**
+     * Same as {@link #retrieve(int)} but adds the ids to a primitive int set
+     * supplied by the caller.
+     * 
+     * @param sourceId the id of the item that has the relationships.
+     * @param relatedIds the related ids are added to this set, not <code>null</code>.
+     * @throws PSAssemblyException see {@link #retrieve(int)}
+     * @throws PSException see {@link #retrieve(int)}
+     */
+    public abstract void retrieve(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException;
+    
+    /**
+     * Same as {@link #retrieve(int)} but returns the related ids a page at a
+     * time, so a caller that stops early saves the work on the remaining
+     * ids. Whether that saves memory depends on the builder: the relationship
+     * service cannot page, builders that query it hold all the relationships
+     * of the item and only check them a page at a time.
+     * 
+     * @param sourceId the id of the item that has the relationships.
+     * @param pageSize the maximum number of ids in a page, at least 1.
+     * @return never <code>null</code>.
+     * @throws PSAssemblyException see {@link #retrieve(int)}
+     * @throws PSException see {@link #retrieve(int)}
+     */
+    public abstract IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+            throws PSAssemblyException, PSException;
+
+    /**
+     * Same as calling {@link #retrieve(int)} for each item but allows a
+     * builder to fetch the relationships of all the items together.
+     * 
+     * @param sourceIds the ids of the items that have the relationships, not
+     *            <code>null</code>.
+     * @return the related ids by source id in the order of
+     *         <code>sourceIds</code>, there is an entry for every source id.
+     *         Never <code>null</code>.
+     * @throws PSAssemblyException see {@link #retrieve(int)}
+     * @throws PSException see {@link #retrieve(int)}
+     */
+    public abstract Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+            throws PSAssemblyException, PSException;
 
     
     /**
@@ -44,8 +87,45 @@ public interface IPSRelationshipBuilder {
 
     public abstract void synchronize(int sourceId, Set<Integer> targetIds) throws PSAssemblyException,
             PSException;
-
     
-    public void addRelationships(Collection<Integer> ids) throws PSAssemblyException, PSException;
+    /**
+     * Same as {@link #synchronize(int, Set)} for ids held in a primitive int set.
+     * 
+     * @param sourceId the id of the item that is the source of the relationship.
+     * @param targetIds items that should be related to sourceId, not <code>null</code>.
+     * @throws PSAssemblyException see {@link #synchronize(int, Set)}
+     * @throws PSException see {@link #synchronize(int, Set)}
+     */
+    public abstract void synchronize(int sourceId, PSIntSet targetIds) throws PSAssemblyException,
+            PSException;
+
+    /**
+     * Same as calling {@link #synchronize(int, Set)} for each entry of the map
+     * but allows a builder to read and write the relationships of all the
+     * items together.
+     * <p>
+     * The writes are not atomic: when a write fails the relationships of
+     * some items may already be synchronized.
+     * 
+     * @param targetIdsBySourceId the items that should be related to each
+     *            source item by source item id, not <code>null</code>.
+     * @throws PSAssemblyException see {@link #synchronize(int, Set)}
+     * @throws PSException see {@link #synchronize(int, Set)}, a
+     *             {@link PSPartialSynchronizationException} lists the items
+     *             already synchronized if the builder knows them.
+     */
+    public abstract void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+            throws PSAssemblyException, PSException;
+
+    /**
+     * Creates relationships between the source item and the given items
+     * without looking at the existing relationships.
+     * 
+     * @param sourceId the id of the item that is the source of the relationship.
+     * @param ids items to relate to sourceId, not <code>null</code>.
+     * @throws PSAssemblyException see {@link #synchronize(int, Set)}
+     * @throws PSException see {@link #synchronize(int, Set)}
+     */
+    public void addRelationships(int sourceId, Collection<Integer> ids) throws PSAssemblyException, PSException;
 
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package com.percussion.pso.relationshipbuilder;
 
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 
 import com.percussion.error.PSException;
 import com.percussion.services.assembly.PSAssemblyException;
@@ -16,14 +18,65 @@ public interface IPSRelationshipHelperService {
      * @return the ids of the folders.
      * @throws IllegalArgumentException if the query is bad.
      */
-    public abstract Collection<Integer> getFolders(int itemId, String jcrQuery);
+    public abstract PSIntSet getFolders(int itemId, String jcrQuery);
 
-    public abstract Collection<Integer> getOwners(int dependentId,
+    /**
+     * Same as {@link #getFolders(int, String)}, in single query mode the
+     * item is added to the conditions of the query so the repository only
+     * returns the folders of the item in one query.
+     * 
+     * @param singleQuery <code>true</code> for single query mode.
+     */
+    public abstract PSIntSet getFolders(int itemId, String jcrQuery, boolean singleQuery);
+
+    /**
+     * Same as {@link #getFolders(int, String, boolean)} but never answered
+     * from cached folder ids, so folders created, moved or renamed since the
+     * folder ids were cached are seen. Used before writing.
+     */
+    public abstract PSIntSet getCurrentFolders(int itemId, String jcrQuery, boolean singleQuery);
+
+    /**
+     * Gets the owners of an item in the slot with the template. Answered from
+     * the {@link PSAaRelationshipIndex} of the slot and template when it is
+     * warm.
+     */
+    public abstract PSIntSet getOwners(int dependentId,
             String slotName, String templateName) throws PSException;
 
-    public abstract Collection<Integer> getDependents(int ownerId,
+    /**
+     * Gets the dependents of an item in the slot with the template, see
+     * {@link #getOwners(int, String, String)}.
+     */
+    public abstract PSIntSet getDependents(int ownerId,
             String slotName, String templateName) throws PSException;
 
+    /**
+     * Finds every item reachable from an item through the relationships of a
+     * slot, breadth first. The related items of a whole depth are fetched
+     * together from the {@link PSAaRelationshipIndex} of the slot and
+     * template when it is warm, a cold index is warmed in the background.
+     * Otherwise the owners of a depth are found with one query per chunk of
+     * dependents and the dependents with one query per item, since a query
+     * only takes one owner. The slot is never loaded whole. Items already
+     * reached are not visited again so cycles are safe. The related items of
+     * the last depth are still looked up to tell if the result is
+     * {@link PSTraversalResult#isTruncated() truncated}.
+     * 
+     * @param startId the item to start from.
+     * @param slotName the slot of the relationships, not <code>null</code>.
+     * @param templateName the template of the relationships,
+     *            <code>null</code> for any template.
+     * @param isOwner <code>true</code> to follow the dependents of the
+     *            items, <code>false</code> to follow their owners.
+     * @param maxDepth the maximum depth, 1 only finds the related items of
+     *            the start item.
+     * @return the items reached by depth, never <code>null</code>.
+     */
+    public abstract PSTraversalResult traverse(int startId, String slotName,
+            String templateName, boolean isOwner, int maxDepth)
+            throws PSAssemblyException, PSException;
+
     public abstract void deleteRelationships(Collection<Integer> owners,
             Collection<Integer> dependents, String slotName, String templateName)
             throws PSException;
@@ -32,10 +85,36 @@ public interface IPSRelationshipHelperService {
             Collection<Integer> folderIds, Collection<Integer> itemIds)
             throws PSException;
 
+    /**
+     * Same as {@link #deleteFolderRelationships(Collection, Collection)} for
+     * items the caller knows are in all the folders, the folder
+     * relationships are not queried first.
+     * 
+     * @param folderIds folders that hold all the items, not <code>null</code>.
+     * @param itemIds not <code>null</code>.
+     */
+    public abstract void deleteFolderMembers(
+            Collection<Integer> folderIds, Collection<Integer> itemIds)
+            throws PSException;
+
     public abstract void addRelationships(Collection<Integer> ownerIds,
             Collection<Integer> dependentIds, String slotName,
             String templateName) throws PSAssemblyException, PSException;
 
+    /**
+     * Synchronizes the active assembly relationships of many owners in one
+     * pass: current relationships are fetched together and the changes are
+     * saved and deleted in batches.
+     * 
+     * @param dependentIdsByOwnerId the dependents each owner should have, by
+     *            owner id. Not <code>null</code>.
+     * @param slotName the slot of the relationships, not <code>null</code>.
+     * @param templateName the template of the relationships, not <code>null</code>.
+     * @see IPSRelationshipBuilder#synchronizeAll(Map)
+     */
+    public abstract void synchronizeAll(Map<Integer, Set<Integer>> dependentIdsByOwnerId,
+            String slotName, String templateName) throws PSAssemblyException, PSException;
+
     public abstract void addFolderRelationships(Collection<Integer> folderIds,
             Collection<Integer> itemIds) throws PSException;
 
@@ -0,0 +1,40 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+
+/**
+ * Decides which relationships returned by the relationship service are
+ * between the current revisions of the items, and which component summaries
+ * have to be loaded to decide.
+ * 
+ * @see PSAbstractRevisionStrategy#forName(String)
+ */
+public interface IPSRevisionStrategy {
+
+    /**
+     * Gets the ids of the items whose tip revision is needed to check the
+     * locators of the relationships.
+     * 
+     * @param relationships the relationships to check, not <code>null</code>.
+     * @return never <code>null</code>, empty if no summaries are needed.
+     */
+    public abstract Collection<Integer> getIdsToResolve(Collection<PSRelationship> relationships);
+
+    /**
+     * Checks if a locator of a relationship is the current revision of the
+     * item.
+     * 
+     * @param locator the owner or dependent of a relationship, not
+     *            <code>null</code>.
+     * @param tipRevisions the tip revision by content id of at least the ids
+     *            returned by {@link #getIdsToResolve(Collection)}, not
+     *            <code>null</code>.
+     * @return <code>true</code> if the relationship should be used.
+     */
+    public abstract boolean isCurrent(PSLocator locator, Map<Integer, Integer> tipRevisions);
+
+}
@@ -31,7 +31,12 @@ public class PSAaDependentRelationshipBuilder
     extends PSActiveAssemblyRelationshipBuilder
 {
    
-	public PSAaDependentRelationshipBuilder() {
-		setParent(false);	
+	/**
+	 * @param slotName name of the slot, see
+	 *            {@link PSActiveAssemblyRelationshipBuilder}.
+	 * @param templateName name of the template.
+	 */
+	public PSAaDependentRelationshipBuilder(String slotName, String templateName) {
+		super(false, slotName, templateName);
 	}
 }
@@ -28,7 +28,12 @@ import com.percussion.services.assembly.PSAssemblyException;
  */
 public class PSAaOwnerRelationshipBuilder extends PSActiveAssemblyRelationshipBuilder {
 
-	public PSAaOwnerRelationshipBuilder() {
-		setParent(true);	
+	/**
+	 * @param slotName name of the slot, see
+	 *            {@link PSActiveAssemblyRelationshipBuilder}.
+	 * @param templateName name of the template.
+	 */
+	public PSAaOwnerRelationshipBuilder(String slotName, String templateName) {
+		super(true, slotName, templateName);
 	}
 }
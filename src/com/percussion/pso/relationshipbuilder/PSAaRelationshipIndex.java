@@ -0,0 +1,740 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.cms.objectstore.PSRelationshipFilter;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.services.assembly.IPSAssemblyService;
+import com.percussion.services.assembly.IPSAssemblyTemplate;
+import com.percussion.services.assembly.IPSTemplateSlot;
+import com.percussion.services.assembly.PSAssemblyException;
+import com.percussion.services.assembly.PSAssemblyServiceLocator;
+import com.percussion.services.relationship.IPSRelationshipService;
+import com.percussion.services.relationship.PSRelationshipServiceLocator;
+import com.percussion.util.IPSHtmlParameters;
+
+/**
+ * An in-memory index of the active assembly relationships in one slot with
+ * one template, in both directions: the dependents of each owner and the
+ * owners of each dependent.
+ * <p>
+ * The index is loaded by {@link #warm()} from the relationship service with
+ * the same filter as
+ * {@link PSRelationshipHelperService#getDependents(int, String, String)}, only
+ * edit or current owner revisions, and is then kept current by the builders
+ * and the helper service which report the relationships they save and delete,
+ * see {@link #relationshipsSaved(String, String, Collection)}. The reported
+ * relationships are not applied as they are: the owner and dependent pairs
+ * they touch are queried again with the same filter, one query per
+ * {@link PSRelationshipBuilder#DEFAULT_BATCH_SIZE} dependents. So deleting
+ * one of two duplicate relationships keeps the pair, and writes to owner
+ * revisions that are not the edit or current revision do not change the
+ * index. Relationships changed by anything else are only seen after the next
+ * warm. A warm that fails is retried in the background, waiting longer after
+ * each failure, see {@link #setRetryDelay(long)}.
+ * <p>
+ * Readers work on an immutable snapshot and never block. A writer copies the
+ * part of the snapshot it changes and publishes a new snapshot. The related
+ * ids of an item are kept as an int array in relationship order. Until the
+ * index is warm the lookups return <code>null</code> and callers must go to
+ * the relationship service.
+ * <p>
+ * Indexes are shared and found by slot and template name, see
+ * {@link #getInstance(String, String)}. Thread-safe.
+ */
+public class PSAaRelationshipIndex {
+
+    private static final ConcurrentMap<String, PSAaRelationshipIndex> ms_indexes =
+        new ConcurrentHashMap<String, PSAaRelationshipIndex>();
+
+    /**
+     * Default delay before warming again after a failed warm, thirty
+     * seconds.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 30 * 1000L;
+
+    /**
+     * Longest delay between warms after repeated failures, ten minutes.
+     */
+    public static final long MAX_RETRY_DELAY = 10 * 60 * 1000L;
+
+    /**
+     * Warms indexes in the background, one at a time.
+     */
+    private static final ScheduledExecutorService ms_warmer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PSAaRelationshipIndex");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final String m_slotName;
+    private final String m_templateName;
+
+    /**
+     * The published snapshot, <code>null</code> while the index is cold.
+     */
+    private volatile Snapshot m_snapshot;
+    private final Object m_writeLock = new Object();
+    /**
+     * Changes made while a warm is loading, replayed on the loaded snapshot.
+     * Not <code>null</code> only while warming. Guarded by m_writeLock.
+     */
+    private List<Change> m_pending;
+    /**
+     * Incremented when the index is invalidated. Guarded by m_writeLock.
+     */
+    private long m_generation = 0;
+    /**
+     * <code>true</code> while a warm is scheduled and has not started.
+     * Guarded by m_writeLock.
+     */
+    private boolean m_warmScheduled = false;
+    /**
+     * The delay before the next retry, <code>0</code> if the last warm did
+     * not fail. Guarded by m_writeLock.
+     */
+    private long m_nextRetryDelay = 0;
+    private volatile long m_retryDelay = DEFAULT_RETRY_DELAY;
+    private volatile long m_lastWarmTime = 0;
+
+    private volatile IPSRelationshipService m_relationshipService;
+    private volatile IPSAssemblyService m_assemblyService;
+    private volatile PSDesignObjectCache m_designObjectCache = PSDesignObjectCache.getInstance();
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_warms = new AtomicLong();
+    private final AtomicLong m_warmFailures = new AtomicLong();
+    private final AtomicLong m_refreshes = new AtomicLong();
+
+    /**
+     * @param slotName the slot of the relationships, not <code>null</code>.
+     * @param templateName the template of the relationships, not
+     *            <code>null</code>.
+     */
+    public PSAaRelationshipIndex(String slotName, String templateName) {
+        if (slotName == null) throw new IllegalArgumentException("slotName cannot be null");
+        if (templateName == null) throw new IllegalArgumentException("templateName cannot be null");
+        m_slotName = slotName;
+        m_templateName = templateName;
+    }
+
+    /**
+     * Gets the shared index for a slot and template, creating a cold index
+     * the first time.
+     *
+     * @param slotName not <code>null</code>.
+     * @param templateName not <code>null</code>.
+     * @return never <code>null</code>.
+     */
+    public static PSAaRelationshipIndex getInstance(String slotName, String templateName) {
+        String key = slotName + "|" + templateName;
+        PSAaRelationshipIndex index = ms_indexes.get(key);
+        if (index == null) {
+            index = new PSAaRelationshipIndex(slotName, templateName);
+            PSAaRelationshipIndex existing = ms_indexes.putIfAbsent(key, index);
+            if (existing != null) index = existing;
+        }
+        return index;
+    }
+
+    /**
+     * @param slotName may be <code>null</code>.
+     * @param templateName may be <code>null</code>.
+     * @return the shared index for the slot and template if one was created,
+     *         otherwise <code>null</code>.
+     */
+    public static PSAaRelationshipIndex find(String slotName, String templateName) {
+        if (slotName == null || templateName == null) return null;
+        return ms_indexes.get(slotName + "|" + templateName);
+    }
+
+    /**
+     * Updates the shared index of the slot and template, if there is one,
+     * with the pairs of saved relationships.
+     *
+     * @param slotName the slot of the relationships.
+     * @param templateName the template of the relationships.
+     * @param relationships not <code>null</code>.
+     * @see #refresh(Collection)
+     */
+    public static void relationshipsSaved(String slotName, String templateName,
+            Collection<PSRelationship> relationships) {
+        if (ms_indexes.isEmpty() || relationships.isEmpty()) return;
+        PSAaRelationshipIndex index = find(slotName, templateName);
+        if (index != null) index.refresh(relationships);
+    }
+
+    /**
+     * Updates the shared index of the slot and template, if there is one,
+     * with the pairs of deleted relationships. If the template is not known
+     * the indexes of all the templates of the slot are invalidated and warmed
+     * again.
+     *
+     * @param slotName the slot of the relationships.
+     * @param templateName the template of the relationships, may be
+     *            <code>null</code> if relationships of any template were
+     *            deleted.
+     * @param relationships not <code>null</code>.
+     */
+    public static void relationshipsDeleted(String slotName, String templateName,
+            Collection<PSRelationship> relationships) {
+        if (ms_indexes.isEmpty() || relationships.isEmpty()) return;
+        if (templateName != null) {
+            PSAaRelationshipIndex index = find(slotName, templateName);
+            if (index != null) index.refresh(relationships);
+            return;
+        }
+        for (PSAaRelationshipIndex index : ms_indexes.values()) {
+            if (index.m_slotName.equals(slotName)) index.invalidate();
+        }
+    }
+
+    /**
+     * Starts warming the index in the background if it is cold and not
+     * already warming or waiting to retry a failed warm. Does not block.
+     */
+    public void ensureWarm() {
+        if (isWarm()) return;
+        synchronized (m_writeLock) {
+            if (m_pending != null || m_warmScheduled) return;
+            m_warmScheduled = true;
+        }
+        scheduleWarm(0);
+    }
+
+    private void scheduleWarm(long delay) {
+        ms_warmer.schedule(new Runnable() {
+            public void run() {
+                synchronized (m_writeLock) {
+                    m_warmScheduled = false;
+                }
+                try {
+                    warm();
+                    synchronized (m_writeLock) {
+                        m_nextRetryDelay = 0;
+                    }
+                }
+                catch (Exception e) {
+                    m_warmFailures.incrementAndGet();
+                    long retryDelay;
+                    synchronized (m_writeLock) {
+                        m_nextRetryDelay = m_nextRetryDelay == 0 ? m_retryDelay
+                                : Math.min(m_nextRetryDelay * 2, Math.max(m_retryDelay, MAX_RETRY_DELAY));
+                        retryDelay = m_nextRetryDelay;
+                        m_warmScheduled = true;
+                    }
+                    ms_log.error("Failed to warm the relationship index for slot "
+                            + m_slotName + " and template " + m_templateName
+                            + ", retrying in " + retryDelay + " ms", e);
+                    scheduleWarm(retryDelay);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads all the relationships of the slot and template and publishes
+     * them, replacing the current snapshot. Changes reported while loading are
+     * applied to the loaded relationships. Does nothing if the index is
+     * already warming.
+     */
+    public void warm() throws PSAssemblyException, PSException {
+        synchronized (m_writeLock) {
+            if (m_pending != null) return;
+            m_pending = new ArrayList<Change>();
+        }
+        try {
+            boolean published = false;
+            while (!published) {
+                long generation;
+                synchronized (m_writeLock) {
+                    m_pending.clear();
+                    generation = m_generation;
+                }
+                Snapshot snapshot = load();
+                synchronized (m_writeLock) {
+                    if (generation == m_generation) {
+                        for (Change change : m_pending) {
+                            snapshot = change.applyTo(snapshot);
+                        }
+                        m_snapshot = snapshot;
+                        published = true;
+                        m_lastWarmTime = System.currentTimeMillis();
+                        m_warms.incrementAndGet();
+                        m_writeLock.notifyAll();
+                    }
+                }
+            }
+            ms_log.debug("Warmed the relationship index for slot " + m_slotName
+                    + " and template " + m_templateName + " with "
+                    + m_snapshot.pairCount + " relationships");
+        }
+        finally {
+            synchronized (m_writeLock) {
+                m_pending = null;
+            }
+        }
+    }
+
+    private Snapshot load() throws PSAssemblyException, PSException {
+        Collection<PSRelationship> relationships = find(createFilter());
+        Map<Integer, PSIntSet> dependentsByOwner = new HashMap<Integer, PSIntSet>();
+        Map<Integer, PSIntSet> ownersByDependent = new HashMap<Integer, PSIntSet>();
+        int pairCount = 0;
+        for (PSRelationship relationship : relationships) {
+            int ownerId = relationship.getOwner().getId();
+            int dependentId = relationship.getDependent().getId();
+            if (relatedIds(dependentsByOwner, ownerId).add(dependentId)) pairCount++;
+            relatedIds(ownersByDependent, dependentId).add(ownerId);
+        }
+        return new Snapshot(Adjacency.of(dependentsByOwner),
+                Adjacency.of(ownersByDependent), pairCount);
+    }
+
+    /**
+     * @return a filter for the relationships of the index, not limited to
+     *         any item.
+     */
+    private PSRelationshipFilter createFilter() throws PSAssemblyException, PSException {
+        IPSAssemblyService assemblyService = getAssemblyService();
+        IPSTemplateSlot slot = m_designObjectCache.findSlot(assemblyService, m_slotName);
+        IPSAssemblyTemplate template = m_designObjectCache.findTemplate(assemblyService, m_templateName);
+        PSRelationshipFilter filter = new PSRelationshipFilter();
+        filter.setProperty(IPSHtmlParameters.SYS_SLOTID,
+                String.valueOf(slot.getGUID().longValue()));
+        filter.setProperty(IPSHtmlParameters.SYS_VARIANTID,
+                String.valueOf(template.getGUID().longValue()));
+        filter.limitToEditOrCurrentOwnerRevision(true);
+        return filter;
+    }
+
+    private Collection<PSRelationship> find(PSRelationshipFilter filter) throws PSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            Collection<PSRelationship> relationships = getRelationshipService().findByFilter(filter);
+            succeeded = true;
+            return relationships;
+        }
+        finally {
+            PSRelationshipMetrics.record(Operation.FIND_BY_FILTER, start, succeeded);
+        }
+    }
+
+    /**
+     * Queries the owner and dependent pairs of written relationships again
+     * and updates the index with the pairs that still have a relationship in
+     * the edit or current owner revision. Does nothing if the index is
+     * neither warm nor warming. If the query fails the index is invalidated.
+     * The static methods call this on the shared indexes.
+     *
+     * @param relationships the saved or deleted relationships, not
+     *            <code>null</code>.
+     */
+    public void refresh(Collection<PSRelationship> relationships) {
+        synchronized (m_writeLock) {
+            if (m_snapshot == null && m_pending == null) return;
+        }
+        Set<Long> current = new HashSet<Long>();
+        try {
+            PSIntSet dependentIds = new PSIntSet(relationships.size());
+            for (PSRelationship relationship : relationships) {
+                dependentIds.add(relationship.getDependent().getId());
+            }
+            for (List<Integer> chunk : PSRelationshipBuilder.partition(dependentIds,
+                    PSRelationshipBuilder.DEFAULT_BATCH_SIZE)) {
+                PSRelationshipFilter filter = createFilter();
+                filter.setDependentIds(chunk);
+                for (PSRelationship relationship : find(filter)) {
+                    current.add(pair(relationship.getOwner().getId(),
+                            relationship.getDependent().getId()));
+                }
+            }
+        }
+        catch (Exception e) {
+            ms_log.error("Failed to refresh the relationship index for slot " + m_slotName
+                    + " and template " + m_templateName + ", invalidating it", e);
+            invalidate();
+            return;
+        }
+        m_refreshes.incrementAndGet();
+        apply(new Change(relationships, current));
+    }
+
+    private static long pair(int ownerId, int dependentId) {
+        return ((long) ownerId << 32) | (dependentId & 0xffffffffL);
+    }
+
+    private static PSIntSet relatedIds(Map<Integer, PSIntSet> adjacency, int id) {
+        PSIntSet ids = adjacency.get(id);
+        if (ids == null) {
+            ids = new PSIntSet(4);
+            adjacency.put(id, ids);
+        }
+        return ids;
+    }
+
+    private void apply(Change change) {
+        synchronized (m_writeLock) {
+            if (m_snapshot != null) m_snapshot = change.applyTo(m_snapshot);
+            if (m_pending != null) m_pending.add(change);
+        }
+    }
+
+    /**
+     * Drops the snapshot, lookups return <code>null</code> until the index is
+     * warm again. Starts warming in the background.
+     */
+    public void invalidate() {
+        synchronized (m_writeLock) {
+            m_snapshot = null;
+            m_generation++;
+        }
+        ensureWarm();
+    }
+
+    public boolean isWarm() {
+        return m_snapshot != null;
+    }
+
+    /**
+     * Waits for the index to be warm.
+     *
+     * @param timeout the longest time to wait in milliseconds.
+     * @return <code>true</code> if the index is warm.
+     */
+    public boolean awaitWarm(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (m_writeLock) {
+            long remaining = timeout;
+            while (m_snapshot == null && remaining > 0) {
+                m_writeLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return m_snapshot != null;
+        }
+    }
+
+    /**
+     * @param ownerId the owner.
+     * @return a new set of the dependents of the owner, empty if it has none,
+     *         <code>null</code> if the index is not warm.
+     */
+    public PSIntSet getDependents(int ownerId) {
+        Snapshot snapshot = m_snapshot;
+        if (snapshot == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+        return snapshot.dependentsByOwner.getSet(ownerId);
+    }
+
+    /**
+     * @param dependentId the dependent.
+     * @return a new set of the owners of the dependent, empty if it has none,
+     *         <code>null</code> if the index is not warm.
+     */
+    public PSIntSet getOwners(int dependentId) {
+        Snapshot snapshot = m_snapshot;
+        if (snapshot == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+        return snapshot.ownersByDependent.getSet(dependentId);
+    }
+
+    /**
+     * Looks up the related ids of many items in the same snapshot.
+     *
+     * @param ids not <code>null</code>.
+     * @param isOwner <code>true</code> to get the dependents of owners,
+     *            <code>false</code> to get the owners of dependents.
+     * @return new sets by id in the order of the ids, <code>null</code> if
+     *         the index is not warm.
+     */
+    public Map<Integer, PSIntSet> getRelated(Collection<Integer> ids, boolean isOwner) {
+        Snapshot snapshot = m_snapshot;
+        if (snapshot == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+        Adjacency adjacency = isOwner ? snapshot.dependentsByOwner : snapshot.ownersByDependent;
+        Map<Integer, PSIntSet> related = new LinkedHashMap<Integer, PSIntSet>();
+        for (Integer id : ids) {
+            related.put(id, adjacency.getSet(id));
+        }
+        return related;
+    }
+
+    public String getSlotName() {
+        return m_slotName;
+    }
+
+    public String getTemplateName() {
+        return m_templateName;
+    }
+
+    /**
+     * @return the number of owner and dependent pairs in the index,
+     *         <code>0</code> if it is not warm.
+     */
+    public int getRelationshipCount() {
+        Snapshot snapshot = m_snapshot;
+        return snapshot == null ? 0 : snapshot.pairCount;
+    }
+
+    /**
+     * @return the time the index was last warmed in milliseconds,
+     *         <code>0</code> if it never was.
+     */
+    public long getLastWarmTime() {
+        return m_lastWarmTime;
+    }
+
+    public long getHitCount() {
+        return m_hits.get();
+    }
+
+    /**
+     * @return the number of lookups made while the index was not warm.
+     */
+    public long getMissCount() {
+        return m_misses.get();
+    }
+
+    public long getWarmCount() {
+        return m_warms.get();
+    }
+
+    public long getWarmFailureCount() {
+        return m_warmFailures.get();
+    }
+
+    /**
+     * @return the number of times written relationships were queried again.
+     */
+    public long getRefreshCount() {
+        return m_refreshes.get();
+    }
+
+    public long getRetryDelay() {
+        return m_retryDelay;
+    }
+
+    /**
+     * @param retryDelay milliseconds before warming again after a failed
+     *            warm, doubled after each further failure up to
+     *            {@link #MAX_RETRY_DELAY}. At least 1.
+     */
+    public void setRetryDelay(long retryDelay) {
+        if (retryDelay < 1) throw new IllegalArgumentException("retryDelay must be at least 1");
+        m_retryDelay = retryDelay;
+    }
+
+    private IPSRelationshipService getRelationshipService() {
+        if (m_relationshipService == null)
+            m_relationshipService = PSRelationshipServiceLocator.getRelationshipService();
+        return m_relationshipService;
+    }
+
+    public void setRelationshipService(IPSRelationshipService relationshipService) {
+        m_relationshipService = relationshipService;
+    }
+
+    private IPSAssemblyService getAssemblyService() {
+        if (m_assemblyService == null)
+            m_assemblyService = PSAssemblyServiceLocator.getAssemblyService();
+        return m_assemblyService;
+    }
+
+    public void setAssemblyService(IPSAssemblyService assemblyService) {
+        m_assemblyService = assemblyService;
+    }
+
+    public void setDesignObjectCache(PSDesignObjectCache designObjectCache) {
+        m_designObjectCache = designObjectCache;
+    }
+
+    /**
+     * Both directions of the index at one point in time. Never modified.
+     */
+    private static final class Snapshot {
+        private final Adjacency dependentsByOwner;
+        private final Adjacency ownersByDependent;
+        private final int pairCount;
+
+        private Snapshot(Adjacency dependentsByOwner, Adjacency ownersByDependent, int pairCount) {
+            this.dependentsByOwner = dependentsByOwner;
+            this.ownersByDependent = ownersByDependent;
+            this.pairCount = pairCount;
+        }
+    }
+
+    /**
+     * Related ids by id, split in segments so that a change only copies the
+     * segments of the ids it touches. Never modified.
+     */
+    private static final class Adjacency {
+        private static final int SEGMENTS = 64;
+        private final List<Map<Integer, int[]>> segments;
+
+        private Adjacency(List<Map<Integer, int[]>> segments) {
+            this.segments = segments;
+        }
+
+        private static Adjacency of(Map<Integer, PSIntSet> relatedIds) {
+            List<Map<Integer, int[]>> segments = new ArrayList<Map<Integer, int[]>>(SEGMENTS);
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments.add(new HashMap<Integer, int[]>());
+            }
+            for (Map.Entry<Integer, PSIntSet> entry : relatedIds.entrySet()) {
+                segments.get(segment(entry.getKey())).put(entry.getKey(), entry.getValue().toIntArray());
+            }
+            return new Adjacency(segments);
+        }
+
+        private static int segment(int id) {
+            return (id ^ (id >>> 16)) & (SEGMENTS - 1);
+        }
+
+        private int[] get(int id) {
+            return segments.get(segment(id)).get(id);
+        }
+
+        private PSIntSet getSet(int id) {
+            int[] ids = get(id);
+            return ids == null ? new PSIntSet() : PSIntSet.of(ids);
+        }
+
+        /**
+         * @param changes the new related ids by id, an empty array removes the
+         *            id. Assumed not <code>null</code>.
+         * @return a new adjacency sharing the segments that did not change.
+         */
+        private Adjacency with(Map<Integer, int[]> changes) {
+            if (changes.isEmpty()) return this;
+            List<Map<Integer, int[]>> copy = new ArrayList<Map<Integer, int[]>>(segments);
+            boolean[] copied = new boolean[SEGMENTS];
+            for (Map.Entry<Integer, int[]> entry : changes.entrySet()) {
+                int s = segment(entry.getKey());
+                if (!copied[s]) {
+                    copy.set(s, new HashMap<Integer, int[]>(segments.get(s)));
+                    copied[s] = true;
+                }
+                if (entry.getValue().length == 0)
+                    copy.get(s).remove(entry.getKey());
+                else
+                    copy.get(s).put(entry.getKey(), entry.getValue());
+            }
+            return new Adjacency(copy);
+        }
+    }
+
+    /**
+     * The owner and dependent pairs of written relationships and whether
+     * each pair still has a current relationship.
+     */
+    private static final class Change {
+        private final int[] ownerIds;
+        private final int[] dependentIds;
+        private final boolean[] related;
+
+        /**
+         * @param relationships the written relationships.
+         * @param current the pairs that have a current relationship, see
+         *            {@link PSAaRelationshipIndex#pair(int, int)}.
+         */
+        private Change(Collection<PSRelationship> relationships, Set<Long> current) {
+            ownerIds = new int[relationships.size()];
+            dependentIds = new int[relationships.size()];
+            related = new boolean[relationships.size()];
+            int i = 0;
+            for (PSRelationship relationship : relationships) {
+                ownerIds[i] = relationship.getOwner().getId();
+                dependentIds[i] = relationship.getDependent().getId();
+                related[i] = current.contains(pair(ownerIds[i], dependentIds[i]));
+                i++;
+            }
+        }
+
+        private Snapshot applyTo(Snapshot snapshot) {
+            Map<Integer, int[]> dependentChanges = new HashMap<Integer, int[]>();
+            Map<Integer, int[]> ownerChanges = new HashMap<Integer, int[]>();
+            int pairCount = snapshot.pairCount;
+            for (int i = 0; i < ownerIds.length; i++) {
+                if (update(snapshot.dependentsByOwner, dependentChanges, ownerIds[i],
+                        dependentIds[i], related[i]))
+                    pairCount += related[i] ? 1 : -1;
+                update(snapshot.ownersByDependent, ownerChanges, dependentIds[i], ownerIds[i],
+                        related[i]);
+            }
+            return new Snapshot(snapshot.dependentsByOwner.with(dependentChanges),
+                    snapshot.ownersByDependent.with(ownerChanges), pairCount);
+        }
+
+        /**
+         * @param added whether the related id must be in the related ids.
+         * @return <code>true</code> if the related ids changed.
+         */
+        private static boolean update(Adjacency adjacency, Map<Integer, int[]> changes, int id,
+                int relatedId, boolean added) {
+            int[] ids = changes.containsKey(id) ? changes.get(id) : adjacency.get(id);
+            if (ids == null) ids = new int[0];
+            int index = indexOf(ids, relatedId);
+            int[] updated;
+            if (added) {
+                if (index >= 0) return false;
+                updated = new int[ids.length + 1];
+                System.arraycopy(ids, 0, updated, 0, ids.length);
+                updated[ids.length] = relatedId;
+            }
+            else {
+                if (index < 0) return false;
+                updated = new int[ids.length - 1];
+                System.arraycopy(ids, 0, updated, 0, index);
+                System.arraycopy(ids, index + 1, updated, index, ids.length - index - 1);
+            }
+            changes.put(id, updated);
+            return true;
+        }
+
+        private static int indexOf(int[] ids, int id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSAaRelationshipIndex.class);
+}
@@ -10,7 +10,8 @@
 package com.percussion.pso.relationshipbuilder;
 
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -41,25 +42,42 @@ public abstract class PSAbstractRelationshipBuilder implements
      *            <code>retain</code>. Assumed not <code>null</code>
      * @return a new list of the elements in <code>retain</code> that are not
      *         in <code>suppress</code>, never <code>null</code>
+     * @see #createComplement(PSIntSet, PSIntSet)
      */
     protected static Set<Integer> createComplement(final Set<Integer> retain,
             final Set<Integer> suppress) {
-        Set<Integer> complement = new HashSet<Integer>();
-        for (Integer id : retain) {
-            if (!suppress.contains(id)) {
-                complement.add(id);
-            }
-        }
-        return complement;
+        return createComplement(PSIntSet.valueOf(retain), PSIntSet.valueOf(suppress));
+    }
+
+    /**
+     * Same as {@link #createComplement(Set, Set)} for primitive int sets. The
+     * difference is computed by merging the sorted ids.
+     * 
+     * @param retain Assumed not <code>null</code>
+     * @param suppress Assumed not <code>null</code>
+     * @return a new set of the elements in <code>retain</code> that are not
+     *         in <code>suppress</code> in ascending order, never <code>null</code>
+     */
+    protected static PSIntSet createComplement(final PSIntSet retain,
+            final PSIntSet suppress) {
+        return PSIntSet.difference(retain, suppress);
     }
 
     /**
      * {@inheritDoc}
      */
     public void synchronize(int sourceId, Set<Integer> targetIds) throws PSAssemblyException, PSException {
+        synchronize(sourceId, PSIntSet.valueOf(targetIds));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void synchronize(int sourceId, PSIntSet targetIds) throws PSAssemblyException, PSException {
         ms_log.debug("\tdesired ids: " + targetIds);
 
-        Set<Integer> currentRelatedIds = new HashSet<Integer>(retrieve(sourceId));
+        PSIntSet currentRelatedIds = new PSIntSet();
+        retrieveCurrent(sourceId, currentRelatedIds);
         ms_log.debug("\tcurrent ids: " + currentRelatedIds);
 
         if (currentRelatedIds.isEmpty()) {
@@ -70,18 +88,66 @@ public abstract class PSAbstractRelationshipBuilder implements
             add(sourceId, targetIds);
         } else {
             // desired - current = add
-            Set<Integer> idsToAdd = createComplement(targetIds,
+            PSIntSet idsToAdd = createComplement(targetIds,
                     currentRelatedIds);
             ms_log.debug("\tadd ids: " + idsToAdd);
             add(sourceId, idsToAdd);
             // current - desired = remove
-            Set<Integer> idsToRemove = createComplement(currentRelatedIds,
+            PSIntSet idsToRemove = createComplement(currentRelatedIds,
                     targetIds);
             ms_log.debug("\tremove ids:" + idsToRemove);
-            delete(sourceId, idsToRemove);
+            deleteCurrent(sourceId, idsToRemove);
         }
     }
 
+    /**
+     * Adds the ids returned by {@link #retrieve(int)}.
+     * 
+     * {@inheritDoc}
+     */
+    public void retrieve(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException {
+        relatedIds.addAll(retrieve(sourceId));
+    }
+
+    /**
+     * Adds the related ids that {@link #synchronize(int, PSIntSet)} compares
+     * the target ids with. Same as {@link #retrieve(int, PSIntSet)} unless
+     * the builder reads through a cache that can be stale.
+     */
+    protected void retrieveCurrent(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException {
+        retrieve(sourceId, relatedIds);
+    }
+
+    /**
+     * Pages through the ids returned by {@link #retrieve(int)}.
+     * 
+     * {@inheritDoc}
+     */
+    public IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+            throws PSAssemblyException, PSException {
+        PSIntSet ids = new PSIntSet();
+        retrieve(sourceId, ids);
+        return new PSIntSetCursor(ids, pageSize);
+    }
+
+    /**
+     * Retrieves the items one at a time.
+     * 
+     * {@inheritDoc}
+     */
+    public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+            throws PSAssemblyException, PSException {
+        Map<Integer, PSIntSet> relatedIds = new LinkedHashMap<Integer, PSIntSet>();
+        for (Integer sourceId : sourceIds) {
+            PSIntSet ids = new PSIntSet();
+            retrieve(sourceId, ids);
+            relatedIds.put(sourceId, ids);
+        }
+        return relatedIds;
+    }
+
     /**
      * Adds new relationships to sourceId. Relates sourceId to targetIds.
      * Should ONLY ADD AND NOT DELETE relationships.
@@ -109,6 +175,17 @@ public abstract class PSAbstractRelationshipBuilder implements
     public abstract void delete(int sourceId, Collection<Integer> targetIds) throws PSAssemblyException,
             PSException;
 
+    /**
+     * Deletes relationships that {@link #synchronize(int, PSIntSet)} just
+     * read with {@link #retrieveCurrent(int, PSIntSet)}. Same as
+     * {@link #delete(int, Collection)} unless the builder can skip checking
+     * that the relationships exist.
+     */
+    protected void deleteCurrent(int sourceId, Collection<Integer> targetIds)
+            throws PSAssemblyException, PSException {
+        delete(sourceId, targetIds);
+    }
+
     protected IPSRelationshipHelperService m_relationshipHelperService;
 
     public IPSRelationshipHelperService getRelationshipHelperService() {
@@ -122,11 +199,20 @@ public abstract class PSAbstractRelationshipBuilder implements
     
     
 
-    public void addRelationships(Collection<Integer> ids)
+    /**
+     * Synchronizes the items one at a time.
+     */
+    public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+            throws PSAssemblyException, PSException {
+        for (Map.Entry<Integer, Set<Integer>> entry : targetIdsBySourceId.entrySet()) {
+            synchronize(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void addRelationships(int sourceId, Collection<Integer> ids)
 			throws PSAssemblyException, PSException
 	{
-		ms_log.debug("addRelationships in PSAbstractRelationshipBuilder does nothing");
-		
+		add(sourceId, ids);
 	}
 
 	/**
@@ -0,0 +1,144 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+
+/**
+ * Base class for the revision strategies that counts how many component
+ * summaries a strategy asks for compared to the summaries the {@link #TIP}
+ * strategy would ask for on the same relationships. Counting the summaries
+ * avoided costs a pass over the relationships, so they are only counted
+ * while a {@link PSRequestTrace} is bound or debug logging is on for this
+ * class.
+ * <p>
+ * The strategies are stateless apart from the counters and are shared, see
+ * {@link #forName(String)}.
+ */
+public abstract class PSAbstractRevisionStrategy implements IPSRevisionStrategy {
+
+    /**
+     * Compares revisions using the summaries of the items, the default.
+     */
+    public static final String TIP = "tip";
+
+    /**
+     * Trusts the relationship filter to only return current revisions.
+     */
+    public static final String NONE = "none";
+
+    /**
+     * Only loads the summaries of items whose revision has to be compared,
+     * see {@link PSLazyRevisionStrategy}.
+     */
+    public static final String LAZY = "lazy";
+
+    private static final IPSRevisionStrategy ms_tip = new PSTipRevisionStrategy();
+    private static final IPSRevisionStrategy ms_none = new PSNoRevisionStrategy();
+    private static final IPSRevisionStrategy ms_lazy = new PSLazyRevisionStrategy();
+
+    private final AtomicLong m_relationships = new AtomicLong();
+    private final AtomicLong m_resolved = new AtomicLong();
+    private final AtomicLong m_avoided = new AtomicLong();
+
+    /**
+     * Gets a shared strategy by name.
+     * 
+     * @param name one of {@link #TIP}, {@link #NONE} or {@link #LAZY}, case
+     *            is ignored. <code>null</code> or empty for {@link #TIP}.
+     * @return never <code>null</code>.
+     * @throws IllegalArgumentException if the name is not known.
+     */
+    public static IPSRevisionStrategy forName(String name) {
+        if (name == null || name.trim().length() == 0 || TIP.equalsIgnoreCase(name.trim()))
+            return ms_tip;
+        if (NONE.equalsIgnoreCase(name.trim()))
+            return ms_none;
+        if (LAZY.equalsIgnoreCase(name.trim()))
+            return ms_lazy;
+        throw new IllegalArgumentException("Unknown revision strategy: " + name 
+                + " it should be either " + TIP + ", " + NONE + " or " + LAZY);
+    }
+
+    public final Collection<Integer> getIdsToResolve(Collection<PSRelationship> relationships) {
+        Collection<Integer> ids = selectIdsToResolve(relationships);
+        m_relationships.addAndGet(relationships.size());
+        m_resolved.addAndGet(ids.size());
+        if (!(this instanceof PSTipRevisionStrategy) 
+                && (PSRequestTrace.getCurrent() != null || ms_log.isDebugEnabled())) {
+            int avoided = PSTipRevisionStrategy.selectTipIds(relationships).size() - ids.size();
+            if (avoided > 0) {
+                m_avoided.addAndGet(avoided);
+                PSRelationshipMetrics.count(Counter.SUMMARIES_AVOIDED, avoided);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @see #getIdsToResolve(Collection)
+     */
+    protected abstract Collection<Integer> selectIdsToResolve(Collection<PSRelationship> relationships);
+
+    /**
+     * The locator is current if it is not revision specific or if it is the
+     * tip revision. Items without a tip revision, for example purged items,
+     * are not current.
+     */
+    public boolean isCurrent(PSLocator locator, Map<Integer, Integer> tipRevisions) {
+        int revision = locator.getRevision();
+        if (revision == -1) return true;
+        Integer tip = tipRevisions.get(locator.getId());
+        return tip != null && tip.intValue() == revision;
+    }
+
+    /**
+     * @return the number of relationships checked.
+     */
+    public long getRelationshipCount() {
+        return m_relationships.get();
+    }
+
+    /**
+     * @return the number of summaries asked for.
+     */
+    public long getSummariesRequested() {
+        return m_resolved.get();
+    }
+
+    /**
+     * @return the number of summaries the {@link #TIP} strategy would have
+     *         asked for on the checked relationships but this strategy did
+     *         not, always 0 for the tip strategy itself. Only counted while
+     *         a trace is bound or debug logging is on.
+     */
+    public long getSummariesAvoided() {
+        return m_avoided.get();
+    }
+
+    public void resetCounters() {
+        m_relationships.set(0);
+        m_resolved.set(0);
+        m_avoided.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[relationships=" + getRelationshipCount() 
+            + ", summariesRequested=" + getSummariesRequested()
+            + ", summariesAvoided=" + getSummariesAvoided() + "]";
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSAbstractRevisionStrategy.class);
+}
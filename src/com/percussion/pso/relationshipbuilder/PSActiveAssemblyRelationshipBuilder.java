@@ -4,22 +4,27 @@ package com.percussion.pso.relationshipbuilder;
 import static java.util.Collections.singleton;
 
 import java.util.Collection;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.percussion.cms.objectstore.PSAaRelationship;
+import com.percussion.cms.objectstore.PSComponentSummary;
+import com.percussion.cms.objectstore.PSRelationshipFilter;
 import com.percussion.design.objectstore.PSLocator;
 import com.percussion.design.objectstore.PSRelationship;
 import com.percussion.error.PSException;
-import com.percussion.services.assembly.IPSAssemblyService;
 import com.percussion.services.assembly.IPSAssemblyTemplate;
 import com.percussion.services.assembly.IPSTemplateSlot;
 import com.percussion.services.assembly.PSAssemblyException;
-import com.percussion.services.assembly.PSAssemblyServiceLocator;
 import com.percussion.util.IPSHtmlParameters;
 
+/**
+ * Builds active assembly relationships in a slot and with a template given
+ * when the builder is constructed.
+ */
 public abstract class PSActiveAssemblyRelationshipBuilder extends
         PSRelationshipBuilder {
 	
@@ -29,57 +34,117 @@ public abstract class PSActiveAssemblyRelationshipBuilder extends
     private static final Log ms_log = LogFactory
             .getLog(PSActiveAssemblyRelationshipBuilder.class);
     
-	private String slotName;
-	private String templateName;
+	private final String slotName;
+	private final String templateName;
 	
-	 private IPSAssemblyService m_assemblyService;
-	 public PSActiveAssemblyRelationshipBuilder() {
-		// TODO Auto-generated constructor stub
+	 private volatile PSDesignObjectCache m_designObjectCache = PSDesignObjectCache.getInstance();
+	 private volatile PSAaRelationshipIndex m_relationshipIndex;
+	 /**
+	  * @param isParent see {@link PSRelationshipBuilder#isParent()}.
+	  * @param slotName name of the slot, may be <code>null</code> when only
+	  *            retrieving.
+	  * @param templateName name of the template, may be <code>null</code>
+	  *            when only retrieving.
+	  */
+	 protected PSActiveAssemblyRelationshipBuilder(boolean isParent, String slotName,
+	         String templateName) {
+		super(isParent);
+		this.slotName = slotName;
+		this.templateName = templateName;
 	}
 	 
-	 public void init() {
-	        if (m_assemblyService == null)
-	            m_assemblyService = PSAssemblyServiceLocator.getAssemblyService();
-	        super.init();
-	 }
-	 
-	protected void setupFilter() throws PSAssemblyException, PSException {
+	protected void configureFilter(PSRelationshipFilter filter) throws PSAssemblyException, PSException {
 		 if ( slotName != null ) {
 	    	   IPSTemplateSlot slot = findSlot(slotName);
-	    	   super.getFilter().setProperty(IPSHtmlParameters.SYS_SLOTID, String.valueOf(slot
+	    	   filter.setProperty(IPSHtmlParameters.SYS_SLOTID, String.valueOf(slot
               .getGUID().longValue()));
 	       }
 	       
          if ( templateName != null ) {
       	  IPSAssemblyTemplate template = findTemplate(templateName);
-            super.getFilter().setProperty(IPSHtmlParameters.SYS_VARIANTID, String.valueOf(template
+            filter.setProperty(IPSHtmlParameters.SYS_VARIANTID, String.valueOf(template
                   .getGUID().longValue()));   
          }
-         super.setupFilter();
+         super.configureFilter(filter);
+	 }
+	 /**
+	  * Answers from the relationship index when it is warm.
+	  */
+	 public Collection<Integer> retrieve(int sourceId) throws PSAssemblyException, PSException {
+		 PSIntSet ids = getIndexedIds(sourceId);
+		 return ids != null ? ids : super.retrieve(sourceId);
+	 }
+
+	 public void retrieve(int sourceId, PSIntSet relatedIds) throws PSAssemblyException, PSException {
+		 PSIntSet ids = getIndexedIds(sourceId);
+		 if (ids != null) 
+			 relatedIds.addAll(ids);
+		 else 
+			 super.retrieve(sourceId, relatedIds);
+	 }
+
+	 public IPSRelatedIdCursor openCursor(int sourceId, int pageSize) throws PSAssemblyException, PSException {
+		 PSIntSet ids = getIndexedIds(sourceId);
+		 return ids != null ? new PSIntSetCursor(ids, pageSize) : super.openCursor(sourceId, pageSize);
+	 }
+
+	 public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds) throws PSAssemblyException, PSException {
+		 PSAaRelationshipIndex index = m_relationshipIndex;
+		 Map<Integer, PSIntSet> relatedIds = index == null ? null : index.getRelated(sourceIds, isParent());
+		 return relatedIds != null ? relatedIds : super.retrieveAll(sourceIds);
+	 }
+
+	 /**
+	  * The related ids when they can be had without a query, which is how
+	  * callers tell whether checking the relationships costs a round trip.
+	  * 
+	  * @return the related ids from the index, <code>null</code> if there is
+	  *         no index or it is not warm.
+	  */
+	 public PSIntSet getIndexedIds(int sourceId) {
+		 PSAaRelationshipIndex index = m_relationshipIndex;
+		 if (index == null) return null;
+		 return isParent() ? index.getDependents(sourceId) : index.getOwners(sourceId);
+	 }
+
+	 protected void relationshipsSaved(Collection<PSRelationship> relationships) {
+		 PSAaRelationshipIndex.relationshipsSaved(slotName, templateName, relationships);
+	 }
+
+	 protected void relationshipsDeleted(Collection<PSRelationship> relationships) {
+		 PSAaRelationshipIndex.relationshipsDeleted(slotName, templateName, relationships);
 	 }
+
+	 /**
+	  * Accepts the relationships in this builder's slot with its template.
+	  */
+	 protected boolean accepts(PSRelationship relationship) throws PSAssemblyException, PSException {
+		 if (slotName != null && !String.valueOf(findSlot(slotName).getGUID().longValue())
+				 .equals(relationship.getProperty(IPSHtmlParameters.SYS_SLOTID)))
+			 return false;
+		 if (templateName != null && !String.valueOf(findTemplate(templateName).getGUID().longValue())
+				 .equals(relationship.getProperty(IPSHtmlParameters.SYS_VARIANTID)))
+			 return false;
+		 return true;
+	 }
+
 	 public String getSlotName() {
 			return slotName;
 		}
 
-		public void setSlotName(String slotName) {
-			this.slotName = slotName;
-		}
-
 		public String getTemplateName() {
 			return templateName;
 		}
 
-		public void setTemplateName(String templateName) {
-			this.templateName = templateName;
-		}
 		
-		  public void addRelationships(
-		            Collection<Integer> ids) throws PSAssemblyException, PSException {
+		  protected Collection<PSRelationship> createRelationships(int sourceId,
+		            Collection<Integer> ids, Map<Integer, PSComponentSummary> summaries)
+		            throws PSAssemblyException, PSException {
 		        IPSAssemblyTemplate template = findTemplate(templateName);
 		        IPSTemplateSlot slot = findSlot(slotName);
 		        validateSlot(slot);
-		        Collection<PSLocator> ownerLocators = isParent() ? asLocators(singleton(getId())) : asLocators(ids);
-		        Collection<PSLocator> dependentLocators = isParent() ? asLocatorsNoRev(ids) : asLocatorsNoRev(singleton(getId()));
+		        Collection<PSLocator> ownerLocators = isParent() ? asLocators(singleton(sourceId), summaries) : asLocators(ids, summaries);
+		        Collection<PSLocator> dependentLocators = isParent() ? asLocatorsNoRev(ids) : asLocatorsNoRev(singleton(sourceId));
 		        Collection<PSRelationship> relationshipSet = createEmptyRelationshipCollection();
 		        for (PSLocator ownerLoc : ownerLocators) {
 		            for (PSLocator dependentLoc : dependentLocators) {
@@ -91,7 +156,7 @@ public abstract class PSActiveAssemblyRelationshipBuilder extends
 		                relationshipSet.add(newRelationship);
 		            }
 		        }
-		        saveRelationships(relationshipSet);
+		        return relationshipSet;
 		        
 		    }
 		  
@@ -131,8 +196,7 @@ public abstract class PSActiveAssemblyRelationshipBuilder extends
 	     */
 	    private IPSAssemblyTemplate findTemplate(String templateName)
 	            throws PSAssemblyException {
-	     	if (m_assemblyService == null) init();
-	        return m_assemblyService.findTemplateByName(templateName);
+	        return m_designObjectCache.findTemplate(getAssemblyService(), templateName);
 	    }
 
 	    /**
@@ -146,8 +210,35 @@ public abstract class PSActiveAssemblyRelationshipBuilder extends
 	     *            is not found
 	     */
 	    private IPSTemplateSlot findSlot(String slotname) throws PSAssemblyException {
-	    	if (m_assemblyService == null) init();
-	        return m_assemblyService.findSlotByName(slotname);
+	        return m_designObjectCache.findSlot(getAssemblyService(), slotname);
+	    }
+
+	    public PSDesignObjectCache getDesignObjectCache() {
+	        return m_designObjectCache;
+	    }
+
+	    public void setDesignObjectCache(PSDesignObjectCache designObjectCache) {
+	        m_designObjectCache = designObjectCache;
+	    }
+
+	    /**
+	     * The index retrieves are answered from when it is warm, it must be the
+	     * index of this builder's slot and template. The index only keeps edit
+	     * or current owner revisions, the revision strategy is not used for
+	     * answers from the index. <code>null</code> by default: retrieves go to
+	     * the relationship service.
+	     */
+	    public PSAaRelationshipIndex getRelationshipIndex() {
+	        return m_relationshipIndex;
+	    }
+
+	    public void setRelationshipIndex(PSAaRelationshipIndex relationshipIndex) {
+	        if (relationshipIndex != null 
+	                && (!relationshipIndex.getSlotName().equals(slotName) 
+	                        || !relationshipIndex.getTemplateName().equals(templateName)))
+	            throw new IllegalArgumentException("relationshipIndex is not the index of slot " 
+	                    + slotName + " and template " + templateName);
+	        m_relationshipIndex = relationshipIndex;
 	    }
  
 }
@@ -0,0 +1,785 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records the desired related ids of items in an append-only local file and
+ * applies them in the background, used by the asynchronous build mode of the
+ * relationship exits.
+ * <p>
+ * {@link #record(Map, int, PSIntSet)} writes the desired state to the file,
+ * forces it to disk and returns. The states are applied by one worker thread
+ * per shard, items are sharded by content id so the states of an item are
+ * applied in order. A state that is not yet applied is replaced by a newer
+ * state of the same item and builder configuration, only the latest state is
+ * applied.
+ * <p>
+ * A state that fails is applied again after {@link #getRetryDelay()},
+ * doubled after each failure, unless a newer state of the item replaces it.
+ * After {@link #getMaxAttempts()} failures it is appended to the dead letter
+ * file, the journal file name followed by <code>.failed</code>, in the
+ * format of the journal so it can be replayed by appending it to the journal
+ * when the cause is fixed.
+ * <p>
+ * Each applied, replaced or dead lettered state is marked done in the file.
+ * When the journal is opened the states not marked done are applied again, so
+ * a state recorded before the server stopped is not lost. The file is
+ * compacted when it is opened and emptied when nothing is pending. The
+ * compacted file is written next to the journal with the suffix
+ * <code>.tmp</code>, forced to disk and renamed over the journal. If the
+ * server stops before the rename the journal is read and the
+ * <code>.tmp</code> file dropped. If it stops after the journal was deleted
+ * to make way for the rename, which only happens where a rename cannot
+ * replace a file, the <code>.tmp</code> file is complete and becomes the
+ * journal.
+ * <p>
+ * The lines of the file are tab separated:
+ * <pre>
+ * R seq time sourceId ids parameters user
+ * D seq
+ * </pre>
+ * where ids are ";" separated and parameters and user are URL encoded. Lines
+ * without a user are read as recorded by no user. Thread-safe.
+ */
+public class PSBuildJournal {
+
+    /**
+     * Applies a desired state, usually by synchronizing a builder.
+     */
+    public interface Applier {
+        /**
+         * @param parameters the parameters the state was recorded with, never
+         *            <code>null</code>.
+         * @param sourceId the item.
+         * @param targetIds the desired related ids, never <code>null</code>.
+         * @param user the user who recorded the state, <code>null</code> if
+         *            unknown.
+         */
+        void apply(Map<String, String> parameters, int sourceId, PSIntSet targetIds,
+                String user) throws Exception;
+    }
+
+    /**
+     * Default number of shards, the number of worker threads.
+     */
+    public static final int DEFAULT_SHARDS = 4;
+
+    /**
+     * Default number of times a state is applied before it is dead lettered.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Default delay in milliseconds before a failed state is applied again.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 30 * 1000L;
+
+    /**
+     * The number of records after which the file is emptied once nothing is
+     * pending.
+     */
+    private static final int COMPACT_THRESHOLD = 10000;
+
+    private static final String ENCODING = "UTF-8";
+
+    private final File m_file;
+    private final File m_deadLetterFile;
+    private final Applier m_applier;
+    private final Shard[] m_shards;
+    private volatile boolean m_closed;
+    private volatile int m_maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long m_retryDelay = DEFAULT_RETRY_DELAY;
+
+    // guarded by this
+    private Writer m_writer;
+    private FileOutputStream m_out;
+    private long m_nextSeq = 1;
+    private int m_recordsSinceCompact;
+    /**
+     * The latest state of each item and builder that is not done, by item.
+     */
+    private final Map<Integer, Map<String, Entry>> m_states =
+        new HashMap<Integer, Map<String, Entry>>();
+
+    /**
+     * Record time by sequence of the states that are not done.
+     */
+    private final ConcurrentSkipListMap<Long, Long> m_pendingTimes =
+        new ConcurrentSkipListMap<Long, Long>();
+    private final AtomicLong m_recorded = new AtomicLong();
+    private final AtomicLong m_applied = new AtomicLong();
+    private final AtomicLong m_coalesced = new AtomicLong();
+    private final AtomicLong m_failed = new AtomicLong();
+    private final AtomicLong m_retried = new AtomicLong();
+    private final AtomicLong m_deadLettered = new AtomicLong();
+    private final AtomicLong m_replayed = new AtomicLong();
+
+    /**
+     * @param file the journal file, created if it does not exist. Not
+     *            <code>null</code>.
+     * @param shards the number of worker threads, at least 1.
+     * @param applier applies the states, not <code>null</code>.
+     */
+    public PSBuildJournal(File file, int shards, Applier applier) {
+        if (file == null) throw new IllegalArgumentException("file may not be null");
+        if (shards < 1) throw new IllegalArgumentException("shards must be at least 1");
+        if (applier == null) throw new IllegalArgumentException("applier may not be null");
+        m_file = file;
+        m_deadLetterFile = new File(file.getPath() + ".failed");
+        m_applier = applier;
+        m_shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            m_shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Opens the file and applies the states that were not done when it was
+     * last closed.
+     *
+     * @throws IOException if the file cannot be read or written.
+     */
+    public synchronized void open() throws IOException {
+        if (m_writer != null) throw new IllegalStateException("Journal is already open");
+        if (m_closed) throw new IllegalStateException("Journal is closed, create a new one");
+        File dir = m_file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create journal directory: " + dir);
+        recoverCompacted();
+        Map<Long, Entry> unapplied = read();
+        rewrite(unapplied);
+        openWriter(true);
+        for (Entry entry : unapplied.values()) {
+            m_pendingTimes.put(entry.seq, entry.time);
+            putState(entry);
+            m_replayed.incrementAndGet();
+            submit(entry);
+        }
+        ms_log.info("Opened build journal " + m_file + ", replaying "
+                + unapplied.size() + " entries");
+    }
+
+    /**
+     * Records the desired related ids of an item by no user, see
+     * {@link #record(Map, int, PSIntSet, String)}.
+     */
+    public void record(Map<String, String> parameters, int sourceId, PSIntSet targetIds)
+            throws IOException {
+        record(parameters, sourceId, targetIds, null);
+    }
+
+    /**
+     * Records the desired related ids of an item. The state is on disk when
+     * this returns and is applied later.
+     *
+     * @param parameters identify the builder, not <code>null</code>.
+     * @param sourceId the item.
+     * @param targetIds the desired related ids, not <code>null</code>.
+     * @param user the user saving the item, passed to the {@link Applier}.
+     *            May be <code>null</code>.
+     * @throws IOException if the state could not be written, it will not be
+     *             applied.
+     */
+    public void record(Map<String, String> parameters, int sourceId, PSIntSet targetIds,
+            String user) throws IOException {
+        String encoded = encode(parameters);
+        Entry entry;
+        synchronized (this) {
+            if (m_writer == null) throw new IllegalStateException("Journal is not open");
+            entry = new Entry(m_nextSeq++, System.currentTimeMillis(), sourceId,
+                    PSIntSet.valueOf(targetIds), parameters, encoded, user);
+            write(entry.toLine());
+            m_pendingTimes.put(entry.seq, entry.time);
+            putState(entry);
+            m_recordsSinceCompact++;
+        }
+        m_recorded.incrementAndGet();
+        submit(entry);
+    }
+
+    private void submit(Entry entry) {
+        getShard(entry).submit(entry);
+    }
+
+    private Shard getShard(Entry entry) {
+        return m_shards[(entry.sourceId & Integer.MAX_VALUE) % m_shards.length];
+    }
+
+    private void apply(Entry entry) {
+        entry.attempts++;
+        try {
+            m_applier.apply(entry.parameters, entry.sourceId, entry.targetIds, entry.user);
+            m_applied.incrementAndGet();
+        }
+        catch (Exception e) {
+            m_failed.incrementAndGet();
+            if (entry.attempts < m_maxAttempts && !m_closed) {
+                long delay = m_retryDelay << Math.min(entry.attempts - 1, 16);
+                ms_log.warn("Failed to apply relationships of item " + entry.sourceId
+                        + " to " + entry.targetIds + ", retrying in " + delay + "ms", e);
+                if (getShard(entry).retry(entry, delay)) return;
+            }
+            else if (!m_closed) {
+                ms_log.error("Failed to apply relationships of item " + entry.sourceId
+                        + " to " + entry.targetIds + " " + entry.attempts
+                        + " times, adding it to " + m_deadLetterFile, e);
+                deadLetter(entry);
+            }
+            else {
+                // applied again when the journal is opened
+                return;
+            }
+        }
+        done(entry);
+    }
+
+    /**
+     * Appends a state that cannot be applied to the dead letter file.
+     */
+    private synchronized void deadLetter(Entry entry) {
+        m_deadLettered.incrementAndGet();
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(m_deadLetterFile, true),
+                    ENCODING);
+            try {
+                writer.write(entry.toLine());
+                writer.write('\n');
+            }
+            finally {
+                writer.close();
+            }
+        }
+        catch (IOException e) {
+            ms_log.error("Failed to add entry " + entry.seq + " to " + m_deadLetterFile
+                    + ", it is dropped: " + entry.toLine(), e);
+        }
+    }
+
+    private void putState(Entry entry) {
+        Map<String, Entry> states = m_states.get(entry.sourceId);
+        if (states == null) {
+            states = new LinkedHashMap<String, Entry>();
+            m_states.put(entry.sourceId, states);
+        }
+        states.remove(entry.getKey());
+        states.put(entry.getKey(), entry);
+    }
+
+    private synchronized void done(Entry entry) {
+        m_pendingTimes.remove(entry.seq);
+        Map<String, Entry> states = m_states.get(entry.sourceId);
+        if (states != null && states.get(entry.getKey()) == entry) {
+            states.remove(entry.getKey());
+            if (states.isEmpty()) m_states.remove(entry.sourceId);
+        }
+        if (m_pendingTimes.isEmpty()) notifyAll();
+        if (m_writer == null) return;
+        try {
+            if (m_pendingTimes.isEmpty() && m_recordsSinceCompact >= COMPACT_THRESHOLD) {
+                m_writer.close();
+                openWriter(false);
+                m_recordsSinceCompact = 0;
+                ms_log.debug("Emptied build journal " + m_file);
+            }
+            else {
+                write("D\t" + entry.seq);
+            }
+        }
+        catch (IOException e) {
+            ms_log.error("Failed to mark entry " + entry.seq + " done in " + m_file
+                    + ", it will be applied again when the journal is opened", e);
+        }
+    }
+
+    private void write(String line) throws IOException {
+        m_writer.write(line);
+        m_writer.write('\n');
+        m_writer.flush();
+        m_out.getChannel().force(false);
+    }
+
+    private void openWriter(boolean append) throws IOException {
+        m_out = new FileOutputStream(m_file, append);
+        m_writer = new OutputStreamWriter(m_out, ENCODING);
+    }
+
+    /**
+     * @return the entries that are not done by sequence.
+     */
+    private Map<Long, Entry> read() throws IOException {
+        Map<Long, Entry> unapplied = new TreeMap<Long, Entry>();
+        if (!m_file.exists()) return unapplied;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(m_file), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    String[] fields = line.split("\t", -1);
+                    long seq = Long.parseLong(fields[1]);
+                    m_nextSeq = Math.max(m_nextSeq, seq + 1);
+                    if ("D".equals(fields[0])) {
+                        unapplied.remove(seq);
+                    }
+                    else if ("R".equals(fields[0]) && (fields.length == 6 || fields.length == 7)) {
+                        unapplied.put(seq, Entry.fromFields(fields));
+                    }
+                    else {
+                        ms_log.warn("Skipping bad line in " + m_file + ": " + line);
+                    }
+                }
+                catch (RuntimeException e) {
+                    // a line cut short when the server stopped
+                    ms_log.warn("Skipping bad line in " + m_file + ": " + line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return unapplied;
+    }
+
+    /**
+     * Replaces the file with only the given entries, see the class
+     * description for how it survives the server stopping half way.
+     */
+    private void rewrite(Map<Long, Entry> entries) throws IOException {
+        File tmp = getCompactedFile();
+        FileOutputStream out = new FileOutputStream(tmp);
+        Writer writer = new OutputStreamWriter(out, ENCODING);
+        try {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.toLine());
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(m_file)) {
+            // a rename does not replace a file on every platform
+            if (m_file.exists() && !m_file.delete())
+                throw new IOException("Cannot replace journal: " + m_file);
+            if (!tmp.renameTo(m_file))
+                throw new IOException("Cannot rename " + tmp + " to " + m_file);
+        }
+        m_recordsSinceCompact = entries.size();
+    }
+
+    /**
+     * Finishes or drops a compaction cut short when the server stopped.
+     */
+    private void recoverCompacted() throws IOException {
+        File tmp = getCompactedFile();
+        if (!tmp.exists()) return;
+        if (m_file.exists()) {
+            ms_log.warn("Dropping the unfinished compaction " + tmp + " of build journal " + m_file);
+            if (!tmp.delete()) throw new IOException("Cannot delete " + tmp);
+        }
+        else {
+            ms_log.warn("Recovering build journal " + m_file + " from its compaction " + tmp);
+            if (!tmp.renameTo(m_file))
+                throw new IOException("Cannot rename " + tmp + " to " + m_file);
+        }
+    }
+
+    private File getCompactedFile() {
+        return new File(m_file.getPath() + ".tmp");
+    }
+
+    /**
+     * The latest states of an item that are not done yet: recorded, being
+     * applied or waiting to be applied again.
+     *
+     * @param sourceId the item.
+     * @return the desired related ids by the parameters they were recorded
+     *         with, oldest first. Never <code>null</code>, empty if nothing
+     *         is pending for the item.
+     */
+    public synchronized Map<Map<String, String>, PSIntSet> getPending(int sourceId) {
+        Map<Map<String, String>, PSIntSet> pending = new LinkedHashMap<Map<String, String>, PSIntSet>();
+        Map<String, Entry> states = m_states.get(sourceId);
+        if (states == null) return pending;
+        for (Entry entry : states.values()) {
+            pending.put(entry.parameters, new PSIntSet(entry.targetIds));
+        }
+        return pending;
+    }
+
+    /**
+     * Waits until nothing is pending.
+     *
+     * @param timeoutMillis the maximum time to wait.
+     * @return <code>true</code> if nothing is pending.
+     */
+    public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (!m_pendingTimes.isEmpty()) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the workers once they finish the state they are applying and
+     * closes the file. States that are not applied yet, including the ones
+     * waiting to be applied again, are applied when the journal is opened
+     * again. Does nothing if the journal is already closed.
+     */
+    public void close() {
+        if (m_closed) return;
+        m_closed = true;
+        for (Shard shard : m_shards) {
+            shard.executor.shutdown();
+        }
+        for (Shard shard : m_shards) {
+            try {
+                shard.executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        synchronized (this) {
+            if (m_writer == null) return;
+            try {
+                m_writer.close();
+            }
+            catch (IOException e) {
+                ms_log.warn("Failed to close build journal " + m_file, e);
+            }
+            m_writer = null;
+        }
+        ms_log.info("Closed build journal " + m_file + " with " + m_pendingTimes.size()
+                + " entries pending");
+    }
+
+    /**
+     * @return <code>true</code> once {@link #close()} was called.
+     */
+    public boolean isClosed() {
+        return m_closed;
+    }
+
+    /**
+     * @return the number of states recorded or replayed and not done yet.
+     */
+    public int getBacklog() {
+        return m_pendingTimes.size();
+    }
+
+    /**
+     * @return the age in milliseconds of the oldest state not done yet,
+     *         <code>0</code> if nothing is pending.
+     */
+    public long getLagMillis() {
+        Map.Entry<Long, Long> oldest = m_pendingTimes.firstEntry();
+        return oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getValue());
+    }
+
+    public long getRecordedCount() {
+        return m_recorded.get();
+    }
+
+    public long getAppliedCount() {
+        return m_applied.get();
+    }
+
+    /**
+     * @return the number of states replaced by a newer state of the same item
+     *         before they were applied.
+     */
+    public long getCoalescedCount() {
+        return m_coalesced.get();
+    }
+
+    /**
+     * @return the number of times applying a state failed.
+     */
+    public long getFailedCount() {
+        return m_failed.get();
+    }
+
+    /**
+     * @return the number of times a failed state was applied again.
+     */
+    public long getRetriedCount() {
+        return m_retried.get();
+    }
+
+    /**
+     * @return the number of states added to the dead letter file.
+     */
+    public long getDeadLetterCount() {
+        return m_deadLettered.get();
+    }
+
+    /**
+     * @return the number of states applied again when the journal was opened.
+     */
+    public long getReplayedCount() {
+        return m_replayed.get();
+    }
+
+    public File getFile() {
+        return m_file;
+    }
+
+    /**
+     * @return the file the states that cannot be applied are appended to,
+     *         never <code>null</code>. It exists only once a state was dead
+     *         lettered.
+     */
+    public File getDeadLetterFile() {
+        return m_deadLetterFile;
+    }
+
+    /**
+     * The number of times a state is applied before it is dead lettered,
+     * {@link #DEFAULT_MAX_ATTEMPTS} by default.
+     */
+    public int getMaxAttempts() {
+        return m_maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+        m_maxAttempts = maxAttempts;
+    }
+
+    /**
+     * The delay in milliseconds before a failed state is applied again for
+     * the first time, doubled after each failure. {@link #DEFAULT_RETRY_DELAY}
+     * by default.
+     */
+    public long getRetryDelay() {
+        return m_retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        if (retryDelay < 0) throw new IllegalArgumentException("retryDelay may not be negative");
+        m_retryDelay = retryDelay;
+    }
+
+    private static String encode(Map<String, String> parameters) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, String> p : new TreeMap<String, String>(parameters).entrySet()) {
+            if (encoded.length() > 0) encoded.append('&');
+            encoded.append(URLEncoder.encode(p.getKey(), ENCODING)).append('=');
+            if (p.getValue() != null) encoded.append(URLEncoder.encode(p.getValue(), ENCODING));
+        }
+        return encoded.toString();
+    }
+
+    private static Map<String, String> decode(String encoded) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new TreeMap<String, String>();
+        for (String p : StringUtils.split(encoded, '&')) {
+            parameters.put(URLDecoder.decode(StringUtils.substringBefore(p, "="), ENCODING),
+                    URLDecoder.decode(StringUtils.substringAfter(p, "="), ENCODING));
+        }
+        return parameters;
+    }
+
+    private static final class Entry {
+        private final long seq;
+        private final long time;
+        private final int sourceId;
+        private final PSIntSet targetIds;
+        private final Map<String, String> parameters;
+        private final String encodedParameters;
+        private final String user;
+        /**
+         * The number of times the state was applied, only used by the worker
+         * of its shard.
+         */
+        private int attempts;
+
+        private Entry(long seq, long time, int sourceId, PSIntSet targetIds,
+                Map<String, String> parameters, String encodedParameters, String user) {
+            this.seq = seq;
+            this.time = time;
+            this.sourceId = sourceId;
+            this.targetIds = targetIds;
+            this.parameters = parameters;
+            this.encodedParameters = encodedParameters;
+            this.user = user;
+        }
+
+        /**
+         * Identifies the item and builder, a newer state replaces an older
+         * one with the same key.
+         */
+        private String getKey() {
+            return sourceId + "|" + encodedParameters;
+        }
+
+        private String toLine() {
+            StringBuilder line = new StringBuilder();
+            line.append("R\t").append(seq).append('\t').append(time).append('\t')
+                .append(sourceId).append('\t');
+            PSIdListCodec.append(line, targetIds).append('\t').append(encodedParameters)
+                .append('\t');
+            try {
+                if (user != null) line.append(URLEncoder.encode(user, ENCODING));
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return line.toString();
+        }
+
+        private static Entry fromFields(String[] fields) throws UnsupportedEncodingException {
+            PSIntSet ids = new PSIntSet();
+            if (PSIdListCodec.parse(fields[4], ids, null) != 0 && fields[4].length() > 0)
+                throw new NumberFormatException("Invalid ids: " + fields[4]);
+            String user = fields.length > 6 && fields[6].length() > 0
+                ? URLDecoder.decode(fields[6], ENCODING) : null;
+            return new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), ids, decode(fields[5]), fields[5], user);
+        }
+    }
+
+    /**
+     * Applies the states of the items of a shard one at a time, keeping only
+     * the latest state of each item.
+     */
+    private final class Shard implements Runnable {
+        private final ScheduledThreadPoolExecutor executor;
+        // guarded by this
+        private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+        /**
+         * The failed states waiting to be applied again.
+         */
+        private final Map<String, Entry> retrying = new HashMap<String, Entry>();
+        private boolean scheduled;
+
+        private Shard(final int index) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PSBuildJournal-" + m_file.getName() + "-" + index);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // the retries waiting when the journal is closed are replayed when it is opened
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+
+        private void submit(Entry entry) {
+            Entry replaced;
+            synchronized (this) {
+                replaced = pending.remove(entry.getKey());
+                if (replaced == null) replaced = retrying.remove(entry.getKey());
+                pending.put(entry.getKey(), entry);
+                schedule();
+            }
+            if (replaced != null) {
+                m_coalesced.incrementAndGet();
+                done(replaced);
+            }
+        }
+
+        /**
+         * Applies a failed state again after a delay, unless a newer state
+         * of the item replaces it first.
+         *
+         * @return <code>false</code> if the state is replaced and is done.
+         */
+        private boolean retry(final Entry entry, long delay) {
+            synchronized (this) {
+                if (!pending.containsKey(entry.getKey())) {
+                    retrying.put(entry.getKey(), entry);
+                    try {
+                        executor.schedule(new Runnable() {
+                            public void run() {
+                                resubmit(entry);
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    }
+                    catch (RejectedExecutionException e) {
+                        // closing, the state is applied when the journal is opened again
+                    }
+                    return true;
+                }
+            }
+            m_coalesced.incrementAndGet();
+            return false;
+        }
+
+        private synchronized void resubmit(Entry entry) {
+            if (retrying.get(entry.getKey()) != entry) return;
+            retrying.remove(entry.getKey());
+            m_retried.incrementAndGet();
+            pending.put(entry.getKey(), entry);
+            schedule();
+        }
+
+        // guarded by this
+        private void schedule() {
+            if (scheduled || m_closed) return;
+            try {
+                executor.execute(this);
+                scheduled = true;
+            }
+            catch (RejectedExecutionException e) {
+                // closing, the state is applied when the journal is opened again
+            }
+        }
+
+        public void run() {
+            while (!m_closed) {
+                Entry entry;
+                synchronized (this) {
+                    Iterator<Entry> it = pending.values().iterator();
+                    if (!it.hasNext()) {
+                        scheduled = false;
+                        return;
+                    }
+                    entry = it.next();
+                    it.remove();
+                }
+                apply(entry);
+            }
+            synchronized (this) {
+                scheduled = false;
+            }
+        }
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSBuildJournal.class);
+}
@@ -0,0 +1,159 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.percussion.error.PSException;
+import com.percussion.services.assembly.PSAssemblyException;
+
+/**
+ * Reads related ids through the JVM wide {@link PSRelationshipCache}. Writes
+ * are passed to the wrapped builder and invalidate the source and target
+ * items, the builders also invalidate the items whose relationships they
+ * removed.
+ */
+public class PSCachingRelationshipBuilder implements IPSRelationshipBuilder {
+
+    private final IPSRelationshipBuilder m_builder;
+    private final String m_qualifier;
+    private final PSRelationshipCache m_cache;
+
+    /**
+     * @param builder the builder that does the work, not <code>null</code>.
+     * @param qualifier identifies the configuration of the builder, builders
+     *            with the same qualifier must return the same results. Not
+     *            <code>null</code>.
+     * @param cache not <code>null</code>.
+     */
+    public PSCachingRelationshipBuilder(IPSRelationshipBuilder builder,
+            String qualifier, PSRelationshipCache cache) {
+        if (builder == null) throw new IllegalArgumentException("builder cannot be null");
+        if (qualifier == null) throw new IllegalArgumentException("qualifier cannot be null");
+        if (cache == null) throw new IllegalArgumentException("cache cannot be null");
+        m_builder = builder;
+        m_qualifier = qualifier;
+        m_cache = cache;
+    }
+
+    public Collection<Integer> retrieve(int sourceId) throws PSAssemblyException,
+            PSException {
+        PSIntSet ids = m_cache.get(sourceId, m_qualifier);
+        if (ids != null) return ids;
+        long generation = m_cache.getGeneration(sourceId);
+        Collection<Integer> retrieved = m_builder.retrieve(sourceId);
+        if (retrieved != null) m_cache.put(sourceId, m_qualifier, retrieved, generation);
+        return retrieved;
+    }
+
+    public void retrieve(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException {
+        Collection<Integer> ids = retrieve(sourceId);
+        if (ids != null) relatedIds.addAll(ids);
+    }
+
+    /**
+     * Pages through the cached ids if there are some, otherwise opens a
+     * cursor on the wrapped builder. Paged reads are not cached.
+     */
+    public IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+            throws PSAssemblyException, PSException {
+        PSIntSet ids = m_cache.get(sourceId, m_qualifier);
+        if (ids != null) return new PSIntSetCursor(ids, pageSize);
+        return m_builder.openCursor(sourceId, pageSize);
+    }
+
+    public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+            throws PSAssemblyException, PSException {
+        Map<Integer, PSIntSet> relatedIds = new LinkedHashMap<Integer, PSIntSet>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer sourceId : sourceIds) {
+            PSIntSet ids = m_cache.get(sourceId, m_qualifier);
+            relatedIds.put(sourceId, ids);
+            if (ids == null) missing.add(sourceId);
+        }
+        if (!missing.isEmpty()) {
+            long[] generations = new long[missing.size()];
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = m_cache.getGeneration(missing.get(i));
+            }
+            Map<Integer, PSIntSet> retrieved = m_builder.retrieveAll(missing);
+            for (int i = 0; i < generations.length; i++) {
+                Integer sourceId = missing.get(i);
+                PSIntSet ids = retrieved.get(sourceId);
+                relatedIds.put(sourceId, ids);
+                m_cache.put(sourceId, m_qualifier, ids, generations[i]);
+            }
+        }
+        return relatedIds;
+    }
+
+    public void synchronize(int sourceId, Set<Integer> targetIds)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.synchronize(sourceId, targetIds);
+        }
+        finally {
+            invalidate(sourceId, targetIds);
+        }
+    }
+
+    public void synchronize(int sourceId, PSIntSet targetIds)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.synchronize(sourceId, targetIds);
+        }
+        finally {
+            invalidate(sourceId, targetIds);
+        }
+    }
+
+    public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.synchronizeAll(targetIdsBySourceId);
+        }
+        finally {
+            PSIntSet ids = new PSIntSet(targetIdsBySourceId.keySet());
+            for (Set<Integer> targetIds : targetIdsBySourceId.values()) {
+                ids.addAll(targetIds);
+            }
+            m_cache.invalidate(ids);
+        }
+    }
+
+    public void addRelationships(int sourceId, Collection<Integer> ids)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.addRelationships(sourceId, ids);
+        }
+        finally {
+            invalidate(sourceId, ids);
+        }
+    }
+
+    private void invalidate(int sourceId, Collection<Integer> targetIds) {
+        PSIntSet ids = new PSIntSet(targetIds);
+        ids.add(sourceId);
+        m_cache.invalidate(ids);
+    }
+
+    /**
+     * @return the wrapped builder, never <code>null</code>.
+     */
+    public IPSRelationshipBuilder getBuilder() {
+        return m_builder;
+    }
+
+    public String getQualifier() {
+        return m_qualifier;
+    }
+
+    public PSRelationshipCache getCache() {
+        return m_cache;
+    }
+
+}
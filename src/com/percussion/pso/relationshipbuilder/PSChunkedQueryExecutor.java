@@ -0,0 +1,195 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.cms.objectstore.PSRelationshipFilter;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.services.relationship.IPSRelationshipService;
+
+/**
+ * Runs several relationship filters, for example one per owner or one per
+ * chunk of dependent ids, and merges the results. The filters run one after
+ * the other on the calling thread, so they run in the request's context and
+ * Hibernate session and a request never waits for the queries of another.
+ * The price is that nothing runs concurrently: the time of a lookup is the
+ * sum of its queries.
+ * <p>
+ * A relationship filter only takes a single owner and an unbounded list of
+ * dependents, {@link #createFilters(Collection, Collection, int, FilterFactory)}
+ * builds the filters for many owners and dependents with bounded dependent
+ * lists. Looking up the relationships between many owners and dependents
+ * with one filter per owner and chunk takes owners times chunks queries.
+ * {@link #find(IPSRelationshipService, Collection, Collection, int, FilterFactory)}
+ * does that while it is at most {@link #getMaxOwnerQueries()} queries, above
+ * that it only queries the chunks of dependents. Those filters cannot name
+ * the owners: they return the relationships of every owner of the
+ * dependents, which are read and then dropped. Thread-safe.
+ */
+public class PSChunkedQueryExecutor {
+
+    /**
+     * Default for {@link #getMaxOwnerQueries()}.
+     */
+    public static final int DEFAULT_MAX_OWNER_QUERIES = 16;
+
+    private static final PSChunkedQueryExecutor ms_instance = new PSChunkedQueryExecutor();
+
+    private volatile int m_maxOwnerQueries = DEFAULT_MAX_OWNER_QUERIES;
+
+    /**
+     * @return the executor shared by the builders and the helper service,
+     *         never <code>null</code>.
+     */
+    public static PSChunkedQueryExecutor getInstance() {
+        return ms_instance;
+    }
+
+    /**
+     * Creates a filter, configured with everything but the owner and the
+     * dependents.
+     */
+    public interface FilterFactory {
+        PSRelationshipFilter createFilter() throws PSException;
+    }
+
+    /**
+     * Creates one filter per owner and chunk of dependents.
+     *
+     * @param ownerIds the owners, may be <code>null</code> or empty for any
+     *            owner.
+     * @param dependentIds the dependents, may be <code>null</code> or empty
+     *            for any dependent.
+     * @param chunkSize the maximum number of dependents in a filter, at least 1.
+     * @param factory creates the filters, not <code>null</code>.
+     * @return never <code>null</code> or empty.
+     */
+    public static List<PSRelationshipFilter> createFilters(Collection<Integer> ownerIds,
+            Collection<Integer> dependentIds, int chunkSize, FilterFactory factory)
+            throws PSException {
+        List<List<Integer>> chunks = dependentIds == null || dependentIds.isEmpty()
+            ? null : PSRelationshipBuilder.partition(dependentIds, chunkSize);
+        List<PSRelationshipFilter> filters = new ArrayList<PSRelationshipFilter>();
+        if (ownerIds == null || ownerIds.isEmpty()) {
+            if (chunks == null) {
+                filters.add(factory.createFilter());
+                return filters;
+            }
+            for (List<Integer> chunk : chunks) {
+                PSRelationshipFilter filter = factory.createFilter();
+                filter.setDependentIds(chunk);
+                filters.add(filter);
+            }
+            return filters;
+        }
+        for (Integer ownerId : ownerIds) {
+            if (chunks == null) {
+                PSRelationshipFilter filter = factory.createFilter();
+                filter.setOwnerId(ownerId);
+                filters.add(filter);
+                continue;
+            }
+            for (List<Integer> chunk : chunks) {
+                PSRelationshipFilter filter = factory.createFilter();
+                filter.setOwnerId(ownerId);
+                filter.setDependentIds(chunk);
+                filters.add(filter);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Finds the relationships between owners and dependents. The filters are
+     * the ones of {@link #createFilters(Collection, Collection, int, FilterFactory)},
+     * one per owner and chunk of dependents, unless there are more than one
+     * owner and that makes more than {@link #getMaxOwnerQueries()} queries.
+     * Then the relationships are found with one filter per chunk of
+     * dependents, without an owner, and the relationships of other owners are
+     * dropped.
+     *
+     * @param relationshipService not <code>null</code>.
+     * @param ownerIds see {@link #createFilters(Collection, Collection, int, FilterFactory)}.
+     * @param dependentIds see {@link #createFilters(Collection, Collection, int, FilterFactory)}.
+     * @param chunkSize the maximum number of dependents in a filter, at least 1.
+     * @param factory creates the filters, not <code>null</code>.
+     * @return never <code>null</code>.
+     * @throws PSException the first error of a filter.
+     */
+    public List<PSRelationship> find(IPSRelationshipService relationshipService,
+            Collection<Integer> ownerIds, Collection<Integer> dependentIds, int chunkSize,
+            FilterFactory factory) throws PSException {
+        if (ownerIds == null || ownerIds.size() < 2 || dependentIds == null
+                || dependentIds.isEmpty()) {
+            return findByFilters(relationshipService,
+                    createFilters(ownerIds, dependentIds, chunkSize, factory));
+        }
+        long chunks = (dependentIds.size() + chunkSize - 1) / chunkSize;
+        if (ownerIds.size() * chunks <= m_maxOwnerQueries) {
+            return findByFilters(relationshipService,
+                    createFilters(ownerIds, dependentIds, chunkSize, factory));
+        }
+        ms_log.debug("Finding the relationships of " + ownerIds.size()
+                + " owners by chunks of " + dependentIds.size() + " dependents");
+        PSIntSet owners = PSIntSet.valueOf(ownerIds);
+        List<PSRelationship> relationships = findByFilters(relationshipService,
+                createFilters(null, dependentIds, chunkSize, factory));
+        List<PSRelationship> found = new ArrayList<PSRelationship>(relationships.size());
+        for (PSRelationship relationship : relationships) {
+            if (owners.contains(relationship.getOwner().getId())) found.add(relationship);
+        }
+        return found;
+    }
+
+    /**
+     * Runs the filters and merges the relationships they find, in the order
+     * of the filters. Each query is recorded as a
+     * {@link Operation#FIND_BY_FILTER} call.
+     *
+     * @param relationshipService not <code>null</code>.
+     * @param filters not <code>null</code>.
+     * @return never <code>null</code>.
+     * @throws PSException the first error of a filter.
+     */
+    public List<PSRelationship> findByFilters(IPSRelationshipService relationshipService,
+            List<PSRelationshipFilter> filters) throws PSException {
+        List<PSRelationship> relationships = new ArrayList<PSRelationship>();
+        for (PSRelationshipFilter filter : filters) {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                relationships.addAll(relationshipService.findByFilter(filter));
+                succeeded = true;
+            }
+            finally {
+                PSRelationshipMetrics.record(Operation.FIND_BY_FILTER, start, succeeded);
+            }
+        }
+        return relationships;
+    }
+
+    /**
+     * The most queries {@link #find(IPSRelationshipService, Collection, Collection, int, FilterFactory)}
+     * makes with a filter per owner, default {@link #DEFAULT_MAX_OWNER_QUERIES}.
+     */
+    public int getMaxOwnerQueries() {
+        return m_maxOwnerQueries;
+    }
+
+    public void setMaxOwnerQueries(int maxOwnerQueries) {
+        if (maxOwnerQueries < 0) throw new IllegalArgumentException("maxOwnerQueries cannot be negative");
+        m_maxOwnerQueries = maxOwnerQueries;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSChunkedQueryExecutor.class);
+}
@@ -0,0 +1,124 @@
+package com.percussion.pso.relationshipbuilder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.services.assembly.IPSAssemblyService;
+import com.percussion.services.assembly.IPSAssemblyTemplate;
+import com.percussion.services.assembly.IPSTemplateSlot;
+import com.percussion.services.assembly.PSAssemblyException;
+
+/**
+ * Caches slots and templates by name so that saving a content item does not
+ * look up the same design objects from the assembly service for every
+ * relationship field.
+ * <p>
+ * Slots and templates are rarely changed so the entries are kept for a few
+ * minutes. If a slot or template is renamed or recreated call
+ * {@link #flush()} (or wait for the entries to expire).
+ * <p>
+ * The shared instance is used by the relationship builders and
+ * {@link PSRelationshipHelperService}.
+ *
+ * @see #getInstance()
+ */
+public class PSDesignObjectCache {
+
+    /**
+     * Default number of slots and templates kept.
+     */
+    public static final int DEFAULT_MAX_SIZE = 500;
+
+    /**
+     * Default time to live of an entry, five minutes.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+    private static final PSDesignObjectCache ms_instance = new PSDesignObjectCache(
+            DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+
+    private final PSTimedCache<String, IPSTemplateSlot> m_slots;
+    private final PSTimedCache<String, IPSAssemblyTemplate> m_templates;
+
+    public PSDesignObjectCache(int maxSize, long timeToLive) {
+        m_slots = new PSTimedCache<String, IPSTemplateSlot>(maxSize, timeToLive);
+        m_templates = new PSTimedCache<String, IPSAssemblyTemplate>(maxSize, timeToLive);
+    }
+
+    /**
+     * The cache shared by all builders and helper services in the JVM.
+     *
+     * @return never <code>null</code>.
+     */
+    public static PSDesignObjectCache getInstance() {
+        return ms_instance;
+    }
+
+    /**
+     * Finds a slot by name, using the cached slot if there is one.
+     *
+     * @param assemblyService used to load the slot if it is not cached, not
+     *            <code>null</code>.
+     * @param slotName name of the slot, not <code>null</code>, must exist.
+     * @return the slot, never <code>null</code>.
+     * @throws PSAssemblyException propagated from the assembly service if the
+     *             slot is not found.
+     */
+    public IPSTemplateSlot findSlot(IPSAssemblyService assemblyService,
+            String slotName) throws PSAssemblyException {
+        IPSTemplateSlot slot = m_slots.get(slotName);
+        if (slot == null) {
+            ms_log.debug("Slot cache miss for: " + slotName);
+            slot = assemblyService.findSlotByName(slotName);
+            if (slot != null)
+                m_slots.put(slotName, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Finds a template by name, using the cached template if there is one.
+     *
+     * @param assemblyService used to load the template if it is not cached, not
+     *            <code>null</code>.
+     * @param templateName name of the template, not <code>null</code>, must
+     *            exist.
+     * @return the template, never <code>null</code>.
+     * @throws PSAssemblyException propagated from the assembly service if the
+     *             template is not found.
+     */
+    public IPSAssemblyTemplate findTemplate(IPSAssemblyService assemblyService,
+            String templateName) throws PSAssemblyException {
+        IPSAssemblyTemplate template = m_templates.get(templateName);
+        if (template == null) {
+            ms_log.debug("Template cache miss for: " + templateName);
+            template = assemblyService.findTemplateByName(templateName);
+            if (template != null)
+                m_templates.put(templateName, template);
+        }
+        return template;
+    }
+
+    /**
+     * Removes all cached slots and templates.
+     */
+    public void flush() {
+        ms_log.debug("Flushing slot and template cache");
+        m_slots.flush();
+        m_templates.flush();
+    }
+
+    public PSTimedCache<String, IPSTemplateSlot> getSlotCache() {
+        return m_slots;
+    }
+
+    public PSTimedCache<String, IPSAssemblyTemplate> getTemplateCache() {
+        return m_templates;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSDesignObjectCache.class);
+}
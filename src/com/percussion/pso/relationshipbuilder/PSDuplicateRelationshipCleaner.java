@@ -0,0 +1,258 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.services.relationship.IPSRelationshipService;
+import com.percussion.services.relationship.PSRelationshipServiceLocator;
+
+/**
+ * Deletes duplicate relationships found while reading relationships in the
+ * background so that reads never write to the relationship table.
+ * <p>
+ * Duplicates are put in a bounded queue, a relationship that is already
+ * queued is only queued once. A daemon thread deletes the queued
+ * relationships in batches every {@link #getInterval()} milliseconds. When
+ * the queue is full new duplicates are dropped, they will be found again the
+ * next time the item is read.
+ * <p>
+ * Thread-safe.
+ */
+public class PSDuplicateRelationshipCleaner {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    private static final PSDuplicateRelationshipCleaner ms_instance =
+        new PSDuplicateRelationshipCleaner(DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_INTERVAL);
+
+    private final int m_capacity;
+    private final int m_batchSize;
+    private final long m_interval;
+
+    /**
+     * Queued relationships by relationship id in the order they were queued.
+     */
+    private final Map<Integer, PSRelationship> m_queue =
+        new LinkedHashMap<Integer, PSRelationship>();
+
+    private volatile IPSRelationshipService m_relationshipService;
+    private ScheduledExecutorService m_executor;
+
+    private final AtomicLong m_submitted = new AtomicLong();
+    private final AtomicLong m_deleted = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final AtomicLong m_failed = new AtomicLong();
+    private final AtomicLong m_batches = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of queued relationships.
+     * @param batchSize the maximum number of relationships deleted in one
+     *            call to the relationship service.
+     * @param interval milliseconds between deletes.
+     */
+    public PSDuplicateRelationshipCleaner(int capacity, int batchSize, long interval) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+        if (interval < 1) throw new IllegalArgumentException("interval must be at least 1");
+        m_capacity = capacity;
+        m_batchSize = batchSize;
+        m_interval = interval;
+    }
+
+    /**
+     * @return the cleaner shared by all builders, never <code>null</code>.
+     */
+    public static PSDuplicateRelationshipCleaner getInstance() {
+        return ms_instance;
+    }
+
+    /**
+     * Queues duplicate relationships to be deleted. Does not block.
+     *
+     * @param duplicates not <code>null</code>, may be empty.
+     * @return the number of relationships that were queued, relationships
+     *         already queued or dropped because the queue is full are not
+     *         counted.
+     */
+    public int submit(Collection<PSRelationship> duplicates) {
+        int queued = 0;
+        synchronized (m_queue) {
+            for (PSRelationship relationship : duplicates) {
+                m_submitted.incrementAndGet();
+                Integer id = relationship.getId();
+                if (m_queue.containsKey(id)) continue;
+                if (m_queue.size() >= m_capacity) {
+                    m_dropped.incrementAndGet();
+                    continue;
+                }
+                m_queue.put(id, relationship);
+                queued++;
+            }
+            if (queued > 0) startIfNeeded();
+        }
+        if (queued > 0 && ms_log.isDebugEnabled())
+            ms_log.debug("Queued " + queued + " duplicate relationships for deletion");
+        return queued;
+    }
+
+    private void startIfNeeded() {
+        if (m_executor != null) return;
+        m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PSDuplicateRelationshipCleaner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        m_executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                }
+                catch (RuntimeException e) {
+                    ms_log.error("Failed to delete duplicate relationships", e);
+                }
+            }
+        }, m_interval, m_interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes all the queued relationships now, in batches. Relationships
+     * that fail to delete are not retried.
+     *
+     * @return the number of relationships deleted.
+     */
+    public int flush() {
+        int deleted = 0;
+        List<PSRelationship> batch;
+        while (!(batch = nextBatch()).isEmpty()) {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                getRelationshipService().deleteRelationship(batch);
+                succeeded = true;
+                m_deleted.addAndGet(batch.size());
+                deleted += batch.size();
+            }
+            catch (Exception e) {
+                m_failed.addAndGet(batch.size());
+                ms_log.error("Failed to delete " + batch.size() + " duplicate relationships", e);
+            }
+            finally {
+                PSRelationshipMetrics.record(Operation.DELETE_RELATIONSHIPS, start, succeeded);
+            }
+            m_batches.incrementAndGet();
+        }
+        if (deleted > 0) ms_log.debug("Deleted " + deleted + " duplicate relationships");
+        return deleted;
+    }
+
+    private List<PSRelationship> nextBatch() {
+        synchronized (m_queue) {
+            List<PSRelationship> batch =
+                new ArrayList<PSRelationship>(Math.min(m_batchSize, m_queue.size()));
+            Iterator<PSRelationship> it = m_queue.values().iterator();
+            while (it.hasNext() && batch.size() < m_batchSize) {
+                batch.add(it.next());
+                it.remove();
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Stops the background thread, queued relationships are kept and the
+     * thread is started again by the next submit.
+     */
+    public void shutdown() {
+        synchronized (m_queue) {
+            if (m_executor != null) {
+                m_executor.shutdown();
+                m_executor = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of relationships waiting to be deleted.
+     */
+    public int getQueueDepth() {
+        synchronized (m_queue) {
+            return m_queue.size();
+        }
+    }
+
+    /**
+     * @return the number of duplicates submitted, including those already
+     *         queued and those dropped.
+     */
+    public long getSubmittedCount() {
+        return m_submitted.get();
+    }
+
+    public long getDeletedCount() {
+        return m_deleted.get();
+    }
+
+    /**
+     * @return the number of duplicates not queued because the queue was full.
+     */
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    public long getFailedCount() {
+        return m_failed.get();
+    }
+
+    /**
+     * @return the number of delete calls made to the relationship service.
+     */
+    public long getBatchCount() {
+        return m_batches.get();
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    public int getBatchSize() {
+        return m_batchSize;
+    }
+
+    public long getInterval() {
+        return m_interval;
+    }
+
+    private IPSRelationshipService getRelationshipService() {
+        if (m_relationshipService == null)
+            m_relationshipService = PSRelationshipServiceLocator.getRelationshipService();
+        return m_relationshipService;
+    }
+
+    public void setRelationshipService(IPSRelationshipService relationshipService) {
+        m_relationshipService = relationshipService;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSDuplicateRelationshipCleaner.class);
+}
@@ -0,0 +1,344 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.cms.objectstore.PSComponentSummary;
+import com.percussion.cms.objectstore.PSRelationshipFilter;
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.design.objectstore.PSRelationshipConfig;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.services.guidmgr.IPSGuidManager;
+import com.percussion.services.legacy.IPSCmsObjectMgr;
+import com.percussion.services.relationship.IPSRelationshipService;
+import com.percussion.utils.guid.IPSGuid;
+import com.percussion.webservices.PSErrorException;
+import com.percussion.webservices.PSErrorsException;
+import com.percussion.webservices.content.IPSContentWs;
+
+/**
+ * Writes folder membership for the folder builders with as few round trips as
+ * possible.
+ * <p>
+ * All writes go through the content web service, which checks the folder
+ * permissions and applies the folder side effects. Removing items from
+ * folders first finds the folder relationships of the items with one query
+ * per {@link PSRelationshipBuilder#getBatchSize()} items, so that the web
+ * service is only called for the folders that hold some of the items, with
+ * only those items. When the caller already knows that the items are in the
+ * folders, for example because it just read the folders of the item, the
+ * query is skipped, see {@link #removeMembers(Collection, Collection)}.
+ * Adding items takes one web service call per folder.
+ * <p>
+ * The locators used to make GUIDs are cached by content id in a shared
+ * {@link PSTimedCache}, folder membership does not depend on the revision so
+ * cached locators can be used even if the item was edited since.
+ * <p>
+ * The number of calls saved compared to one web service call per folder and
+ * one summary load per write is counted, see {@link #getRoundTripsSaved()},
+ * and exported as {@link Counter#FOLDER_ROUND_TRIPS_SAVED}.
+ * Thread-safe once the services are set.
+ */
+public class PSFolderMembershipWriter {
+
+    /**
+     * Default number of locators kept.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Default time to live of a locator, ten minutes.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000L;
+
+    private static final PSTimedCache<Integer, PSLocator> ms_locators =
+        new PSTimedCache<Integer, PSLocator>(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+
+    private volatile IPSRelationshipService m_relationshipService;
+    private volatile IPSContentWs m_contentWs;
+    private volatile IPSGuidManager m_guidManager;
+    private volatile IPSCmsObjectMgr m_cmsObjectManager;
+    private volatile int m_batchSize = PSRelationshipBuilder.DEFAULT_BATCH_SIZE;
+
+    private final AtomicLong m_roundTrips = new AtomicLong();
+    private final AtomicLong m_roundTripsSaved = new AtomicLong();
+
+    /**
+     * Adds items to folders, one web service call per folder.
+     *
+     * @param folderIds not <code>null</code>.
+     * @param itemIds not <code>null</code>.
+     */
+    public void add(Collection<Integer> folderIds, Collection<Integer> itemIds)
+            throws PSException {
+        if (folderIds.isEmpty() || itemIds.isEmpty()) return;
+        List<IPSGuid> folderGuids = asGuids(folderIds);
+        List<IPSGuid> itemGuids = asGuids(itemIds);
+        try {
+            for (IPSGuid fg : folderGuids) {
+                try {
+                    m_contentWs.addFolderChildren(fg, itemGuids);
+                    m_roundTrips.incrementAndGet();
+                } catch (PSErrorException e) {
+                    throw new PSException("Failed to add children: "
+                            + itemGuids + " to folder: " + fg + "", e);
+                }
+            }
+        }
+        finally {
+            PSRelationshipRequestCache.itemsWritten(itemIds);
+            PSRelationshipRequestCache.itemsWritten(folderIds);
+        }
+    }
+
+    /**
+     * Removes items from folders, one web service call per batch of items
+     * for each folder that holds some of the items. The folders of the items
+     * are found with one query per batch of items.
+     *
+     * @param folderIds not <code>null</code>.
+     * @param itemIds not <code>null</code>.
+     */
+    public void remove(Collection<Integer> folderIds, Collection<Integer> itemIds)
+            throws PSException {
+        if (folderIds.isEmpty() || itemIds.isEmpty()) return;
+        PSIntSet folders = PSIntSet.valueOf(folderIds);
+        PSIntSet items = PSIntSet.valueOf(itemIds);
+        long roundTrips = 0;
+        try {
+            Map<Integer, PSIntSet> itemIdsByFolderId = new LinkedHashMap<Integer, PSIntSet>();
+            for (List<Integer> chunk : PSRelationshipBuilder.partition(itemIds, m_batchSize)) {
+                m_roundTrips.incrementAndGet();
+                roundTrips++;
+                for (PSRelationship relationship : findFolderRelationships(chunk)) {
+                    int folderId = relationship.getOwner().getId();
+                    if (!folders.contains(folderId)
+                            || !items.contains(relationship.getDependent().getId())) continue;
+                    PSIntSet children = itemIdsByFolderId.get(folderId);
+                    if (children == null) {
+                        children = new PSIntSet();
+                        itemIdsByFolderId.put(folderId, children);
+                    }
+                    children.add(relationship.getDependent().getId());
+                }
+            }
+            if (itemIdsByFolderId.isEmpty()) return;
+            roundTrips += removeChildren(itemIdsByFolderId);
+        }
+        finally {
+            PSRelationshipRequestCache.itemsWritten(itemIds);
+            PSRelationshipRequestCache.itemsWritten(folderIds);
+        }
+        // one removeFolderChildren per folder
+        long saved = folders.size() - roundTrips;
+        if (saved > 0) saved(saved);
+    }
+
+    /**
+     * Removes items that the caller knows are in all the folders, without
+     * querying the folder relationships first: one web service call per
+     * batch of items for each folder. The web service fails if some of the
+     * items are not in a folder.
+     *
+     * @param folderIds not <code>null</code>.
+     * @param itemIds not <code>null</code>.
+     * @see #remove(Collection, Collection)
+     */
+    public void removeMembers(Collection<Integer> folderIds, Collection<Integer> itemIds)
+            throws PSException {
+        if (folderIds.isEmpty() || itemIds.isEmpty()) return;
+        PSIntSet items = PSIntSet.valueOf(itemIds);
+        Map<Integer, PSIntSet> itemIdsByFolderId = new LinkedHashMap<Integer, PSIntSet>();
+        for (Integer folderId : folderIds) {
+            itemIdsByFolderId.put(folderId, items);
+        }
+        try {
+            removeChildren(itemIdsByFolderId);
+        }
+        finally {
+            PSRelationshipRequestCache.itemsWritten(itemIds);
+            PSRelationshipRequestCache.itemsWritten(folderIds);
+        }
+        // the folder relationship queries of remove
+        saved((items.size() + m_batchSize - 1) / m_batchSize);
+    }
+
+    /**
+     * Calls the web service for each folder with its items, in batches.
+     *
+     * @return the number of web service calls made.
+     */
+    private long removeChildren(Map<Integer, PSIntSet> itemIdsByFolderId) throws PSException {
+        PSIntSet ids = new PSIntSet(itemIdsByFolderId.keySet());
+        for (PSIntSet children : itemIdsByFolderId.values()) {
+            ids.addAll(children);
+        }
+        long roundTrips = 0;
+        int removed = 0;
+        Map<Integer, IPSGuid> guids = asGuidsById(ids);
+        for (Map.Entry<Integer, PSIntSet> entry : itemIdsByFolderId.entrySet()) {
+            IPSGuid fg = guids.get(entry.getKey());
+            List<IPSGuid> childGuids = new ArrayList<IPSGuid>(entry.getValue().size());
+            for (Integer childId : entry.getValue()) {
+                IPSGuid guid = guids.get(childId);
+                if (guid != null) childGuids.add(guid);
+            }
+            if (fg == null || childGuids.isEmpty()) continue;
+            for (List<IPSGuid> batch : PSRelationshipBuilder.partition(childGuids, m_batchSize)) {
+                m_roundTrips.incrementAndGet();
+                removeFolderChildren(fg, batch);
+                removed += batch.size();
+                roundTrips++;
+            }
+        }
+        ms_log.debug("Removed " + removed + " items from folders in " + roundTrips + " calls");
+        return roundTrips;
+    }
+
+    private Collection<PSRelationship> findFolderRelationships(List<Integer> itemIds)
+            throws PSException {
+        PSRelationshipFilter filter = new PSRelationshipFilter();
+        filter.setName(PSRelationshipConfig.TYPE_FOLDER_CONTENT);
+        filter.setCategory(PSRelationshipConfig.CATEGORY_FOLDER);
+        filter.setDependentIds(itemIds);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            Collection<PSRelationship> found = m_relationshipService.findByFilter(filter);
+            succeeded = true;
+            return found;
+        }
+        finally {
+            PSRelationshipMetrics.record(Operation.FIND_BY_FILTER, start, succeeded);
+        }
+    }
+
+    private void removeFolderChildren(IPSGuid fg, List<IPSGuid> childGuids) throws PSException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            m_contentWs.removeFolderChildren(fg, childGuids, false);
+            succeeded = true;
+        } catch (PSErrorsException e) {
+            throw new PSException("Errors in deleting items: "
+                    + childGuids + " from folder: " + fg, e);
+        } catch (PSErrorException e) {
+            throw new PSException("Error in deleting items: "
+                    + childGuids + " from folder: " + fg, e);
+        }
+        finally {
+            PSRelationshipMetrics.record(Operation.DELETE_RELATIONSHIPS, start, succeeded);
+        }
+        PSRelationshipMetrics.count(Counter.RELATIONSHIPS_REMOVED, childGuids.size());
+    }
+
+    /**
+     * Makes GUIDs for content ids, loading the summaries of the ids whose
+     * locator is not cached with one call.
+     */
+    private List<IPSGuid> asGuids(Collection<Integer> ids) {
+        return new ArrayList<IPSGuid>(asGuidsById(ids).values());
+    }
+
+    /**
+     * @return the GUIDs by content id, in the order of the ids. Ids without
+     *         a summary are left out.
+     * @see #asGuids(Collection)
+     */
+    private Map<Integer, IPSGuid> asGuidsById(Collection<Integer> ids) {
+        // the cache may evict a locator before it is read back, keep them here
+        Map<Integer, PSLocator> locators = new HashMap<Integer, PSLocator>(ids.size() * 2);
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            PSLocator loc = ms_locators.get(id);
+            if (loc == null) missing.add(id);
+            else locators.put(id, loc);
+        }
+        if (missing.isEmpty()) {
+            saved(1);
+        }
+        else {
+            for (PSComponentSummary sum : PSRelationshipRequestCache
+                    .loadComponentSummaries(m_cmsObjectManager, missing)) {
+                locators.put(sum.getContentId(), sum.getTipLocator());
+                ms_locators.put(sum.getContentId(), sum.getTipLocator());
+            }
+            m_roundTrips.incrementAndGet();
+        }
+        Map<Integer, IPSGuid> guids = new LinkedHashMap<Integer, IPSGuid>(ids.size() * 2);
+        for (Integer id : ids) {
+            PSLocator loc = locators.get(id);
+            if (loc != null) guids.put(id, m_guidManager.makeGuid(loc));
+        }
+        return guids;
+    }
+
+    /**
+     * Counts saved calls here and in the {@link PSRelationshipMetrics} bound
+     * to the current thread.
+     */
+    private void saved(long roundTrips) {
+        m_roundTripsSaved.addAndGet(roundTrips);
+        PSRelationshipMetrics.count(Counter.FOLDER_ROUND_TRIPS_SAVED, roundTrips);
+    }
+
+    /**
+     * @return the shared cache of locators by content id.
+     */
+    public static PSTimedCache<Integer, PSLocator> getLocatorCache() {
+        return ms_locators;
+    }
+
+    /**
+     * @return the number of calls made to the services.
+     */
+    public long getRoundTrips() {
+        return m_roundTrips.get();
+    }
+
+    /**
+     * @return the number of calls saved compared to one web service call per
+     *         folder and loading the summaries on every write.
+     */
+    public long getRoundTripsSaved() {
+        return m_roundTripsSaved.get();
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+        m_batchSize = batchSize;
+    }
+
+    public void setRelationshipService(IPSRelationshipService relationshipService) {
+        m_relationshipService = relationshipService;
+    }
+
+    public void setContentWs(IPSContentWs contentWs) {
+        m_contentWs = contentWs;
+    }
+
+    public void setGuidManager(IPSGuidManager guidManager) {
+        m_guidManager = guidManager;
+    }
+
+    public void setCmsObjectManager(IPSCmsObjectMgr cmsObjectManager) {
+        m_cmsObjectManager = cmsObjectManager;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSFolderMembershipWriter.class);
+}
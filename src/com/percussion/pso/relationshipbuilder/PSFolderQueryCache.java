@@ -0,0 +1,231 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.services.contentmgr.IPSContentMgr;
+
+/**
+ * Caches the folder ids selected by the JCR query of a folder builder, by
+ * query string, so that retrieving the folders of an item only queries the
+ * folders of the item. The parsed queries are also cached by query string,
+ * with the item condition of single query mode added to the text once: the
+ * parameters are bound by {@link IPSContentMgr#executeQuery(Query, int, Map,
+ * String)} so a parsed query is run again as is. Neither goes stale, so
+ * only the folder ids expire.
+ * <p>
+ * The candidate folders of a site rarely change so the ids are kept for a
+ * few minutes. Folders created, moved or renamed in Content Explorer are only
+ * seen when the ids expire, so the ids are only used to display folders:
+ * before writing, the folder builder queries the folders of the item, see
+ * {@link PSRelationshipHelperService#getCurrentFolders(int, String, boolean)},
+ * which drops the ids of the query if they miss some of those folders, see
+ * {@link #checkFolderIds(String, PSIntSet)}. When the helper service writes
+ * folder relationships the ids of the queries that selected one of the
+ * items written are dropped, since the item is a folder that moved, see
+ * {@link #invalidateFolders(Collection)}.
+ * <p>
+ * The shared instance is used by {@link PSRelationshipHelperService}.
+ *
+ * @see #getInstance()
+ */
+public class PSFolderQueryCache {
+
+    /**
+     * Default number of queries kept.
+     */
+    public static final int DEFAULT_MAX_SIZE = 100;
+
+    /**
+     * Default time to live of an entry, five minutes.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000L;
+
+    private static final PSFolderQueryCache ms_instance = new PSFolderQueryCache(
+            DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+
+    private final PSTimedCache<String, PSIntSet> m_folderIds;
+    /**
+     * The item queries by query, "" if the item condition cannot be added.
+     * Never expire.
+     */
+    private final PSTimedCache<String, String> m_itemQueries;
+    /**
+     * The parsed queries by query text, never expire.
+     */
+    private final PSTimedCache<String, Query> m_queries;
+
+    /**
+     * @param maxSize the number of queries kept.
+     * @param timeToLive the time to live of the folder ids of a query, in
+     *            milliseconds.
+     */
+    public PSFolderQueryCache(int maxSize, long timeToLive) {
+        m_folderIds = new PSTimedCache<String, PSIntSet>(maxSize, timeToLive);
+        m_itemQueries = new PSTimedCache<String, String>(maxSize, 0);
+        // the item queries and the query of the folders of an item
+        m_queries = new PSTimedCache<String, Query>(maxSize * 2 + 1, 0);
+    }
+
+    /**
+     * The cache shared by all helper services in the JVM.
+     *
+     * @return never <code>null</code>.
+     */
+    public static PSFolderQueryCache getInstance() {
+        return ms_instance;
+    }
+
+    /**
+     * Finds the folder ids selected by a query, using the cached ids if there
+     * are any.
+     *
+     * @param contentManager used to run the query if it is not cached, not
+     *            <code>null</code>.
+     * @param jcrQuery the query, must select rx:sys_folderid. Not
+     *            <code>null</code>.
+     * @return the folder ids, never <code>null</code>. Shared, must not be
+     *         modified.
+     * @throws RepositoryException propagated from the content manager if the
+     *             query fails.
+     */
+    public PSIntSet findFolderIds(IPSContentMgr contentManager, String jcrQuery)
+            throws RepositoryException {
+        PSIntSet folderIds = m_folderIds.get(jcrQuery);
+        if (folderIds == null) {
+            ms_log.debug("Folder query cache miss for: " + jcrQuery);
+            Query q = getQuery(contentManager, jcrQuery);
+            QueryResult results = contentManager.executeQuery(q, -1, null, null);
+            folderIds = PSRelationshipHelperService.getIdsFromQuery("rx:sys_folderid", results);
+            m_folderIds.put(jcrQuery, folderIds);
+        }
+        return folderIds;
+    }
+
+    /**
+     * Gets a query with the item condition added, see
+     * {@link PSRelationshipHelperService#addItemConstraint(String)}.
+     *
+     * @param jcrQuery the query text, not <code>null</code>.
+     * @return the query text, <code>null</code> if the condition cannot be
+     *         added.
+     */
+    public String getItemQuery(String jcrQuery) {
+        String itemQuery = m_itemQueries.get(jcrQuery);
+        if (itemQuery == null) {
+            itemQuery = PSRelationshipHelperService.addItemConstraint(jcrQuery);
+            if (itemQuery == null) {
+                ms_log.warn("Cannot add the item condition to the query, "
+                        + "the folders of the item are queried instead: " + jcrQuery);
+                itemQuery = "";
+            }
+            m_itemQueries.put(jcrQuery, itemQuery);
+        }
+        return itemQuery.length() == 0 ? null : itemQuery;
+    }
+
+    /**
+     * Gets a parsed query, parsing it the first time.
+     *
+     * @param contentManager used to parse the query, not <code>null</code>.
+     * @param jcrQuery the query text, not <code>null</code>.
+     * @return never <code>null</code>.
+     * @throws RepositoryException propagated from the content manager if the
+     *             query cannot be parsed.
+     */
+    public Query getQuery(IPSContentMgr contentManager, String jcrQuery)
+            throws RepositoryException {
+        Query query = m_queries.get(jcrQuery);
+        if (query == null) {
+            query = contentManager.createQuery(jcrQuery, Query.SQL);
+            m_queries.put(jcrQuery, query);
+        }
+        return query;
+    }
+
+    /**
+     * Removes the cached folder ids of a query if they miss some of the
+     * folders the query currently selects.
+     *
+     * @param jcrQuery not <code>null</code>.
+     * @param currentIds folder ids the query selects now, for example the
+     *            folders of an item. Not <code>null</code>.
+     */
+    public void checkFolderIds(String jcrQuery, PSIntSet currentIds) {
+        PSIntSet folderIds = m_folderIds.get(jcrQuery);
+        if (folderIds != null && !PSIntSet.difference(currentIds, folderIds).isEmpty()) {
+            ms_log.debug("Folders were added since the folder ids were cached for: " + jcrQuery);
+            m_folderIds.remove(jcrQuery);
+        }
+    }
+
+    /**
+     * Removes the cached folder ids of the queries that select some of the
+     * ids, the folders with those ids may have moved.
+     *
+     * @param ids not <code>null</code>.
+     */
+    public void invalidateFolders(Collection<Integer> ids) {
+        PSIntSet movedIds = PSIntSet.valueOf(ids);
+        for (Map.Entry<String, PSIntSet> entry : m_folderIds.getEntries().entrySet()) {
+            for (int i = 0; i < movedIds.size(); i++) {
+                if (entry.getValue().contains(movedIds.get(i))) {
+                    m_folderIds.remove(entry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the cached folder ids of a query.
+     *
+     * @param jcrQuery not <code>null</code>.
+     */
+    public void invalidate(String jcrQuery) {
+        m_folderIds.remove(jcrQuery);
+    }
+
+    /**
+     * Removes the cached folder ids of all queries, keeps the item queries.
+     */
+    public void flushFolderIds() {
+        m_folderIds.flush();
+    }
+
+    /**
+     * Removes the cached folder ids, item queries and parsed queries of all
+     * queries.
+     */
+    public void flush() {
+        ms_log.debug("Flushing folder query cache");
+        m_folderIds.flush();
+        m_itemQueries.flush();
+        m_queries.flush();
+    }
+
+    public PSTimedCache<String, PSIntSet> getFolderIdCache() {
+        return m_folderIds;
+    }
+
+    public PSTimedCache<String, String> getItemQueryCache() {
+        return m_itemQueries;
+    }
+
+    public PSTimedCache<String, Query> getQueryCache() {
+        return m_queries;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSFolderQueryCache.class);
+}
@@ -9,6 +9,36 @@ import com.percussion.services.assembly.PSAssemblyException;
 public class PSFolderRelationshipBuilder extends PSAbstractRelationshipBuilder {
 
     private String m_jcrQuery;
+    private boolean m_singleQuery = false;
+    
+    public PSFolderRelationshipBuilder() {
+        super();
+    }
+
+    /**
+     * Creates a builder that is fully configured so it can be shared.
+     * 
+     * @param relationshipHelperService not <code>null</code>.
+     * @param jcrQuery query the folder ids must match, may be <code>null</code>.
+     */
+    public PSFolderRelationshipBuilder(IPSRelationshipHelperService relationshipHelperService,
+            String jcrQuery) {
+        super();
+        setRelationshipHelperService(relationshipHelperService);
+        m_jcrQuery = jcrQuery;
+    }
+
+    /**
+     * @param singleQuery <code>true</code> to retrieve the folders of an item
+     *            with one query, see
+     *            {@link IPSRelationshipHelperService#getFolders(int, String, boolean)}.
+     * @see #PSFolderRelationshipBuilder(IPSRelationshipHelperService, String)
+     */
+    public PSFolderRelationshipBuilder(IPSRelationshipHelperService relationshipHelperService,
+            String jcrQuery, boolean singleQuery) {
+        this(relationshipHelperService, jcrQuery);
+        m_singleQuery = singleQuery;
+    }
     
     @Override
     public void add(int sourceId, Collection<Integer> targetIds) throws PSAssemblyException, PSException {
@@ -22,8 +52,29 @@ public class PSFolderRelationshipBuilder extends PSAbstractRelationshipBuilder {
         
     }
 
-    public Collection<Integer> retrieve(int sourceId) throws PSAssemblyException, PSException {
-        return m_relationshipHelperService.getFolders(sourceId, m_jcrQuery);
+    /**
+     * The item was just found in the folders, see
+     * {@link IPSRelationshipHelperService#deleteFolderMembers(Collection, Collection)}.
+     */
+    @Override
+    protected void deleteCurrent(int sourceId, Collection<Integer> targetIds)
+            throws PSAssemblyException, PSException {
+        m_relationshipHelperService.deleteFolderMembers(targetIds, asList(sourceId));
+    }
+
+    public PSIntSet retrieve(int sourceId) throws PSAssemblyException, PSException {
+        return m_relationshipHelperService.getFolders(sourceId, m_jcrQuery, m_singleQuery);
+    }
+
+    /**
+     * Reads the folders without the cached folder ids of the query, see
+     * {@link IPSRelationshipHelperService#getCurrentFolders(int, String, boolean)}.
+     */
+    @Override
+    protected void retrieveCurrent(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException {
+        relatedIds.addAll(m_relationshipHelperService.getCurrentFolders(sourceId, m_jcrQuery,
+                m_singleQuery));
     }
 
     public String getJcrQuery() {
@@ -34,5 +85,13 @@ public class PSFolderRelationshipBuilder extends PSAbstractRelationshipBuilder {
         m_jcrQuery = jcrQuery;
     }
 
+    public boolean isSingleQuery() {
+        return m_singleQuery;
+    }
+
+    public void setSingleQuery(boolean singleQuery) {
+        m_singleQuery = singleQuery;
+    }
+
 
 }
@@ -0,0 +1,166 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+
+/**
+ * Reads and writes ";" separated id field values, e.g.
+ * <code>692;651;339</code>, without boxing the ids or creating a string per
+ * id.
+ * <p>
+ * Parsing reads the ids straight from the characters into a {@link PSIntSet}.
+ * The tokens that are not ids are reported by position, a substring is only
+ * made if the caller asks for it. A token is an id if it is not empty, has
+ * only digits and fits an <code>int</code>. Like {@link String#split(String)}
+ * trailing empty tokens are dropped, but a value without any delimiter is one
+ * token even if it is empty.
+ * <p>
+ * Writing appends to a caller's {@link StringBuilder} so the builder can be
+ * reused, {@link #format(Collection)} reuses one builder per thread.
+ */
+public final class PSIdListCodec {
+
+    public static final char DELIMITER = ';';
+
+    /**
+     * Builders are trimmed back to this capacity after formatting a very
+     * long value so that one large item does not hold memory for ever.
+     */
+    private static final int MAX_KEPT_CAPACITY = 64 * 1024;
+
+    /**
+     * Told about the tokens that are not ids.
+     */
+    public interface InvalidTokenHandler {
+        /**
+         * @param value the value being parsed.
+         * @param start the start of the token in the value, inclusive.
+         * @param end the end of the token in the value, exclusive.
+         */
+        void invalidToken(CharSequence value, int start, int end);
+    }
+
+    private PSIdListCodec() {
+    }
+
+    /**
+     * Parses a ";" separated value.
+     *
+     * @param value the value, may be <code>null</code>: no ids.
+     * @param ids the ids are added to it, not <code>null</code>.
+     * @param handler told about the tokens that are not ids, may be
+     *            <code>null</code>.
+     * @return the number of tokens that are not ids.
+     */
+    public static int parse(CharSequence value, PSIntSet ids, InvalidTokenHandler handler) {
+        if (value == null) return 0;
+        int length = value.length();
+        // as String.split: drop the trailing empty tokens if there is a delimiter
+        int end = length;
+        boolean hasDelimiter = false;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) == DELIMITER) {
+                hasDelimiter = true;
+                break;
+            }
+        }
+        if (hasDelimiter) {
+            while (end > 0 && value.charAt(end - 1) == DELIMITER) end--;
+        }
+        int invalid = 0;
+        int start = 0;
+        while (start <= end) {
+            int stop = start;
+            while (stop < end && value.charAt(stop) != DELIMITER) stop++;
+            if (hasDelimiter && start == end) break;
+            long id = parseId(value, start, stop);
+            if (id < 0) {
+                invalid++;
+                if (handler != null) handler.invalidToken(value, start, stop);
+            }
+            else {
+                ids.add((int) id);
+            }
+            start = stop + 1;
+        }
+        return invalid;
+    }
+
+    /**
+     * Parses an id from part of a value.
+     *
+     * @return the id, <code>-1</code> if the part is empty, has a character
+     *         that is not a digit or does not fit an <code>int</code>.
+     */
+    public static long parseId(CharSequence value, int start, int end) {
+        if (start >= end) return -1;
+        long id = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(value.charAt(i), 10);
+            if (digit < 0) return -1;
+            id = id * 10 + digit;
+            if (id > Integer.MAX_VALUE) return -1;
+        }
+        return id;
+    }
+
+    /**
+     * Appends the ids ";" separated.
+     *
+     * @param out not <code>null</code>.
+     * @param ids not <code>null</code>.
+     * @return <code>out</code>.
+     */
+    public static StringBuilder append(StringBuilder out, PSIntSet ids) {
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) out.append(DELIMITER);
+            out.append(ids.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Appends the ids ";" separated.
+     *
+     * @param out not <code>null</code>.
+     * @param ids not <code>null</code>, may not contain <code>null</code>.
+     * @return <code>out</code>.
+     */
+    public static StringBuilder append(StringBuilder out, Collection<Integer> ids) {
+        if (ids instanceof PSIntSet) return append(out, (PSIntSet) ids);
+        boolean first = true;
+        for (Integer id : ids) {
+            if (!first) out.append(DELIMITER);
+            out.append(id.intValue());
+            first = false;
+        }
+        return out;
+    }
+
+    /**
+     * Formats the ids ";" separated with a builder reused by the thread.
+     *
+     * @param ids may be <code>null</code>: no ids.
+     * @return never <code>null</code>, empty if there are no ids.
+     */
+    public static String format(Collection<Integer> ids) {
+        if (ids == null || ids.isEmpty()) return "";
+        StringBuilder out = ms_builder.get();
+        out.setLength(0);
+        String value = append(out, ids).toString();
+        if (out.capacity() > MAX_KEPT_CAPACITY) {
+            out.setLength(0);
+            out.trimToSize();
+        }
+        return value;
+    }
+
+    /**
+     * The builder reused by {@link #format(Collection)}, one per thread.
+     */
+    private static final ThreadLocal<StringBuilder> ms_builder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+}
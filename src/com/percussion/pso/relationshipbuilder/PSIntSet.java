@@ -0,0 +1,329 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of ids stored as primitive ints.
+ * <p>
+ * The ids are kept in the order they were added so the set can also be used
+ * as a list of unique ids, see {@link #get(int)}. Membership tests use an open
+ * addressing hash table so they do not box the id and take constant time.
+ * <p>
+ * The set implements <code>Set&lt;Integer&gt;</code> so it can be passed
+ * wherever a collection of ids is expected. Removing an id keeps the order of
+ * the others and costs a pass over the set, {@link #removeAll(Collection)}
+ * and {@link #retainAll(Collection)} remove all their ids in one pass. Not
+ * thread-safe.
+ */
+public class PSIntSet extends AbstractSet<Integer> {
+
+    private static final int EMPTY = 0;
+
+    private int[] m_values;
+    private int m_size = 0;
+    /**
+     * Index + 1 of the id in {@link #m_values}, {@link #EMPTY} for a free
+     * slot. The length is always a power of two.
+     */
+    private int[] m_table;
+
+    public PSIntSet() {
+        this(8);
+    }
+
+    /**
+     * @param expectedSize the number of ids the set is expected to hold, the set
+     *            grows as needed.
+     */
+    public PSIntSet(int expectedSize) {
+        if (expectedSize < 1) expectedSize = 1;
+        m_values = new int[expectedSize];
+        m_table = new int[tableSizeFor(expectedSize)];
+    }
+
+    /**
+     * Copies ids from a collection.
+     *
+     * @param ids not <code>null</code>, may not contain <code>null</code>.
+     */
+    public PSIntSet(Collection<Integer> ids) {
+        this(ids.size());
+        addAll(ids);
+    }
+
+    /**
+     * @param ids may contain duplicates.
+     * @return a new set of the given ids.
+     */
+    public static PSIntSet of(int... ids) {
+        PSIntSet set = new PSIntSet(ids.length);
+        for (int id : ids)
+            set.add(id);
+        return set;
+    }
+
+    /**
+     * Returns the collection if it is already a <code>PSIntSet</code>
+     * otherwise a copy of it.
+     *
+     * @param ids may be <code>null</code>, treated as empty.
+     * @return never <code>null</code>.
+     */
+    public static PSIntSet valueOf(Collection<Integer> ids) {
+        if (ids instanceof PSIntSet)
+            return (PSIntSet) ids;
+        if (ids == null)
+            return new PSIntSet();
+        return new PSIntSet(ids);
+    }
+
+    /**
+     * Adds an id.
+     *
+     * @param id the id.
+     * @return <code>true</code> if the id was not already in the set.
+     */
+    public boolean add(int id) {
+        int mask = m_table.length - 1;
+        int slot = hash(id) & mask;
+        int index;
+        while ((index = m_table[slot]) != EMPTY) {
+            if (m_values[index - 1] == id) return false;
+            slot = (slot + 1) & mask;
+        }
+        if (m_size == m_values.length)
+            m_values = Arrays.copyOf(m_values, m_size * 2);
+        m_values[m_size++] = id;
+        m_table[slot] = m_size;
+        if (m_size * 2 > m_table.length)
+            rehash(m_table.length * 2);
+        return true;
+    }
+
+    @Override
+    public boolean add(Integer id) {
+        if (id == null) throw new IllegalArgumentException("id cannot be null");
+        return add(id.intValue());
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> ids) {
+        boolean changed = false;
+        if (ids instanceof PSIntSet) {
+            PSIntSet other = (PSIntSet) ids;
+            for (int i = 0; i < other.m_size; i++) {
+                changed |= add(other.m_values[i]);
+            }
+        }
+        else {
+            for (Integer id : ids) {
+                changed |= add(id);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param id the id.
+     * @return <code>true</code> if the id is in the set.
+     */
+    public boolean contains(int id) {
+        int mask = m_table.length - 1;
+        int slot = hash(id) & mask;
+        int index;
+        while ((index = m_table[slot]) != EMPTY) {
+            if (m_values[index - 1] == id) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @param id the id.
+     * @return the position of the id, see {@link #get(int)}, or
+     *         <code>-1</code> if the id is not in the set.
+     */
+    public int indexOf(int id) {
+        int mask = m_table.length - 1;
+        int slot = hash(id) & mask;
+        int index;
+        while ((index = m_table[slot]) != EMPTY) {
+            if (m_values[index - 1] == id) return index - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes an id, the ids after it move down one position.
+     *
+     * @param id the id.
+     * @return <code>true</code> if the id was in the set.
+     */
+    public boolean remove(int id) {
+        int index = indexOf(id);
+        if (index == -1) return false;
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return (o instanceof Integer) && remove(((Integer) o).intValue());
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> ids) {
+        return removeIf(ids, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> ids) {
+        return removeIf(ids, false);
+    }
+
+    /**
+     * Removes the ids that are or are not in a collection in one pass,
+     * keeping the order of the others.
+     */
+    private boolean removeIf(Collection<?> ids, boolean contained) {
+        PSIntSet set = ids instanceof PSIntSet ? (PSIntSet) ids : null;
+        int kept = 0;
+        for (int i = 0; i < m_size; i++) {
+            int id = m_values[i];
+            boolean in = set != null ? set.contains(id) : ids.contains(id);
+            if (in != contained) m_values[kept++] = id;
+        }
+        if (kept == m_size) return false;
+        m_size = kept;
+        rehash(m_table.length);
+        return true;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(m_values, index + 1, m_values, index, m_size - index - 1);
+        m_size--;
+        rehash(m_table.length);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof Integer) && contains(((Integer) o).intValue());
+    }
+
+    /**
+     * Gets an id by position, ids are in the order they were added.
+     *
+     * @param index from <code>0</code> to <code>size() - 1</code>.
+     * @return the id.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= m_size)
+            throw new IndexOutOfBoundsException("index: " + index + " size: " + m_size);
+        return m_values[index];
+    }
+
+    @Override
+    public int size() {
+        return m_size;
+    }
+
+    @Override
+    public void clear() {
+        m_size = 0;
+        Arrays.fill(m_table, EMPTY);
+    }
+
+    /**
+     * @return a new array of the ids in the order they were added.
+     */
+    public int[] toIntArray() {
+        return Arrays.copyOf(m_values, m_size);
+    }
+
+    /**
+     * @return a new array of the ids in ascending order.
+     */
+    public int[] toSortedArray() {
+        int[] sorted = toIntArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Creates the set of ids that are in <code>retain</code> but not in
+     * <code>suppress</code>. Both sets are sorted and merged so the cost is
+     * linear after sorting and only the result is allocated besides the two
+     * sorted arrays.
+     *
+     * @param retain not <code>null</code>.
+     * @param suppress not <code>null</code>.
+     * @return a new set in ascending order, never <code>null</code>.
+     */
+    public static PSIntSet difference(PSIntSet retain, PSIntSet suppress) {
+        int[] a = retain.toSortedArray();
+        int[] b = suppress.toSortedArray();
+        PSIntSet result = new PSIntSet(a.length);
+        int j = 0;
+        for (int i = 0; i < a.length; i++) {
+            int id = a[i];
+            while (j < b.length && b[j] < id)
+                j++;
+            if (j == b.length || b[j] != id)
+                result.add(id);
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int m_next = 0;
+            private boolean m_canRemove = false;
+
+            public boolean hasNext() {
+                return m_next < m_size;
+            }
+
+            public Integer next() {
+                if (m_next >= m_size) throw new NoSuchElementException();
+                m_canRemove = true;
+                return m_values[m_next++];
+            }
+
+            public void remove() {
+                if (!m_canRemove) throw new IllegalStateException("next() was not called");
+                m_canRemove = false;
+                removeAt(--m_next);
+            }
+        };
+    }
+
+    private void rehash(int tableSize) {
+        int[] table = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int i = 0; i < m_size; i++) {
+            int slot = hash(m_values[i]) & mask;
+            while (table[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+        m_table = table;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int size = 2;
+        while (size < expectedSize * 2)
+            size <<= 1;
+        return size;
+    }
+}
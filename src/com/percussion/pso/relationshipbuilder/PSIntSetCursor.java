@@ -0,0 +1,40 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Pages through ids that are already in memory, for builders that cannot
+ * page.
+ */
+public class PSIntSetCursor implements IPSRelatedIdCursor {
+
+    private final PSIntSet m_ids;
+    private final int m_pageSize;
+    private int m_position = 0;
+
+    /**
+     * @param ids the ids, not <code>null</code>.
+     * @param pageSize the number of ids in a page, at least 1.
+     */
+    public PSIntSetCursor(PSIntSet ids, int pageSize) {
+        if (ids == null) throw new IllegalArgumentException("ids cannot be null");
+        if (pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        m_ids = ids;
+        m_pageSize = pageSize;
+    }
+
+    public boolean hasNext() {
+        return m_position < m_ids.size();
+    }
+
+    public PSIntSet nextPage() {
+        if (!hasNext()) throw new NoSuchElementException();
+        int end = Math.min(m_position + m_pageSize, m_ids.size());
+        PSIntSet page = new PSIntSet(end - m_position);
+        for (; m_position < end; m_position++) {
+            page.add(m_ids.get(m_position));
+        }
+        return page;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets of microseconds: every power of two
+ * is split in 8 buckets, so a percentile is at most 12.5% off. Recording is
+ * one increment of an atomic counter, no lock and no allocation.
+ * <p>
+ * Latencies up to 2^36 microseconds, about 19 hours, are counted in their
+ * bucket, longer ones in the last bucket.
+ */
+public class PSLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_totalMicros = new AtomicLong();
+    private final AtomicLong m_maxMicros = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds, negative values are counted as
+     *            0.
+     */
+    public void record(long nanos) {
+        long micros = nanos <= 0 ? 0 : nanos / 1000;
+        m_counts.incrementAndGet(bucket(micros));
+        m_count.incrementAndGet();
+        m_totalMicros.addAndGet(micros);
+        long max = m_maxMicros.get();
+        while (micros > max && !m_maxMicros.compareAndSet(max, micros)) {
+            max = m_maxMicros.get();
+        }
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the smallest latency counted in the bucket, in microseconds.
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the number of latencies recorded.
+     */
+    public long getCount() {
+        return m_count.get();
+    }
+
+    /**
+     * @return the mean latency in milliseconds, 0 if none were recorded.
+     */
+    public double getMeanMillis() {
+        long count = m_count.get();
+        return count == 0 ? 0 : m_totalMicros.get() / 1000.0 / count;
+    }
+
+    /**
+     * @return the longest latency in milliseconds.
+     */
+    public double getMaxMillis() {
+        return m_maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * Estimates a percentile from the buckets: the middle of the bucket it
+     * falls in, never more than the longest latency recorded.
+     *
+     * @param percentile between 0 and 100.
+     * @return the latency in milliseconds, 0 if none were recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = m_counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < BUCKETS - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) break;
+        }
+        long lower = lowerBound(bucket);
+        long upper = bucket == BUCKETS - 1 ? lower : lowerBound(bucket + 1);
+        return Math.min((lower + upper) / 2, m_maxMicros.get()) / 1000.0;
+    }
+
+    /**
+     * Forgets all the latencies recorded. Latencies recorded while resetting
+     * may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            m_counts.set(i, 0);
+        }
+        m_count.set(0);
+        m_totalMicros.set(0);
+        m_maxMicros.set(0);
+    }
+}
@@ -0,0 +1,53 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+
+/**
+ * Only loads the summaries of the items whose revision has to be compared.
+ * The relationship filter already limits the owners to their current or
+ * edit revision, so an owner found with a single revision is current and
+ * only the owners found with more than one revision, checked out items, are
+ * resolved. Revision specific dependents are not limited by the filter and
+ * are always resolved. When no locator has to be compared nothing is loaded.
+ * <p>
+ * The locators that were not resolved are current, see
+ * {@link #isCurrent(PSLocator, Map)}: an item purged while it was found with
+ * a single revision is not recognized as the tip strategy would.
+ */
+public class PSLazyRevisionStrategy extends PSAbstractRevisionStrategy {
+
+    @Override
+    protected Collection<Integer> selectIdsToResolve(Collection<PSRelationship> relationships) {
+        PSIntSet ids = new PSIntSet();
+        Map<Integer, Integer> ownerRevisions = new HashMap<Integer, Integer>();
+        for (PSRelationship relationship : relationships)  {
+            PSLocator owner = relationship.getOwner();
+            if (owner.getRevision() != -1) {
+                Integer revision = ownerRevisions.put(owner.getId(), owner.getRevision());
+                if (revision != null && revision.intValue() != owner.getRevision()) 
+                    ids.add(owner.getId());
+            }
+            PSLocator dependent = relationship.getDependent();
+            if (dependent.getRevision() != -1) ids.add(dependent.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * A revision specific locator is current if its item was not resolved or
+     * if it is the tip revision.
+     */
+    @Override
+    public boolean isCurrent(PSLocator locator, Map<Integer, Integer> tipRevisions) {
+        int revision = locator.getRevision();
+        if (revision == -1) return true;
+        Integer tip = tipRevisions.get(locator.getId());
+        return tip == null || tip.intValue() == revision;
+    }
+
+}
@@ -0,0 +1,221 @@
+package com.percussion.pso.relationshipbuilder;
+
+import static java.util.Collections.singleton;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.cms.objectstore.PSComponentSummary;
+import com.percussion.cms.objectstore.PSRelationshipFilter;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.design.objectstore.PSRelationshipConfig;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.services.assembly.PSAssemblyException;
+import com.percussion.services.relationship.IPSRelationshipService;
+import com.percussion.services.relationship.PSRelationshipServiceLocator;
+
+/**
+ * Synchronizes the active assembly relationships of several fields of an
+ * item at once, one builder per field.
+ * <p>
+ * The relationships of the item are fetched for all the slots together, with
+ * one active assembly filter for the relationships the item owns and one for
+ * the relationships it is the dependent of, only when a builder needs them.
+ * Each builder picks its relationships, see
+ * {@link PSRelationshipBuilder#accepts(PSRelationship)}, the changes of all
+ * the builders are then deleted with one call and saved with one call per
+ * {@link #getBatchSize()} relationships. So the number of calls does not grow
+ * with the number of fields.
+ * <p>
+ * Holds no request state, can be shared once the services are set.
+ */
+public class PSMultiSlotSynchronizer {
+
+    private final List<PSActiveAssemblyRelationshipBuilder> m_builders;
+    private volatile IPSRelationshipService m_relationshipService;
+    private volatile int m_batchSize = PSRelationshipBuilder.DEFAULT_BATCH_SIZE;
+
+    /**
+     * @param builders the builder of each field, not <code>null</code> or
+     *            empty.
+     */
+    public PSMultiSlotSynchronizer(List<PSActiveAssemblyRelationshipBuilder> builders) {
+        if (builders == null || builders.isEmpty())
+            throw new IllegalArgumentException("builders may not be null or empty");
+        m_builders = Collections.unmodifiableList(
+                new ArrayList<PSActiveAssemblyRelationshipBuilder>(builders));
+    }
+
+    /**
+     * Makes the related ids of each builder the desired ids.
+     *
+     * @param sourceId the item.
+     * @param targetIds the desired related ids of each builder, in the order
+     *            of the builders. A <code>null</code> entry leaves the
+     *            relationships of the builder as they are. Not
+     *            <code>null</code>.
+     */
+    public void synchronize(int sourceId, List<PSIntSet> targetIds)
+            throws PSAssemblyException, PSException {
+        if (targetIds.size() != m_builders.size())
+            throw new IllegalArgumentException("there must be target ids for each builder");
+        boolean ownerNeeded = false;
+        boolean dependentNeeded = false;
+        PSIntSet allIds = PSIntSet.of(sourceId);
+        for (int i = 0; i < m_builders.size(); i++) {
+            if (targetIds.get(i) == null) continue;
+            if (m_builders.get(i).isParent()) ownerNeeded = true;
+            else dependentNeeded = true;
+            allIds.addAll(targetIds.get(i));
+        }
+        if (!ownerNeeded && !dependentNeeded) return;
+
+        List<PSRelationship> owned = new ArrayList<PSRelationship>();
+        List<PSRelationship> depended = new ArrayList<PSRelationship>();
+        for (PSRelationship relationship : findRelationships(sourceId, ownerNeeded, dependentNeeded)) {
+            if (relationship.getOwner().getId() == sourceId) owned.add(relationship);
+            if (relationship.getDependent().getId() == sourceId) depended.add(relationship);
+        }
+
+        Map<Integer, PSComponentSummary> summaries = new HashMap<Integer, PSComponentSummary>();
+        m_builders.get(0).loadSummaries(allIds, summaries);
+        List<PSRelationshipBuilder.Changes> changes = new ArrayList<PSRelationshipBuilder.Changes>();
+        List<PSRelationship> toBeDeleted = new ArrayList<PSRelationship>();
+        List<PSRelationship> toBeSaved = new ArrayList<PSRelationship>();
+        for (int i = 0; i < m_builders.size(); i++) {
+            PSActiveAssemblyRelationshipBuilder builder = m_builders.get(i);
+            if (targetIds.get(i) == null) {
+                changes.add(null);
+                continue;
+            }
+            PSRelationshipBuilder.Changes c = builder.computeChanges(sourceId, targetIds.get(i),
+                    builder.isParent() ? owned : depended, summaries);
+            changes.add(c);
+            toBeDeleted.addAll(c.toBeDeleted);
+            toBeSaved.addAll(c.toBeSaved);
+        }
+        ms_log.debug("Synchronizing " + m_builders.size() + " fields of item " + sourceId
+                + ": deleting " + toBeDeleted.size() + " and adding " + toBeSaved.size()
+                + " relationships");
+        if (toBeDeleted.isEmpty() && toBeSaved.isEmpty()) return;
+        try {
+            IPSRelationshipService service = getRelationshipService();
+            for (List<PSRelationship> batch : PSRelationshipBuilder.partition(toBeDeleted, m_batchSize)) {
+                long start = System.nanoTime();
+                boolean succeeded = false;
+                try {
+                    service.deleteRelationship(batch);
+                    succeeded = true;
+                }
+                finally {
+                    PSRelationshipMetrics.record(Operation.DELETE_RELATIONSHIPS, start, succeeded);
+                }
+                PSRelationshipMetrics.count(Counter.RELATIONSHIPS_REMOVED, batch.size());
+            }
+            notifyBuilders(changes, false);
+            for (List<PSRelationship> batch : PSRelationshipBuilder.partition(toBeSaved, m_batchSize)) {
+                long start = System.nanoTime();
+                boolean succeeded = false;
+                try {
+                    service.saveRelationship(batch);
+                    succeeded = true;
+                }
+                finally {
+                    PSRelationshipMetrics.record(Operation.SAVE_RELATIONSHIPS, start, succeeded);
+                }
+                PSRelationshipMetrics.count(Counter.RELATIONSHIPS_ADDED, batch.size());
+            }
+            notifyBuilders(changes, true);
+        }
+        finally {
+            for (int i = 0; i < m_builders.size(); i++) {
+                PSRelationshipBuilder.Changes c = changes.get(i);
+                if (c != null && !c.isEmpty())
+                    m_builders.get(i).getRelationshipCache().invalidate(c.changedIds);
+            }
+            PSRelationshipRequestCache.relationshipsWritten(toBeDeleted);
+            PSRelationshipRequestCache.relationshipsWritten(toBeSaved);
+        }
+    }
+
+    /**
+     * Fetches the active assembly relationships of the item in all slots.
+     */
+    private List<PSRelationship> findRelationships(int sourceId, boolean ownerNeeded,
+            boolean dependentNeeded) throws PSException {
+        List<PSRelationshipFilter> filters = new ArrayList<PSRelationshipFilter>(2);
+        if (ownerNeeded) {
+            PSRelationshipFilter filter = createFilter();
+            filter.setOwnerId(sourceId);
+            filters.add(filter);
+        }
+        if (dependentNeeded) {
+            PSRelationshipFilter filter = createFilter();
+            filter.setDependentIds(singleton(sourceId));
+            filters.add(filter);
+        }
+        return PSChunkedQueryExecutor.getInstance().findByFilters(getRelationshipService(), filters);
+    }
+
+    private PSRelationshipFilter createFilter() {
+        PSRelationshipFilter filter = new PSRelationshipFilter();
+        filter.setCategory(PSRelationshipConfig.CATEGORY_ACTIVE_ASSEMBLY);
+        filter.limitToEditOrCurrentOwnerRevision(true);
+        return filter;
+    }
+
+    private void notifyBuilders(List<PSRelationshipBuilder.Changes> changes, boolean saved) {
+        for (int i = 0; i < m_builders.size(); i++) {
+            PSRelationshipBuilder.Changes c = changes.get(i);
+            if (c == null) continue;
+            if (saved && !c.toBeSaved.isEmpty())
+                m_builders.get(i).relationshipsSaved(c.toBeSaved);
+            else if (!saved && !c.toBeDeleted.isEmpty())
+                m_builders.get(i).relationshipsDeleted(c.toBeDeleted);
+        }
+    }
+
+    /**
+     * @return the builder of each field, never <code>null</code>.
+     */
+    public List<PSActiveAssemblyRelationshipBuilder> getBuilders() {
+        return m_builders;
+    }
+
+    public IPSRelationshipService getRelationshipService() {
+        if (m_relationshipService == null)
+            m_relationshipService = PSRelationshipServiceLocator.getRelationshipService();
+        return m_relationshipService;
+    }
+
+    public void setRelationshipService(IPSRelationshipService relationshipService) {
+        m_relationshipService = relationshipService;
+    }
+
+    /**
+     * The maximum number of relationships saved or deleted in one call,
+     * {@link PSRelationshipBuilder#DEFAULT_BATCH_SIZE} by default.
+     */
+    public int getBatchSize() {
+        return m_batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+        m_batchSize = batchSize;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSMultiSlotSynchronizer.class);
+}
@@ -0,0 +1,27 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+
+/**
+ * Trusts the relationship filter, which is limited to the edit or current
+ * owner revision, and uses every relationship it returns. No summaries are
+ * loaded.
+ */
+public class PSNoRevisionStrategy extends PSAbstractRevisionStrategy {
+
+    @Override
+    protected Collection<Integer> selectIdsToResolve(Collection<PSRelationship> relationships) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isCurrent(PSLocator locator, Map<Integer, Integer> tipRevisions) {
+        return true;
+    }
+
+}
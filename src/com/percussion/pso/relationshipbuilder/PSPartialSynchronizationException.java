@@ -0,0 +1,36 @@
+package com.percussion.pso.relationshipbuilder;
+
+import com.percussion.error.PSException;
+
+/**
+ * Thrown when writing the relationships of several items fails part way,
+ * see {@link IPSRelationshipBuilder#synchronizeAll(java.util.Map)}. The
+ * relationships of the items in {@link #getAppliedIds()} are fully
+ * synchronized, the other items may be unchanged or partly changed and can be
+ * synchronized again.
+ */
+public class PSPartialSynchronizationException extends PSException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final PSIntSet m_appliedIds;
+
+    /**
+     * @param appliedIds the source items whose changes were all written, not
+     *            <code>null</code>.
+     * @param cause the failure, not <code>null</code>.
+     */
+    public PSPartialSynchronizationException(PSIntSet appliedIds, Throwable cause) {
+        super("Synchronized " + appliedIds.size() + " items before failing: "
+                + cause.getMessage(), cause);
+        m_appliedIds = appliedIds;
+    }
+
+    /**
+     * @return the source items whose relationships were synchronized, never
+     *         <code>null</code>, may be empty.
+     */
+    public PSIntSet getAppliedIds() {
+        return m_appliedIds;
+    }
+}
@@ -0,0 +1,119 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.percussion.error.PSException;
+import com.percussion.services.assembly.PSAssemblyException;
+
+/**
+ * Reads the related ids an item will have once the states recorded for it
+ * in a {@link PSBuildJournal} are built, in place of its current
+ * relationships. So an item saved in async mode shows the ids that were
+ * saved while they are still being built. Items with nothing pending and
+ * writes are passed through to the wrapped builder.
+ */
+public class PSPendingRelationshipBuilder implements IPSRelationshipBuilder {
+
+    /**
+     * Finds the ids not built yet of an item.
+     */
+    public interface Lookup {
+        /**
+         * @param sourceId the item.
+         * @return the desired related ids of the latest state recorded and
+         *         not built yet, <code>null</code> if nothing is pending.
+         */
+        PSIntSet getPending(int sourceId);
+    }
+
+    private final IPSRelationshipBuilder m_builder;
+    private final Lookup m_lookup;
+
+    /**
+     * @param builder the builder that does the work, not <code>null</code>.
+     * @param lookup finds the pending ids, not <code>null</code>.
+     */
+    public PSPendingRelationshipBuilder(IPSRelationshipBuilder builder, Lookup lookup) {
+        if (builder == null) throw new IllegalArgumentException("builder cannot be null");
+        if (lookup == null) throw new IllegalArgumentException("lookup cannot be null");
+        m_builder = builder;
+        m_lookup = lookup;
+    }
+
+    public Collection<Integer> retrieve(int sourceId) throws PSAssemblyException,
+            PSException {
+        PSIntSet pending = m_lookup.getPending(sourceId);
+        if (pending != null) return Collections.unmodifiableCollection(pending);
+        return m_builder.retrieve(sourceId);
+    }
+
+    public void retrieve(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException {
+        PSIntSet pending = m_lookup.getPending(sourceId);
+        if (pending != null)
+            relatedIds.addAll(pending);
+        else
+            m_builder.retrieve(sourceId, relatedIds);
+    }
+
+    public IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+            throws PSAssemblyException, PSException {
+        PSIntSet pending = m_lookup.getPending(sourceId);
+        if (pending != null) return new PSIntSetCursor(pending, pageSize);
+        return m_builder.openCursor(sourceId, pageSize);
+    }
+
+    public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+            throws PSAssemblyException, PSException {
+        Map<Integer, PSIntSet> relatedIds = new LinkedHashMap<Integer, PSIntSet>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer sourceId : sourceIds) {
+            PSIntSet pending = m_lookup.getPending(sourceId);
+            relatedIds.put(sourceId, pending);
+            if (pending == null) missing.add(sourceId);
+        }
+        if (missing.size() == sourceIds.size())
+            return m_builder.retrieveAll(sourceIds);
+        if (!missing.isEmpty()) {
+            Map<Integer, PSIntSet> retrieved = m_builder.retrieveAll(missing);
+            for (Integer sourceId : missing) {
+                relatedIds.put(sourceId, retrieved.get(sourceId));
+            }
+        }
+        return relatedIds;
+    }
+
+    public void synchronize(int sourceId, Set<Integer> targetIds)
+            throws PSAssemblyException, PSException {
+        m_builder.synchronize(sourceId, targetIds);
+    }
+
+    public void synchronize(int sourceId, PSIntSet targetIds)
+            throws PSAssemblyException, PSException {
+        m_builder.synchronize(sourceId, targetIds);
+    }
+
+    public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+            throws PSAssemblyException, PSException {
+        m_builder.synchronizeAll(targetIdsBySourceId);
+    }
+
+    public void addRelationships(int sourceId, Collection<Integer> ids)
+            throws PSAssemblyException, PSException {
+        m_builder.addRelationships(sourceId, ids);
+    }
+
+    /**
+     * @return the wrapped builder, never <code>null</code>.
+     */
+    public IPSRelationshipBuilder getBuilder() {
+        return m_builder;
+    }
+
+}
@@ -1,12 +1,15 @@
 package com.percussion.pso.relationshipbuilder;
 
 import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
@@ -21,6 +24,9 @@ import com.percussion.design.objectstore.PSLocator;
 import com.percussion.design.objectstore.PSRelationship;
 import com.percussion.design.objectstore.PSRelationshipSet;
 import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace.Phase;
 import com.percussion.services.assembly.IPSAssemblyService;
 import com.percussion.services.assembly.IPSAssemblyTemplate;
 import com.percussion.services.assembly.IPSTemplateSlot;
@@ -31,25 +37,42 @@ import com.percussion.services.legacy.PSCmsObjectMgrLocator;
 import com.percussion.services.relationship.IPSRelationshipService;
 import com.percussion.services.relationship.PSRelationshipServiceLocator;
 
+/**
+ * Base class for builders that work directly with the relationship service.
+ * <p>
+ * A builder is configured when it is constructed and keeps no state between
+ * calls, the item being processed and its relationships are passed from method
+ * to method. A configured builder can therefore be shared by concurrent
+ * requests. The service setters are for wiring and unit tests and must be
+ * called before the builder is shared.
+ */
 public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
 
 
-	private boolean isParent = true;
-	private Collection<PSRelationship> relationships;
-	private int id;
+	private final boolean isParent;
 
-	private IPSAssemblyService m_assemblyService;
-	private IPSRelationshipService m_relationshipService;
-	private IPSCmsObjectMgr m_cmsObjectManager;
-    private Collection<Integer> resultIds;
-    private boolean cleanupBrokenRels = true;
-    private boolean init=false;
-    private PSRelationshipFilter filter;
+	private volatile IPSAssemblyService m_assemblyService;
+	private volatile IPSRelationshipService m_relationshipService;
+	private volatile IPSCmsObjectMgr m_cmsObjectManager;
+    private volatile boolean cleanupBrokenRels = true;
+    private volatile IPSRevisionStrategy revisionStrategy = 
+        PSAbstractRevisionStrategy.forName(PSAbstractRevisionStrategy.TIP);
+    private volatile PSRelationshipCache relationshipCache = PSRelationshipCache.getInstance();
+    private volatile PSDuplicateRelationshipCleaner duplicateCleaner = 
+        PSDuplicateRelationshipCleaner.getInstance();
+    private volatile boolean init=false;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Default for {@link #getBatchSize()}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
  /**
      * Wires up all the service components
-     * when in Rhythmyx.
+     * when in Rhythmyx. Only done once.
      */
-    public void init() {
+    public synchronized void init() {
+        if (init) return;
         if (m_assemblyService == null)
             m_assemblyService = PSAssemblyServiceLocator.getAssemblyService();
         if (m_relationshipService == null) 
@@ -59,59 +82,109 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
         init=true;
     }
 	
-	public PSRelationshipBuilder() {
-		filter = new PSRelationshipFilter();
+	/**
+	 * @param isParent <code>true</code> if the source item is the owner of
+	 *            the relationships, <code>false</code> if it is the dependent.
+	 */
+	protected PSRelationshipBuilder(boolean isParent) {
+		this.isParent = isParent;
 	}
 	
 	public boolean isParent() {
 		return isParent;
 	}
 
-	public void setParent(boolean isParent) {
-		this.isParent = isParent;
-	}
-
-	
-	protected void setupFilter() throws PSAssemblyException, PSException  {
+	/**
+	 * Restricts the filter to the relationships this builder manages. The
+	 * source item is set by the caller. Does nothing by default.
+	 *
+	 * @param filter a new filter for the current call, never <code>null</code>.
+	 */
+	protected void configureFilter(PSRelationshipFilter filter) throws PSAssemblyException, PSException  {
 		return; 
 	}
 	
-	private void populateRelationships() throws PSAssemblyException, PSException  {
+	private Retrieval populateRelationships(int id) throws PSAssemblyException, PSException  {
+		return populateRelationships(singleton(id),
+				new HashMap<Integer, PSComponentSummary>()).get(id);
+	}
+
+	/**
+	 * Loads the current relationships of several items. Items that are
+	 * relationship dependents are queried in chunks of {@link #getBatchSize()}
+	 * ids, a filter only takes one owner so owners are queried one at a time.
+	 *
+	 * @param ids the source items, assumed not <code>null</code>.
+	 * @param summaries summaries that are already loaded by content id, the
+	 *            summaries this method loads are added. Assumed not
+	 *            <code>null</code>.
+	 * @return the relationships of each source item, there is an entry for
+	 *         every id.
+	 */
+	private Map<Integer, Retrieval> populateRelationships(Collection<Integer> ids,
+			Map<Integer, PSComponentSummary> summaries) throws PSAssemblyException, PSException  {
+	        List<PSRelationship> relationships = findRelationships(ids);
+	        
+	        Map<Integer, Retrieval> retrievals = new HashMap<Integer, Retrieval>();
+	        for (Integer id : ids) {
+	        	retrievals.put(id, new Retrieval(ids.size() == 1 ? relationships.size() : 8, true));
+	        }
+	        filterRelationships(retrievals, relationships, summaries);
+	        return retrievals;
+	    }
+
+	/**
+	 * Queries the relationships of the items, see
+	 * {@link #populateRelationships(Collection, Map)}.
+	 *
+	 * @param ids the source items, assumed not <code>null</code>.
+	 * @return the relationships as returned by the relationship service,
+	 *         never <code>null</code>.
+	 */
+	private List<PSRelationship> findRelationships(Collection<Integer> ids)
+			throws PSAssemblyException, PSException  {
 	     if (!init) init();   
 	     
-	     setupFilter();
-	     
-	    	              
-	        if (isParent) {
-	            filter.setOwnerId(id);
-	            ms_log.debug("filter setting owner to " + id);
-	        } else {
-	        	ms_log.debug("filter setting dependent to " + id);
-	        	filter.setDependentIds(singleton(id));
-	        }
-	        
-	        filter.limitToEditOrCurrentOwnerRevision(true);
-	      
-	        Collection<PSRelationship> relationships = m_relationshipService
-	                .findByFilter(filter);
-	        	
-	        	if(isParent) {
-	        		ms_log.debug("Adding " +relationships.size() + " relationships for id "+ id);
-	        	} else {
-	        		ms_log.debug("Adding " +relationships.size() + " relationships for id "+ id);
+	        PSChunkedQueryExecutor.FilterFactory factory = new PSChunkedQueryExecutor.FilterFactory() {
+	        	public PSRelationshipFilter createFilter() throws PSException {
+	        		try {
+	        			return PSRelationshipBuilder.this.createFilter();
+	        		} catch (PSAssemblyException e) {
+	        			throw new PSException("Failed to create relationship filter", e);
+	        		}
 	        	}
-	        	
-	        	
-	        setRelationships(filterRelationships(relationships));
+	        };
+	        List<PSRelationshipFilter> filters = isParent
+	        	? PSChunkedQueryExecutor.createFilters(ids, null, batchSize, factory)
+	        	: PSChunkedQueryExecutor.createFilters(null, ids, batchSize, factory);
+	        List<PSRelationship> relationships = 
+	        	PSChunkedQueryExecutor.getInstance().findByFilters(m_relationshipService, filters);
 	        
+	        ms_log.debug("Adding " +relationships.size() + " relationships for ids "+ ids);
+	        	
+	        return relationships;
 	    }
+
+	private PSRelationshipFilter createFilter() throws PSAssemblyException, PSException {
+		PSRelationshipFilter filter = new PSRelationshipFilter();
+		configureFilter(filter);
+		filter.limitToEditOrCurrentOwnerRevision(true);
+		return filter;
+	}
+
 	 /**
+     * @param retrievals the retrieval of each source item, the current
+     *            relationships are added. Relationships of other items are
+     *            skipped.
      * @param relationships
+     * @param summaries see {@link #populateRelationships(Collection, Map)}
      */
-    @SuppressWarnings("unchecked")
-    private Collection<PSRelationship> filterRelationships(Collection<PSRelationship> relationships) throws PSAssemblyException, PSException 
+    private void filterRelationships(Map<Integer, Retrieval> retrievals,
+            Collection<PSRelationship> relationships,
+            Map<Integer, PSComponentSummary> summaries) throws PSAssemblyException, PSException 
     {
-    	Collection<PSRelationship> filteredRelationships = new ArrayList<PSRelationship>(); 
+        PSRequestTrace trace = PSRequestTrace.getCurrent();
+        long mark = trace == null ? 0 : trace.mark();
         Collection<PSRelationship> cleanupRelationships = new ArrayList<PSRelationship>();
      
         if (isParent) {
@@ -119,25 +192,16 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
         } else {
         	ms_log.debug("Filtering relationships source ids are relationship dependents");
         }
-        Collection<Integer> relcids = new HashSet<Integer>();
+        IPSRevisionStrategy strategy = revisionStrategy;
+        Collection<Integer> relcids = strategy.getIdsToResolve(relationships);
         HashMap<Integer,Integer> tipRevisionMap = new HashMap<Integer,Integer>();
         
-        for (PSRelationship relationship : relationships)  {
-        	if (relationship.getDependent().getRevision() > 0) {
-        		relcids.add(relationship.getDependent().getId());
-        	} else {
-        		relcids.add(relationship.getOwner().getId());
-        	}
-        }
-        
-        Collection<PSComponentSummary> summaries = getCmsObjectManager().loadComponentSummaries(relcids);
-        for (PSComponentSummary sum : summaries)
+        loadSummaries(relcids, summaries);
+        for (PSComponentSummary sum : summaries.values())
         {
         	tipRevisionMap.put(sum.getTipLocator().getId(),sum.getTipLocator().getRevision());
         }
         
-        resultIds = new ArrayList<Integer>();
-        
         for (PSRelationship relationship : relationships)  {
         	PSLocator resultLocator = isParent ? relationship.getDependent() : relationship.getOwner();
         	PSLocator sourceLocator = isParent ? relationship.getOwner() : relationship.getDependent();
@@ -147,18 +211,17 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
         	int relResultId = resultLocator.getId();
         	int relResultRevision = resultLocator.getRevision();
         	
-        	if (id == relSourceId  && 
-        		    ( relSourceRevision == -1 || relSourceRevision == tipRevisionMap.get(relSourceId))) {
+        	Retrieval retrieval = retrievals.get(relSourceId);
+        	if (retrieval != null  && strategy.isCurrent(sourceLocator, tipRevisionMap)) {
         		ms_log.debug("found relationship result " + relationship.getId() + "source id="+ relSourceId + "source revision = "+relSourceRevision +" with contentid = " + relResultId + "and revision " + relResultRevision);
         		
-        		if (relResultRevision == -1 || relResultRevision == tipRevisionMap.get(relResultId)) {
-        			if (resultIds.contains(relResultId)) {
+        		if (strategy.isCurrent(resultLocator, tipRevisionMap)) {
+        			if (retrieval.resultIds.contains(relResultId)) {
         				ms_log.error("This relationship is a duplicate adding it to cleanup list ");
         				cleanupRelationships.add(relationship);
         			} else {
         				ms_log.debug("Adding relationship to results");
-        				filteredRelationships.add(relationship);
-        				resultIds.add(relResultId);
+        				retrieval.add(relationship, relResultId);
         			}
         		} else {
         			ms_log.debug("result revision " + relResultRevision + " does not match tip revision " + tipRevisionMap.get(relResultId) + " Skipping");
@@ -171,60 +234,344 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
         }
         			
         if(cleanupRelationships.size() > 0 && cleanupBrokenRels == true) {
-        	ms_log.debug("Cleaning up duplicate relationships");
-        	deleteRelationships(cleanupRelationships);
+        	ms_log.debug("Queuing duplicate relationships for cleanup");
+        	PSRelationshipMetrics.count(Counter.DUPLICATES_QUEUED,
+        			duplicateCleaner.submit(cleanupRelationships));
+        }
+        if (trace != null) trace.addSince(Phase.REVISION_FILTER, mark);
+    }
+
+    /**
+     * Loads the summaries that are not loaded yet.
+     *
+     * @param ids content ids, assumed not <code>null</code>.
+     * @param summaries loaded summaries by content id, the new summaries are
+     *            added. Assumed not <code>null</code>.
+     */
+    protected void loadSummaries(Collection<Integer> ids,
+            Map<Integer, PSComponentSummary> summaries)
+    {
+        Collection<Integer> missing = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            if (!summaries.containsKey(id)) missing.add(id);
+        }
+        if (missing.isEmpty()) return;
+        for (PSComponentSummary sum : PSRelationshipRequestCache
+                .loadComponentSummaries(getCmsObjectManager(), missing)) {
+            summaries.put(sum.getContentId(), sum);
         }
-        
-        return filteredRelationships;
     }
 	
 	public Collection<Integer> retrieve(int sourceId)
 			throws PSAssemblyException, PSException {
-	    if (!init) init();
-		setId(sourceId);
-		ms_log.debug("Set id to "+sourceId);
-		populateRelationships();
-		return resultIds;
+		ms_log.debug("Retrieving for id "+sourceId);
+		return populateRelationships(sourceId).resultIds;
+	}
+
+	public void retrieve(int sourceId, PSIntSet relatedIds)
+			throws PSAssemblyException, PSException {
+		relatedIds.addAll(populateRelationships(sourceId).resultIds);
+	}
+
+	/**
+	 * The relationship service cannot page, so the relationships of the item
+	 * are queried once and held until the cursor is dropped: memory is not
+	 * bounded by the page size. What the cursor saves is the checking: a
+	 * page of relationships at a time is checked against the item
+	 * summaries, so a caller that stops early skips the summary loads of
+	 * the remaining relationships. Set a warm relationship index on the
+	 * builder to avoid the query.
+	 *
+	 * {@inheritDoc}
+	 */
+	public IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+			throws PSAssemblyException, PSException {
+		if (pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+		return new RelationshipCursor(sourceId, findRelationships(singleton(sourceId)), pageSize);
+	}
+
+	/**
+	 * The relationships of all the items are fetched together and filtered
+	 * with one summary load, see {@link #getBatchSize()}.
+	 *
+	 * {@inheritDoc}
+	 */
+	public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+			throws PSAssemblyException, PSException {
+		ms_log.debug("Retrieving for ids "+sourceIds);
+		Map<Integer, PSIntSet> relatedIds = new LinkedHashMap<Integer, PSIntSet>();
+		if (sourceIds.isEmpty()) return relatedIds;
+		Map<Integer, Retrieval> retrievals = populateRelationships(sourceIds,
+				new HashMap<Integer, PSComponentSummary>());
+		for (Integer id : sourceIds) {
+			relatedIds.put(id, retrievals.get(id).resultIds);
+		}
+		return relatedIds;
 	}
 
 
+	/**
+	 * Only the difference between the current and the desired related ids is
+	 * written: relationships to ids no longer wanted are deleted and
+	 * relationships are created for the new ids. Nothing is written if the
+	 * ids have not changed.
+	 *
+	 * {@inheritDoc}
+	 */
 	public void synchronize(int sourceId, Set<Integer> targetIds)
 			throws PSAssemblyException, PSException {
-			setId(sourceId);
-		    populateRelationships();
-			deleteRelationships(relationships);
-			addRelationships(targetIds);
+		synchronize(sourceId, PSIntSet.valueOf(targetIds));
 	}
 
-	public int getId() {
-		return id;
+	public void synchronize(int sourceId, PSIntSet targetIds)
+			throws PSAssemblyException, PSException {
+			Retrieval current = populateRelationships(sourceId);
+			PSIntSet currentIds = current.resultIds;
+			PSRequestTrace trace = PSRequestTrace.getCurrent();
+			long mark = trace == null ? 0 : trace.mark();
+			// desired - current = add
+			PSIntSet idsToAdd = PSAbstractRelationshipBuilder
+					.createComplement(targetIds, currentIds);
+			// current - desired = remove
+			PSIntSet idsToRemove = PSAbstractRelationshipBuilder
+					.createComplement(currentIds, targetIds);
+			if (trace != null) {
+				trace.addSince(Phase.DIFF, mark);
+				trace.setCurrentIds(currentIds.size());
+			}
+			if (idsToAdd.isEmpty() && idsToRemove.isEmpty()) {
+				ms_log.debug("Relationships for id " + sourceId + " are unchanged");
+				return;
+			}
+			ms_log.debug("add ids: " + idsToAdd + " remove ids: " + idsToRemove);
+			try {
+				deleteRelationships(current.relationshipsTo(idsToRemove, isParent));
+				if (!idsToAdd.isEmpty()) {
+					addRelationships(sourceId, idsToAdd);
+				}
+			}
+			finally {
+				idsToRemove.add(sourceId);
+				relationshipCache.invalidate(idsToRemove);
+			}
 	}
 
-	public void setId(int id) {
-		this.id = id;
+	/**
+	 * The current relationships of all the items are fetched together, the
+	 * summaries of all the ids involved are loaded once and the changes are
+	 * written in batches of {@link #getBatchSize()}. The relationship service
+	 * cannot write several calls atomically, so the changes of consecutive
+	 * items are grouped into batches without splitting an item's changes
+	 * unless they alone exceed the batch size: each group is deleted then
+	 * saved before the next group is written. If a write fails a
+	 * {@link PSPartialSynchronizationException} lists the items of the groups
+	 * already written.
+	 *
+	 * {@inheritDoc}
+	 */
+	public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+			throws PSAssemblyException, PSException {
+		if (targetIdsBySourceId.isEmpty()) return;
+		Map<Integer, PSComponentSummary> summaries = new HashMap<Integer, PSComponentSummary>();
+		PSIntSet allIds = new PSIntSet(targetIdsBySourceId.keySet());
+		for (Set<Integer> targetIds : targetIdsBySourceId.values()) {
+			allIds.addAll(targetIds);
+		}
+		loadSummaries(allIds, summaries);
+		Map<Integer, Retrieval> current = populateRelationships(
+				targetIdsBySourceId.keySet(), summaries);
+
+		Map<Integer, Changes> changesBySourceId = new LinkedHashMap<Integer, Changes>();
+		PSIntSet changedIds = new PSIntSet(targetIdsBySourceId.keySet());
+		int deleteCount = 0;
+		int saveCount = 0;
+		for (Map.Entry<Integer, Set<Integer>> entry : targetIdsBySourceId.entrySet()) {
+			int sourceId = entry.getKey();
+			Changes changes = new Changes();
+			addChanges(sourceId, PSIntSet.valueOf(entry.getValue()), current.get(sourceId),
+					summaries, changes);
+			changesBySourceId.put(sourceId, changes);
+			changedIds.addAll(changes.changedIds);
+			deleteCount += changes.toBeDeleted.size();
+			saveCount += changes.toBeSaved.size();
+		}
+		ms_log.debug("Synchronizing " + targetIdsBySourceId.size() + " items: deleting "
+				+ deleteCount + " and adding " + saveCount + " relationships");
+		PSIntSet appliedIds = new PSIntSet(targetIdsBySourceId.size());
+		try {
+			Changes group = new Changes();
+			PSIntSet groupIds = new PSIntSet();
+			for (Map.Entry<Integer, Changes> entry : changesBySourceId.entrySet()) {
+				Changes changes = entry.getValue();
+				if (changes.isEmpty()) {
+					appliedIds.add(entry.getKey());
+					continue;
+				}
+				if (!group.isEmpty() && group.size() + changes.size() > batchSize) {
+					writeChanges(group);
+					appliedIds.addAll(groupIds);
+					group = new Changes();
+					groupIds = new PSIntSet();
+				}
+				group.toBeDeleted.addAll(changes.toBeDeleted);
+				group.toBeSaved.addAll(changes.toBeSaved);
+				groupIds.add(entry.getKey());
+			}
+			writeChanges(group);
+			appliedIds.addAll(groupIds);
+		}
+		catch (PSException e) {
+			throw new PSPartialSynchronizationException(appliedIds, e);
+		}
+		finally {
+			relationshipCache.invalidate(changedIds);
+		}
 	}
-	
-  
-	
-    
+
+	private void writeChanges(Changes changes) throws PSException {
+		deleteRelationships(changes.toBeDeleted);
+		saveRelationships(changes.toBeSaved);
+	}
+
+	/**
+	 * Computes, but does not write, the changes to synchronize an item from
+	 * relationships that are already fetched, see
+	 * {@link PSMultiSlotSynchronizer}. Relationships this builder does not
+	 * manage are skipped, see {@link #accepts(PSRelationship)}.
+	 *
+	 * @param sourceId the source item.
+	 * @param targetIds the desired related ids, assumed not <code>null</code>.
+	 * @param relationships relationships of the source item, may include
+	 *            relationships of other builders. Assumed not <code>null</code>.
+	 * @param summaries see {@link #populateRelationships(Collection, Map)}.
+	 * @return never <code>null</code>.
+	 */
+	Changes computeChanges(int sourceId, PSIntSet targetIds,
+			Collection<PSRelationship> relationships,
+			Map<Integer, PSComponentSummary> summaries) throws PSAssemblyException, PSException {
+		Collection<PSRelationship> managed = new ArrayList<PSRelationship>();
+		for (PSRelationship relationship : relationships) {
+			if (accepts(relationship)) managed.add(relationship);
+		}
+		Map<Integer, Retrieval> retrievals = new HashMap<Integer, Retrieval>();
+		retrievals.put(sourceId, new Retrieval(managed.size(), true));
+		filterRelationships(retrievals, managed, summaries);
+		Changes changes = new Changes();
+		changes.changedIds.add(sourceId);
+		addChanges(sourceId, targetIds, retrievals.get(sourceId), summaries, changes);
+		return changes;
+	}
+
+	private void addChanges(int sourceId, PSIntSet targetIds, Retrieval current,
+			Map<Integer, PSComponentSummary> summaries, Changes changes)
+			throws PSAssemblyException, PSException {
+		PSRequestTrace trace = PSRequestTrace.getCurrent();
+		long mark = trace == null ? 0 : trace.mark();
+		PSIntSet currentIds = current.resultIds;
+		// desired - current = add
+		PSIntSet idsToAdd = PSAbstractRelationshipBuilder
+				.createComplement(targetIds, currentIds);
+		// current - desired = remove
+		PSIntSet idsToRemove = PSAbstractRelationshipBuilder
+				.createComplement(currentIds, targetIds);
+		changes.toBeDeleted.addAll(current.relationshipsTo(idsToRemove, isParent));
+		changes.changedIds.addAll(idsToAdd);
+		changes.changedIds.addAll(idsToRemove);
+		if (!idsToAdd.isEmpty()) {
+			changes.toBeSaved.addAll(createRelationships(sourceId, idsToAdd, summaries));
+		}
+		if (trace != null) trace.addSince(Phase.DIFF, mark);
+	}
+
+	/**
+	 * Whether a fetched relationship is one this builder manages, used when
+	 * the relationships of several builders are fetched together. All
+	 * relationships by default.
+	 *
+	 * @param relationship never <code>null</code>.
+	 */
+	protected boolean accepts(PSRelationship relationship) throws PSAssemblyException, PSException {
+		return true;
+	}
+
     public IPSCmsObjectMgr getCmsObjectManager() {
+        if (!init) init();
         return m_cmsObjectManager;
     }
 
+    protected IPSAssemblyService getAssemblyService() {
+        if (!init) init();
+        return m_assemblyService;
+    }
+
     /* (non-Javadoc)
      * @see com.percussion.pso.relationshipbuilder.IPSRelationshipHelperService#deleteRelationships(java.util.Collection)
      */
     private void deleteRelationships(Collection<PSRelationship> toBeDeleted)
             throws PSCmsException {
-        if (toBeDeleted.size() > 0) {
-            m_relationshipService.deleteRelationship(toBeDeleted);
+        for (List<PSRelationship> batch : partition(toBeDeleted, batchSize)) {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                m_relationshipService.deleteRelationship(batch);
+                succeeded = true;
+            }
+            finally {
+                PSRelationshipMetrics.record(Operation.DELETE_RELATIONSHIPS, start, succeeded);
+                PSRelationshipRequestCache.relationshipsWritten(batch);
+            }
+            PSRelationshipMetrics.count(Counter.RELATIONSHIPS_REMOVED, batch.size());
+            relationshipsDeleted(batch);
         }
     }
+
+    /**
+     * Called after relationships are saved. Does nothing by default.
+     *
+     * @param relationships the saved relationships, never <code>null</code>.
+     */
+    protected void relationshipsSaved(Collection<PSRelationship> relationships) {
+        return;
+    }
+
+    /**
+     * Called after relationships are deleted. Does nothing by default.
+     *
+     * @param relationships the deleted relationships, never <code>null</code>.
+     */
+    protected void relationshipsDeleted(Collection<PSRelationship> relationships) {
+        return;
+    }
     
-    public void addRelationships(
+    public void addRelationships(int sourceId,
             Collection<Integer> ids) throws PSAssemblyException, PSException {
-        
-        ms_log.debug("Calling Abstract PSRelationship:addRelationship doing nothing");
+        try {
+            saveRelationships(createRelationships(sourceId, ids,
+                    new HashMap<Integer, PSComponentSummary>()));
+        }
+        finally {
+            PSIntSet changedIds = new PSIntSet(ids);
+            changedIds.add(sourceId);
+            relationshipCache.invalidate(changedIds);
+        }
+    }
+
+    /**
+     * Creates, but does not save, the relationships between the source item
+     * and the given items. Does nothing by default.
+     *
+     * @param sourceId the source item.
+     * @param ids the items to relate to, assumed not <code>null</code>.
+     * @param summaries summaries that are already loaded, see
+     *            {@link #asLocators(Collection, Map)}. Assumed not
+     *            <code>null</code>.
+     * @return never <code>null</code>.
+     */
+    protected Collection<PSRelationship> createRelationships(int sourceId,
+            Collection<Integer> ids, Map<Integer, PSComponentSummary> summaries)
+            throws PSAssemblyException, PSException {
+        ms_log.debug("Calling Abstract PSRelationship:createRelationships doing nothing");
+        return createEmptyRelationshipCollection();
     }
     /* (non-Javadoc)
      * @see com.percussion.pso.relationshipbuilder.IPSRelationshipHelperService#createEmptyRelationshipCollection()
@@ -244,9 +591,40 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
     public void saveRelationships(Collection<PSRelationship> toBeSaved)
             throws PSException {
     	if (!init) init();
-        if (toBeSaved.size() > 0) {
-            m_relationshipService.saveRelationship(toBeSaved);
+        for (List<PSRelationship> batch : partition(toBeSaved, batchSize)) {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                m_relationshipService.saveRelationship(batch);
+                succeeded = true;
+            }
+            finally {
+                PSRelationshipMetrics.record(Operation.SAVE_RELATIONSHIPS, start, succeeded);
+                PSRelationshipRequestCache.relationshipsWritten(batch);
+            }
+            PSRelationshipMetrics.count(Counter.RELATIONSHIPS_ADDED, batch.size());
+            relationshipsSaved(batch);
+        }
+    }
+
+    /**
+     * Splits a collection into lists of at most <code>size</code> elements.
+     *
+     * @param items assumed not <code>null</code>.
+     * @param size the maximum size of the lists, at least 1.
+     * @return never <code>null</code>, empty if there are no items.
+     */
+    static <T> List<List<T>> partition(Collection<T> items, int size) {
+        List<List<T>> batches = new ArrayList<List<T>>();
+        List<T> batch = null;
+        for (T item : items) {
+            if (batch == null || batch.size() == size) {
+                batch = new ArrayList<T>(Math.min(size, items.size()));
+                batches.add(batch);
+            }
+            batch.add(item);
         }
+        return batches;
     }
 
     
@@ -255,7 +633,8 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
     	if (!init) init();
        List<PSLocator> idLocators = new ArrayList<PSLocator>(ids.size());
        IPSCmsObjectMgr cms = m_cmsObjectManager;
-       Collection<PSComponentSummary> summaries = cms.loadComponentSummaries(ids);
+       Collection<PSComponentSummary> summaries = PSRelationshipRequestCache
+               .loadComponentSummaries(cms, ids);
        for (PSComponentSummary sum : summaries)
        {
           PSLocator loc = sum.getTipLocator(); 
@@ -264,6 +643,28 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
        return idLocators;
     }
     
+    /**
+     * Same as {@link #asLocators(Collection)} using summaries that are already
+     * loaded where possible.
+     *
+     * @param ids assumed not <code>null</code>.
+     * @param summaries loaded summaries by content id, missing summaries are
+     *            loaded and added. Assumed not <code>null</code>.
+     * @return the tip locators of the ids that exist, never <code>null</code>.
+     */
+    protected List<PSLocator> asLocators(Collection<Integer> ids,
+            Map<Integer, PSComponentSummary> summaries)
+    {
+       loadSummaries(ids, summaries);
+       List<PSLocator> idLocators = new ArrayList<PSLocator>(ids.size());
+       for (Integer id : ids)
+       {
+          PSComponentSummary sum = summaries.get(id);
+          if (sum != null) idLocators.add(sum.getTipLocator());
+       }
+       return idLocators;
+    }
+    
     protected List<PSLocator> asLocatorsNoRev(Collection<Integer> ids)
     {
        List<PSLocator> idLocators = new ArrayList<PSLocator>(ids.size());
@@ -280,20 +681,17 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
     private static final Log ms_log = LogFactory
             .getLog(PSRelationshipBuilder.class);
 
-	public Collection<PSRelationship> getRelationships() {
-		return relationships;
-	}
-
-	public void setRelationships(Collection<PSRelationship> relationships) {
-		this.relationships = relationships;
-	}
-
-	public Collection<Integer> getResultIds() {
-		return resultIds;
+	/**
+	 * The number of ids in a relationship filter and the number of
+	 * relationships saved or deleted in one call to the relationship service.
+	 */
+	public int getBatchSize() {
+		return batchSize;
 	}
 
-	public void setResultIds(Collection<Integer> resultIds) {
-		this.resultIds = resultIds;
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+		this.batchSize = batchSize;
 	}
 
 	public boolean isCleanupBrokenRels() {
@@ -304,6 +702,44 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
 		this.cleanupBrokenRels = cleanupBrokenRels;
 	}
 
+	/**
+	 * Decides which relationships are between current revisions, by default
+	 * by loading the summaries of the items.
+	 */
+	public IPSRevisionStrategy getRevisionStrategy() {
+		return revisionStrategy;
+	}
+
+	public void setRevisionStrategy(IPSRevisionStrategy revisionStrategy) {
+		if (revisionStrategy == null) throw new IllegalArgumentException("revisionStrategy cannot be null");
+		this.revisionStrategy = revisionStrategy;
+	}
+
+	/**
+	 * The cache invalidated when relationships are written, the shared
+	 * instance by default.
+	 */
+	public PSRelationshipCache getRelationshipCache() {
+		return relationshipCache;
+	}
+
+	public void setRelationshipCache(PSRelationshipCache relationshipCache) {
+		if (relationshipCache == null) throw new IllegalArgumentException("relationshipCache cannot be null");
+		this.relationshipCache = relationshipCache;
+	}
+
+	/**
+	 * Duplicate relationships found when reading are deleted in the
+	 * background by this cleaner, see {@link #isCleanupBrokenRels()}.
+	 */
+	public PSDuplicateRelationshipCleaner getDuplicateCleaner() {
+		return duplicateCleaner;
+	}
+
+	public void setDuplicateCleaner(PSDuplicateRelationshipCleaner duplicateCleaner) {
+		this.duplicateCleaner = duplicateCleaner;
+	}
+
 	public IPSAssemblyService getM_assemblyService() {
 		return m_assemblyService;
 	}
@@ -320,8 +756,104 @@ public abstract class PSRelationshipBuilder implements IPSRelationshipBuilder {
 		m_cmsObjectManager = objectManager;
 	}
 
-	public PSRelationshipFilter getFilter() {
-		return filter;
-	}   
+	/**
+	 * Checks the queried relationships of one item a page at a time.
+	 */
+	private final class RelationshipCursor implements IPSRelatedIdCursor {
+		private final List<PSRelationship> relationships;
+		private final int pageSize;
+		private final Map<Integer, Retrieval> retrievals;
+		private final PSIntSet resultIds;
+		private int position = 0;
+
+		private RelationshipCursor(int sourceId, List<PSRelationship> relationships, int pageSize) {
+			this.relationships = relationships;
+			this.pageSize = pageSize;
+			Retrieval retrieval = new Retrieval(Math.min(pageSize, relationships.size()), false);
+			this.resultIds = retrieval.resultIds;
+			this.retrievals = singletonMap(sourceId, retrieval);
+		}
+
+		public boolean hasNext() {
+			return position < relationships.size();
+		}
+
+		public PSIntSet nextPage() throws PSAssemblyException, PSException {
+			if (!hasNext()) throw new NoSuchElementException();
+			int end = Math.min(position + pageSize, relationships.size());
+			int start = resultIds.size();
+			filterRelationships(retrievals, relationships.subList(position, end),
+					new HashMap<Integer, PSComponentSummary>());
+			position = end;
+			PSIntSet page = new PSIntSet(resultIds.size() - start);
+			for (int i = start; i < resultIds.size(); i++) {
+				page.add(resultIds.get(i));
+			}
+			return page;
+		}
+	}
+
+	/**
+	 * The relationships to write to synchronize items and the ids whose
+	 * relationships change.
+	 */
+	static final class Changes {
+		final Collection<PSRelationship> toBeDeleted = new ArrayList<PSRelationship>();
+		final Collection<PSRelationship> toBeSaved = new ArrayList<PSRelationship>();
+		final PSIntSet changedIds = new PSIntSet();
+
+		boolean isEmpty() {
+			return toBeDeleted.isEmpty() && toBeSaved.isEmpty();
+		}
+
+		int size() {
+			return toBeDeleted.size() + toBeSaved.size();
+		}
+	}
+
+	/**
+	 * The current relationships of an item and the ids they relate to, local
+	 * to a single call.
+	 */
+	private static final class Retrieval {
+		private final Collection<PSRelationship> relationships;
+		private final PSIntSet resultIds;
+
+		/**
+		 * @param keepRelationships <code>false</code> if only the ids are
+		 *            needed, the relationships are then not kept.
+		 */
+		private Retrieval(int expectedSize, boolean keepRelationships) {
+			relationships = keepRelationships ? new ArrayList<PSRelationship>(expectedSize) : null;
+			resultIds = new PSIntSet(expectedSize);
+		}
+
+		private void add(PSRelationship relationship, int resultId) {
+			if (relationships != null) relationships.add(relationship);
+			resultIds.add(resultId);
+		}
+
+		/**
+		 * Selects the current relationships whose related (result) item is
+		 * one of the given ids.
+		 *
+		 * @param resultIdsToMatch ids of the related items, assumed not
+		 *            <code>null</code>.
+		 * @param isParent whether the source item is the owner.
+		 * @return never <code>null</code>, may be empty.
+		 */
+		private Collection<PSRelationship> relationshipsTo(PSIntSet resultIdsToMatch,
+				boolean isParent) {
+			Collection<PSRelationship> matches = new ArrayList<PSRelationship>();
+			if (resultIdsToMatch.isEmpty()) return matches;
+			for (PSRelationship relationship : relationships) {
+				PSLocator resultLocator = isParent ? relationship.getDependent() : relationship.getOwner();
+				if (resultIdsToMatch.contains(resultLocator.getId())) {
+					matches.add(relationship);
+				}
+			}
+			return matches;
+		}
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,348 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+
+/**
+ * Caches the ids related to an item across requests so that opening the
+ * same item again does not query the relationships again.
+ * <p>
+ * Entries are kept by item id and, for each item, by a qualifier that
+ * identifies the builder configuration (direction, slot and template, or
+ * the JCR query of a folder builder). Any write to the relationships of an
+ * item invalidates all the entries of the item, on both the owner and the
+ * dependent side. Relationships changed outside of the builders and the
+ * helper service are picked up when the entries expire.
+ * <p>
+ * Reading through the cache is optional, see
+ * {@link PSCachingRelationshipBuilder}. The builders and the helper service
+ * always invalidate the shared instance when they write.
+ * <p>
+ * The cache also keeps the tokens handed to content editors with the related
+ * ids they displayed, see {@link #issueToken(int, String, Collection, long)}.
+ * Tokens are invalidated with the item's entries, but only by writes in this
+ * JVM through the builders and the helper service: slot edits in Active
+ * Assembly, Content Explorer moves and other servers do not invalidate them.
+ * So a valid token only proves the submitted ids are the displayed ones, see
+ * {@link #isDisplayed(int, String, String, Collection)}. Skipping a write also
+ * needs the relationships read again when the ids are submitted, see
+ * {@link #isUnchanged(int, String, String, Collection, Collection)}.
+ * <p>
+ * Thread-safe.
+ */
+public class PSRelationshipCache {
+
+    /**
+     * Default number of items kept.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Default time to live of an entry, two minutes.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 2 * 60 * 1000L;
+
+    /**
+     * Default time to live of a token, one hour: long enough for an item to
+     * be edited.
+     */
+    public static final long DEFAULT_TOKEN_TIME_TO_LIVE = 60 * 60 * 1000L;
+
+    private static final PSRelationshipCache ms_instance = new PSRelationshipCache(
+            DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+
+    private final PSTimedCache<Integer, Map<String, PSIntSet>> m_entries;
+    private final PSTimedCache<Integer, Map<String, Token>> m_tokens;
+    private final Random m_random = new Random();
+
+    /**
+     * The generation of the items whose ids are equal modulo the length,
+     * incremented when one of the items is invalidated, see
+     * {@link #put(int, String, Collection, long)}. Sharing a generation only
+     * costs an occasional entry that is not cached, and keeps the memory
+     * bounded unlike a generation per item.
+     */
+    private final long[] m_generations = new long[1024];
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_invalidations = 0;
+
+    public PSRelationshipCache(int maxSize, long timeToLive) {
+        m_entries = new PSTimedCache<Integer, Map<String, PSIntSet>>(maxSize, timeToLive);
+        m_tokens = new PSTimedCache<Integer, Map<String, Token>>(maxSize, DEFAULT_TOKEN_TIME_TO_LIVE);
+    }
+
+    /**
+     * The cache shared by all builders and helper services in the JVM.
+     *
+     * @return never <code>null</code>.
+     */
+    public static PSRelationshipCache getInstance() {
+        return ms_instance;
+    }
+
+    /**
+     * Gets the cached related ids of an item.
+     *
+     * @param sourceId the item.
+     * @param qualifier identifies the builder configuration, not
+     *            <code>null</code>.
+     * @return a copy of the cached ids, <code>null</code> if not cached.
+     */
+    public PSIntSet get(int sourceId, String qualifier) {
+        PSIntSet ids;
+        synchronized (this) {
+            Map<String, PSIntSet> byQualifier = m_entries.get(sourceId);
+            ids = byQualifier == null ? null : byQualifier.get(qualifier);
+            if (ids == null) {
+                m_misses++;
+            }
+            else {
+                m_hits++;
+                ids = new PSIntSet(ids);
+            }
+        }
+        PSRelationshipMetrics.count(ids == null ? Counter.RELATIONSHIP_CACHE_MISSES
+                : Counter.RELATIONSHIP_CACHE_HITS, 1);
+        return ids;
+    }
+
+    /**
+     * Caches the related ids of an item unless relationships were
+     * invalidated since the ids were read.
+     *
+     * @param sourceId the item.
+     * @param qualifier see {@link #get(int, String)}.
+     * @param ids the related ids, copied. Not <code>null</code>.
+     * @param generation the value of {@link #getGeneration(int)} for the
+     *            item before the ids were read.
+     * @return <code>true</code> if the ids were cached.
+     */
+    public synchronized boolean put(int sourceId, String qualifier,
+            Collection<Integer> ids, long generation) {
+        if (generation != getGeneration(sourceId)) {
+            ms_log.debug("Not caching ids of " + sourceId + ", relationships changed while reading");
+            return false;
+        }
+        Map<String, PSIntSet> byQualifier = m_entries.get(sourceId);
+        if (byQualifier == null) {
+            byQualifier = new HashMap<String, PSIntSet>(4);
+            m_entries.put(sourceId, byQualifier);
+        }
+        byQualifier.put(qualifier, new PSIntSet(ids));
+        return true;
+    }
+
+    /**
+     * Issues a token for the related ids of an item that are displayed in an
+     * editor, unless relationships were invalidated since the ids were read.
+     * The token starts with the {@link #fingerprint(Collection)} of the ids.
+     * 
+     * @param sourceId the item.
+     * @param qualifier identifies the related ids of the item, for example
+     *            the field they are displayed in. Not <code>null</code>.
+     * @param ids the displayed ids, not <code>null</code>.
+     * @param generation the value of {@link #getGeneration(int)} for the
+     *            item before the ids were read.
+     * @return the token, <code>null</code> if relationships changed.
+     */
+    public synchronized String issueToken(int sourceId, String qualifier,
+            Collection<Integer> ids, long generation) {
+        if (generation != getGeneration(sourceId)) {
+            ms_log.debug("Not issuing a token for " + sourceId + ", relationships changed while reading");
+            return null;
+        }
+        int[] sortedIds = sort(ids);
+        String token = fingerprint(sortedIds) + "." + Long.toHexString(m_random.nextLong());
+        Map<String, Token> byQualifier = m_tokens.get(sourceId);
+        if (byQualifier == null) {
+            byQualifier = new HashMap<String, Token>(4);
+            m_tokens.put(sourceId, byQualifier);
+        }
+        byQualifier.put(qualifier, new Token(token, sortedIds));
+        return token;
+    }
+
+    /**
+     * Checks if the ids submitted for an item are the ids that were displayed
+     * with the token. The fingerprint in the token is compared first, then
+     * the token must still be valid and the ids must be equal. This does not
+     * prove the relationships of the item are unchanged, see the class
+     * comment.
+     * 
+     * @param sourceId the item.
+     * @param qualifier see {@link #issueToken(int, String, Collection, long)}.
+     * @param token the token submitted, may be <code>null</code>.
+     * @param ids the submitted ids, not <code>null</code>.
+     * @return <code>true</code> if the submitted ids are the displayed ones.
+     */
+    public boolean isDisplayed(int sourceId, String qualifier, String token,
+            Collection<Integer> ids) {
+        return getDisplayed(sourceId, qualifier, token, sort(ids)) != null;
+    }
+
+    /**
+     * Checks if the ids submitted for an item are the ids that were displayed
+     * with the token, see {@link #isDisplayed(int, String, String, Collection)},
+     * and if the relationships of the item read again are still the displayed
+     * ones.
+     * 
+     * @param sourceId the item.
+     * @param qualifier see {@link #issueToken(int, String, Collection, long)}.
+     * @param token the token submitted, may be <code>null</code>.
+     * @param ids the submitted ids, not <code>null</code>.
+     * @param currentIds the related ids of the item read from the repository
+     *            when the ids were submitted, not through this cache. Not
+     *            <code>null</code>.
+     * @return <code>true</code> if nothing needs to be written.
+     */
+    public boolean isUnchanged(int sourceId, String qualifier, String token,
+            Collection<Integer> ids, Collection<Integer> currentIds) {
+        int[] sortedIds = sort(ids);
+        int[] displayed = getDisplayed(sourceId, qualifier, token, sortedIds);
+        return displayed != null && Arrays.equals(displayed, sort(currentIds));
+    }
+
+    /**
+     * @return the ids displayed with the token if they are the submitted ids,
+     *         otherwise <code>null</code>.
+     */
+    private int[] getDisplayed(int sourceId, String qualifier, String token, int[] sortedIds) {
+        if (token == null) return null;
+        if (!token.startsWith(fingerprint(sortedIds) + ".")) return null;
+        Token issued;
+        synchronized (this) {
+            Map<String, Token> byQualifier = m_tokens.get(sourceId);
+            issued = byQualifier == null ? null : byQualifier.get(qualifier);
+        }
+        return issued != null && issued.token.equals(token)
+            && Arrays.equals(issued.sortedIds, sortedIds) ? issued.sortedIds : null;
+    }
+
+    /**
+     * Computes a compact fingerprint of a set of ids that does not depend on
+     * their order.
+     * 
+     * @param ids not <code>null</code>.
+     * @return a hexadecimal string, never <code>null</code>.
+     */
+    public static String fingerprint(Collection<Integer> ids) {
+        return fingerprint(sort(ids));
+    }
+
+    private static String fingerprint(int[] sortedIds) {
+        // 64 bit FNV-1a over the ids
+        long hash = 0xcbf29ce484222325L;
+        for (int id : sortedIds) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                hash ^= (id >>> shift) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return Long.toHexString(hash);
+    }
+
+    private static int[] sort(Collection<Integer> ids) {
+        return PSIntSet.valueOf(ids).toSortedArray();
+    }
+
+    /**
+     * @param id an item.
+     * @return changes whenever the entries of the item are invalidated, read
+     *         before loading ids that will be put in the cache. Writes to the
+     *         relationships of other items do not change it, apart from the
+     *         few items that share the generation of the item.
+     */
+    public synchronized long getGeneration(int id) {
+        return m_generations[generationIndex(id)];
+    }
+
+    private int generationIndex(int id) {
+        return (id & 0x7fffffff) % m_generations.length;
+    }
+
+    /**
+     * Forgets the related ids of an item for all builder configurations.
+     *
+     * @param id an owner or dependent of relationships that changed.
+     */
+    public synchronized void invalidate(int id) {
+        m_generations[generationIndex(id)]++;
+        m_invalidations++;
+        m_entries.remove(id);
+        m_tokens.remove(id);
+    }
+
+    /**
+     * @param ids the owners or dependents of relationships that changed, not
+     *            <code>null</code>.
+     * @see #invalidate(int)
+     */
+    public synchronized void invalidate(Collection<Integer> ids) {
+        for (Integer id : ids) {
+            m_generations[generationIndex(id)]++;
+            m_invalidations++;
+            m_entries.remove(id);
+            m_tokens.remove(id);
+        }
+    }
+
+    public synchronized void flush() {
+        for (int i = 0; i < m_generations.length; i++) {
+            m_generations[i]++;
+        }
+        m_entries.flush();
+        m_tokens.flush();
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    /**
+     * @return the number of items removed because the cache was full.
+     */
+    public long getEvictions() {
+        return m_entries.getEvictions();
+    }
+
+    public long getExpirations() {
+        return m_entries.getExpirations();
+    }
+
+    public synchronized long getInvalidations() {
+        return m_invalidations;
+    }
+
+    private static final class Token {
+        private final String token;
+        private final int[] sortedIds;
+
+        private Token(String token, int[] sortedIds) {
+            this.token = token;
+            this.sortedIds = sortedIds;
+        }
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSRelationshipCache.class);
+}
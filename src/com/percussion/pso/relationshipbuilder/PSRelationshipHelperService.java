@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
@@ -29,6 +30,8 @@ import com.percussion.design.objectstore.PSLocator;
 import com.percussion.design.objectstore.PSRelationship;
 import com.percussion.design.objectstore.PSRelationshipSet;
 import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
 import com.percussion.services.assembly.IPSAssemblyService;
 import com.percussion.services.assembly.IPSAssemblyTemplate;
 import com.percussion.services.assembly.IPSTemplateSlot;
@@ -44,18 +47,26 @@ import com.percussion.services.relationship.IPSRelationshipService;
 import com.percussion.services.relationship.PSRelationshipServiceLocator;
 import com.percussion.util.IPSHtmlParameters;
 import com.percussion.utils.guid.IPSGuid;
-import com.percussion.webservices.PSErrorException;
-import com.percussion.webservices.PSErrorsException;
 import com.percussion.webservices.content.IPSContentWs;
 import com.percussion.webservices.content.PSContentWsLocator;
 
 public class PSRelationshipHelperService implements IPSRelationshipHelperService {
     
+    private static final String ITEM_CONSTRAINT = "rx:sys_contentid = :contentId";
+    private static final String ITEM_FOLDERS_QUERY = "select rx:sys_contentid, rx:sys_folderid " +
+            "from nt:base where " + ITEM_CONSTRAINT;
+    
     private IPSRelationshipService m_relationshipService;
     private IPSAssemblyService m_assemblyService;
     private IPSCmsObjectMgr m_cmsObjectManager;
     private IPSContentWs m_contentWs;
     private IPSGuidManager m_guidManager;
+    private PSDesignObjectCache m_designObjectCache = PSDesignObjectCache.getInstance();
+    private PSFolderQueryCache m_folderQueryCache = PSFolderQueryCache.getInstance();
+    private PSFolderMembershipWriter m_folderMembershipWriter;
+    private PSChunkedQueryExecutor m_queryExecutor = PSChunkedQueryExecutor.getInstance();
+    private int m_batchSize = PSRelationshipBuilder.DEFAULT_BATCH_SIZE;
+    private PSRelationshipCache m_relationshipCache = PSRelationshipCache.getInstance();
     /**
      * Content manager service
      */
@@ -77,39 +88,93 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
             m_contentWs = PSContentWsLocator.getContentWebservice();
         if (m_guidManager == null)
             m_guidManager = PSGuidManagerLocator.getGuidMgr();
-        if (m_contentManager == null);
+        if (m_contentManager == null)
             m_contentManager = PSContentMgrLocator.getContentMgr();
     }
     
     /**
      * Gets all folder that have the item and are in the results of the provided query.
+     * The results of the query are cached, see {@link PSFolderQueryCache}.
      * @param itemId the id of the item.
      * @param jcrQuery the jcr query to find the folders. Make sure you select on sys_folder.
      * 
      * @return the ids of the folders.
      * @throws IllegalArgumentException if the query is bad.
      */
-    public Collection<Integer> getFolders(int itemId, String jcrQuery) {
+    public PSIntSet getFolders(int itemId, String jcrQuery) {
+        return getFolders(itemId, jcrQuery, false);
+    }
+    
+    /**
+     * Same as {@link #getFolders(int, String)}. In single query mode the item
+     * is added to the conditions of the query, see
+     * {@link #addItemConstraint(String)}, and only that query is run. If the
+     * item cannot be added to the query it is run as without single query
+     * mode.
+     * 
+     * @param singleQuery <code>true</code> for single query mode.
+     */
+    public PSIntSet getFolders(int itemId, String jcrQuery, boolean singleQuery) {
+        return getFolders(itemId, jcrQuery, singleQuery, false);
+    }
+
+    /**
+     * Same as {@link #getFolders(int, String, boolean)}. The item is added to
+     * the query as in single query mode, and the cached folder ids of the
+     * query are dropped if they miss some of the folders found, see
+     * {@link PSFolderQueryCache#checkFolderIds(String, PSIntSet)}. If the item
+     * cannot be added to the query the folder ids are queried again.
+     */
+    public PSIntSet getCurrentFolders(int itemId, String jcrQuery, boolean singleQuery) {
+        return getFolders(itemId, jcrQuery, singleQuery, true);
+    }
+
+    private PSIntSet getFolders(int itemId, String jcrQuery, boolean singleQuery, boolean current) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            PSIntSet folderIds = findFolders(itemId, jcrQuery, singleQuery, current);
+            succeeded = true;
+            return folderIds;
+        }
+        finally {
+            PSRelationshipMetrics.record(Operation.GET_FOLDERS, start, succeeded);
+        }
+    }
+
+    private PSIntSet findFolders(int itemId, String jcrQuery, boolean singleQuery, boolean current) {
         ms_log.debug("Geting folders with itemId: " + itemId 
-                + " with query:" + jcrQuery);
+                + " with query:" + jcrQuery + " single query: " + singleQuery);
         if (!jcrQuery.contains("rx:sys_folderid")) {
             throw new IllegalArgumentException(
                     "The query string does not select on rx:sys_folderid.");
         }
-        String jcrSubQuery = "select rx:sys_contentid, rx:sys_folderid " +
-                "from nt:base where rx:sys_contentid = :contentId";
         try {
             Map<String, Object> params = new HashMap<String, Object>();
             params.put("contentId", itemId);
-            Query q = m_contentManager.createQuery(jcrQuery, Query.SQL);
-            Query subQ = m_contentManager.createQuery(jcrSubQuery, Query.SQL);
-            QueryResult results = m_contentManager.executeQuery(q, -1, null, null);
+            // the current folders are those the repository selects for the item
+            String itemQuery = singleQuery || current
+                ? m_folderQueryCache.getItemQuery(jcrQuery) : null;
+            if (itemQuery != null) {
+                Query q = m_folderQueryCache.getQuery(m_contentManager, itemQuery);
+                PSIntSet folderIds = getIdsFromQuery("rx:sys_folderid", 
+                        m_contentManager.executeQuery(q, -1, params, null));
+                if (current) m_folderQueryCache.checkFolderIds(jcrQuery, folderIds);
+                return folderIds;
+            }
+            if (singleQuery || current) {
+                ms_log.debug("Could not add the item to the query, querying the folders of the item");
+            }
+            if (current) m_folderQueryCache.invalidate(jcrQuery);
+            PSIntSet allFolderIds = m_folderQueryCache.findFolderIds(m_contentManager, jcrQuery);
+            Query subQ = m_folderQueryCache.getQuery(m_contentManager, ITEM_FOLDERS_QUERY);
             QueryResult itemResults = m_contentManager.executeQuery(subQ, -1, params,null);
-            List<Integer> allFolderIds = getIdsFromQuery("rx:sys_folderid", results);
-            List<Integer> itemFolderIds = getIdsFromQuery("rx:sys_folderid", itemResults);
-            List<Integer> returnIds = new ArrayList<Integer>();
-            for (int id : allFolderIds) {
-                if (itemFolderIds.contains(id)) {
+            PSIntSet itemFolderIds = getIdsFromQuery("rx:sys_folderid", itemResults);
+            // the item is only in a few folders, probe the cached folder ids
+            PSIntSet returnIds = new PSIntSet(itemFolderIds.size());
+            for (int i = 0; i < itemFolderIds.size(); i++) {
+                int id = itemFolderIds.get(i);
+                if (allFolderIds.contains(id)) {
                     returnIds.add(id);
                 }
             }
@@ -123,27 +188,117 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
         }
     }
     
+    /**
+     * Adds the condition <code>rx:sys_contentid = :contentId</code> to a
+     * query so that it only returns the rows of one item.
+     * <p>
+     * The where and order by keywords are only matched as whole words
+     * separated by any white space, outside of string literals and
+     * parentheses. If the query cannot be split unambiguously, for example
+     * it has several where clauses, an unterminated literal or unbalanced
+     * parentheses, <code>null</code> is returned and the caller must use the
+     * query unchanged.
+     * 
+     * @param jcrQuery a JCR SQL query, not <code>null</code>.
+     * @return the query with the condition ANDed to its where clause, before
+     *         any order by clause. <code>null</code> if the clauses of the
+     *         query could not be found.
+     */
+    public static String addItemConstraint(String jcrQuery) {
+        int where = -1;
+        int orderBy = -1;
+        int depth = 0;
+        int length = jcrQuery.length();
+        for (int i = 0; i < length; i++) {
+            char c = jcrQuery.charAt(i);
+            if (c == '\'' || c == '"') {
+                // a quote is escaped by doubling it
+                int end = jcrQuery.indexOf(c, i + 1);
+                while (end >= 0 && end + 1 < length && jcrQuery.charAt(end + 1) == c) {
+                    end = jcrQuery.indexOf(c, end + 2);
+                }
+                if (end < 0) return null;
+                i = end;
+            }
+            else if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                if (--depth < 0) return null;
+            }
+            else if (depth == 0 && isKeyword(jcrQuery, i, "where")) {
+                if (where >= 0 || orderBy >= 0) return null;
+                where = i;
+            }
+            else if (depth == 0 && isKeyword(jcrQuery, i, "order")) {
+                int by = i + "order".length();
+                while (by < length && Character.isWhitespace(jcrQuery.charAt(by))) by++;
+                if (by > i + "order".length() && isKeyword(jcrQuery, by, "by")) {
+                    if (orderBy >= 0) return null;
+                    orderBy = i;
+                }
+            }
+        }
+        if (depth != 0) return null;
+        String query = (orderBy < 0 ? jcrQuery : jcrQuery.substring(0, orderBy)).trim();
+        String order = orderBy < 0 ? "" : " " + jcrQuery.substring(orderBy).trim();
+        if (where < 0) {
+            return query + " where " + ITEM_CONSTRAINT + order;
+        }
+        String condition = query.substring(where + "where".length()).trim();
+        if (condition.length() == 0) return null;
+        return query.substring(0, where).trim() + " where (" + condition + ") and "
+            + ITEM_CONSTRAINT + order;
+    }
+
+    /**
+     * @return <code>true</code> if the keyword starts at the index as a whole
+     *         word, ignoring case.
+     */
+    private static boolean isKeyword(String query, int index, String keyword) {
+        int end = index + keyword.length();
+        if (!query.regionMatches(true, index, keyword, 0, keyword.length())) return false;
+        if (index > 0 && !isDelimiter(query.charAt(index - 1))) return false;
+        return end == query.length() || isDelimiter(query.charAt(end));
+    }
+
+    private static boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')';
+    }
+    
+    /**
+     * Removes the items from the folders that hold them through the content
+     * web service, see
+     * {@link PSFolderMembershipWriter#remove(Collection, Collection)}.
+     */
     public void deleteFolderRelationships(Collection<Integer> folderIds,
             Collection<Integer> itemIds) throws PSException {
-        Collection<IPSGuid> folderGuids = asGuids(folderIds);
-        List<IPSGuid> childGuids = asGuids(itemIds);
-        for (IPSGuid fg : folderGuids) {
-            try {
-
-                m_contentWs.removeFolderChildren(fg, childGuids, false);
+        try {
+            getFolderMembershipWriter().remove(folderIds, itemIds);
+        }
+        finally {
+            invalidate(folderIds, itemIds);
+            m_folderQueryCache.invalidateFolders(itemIds);
+        }
+    }
 
-            } catch (PSErrorsException e) {
-                throw new PSException("Errors in deleting items: "
-                        + itemIds + "from folder: " + fg, e);
-            } catch (PSErrorException e) {
-                throw new PSException("Error in deleting items: "
-                        + itemIds + "from folder: " + fg, e);
-            }
+    /**
+     * Removes the items from folders known to hold them, see
+     * {@link PSFolderMembershipWriter#removeMembers(Collection, Collection)}.
+     */
+    public void deleteFolderMembers(Collection<Integer> folderIds,
+            Collection<Integer> itemIds) throws PSException {
+        try {
+            getFolderMembershipWriter().removeMembers(folderIds, itemIds);
+        }
+        finally {
+            invalidate(folderIds, itemIds);
+            m_folderQueryCache.invalidateFolders(itemIds);
         }
     }
     
-    private List<Integer> getIdsFromQuery(String field, QueryResult results) throws RepositoryException {
-        List<Integer> ids = new ArrayList<Integer>();
+    static PSIntSet getIdsFromQuery(String field, QueryResult results) throws RepositoryException {
+        PSIntSet ids = new PSIntSet();
         RowIterator riter = results.getRows();
         while (riter.hasNext()) {
             Row r = riter.nextRow();
@@ -165,7 +320,17 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
     public void saveRelationships(Collection<PSRelationship> toBeSaved)
             throws PSException {
         if (toBeSaved.size() > 0) {
-            m_relationshipService.saveRelationship(toBeSaved);
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                m_relationshipService.saveRelationship(toBeSaved);
+                succeeded = true;
+            }
+            finally {
+                PSRelationshipMetrics.record(Operation.SAVE_RELATIONSHIPS, start, succeeded);
+                PSRelationshipRequestCache.relationshipsWritten(toBeSaved);
+            }
+            PSRelationshipMetrics.count(Counter.RELATIONSHIPS_ADDED, toBeSaved.size());
         }
     }
 
@@ -175,24 +340,32 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
     private void deleteRelationships(Collection<PSRelationship> toBeDeleted)
             throws PSCmsException {
         if (toBeDeleted.size() > 0) {
-            m_relationshipService.deleteRelationship(toBeDeleted);
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                m_relationshipService.deleteRelationship(toBeDeleted);
+                succeeded = true;
+            }
+            finally {
+                PSRelationshipMetrics.record(Operation.DELETE_RELATIONSHIPS, start, succeeded);
+                PSRelationshipRequestCache.relationshipsWritten(toBeDeleted);
+            }
+            PSRelationshipMetrics.count(Counter.RELATIONSHIPS_REMOVED, toBeDeleted.size());
         }
     }
 
-    private List<Integer> extractDependentIds(Collection<PSRelationship> relationships) {
+    private PSIntSet extractDependentIds(Collection<PSRelationship> relationships) {
         // extract owner content ids from the relationship set
         @SuppressWarnings("unchecked")
         Iterator<PSRelationship> iter = relationships.iterator();
-        List<Integer> cids = new ArrayList<Integer>();
+        PSIntSet cids = new PSIntSet(relationships.size());
         while (iter.hasNext()) {
             PSRelationship rel = iter.next();
             PSLocator owner = rel.getDependent();
-            if (cids.contains(owner.getId())) {
+            if (!cids.add(owner.getId()) && ms_log.isDebugEnabled()) {
                 ms_log.debug("\tDuplicate dependent ids "
                         + "in relationship set due to revisions."
                         + " Skipping id: " + owner.getId());
-            } else {
-                cids.add(owner.getId());
             }
         }
         return cids;
@@ -201,11 +374,11 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
     /* (non-Javadoc)
      * @see com.percussion.pso.relationshipbuilder.IPSRelationshipHelperService#extractOwnerIds(java.util.Collection)
      */
-    private List<Integer> extractOwnerIds(Collection<PSRelationship> relationships) {
+    private PSIntSet extractOwnerIds(Collection<PSRelationship> relationships) {
         // extract owner content ids from the relationship set
         @SuppressWarnings("unchecked")
         Iterator<PSRelationship> iter = relationships.iterator();
-        List<Integer> cids = new ArrayList<Integer>();
+        PSIntSet cids = new PSIntSet(relationships.size());
         while (iter.hasNext()) {
             PSRelationship rel = iter.next();
             PSLocator owner = rel.getOwner();
@@ -249,26 +422,64 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
                 relationshipSet.add(newRelationship);
             }
         }
-        saveRelationships(relationshipSet);
-        
+        try {
+            saveRelationships(relationshipSet);
+            PSAaRelationshipIndex.relationshipsSaved(slotName, templateName, relationshipSet);
+        }
+        finally {
+            invalidate(ownerIds, dependentIds);
+        }
+    }
+    
+    public void synchronizeAll(
+            Map<Integer, Set<Integer>> dependentIdsByOwnerId,
+            String slotName,
+            String templateName) throws PSAssemblyException, PSException {
+        PSAaOwnerRelationshipBuilder builder = 
+            new PSAaOwnerRelationshipBuilder(slotName, templateName);
+        builder.setM_assemblyService(m_assemblyService);
+        builder.setRelationshipService(m_relationshipService);
+        builder.setCmsObjectManager(m_cmsObjectManager);
+        builder.setDesignObjectCache(m_designObjectCache);
+        builder.setBatchSize(m_batchSize);
+        builder.setRelationshipCache(m_relationshipCache);
+        builder.synchronizeAll(dependentIdsByOwnerId);
     }
     
     public void addFolderRelationships(
             Collection<Integer> folderIds,
             Collection<Integer> itemIds) throws PSException  {
-        List<IPSGuid> folderGuids = asGuids(folderIds);
-        List<IPSGuid> itemGuids = asGuids(itemIds);
-        
-        for (IPSGuid fg: folderGuids) {
-            try {
-                m_contentWs.addFolderChildren(fg, itemGuids);
-            } catch (PSErrorException e) {
-                throw new PSException("Failed to add children: " 
-                        + itemGuids + " to folder: " + fg + "", e);
-            }
+        try {
+            getFolderMembershipWriter().add(folderIds, itemIds);
+        }
+        finally {
+            invalidate(folderIds, itemIds);
+            // the items may be folders that moved out of the queried folders
+            m_folderQueryCache.invalidateFolders(itemIds);
         }
     }
     
+    /**
+     * The writer used for folder relationships, created with this service's
+     * services the first time it is needed.
+     */
+    public synchronized PSFolderMembershipWriter getFolderMembershipWriter() {
+        if (m_folderMembershipWriter == null) {
+            PSFolderMembershipWriter writer = new PSFolderMembershipWriter();
+            writer.setRelationshipService(m_relationshipService);
+            writer.setContentWs(m_contentWs);
+            writer.setGuidManager(m_guidManager);
+            writer.setCmsObjectManager(m_cmsObjectManager);
+            writer.setBatchSize(m_batchSize);
+            m_folderMembershipWriter = writer;
+        }
+        return m_folderMembershipWriter;
+    }
+
+    public synchronized void setFolderMembershipWriter(PSFolderMembershipWriter folderMembershipWriter) {
+        m_folderMembershipWriter = folderMembershipWriter;
+    }
+
     public IPSAssemblyService getAssemblyService() {
         return m_assemblyService;
     }
@@ -277,6 +488,58 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
         m_assemblyService = assemblyService;
     }
 
+    /**
+     * Forgets the cached related ids of both sides of changed relationships.
+     */
+    private void invalidate(Collection<Integer> ownerIds, Collection<Integer> dependentIds) {
+        PSIntSet ids = new PSIntSet(ownerIds);
+        ids.addAll(dependentIds);
+        m_relationshipCache.invalidate(ids);
+    }
+
+    public PSRelationshipCache getRelationshipCache() {
+        return m_relationshipCache;
+    }
+
+    public void setRelationshipCache(PSRelationshipCache relationshipCache) {
+        m_relationshipCache = relationshipCache;
+    }
+
+    /**
+     * @see PSRelationshipBuilder#getBatchSize()
+     */
+    public int getBatchSize() {
+        return m_batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        m_batchSize = batchSize;
+    }
+
+    public PSChunkedQueryExecutor getQueryExecutor() {
+        return m_queryExecutor;
+    }
+
+    public void setQueryExecutor(PSChunkedQueryExecutor queryExecutor) {
+        m_queryExecutor = queryExecutor;
+    }
+
+    public PSFolderQueryCache getFolderQueryCache() {
+        return m_folderQueryCache;
+    }
+
+    public void setFolderQueryCache(PSFolderQueryCache folderQueryCache) {
+        m_folderQueryCache = folderQueryCache;
+    }
+
+    public PSDesignObjectCache getDesignObjectCache() {
+        return m_designObjectCache;
+    }
+
+    public void setDesignObjectCache(PSDesignObjectCache designObjectCache) {
+        m_designObjectCache = designObjectCache;
+    }
+
     /**
      * Finds the definition for a slot given its name, using the assembly
      * service.
@@ -287,7 +550,7 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
      */
     private IPSAssemblyTemplate findTemplate(String templateName)
             throws PSAssemblyException {
-        return m_assemblyService.findTemplateByName(templateName);
+        return m_designObjectCache.findTemplate(m_assemblyService, templateName);
     }
 
     /**
@@ -301,8 +564,7 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
      *            is not found
      */
     private IPSTemplateSlot findSlot(String slotname) throws PSAssemblyException {
-        IPSAssemblyService asm = m_assemblyService;
-        return asm.findSlotByName(slotname);
+        return m_designObjectCache.findSlot(m_assemblyService, slotname);
     }
     
     /**
@@ -346,7 +608,8 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
     {
        List<PSLocator> idLocators = new ArrayList<PSLocator>(ids.size());
        IPSCmsObjectMgr cms = m_cmsObjectManager;
-       Collection<PSComponentSummary> summaries = cms.loadComponentSummaries(ids);
+       Collection<PSComponentSummary> summaries = PSRelationshipRequestCache
+               .loadComponentSummaries(cms, ids);
        for (PSComponentSummary sum : summaries)
        {
           PSLocator loc = sum.getTipLocator(); 
@@ -385,41 +648,6 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
     }
     
 
-    /**
-     * @param relationships
-     * @param ids
-     * @param trueKeepOnlyIdsFalseRemoveOnlyIds
-     * @param trueOwnerIdsFalseDependentIds
-     */
-    @SuppressWarnings("unchecked")
-    private void filterRelationships(Collection<PSRelationship> relationships,
-          Collection<Integer> ids, 
-          boolean trueKeepOnlyIdsFalseRemoveOnlyIds,
-          boolean trueOwnerIdsFalseDependentIds)
-    {
-       ms_log.debug("Filter on : " + ids 
-               + " trueKeepOnlyIdsFalseRemoveOnlyIds: " 
-               + trueKeepOnlyIdsFalseRemoveOnlyIds
-               + " trueOwnerIdsFalseDependentIds: "
-               + trueOwnerIdsFalseDependentIds);
-
-       // remove any relationships from the set that are not being removed
-       for (Iterator iter = relationships.iterator(); iter.hasNext();)
-       {
-          PSRelationship relationship = (PSRelationship) iter.next();
-          Integer ownerId;
-          if (trueOwnerIdsFalseDependentIds)
-              ownerId = Integer.valueOf((relationship.getOwner().getId()));
-          else
-              ownerId = Integer.valueOf((relationship.getDependent().getId()));
-          boolean contains = ids.contains(ownerId);
-          boolean removeFlag = trueKeepOnlyIdsFalseRemoveOnlyIds ?  ! contains : contains;
-          if (removeFlag)
-          {
-             iter.remove();
-          }
-       }
-    }
     /**
      * The log instance to use for this class, never <code>null</code>.
      */
@@ -442,42 +670,48 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
         m_relationshipService = relationshipService;
     }
 
+    public IPSContentMgr getContentManager() {
+        return m_contentManager;
+    }
 
+    public void setContentManager(IPSContentMgr contentManager) {
+        m_contentManager = contentManager;
+    }
+
+
+    /**
+     * Finds the relationships in the slot with chunks of
+     * {@link #getBatchSize()} dependents, see
+     * {@link PSChunkedQueryExecutor#find(IPSRelationshipService, Collection, Collection, int, PSChunkedQueryExecutor.FilterFactory)}.
+     * 
+     * @param owners the owners, <code>null</code> or empty for any owner.
+     * @param dependents the dependents, <code>null</code> or empty for any
+     *            dependent.
+     */
     protected Collection<PSRelationship> getRelationships(
             Collection<Integer> owners,
             Collection<Integer> dependents, 
             String slotName,
             String templateName) throws PSAssemblyException, PSException {
         
-        IPSTemplateSlot slot = findSlot(slotName);
-        IPSAssemblyTemplate template = templateName == null ? 
+        final IPSTemplateSlot slot = findSlot(slotName);
+        final IPSAssemblyTemplate template = templateName == null ? 
                 null : findTemplate(templateName);
-        owners = owners != null ? owners : new ArrayList<Integer>();
-        dependents = dependents != null ? dependents : new ArrayList<Integer>();
-
-        // setup the relationship filter
-        PSRelationshipFilter filter = new PSRelationshipFilter();
-        int ownerContentId = owners.size() == 1 ?
-                owners.iterator().next() : -1;
-        if (ownerContentId != -1) {
-            filter.setOwnerId(ownerContentId);
-        }
-        filter.setDependentIds(dependents);
-
-        filter.limitToEditOrCurrentOwnerRevision(true);
-        filter.setProperty(IPSHtmlParameters.SYS_SLOTID, String.valueOf(slot
-                .getGUID().longValue()));
-        if ( template != null ) {
-            filter.setProperty(IPSHtmlParameters.SYS_VARIANTID, String.valueOf(template
-                    .getGUID().longValue()));   
-        }
 
-        // get the relationships
-        Collection<PSRelationship> relationships = m_relationshipService
-                .findByFilter(filter);
-        filterRelationships(relationships, owners, true, true);
-        return relationships;
-        
+        return m_queryExecutor.find(m_relationshipService,
+                owners, dependents, m_batchSize, new PSChunkedQueryExecutor.FilterFactory() {
+            public PSRelationshipFilter createFilter() {
+                PSRelationshipFilter filter = new PSRelationshipFilter();
+                filter.limitToEditOrCurrentOwnerRevision(true);
+                filter.setProperty(IPSHtmlParameters.SYS_SLOTID, String.valueOf(slot
+                        .getGUID().longValue()));
+                if ( template != null ) {
+                    filter.setProperty(IPSHtmlParameters.SYS_VARIANTID, String.valueOf(template
+                            .getGUID().longValue()));   
+                }
+                return filter;
+            }
+        });
     }
     public void deleteRelationships(
             Collection<Integer> owners, 
@@ -491,9 +725,14 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
             }
             ms_log.debug("Deleting relationships where " +
                     opMessage(owners,dependents,slotName,templateName));
-            deleteRelationships(getRelationships(owners, dependents, slotName, templateName));
+            Collection<PSRelationship> relationships = 
+                getRelationships(owners, dependents, slotName, templateName);
+            deleteRelationships(relationships);
+            PSAaRelationshipIndex.relationshipsDeleted(slotName, templateName, relationships);
         } catch (PSAssemblyException e) {
             throw new RuntimeException("Error in Assembly Service", e);
+        } finally {
+            invalidate(owners, dependents);
         }
         
     }
@@ -510,7 +749,7 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
         return message;
     }
     
-    public Collection<Integer> getDependents(
+    public PSIntSet getDependents(
             int ownerId, 
             String slotName, 
             String templateName) throws PSException {
@@ -518,6 +757,9 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
                 " ownerId = " + ownerId +
                 " m_slotName = " + slotName +
                 " m_templateName = " + templateName );
+        PSAaRelationshipIndex index = PSAaRelationshipIndex.find(slotName, templateName);
+        PSIntSet ids = index == null ? null : index.getDependents(ownerId);
+        if (ids != null) return ids;
         
         Collection<PSRelationship> relationships;
         try {
@@ -531,7 +773,7 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
 
 
 
-    public Collection<Integer> getOwners(
+    public PSIntSet getOwners(
             int dependentId, 
             String slotName, 
             String templateName) throws PSException {
@@ -539,6 +781,9 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
                 " dependentId = " + dependentId +
                 " slotName = " + slotName +
                 " templateName = " + templateName );
+        PSAaRelationshipIndex index = PSAaRelationshipIndex.find(slotName, templateName);
+        PSIntSet ids = index == null ? null : index.getOwners(dependentId);
+        if (ids != null) return ids;
         Collection<PSRelationship> relationships;
         try {
             relationships = 
@@ -550,5 +795,62 @@ public class PSRelationshipHelperService implements IPSRelationshipHelperService
         return extractOwnerIds(relationships);
     }
 
+    public PSTraversalResult traverse(
+            int startId,
+            String slotName,
+            String templateName,
+            boolean isOwner,
+            int maxDepth) throws PSAssemblyException, PSException {
+        if (slotName == null) throw new IllegalArgumentException("slotName may not be null");
+        if (maxDepth < 0) throw new IllegalArgumentException("maxDepth may not be negative");
+        ms_log.debug("Traversing from " + startId +
+                " slotName = " + slotName +
+                " templateName = " + templateName +
+                " isOwner = " + isOwner +
+                " maxDepth = " + maxDepth);
+        PSTraversalResult result = new PSTraversalResult(startId);
+        PSIntSet frontier = result.getLevel(0);
+        for (int depth = 0; !frontier.isEmpty(); depth++) {
+            PSIntSet related = findIndexed(frontier, slotName, templateName, isOwner);
+            if (related == null) {
+                ms_log.debug("No warm relationship index, querying " + frontier.size()
+                        + " items at depth " + depth);
+                related = isOwner
+                    ? extractDependentIds(getRelationships(frontier, null, slotName, templateName))
+                    : extractOwnerIds(getRelationships(null, frontier, slotName, templateName));
+            }
+            if (depth == maxDepth) {
+                result.setTruncated(!result.getIds().containsAll(related));
+                break;
+            }
+            frontier = result.addLevel(related);
+        }
+        ms_log.debug("Traversal done: " + result);
+        return result;
+    }
+
+    /**
+     * Finds the related items of many items with one lookup in the index.
+     * 
+     * @return the dependents of the items if <code>isOwner</code> else their
+     *         owners, <code>null</code> if the index of the slot and template
+     *         is not warm.
+     */
+    private PSIntSet findIndexed(PSIntSet ids, String slotName, String templateName,
+            boolean isOwner) {
+        PSAaRelationshipIndex index = PSAaRelationshipIndex.find(slotName, templateName);
+        if (index == null) return null;
+        Map<Integer, PSIntSet> relatedById = index.getRelated(ids, isOwner);
+        if (relatedById == null) {
+            // warmed in the background for the next traversals
+            index.ensureWarm();
+            return null;
+        }
+        PSIntSet related = new PSIntSet();
+        for (PSIntSet r : relatedById.values()) {
+            related.addAll(r);
+        }
+        return related;
+    }
 
 }
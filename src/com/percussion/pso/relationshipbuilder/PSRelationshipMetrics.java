@@ -0,0 +1,450 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Latencies and counts of the relationship operations, by exit name and
+ * slot, exposed through JMX, see {@link PSRelationshipMetricsMXBean}.
+ * <p>
+ * The extensions bind the metrics of their exit and slot to the current
+ * thread while they run, the same way as {@link PSRelationshipRequestCache}:
+ *
+ * <pre>
+ * PSRelationshipMetrics previous = PSRelationshipMetrics.bind(exitName, slot);
+ * try {
+ *     // run the builders
+ * }
+ * finally {
+ *     PSRelationshipMetrics.unbind(previous);
+ * }
+ * </pre>
+ *
+ * and the builders and services record their calls to the Rhythmyx services
+ * with {@link #record(Operation, long, boolean)} and
+ * {@link #count(Counter, long)}. When nothing is bound, for example in a
+ * background job, the calls are recorded for exit and slot
+ * {@link #UNBOUND}. The state of the duplicate cleaner and of the build
+ * journal of the exit is read when the metrics are read, see {@link Gauge}.
+ * <p>
+ * Recording costs a thread local lookup and a few atomic increments. The
+ * metrics of an exit and slot are created and registered with the platform
+ * MBean server the first time they are bound, and unregistered with
+ * {@link #unregister(String)} when the exit is initialized again.
+ */
+public class PSRelationshipMetrics implements PSRelationshipMetricsMXBean {
+
+    /**
+     * The exit name and slot of calls made when no metrics are bound.
+     */
+    public static final String UNBOUND = "-";
+
+    public static final String DOMAIN = "com.percussion.pso.relationshipbuilder";
+
+    /**
+     * The timed calls.
+     */
+    public enum Operation {
+        FIND_BY_FILTER, LOAD_SUMMARIES, SAVE_RELATIONSHIPS, DELETE_RELATIONSHIPS,
+        GET_FOLDERS, UPDATE_DISPLAY_CHOICES
+    }
+
+    /**
+     * The counted events. The duplicates are counted when they are queued
+     * for the {@link PSDuplicateRelationshipCleaner}, the ones it deletes are
+     * a {@link Gauge}. The summaries avoided by a revision strategy are only
+     * counted while a {@link PSRequestTrace} is bound or debug logging is on,
+     * see {@link PSAbstractRevisionStrategy#getSummariesAvoided()}.
+     */
+    public enum Counter {
+        RELATIONSHIPS_ADDED, RELATIONSHIPS_REMOVED, DUPLICATES_QUEUED,
+        INVOCATIONS_PROCESSED, INVOCATIONS_SKIPPED, FOLDER_ROUND_TRIPS_SAVED,
+        RELATIONSHIP_CACHE_HITS, RELATIONSHIP_CACHE_MISSES, SUMMARIES_AVOIDED
+    }
+
+    /**
+     * The values read from the background components when the metrics are
+     * read. The cleaner is shared by all exits, the journal is the one of the
+     * exit, see {@link #registerBuildJournal(String, PSBuildJournal)}.
+     */
+    public enum Gauge {
+        DUPLICATES_DELETED, DUPLICATE_QUEUE_DEPTH, JOURNAL_BACKLOG, JOURNAL_LAG_MILLIS
+    }
+
+    private static final ConcurrentMap<String, PSRelationshipMetrics> ms_metrics =
+        new ConcurrentHashMap<String, PSRelationshipMetrics>();
+
+    private static final ThreadLocal<PSRelationshipMetrics> ms_current =
+        new ThreadLocal<PSRelationshipMetrics>();
+
+    private static final ConcurrentMap<String, PSBuildJournal> ms_journals =
+        new ConcurrentHashMap<String, PSBuildJournal>();
+
+    private final String m_exitName;
+    private final String m_slot;
+    private final Map<Operation, PSLatencyHistogram> m_latencies =
+        new EnumMap<Operation, PSLatencyHistogram>(Operation.class);
+    private final Map<Operation, AtomicLong> m_errors =
+        new EnumMap<Operation, AtomicLong>(Operation.class);
+    private final Map<Counter, AtomicLong> m_counters =
+        new EnumMap<Counter, AtomicLong>(Counter.class);
+
+    PSRelationshipMetrics(String exitName, String slot) {
+        m_exitName = exitName;
+        m_slot = slot;
+        for (Operation operation : Operation.values()) {
+            m_latencies.put(operation, new PSLatencyHistogram());
+            m_errors.put(operation, new AtomicLong());
+        }
+        for (Counter counter : Counter.values()) {
+            m_counters.put(counter, new AtomicLong());
+        }
+    }
+
+    /**
+     * Gets the metrics of an exit and slot, creating and registering them the
+     * first time.
+     *
+     * @param exitName may be <code>null</code> or empty: {@link #UNBOUND}.
+     * @param slot may be <code>null</code> or empty: {@link #UNBOUND}.
+     * @return never <code>null</code>.
+     */
+    public static PSRelationshipMetrics getInstance(String exitName, String slot) {
+        exitName = exitName == null || exitName.length() == 0 ? UNBOUND : exitName;
+        slot = slot == null || slot.length() == 0 ? UNBOUND : slot;
+        String key = exitName + "|" + slot;
+        PSRelationshipMetrics metrics = ms_metrics.get(key);
+        if (metrics == null) {
+            metrics = new PSRelationshipMetrics(exitName, slot);
+            PSRelationshipMetrics existing = ms_metrics.putIfAbsent(key, metrics);
+            if (existing != null) return existing;
+            register(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of all the exits and slots seen so far, never
+     *         <code>null</code>.
+     */
+    public static Collection<PSRelationshipMetrics> getAll() {
+        return Collections.unmodifiableCollection(ms_metrics.values());
+    }
+
+    private static void register(PSRelationshipMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = metrics.getObjectName();
+            // left by the class loader of extensions the server reloaded
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+        }
+        catch (Exception e) {
+            ms_log.warn("Cannot register the relationship metrics of " + metrics.m_exitName
+                    + " and " + metrics.m_slot + " with JMX", e);
+        }
+    }
+
+    /**
+     * Forgets the metrics of all the slots of an exit and unregisters them
+     * from the platform MBean server, including the ones registered before
+     * the server reloaded the extensions. Otherwise the MBean server keeps
+     * the discarded class loader of the extensions alive. The metrics are
+     * created again the next time they are bound.
+     *
+     * @param exitName may be <code>null</code> or empty: {@link #UNBOUND}.
+     */
+    public static void unregister(String exitName) {
+        exitName = exitName == null || exitName.length() == 0 ? UNBOUND : exitName;
+        for (Iterator<PSRelationshipMetrics> i = ms_metrics.values().iterator(); i.hasNext();) {
+            if (i.next().m_exitName.equals(exitName)) i.remove();
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName pattern = new ObjectName(DOMAIN + ":type=RelationshipMetrics,exit="
+                    + ObjectName.quote(exitName) + ",*");
+            for (ObjectName name : server.queryNames(pattern, null)) {
+                try {
+                    server.unregisterMBean(name);
+                }
+                catch (InstanceNotFoundException e) {
+                    // unregistered by another thread
+                }
+            }
+        }
+        catch (Exception e) {
+            ms_log.warn("Cannot unregister the relationship metrics of " + exitName
+                    + " from JMX", e);
+        }
+    }
+
+    /**
+     * Reports the backlog and lag of the build journal of an exit in the
+     * gauges of its metrics.
+     *
+     * @param exitName may be <code>null</code> or empty: {@link #UNBOUND}.
+     * @param journal not <code>null</code>.
+     */
+    public static void registerBuildJournal(String exitName, PSBuildJournal journal) {
+        if (journal == null) throw new IllegalArgumentException("journal cannot be null");
+        ms_journals.put(exitName == null || exitName.length() == 0 ? UNBOUND : exitName, journal);
+    }
+
+    /**
+     * Stops reporting a build journal, unless another journal was registered
+     * for the exit since.
+     */
+    public static void unregisterBuildJournal(String exitName, PSBuildJournal journal) {
+        ms_journals.remove(exitName == null || exitName.length() == 0 ? UNBOUND : exitName,
+                journal);
+    }
+
+    /**
+     * @return the name the metrics are registered with, never
+     *         <code>null</code>.
+     */
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=RelationshipMetrics,exit="
+                + ObjectName.quote(m_exitName) + ",slot=" + ObjectName.quote(m_slot));
+    }
+
+    /**
+     * Binds the metrics of an exit and slot to the current thread.
+     *
+     * @return the metrics that were bound before, <code>null</code> if none.
+     *         Pass them to {@link #unbind(PSRelationshipMetrics)} when done.
+     */
+    public static PSRelationshipMetrics bind(String exitName, String slot) {
+        PSRelationshipMetrics previous = ms_current.get();
+        ms_current.set(getInstance(exitName, slot));
+        return previous;
+    }
+
+    /**
+     * Binds metrics to the current thread, for work done on another thread
+     * on behalf of an exit.
+     *
+     * @param metrics not <code>null</code>.
+     * @return the metrics that were bound before, <code>null</code> if none.
+     */
+    public static PSRelationshipMetrics bind(PSRelationshipMetrics metrics) {
+        if (metrics == null) throw new IllegalArgumentException("metrics cannot be null");
+        PSRelationshipMetrics previous = ms_current.get();
+        ms_current.set(metrics);
+        return previous;
+    }
+
+    /**
+     * Restores the metrics that were bound before.
+     *
+     * @param previous the value returned by bind, may be <code>null</code>.
+     */
+    public static void unbind(PSRelationshipMetrics previous) {
+        if (previous == null)
+            ms_current.remove();
+        else
+            ms_current.set(previous);
+    }
+
+    /**
+     * @return the metrics bound to the current thread, the {@link #UNBOUND}
+     *         metrics if there are none. Never <code>null</code>.
+     */
+    public static PSRelationshipMetrics getCurrent() {
+        PSRelationshipMetrics metrics = ms_current.get();
+        return metrics != null ? metrics : getInstance(UNBOUND, UNBOUND);
+    }
+
+    /**
+     * Records a call in the metrics bound to the current thread, and in the
+     * {@link PSRequestTrace} if one is bound.
+     *
+     * @param operation not <code>null</code>.
+     * @param startNanos the {@link System#nanoTime()} when the call started.
+     * @param succeeded <code>false</code> if the call threw.
+     */
+    public static void record(Operation operation, long startNanos, boolean succeeded) {
+        long nanos = System.nanoTime() - startNanos;
+        getCurrent().recordCall(operation, nanos, succeeded);
+        PSRequestTrace trace = PSRequestTrace.getCurrent();
+        if (trace != null) trace.addOperation(operation, nanos);
+    }
+
+    /**
+     * Counts events in the metrics bound to the current thread, and in the
+     * {@link PSRequestTrace} if one is bound.
+     */
+    public static void count(Counter counter, long count) {
+        if (count == 0) return;
+        getCurrent().add(counter, count);
+        PSRequestTrace trace = PSRequestTrace.getCurrent();
+        if (trace != null) trace.addCount(counter, count);
+    }
+
+    public void recordCall(Operation operation, long nanos, boolean succeeded) {
+        m_latencies.get(operation).record(nanos);
+        if (!succeeded) m_errors.get(operation).incrementAndGet();
+    }
+
+    public void add(Counter counter, long count) {
+        m_counters.get(counter).addAndGet(count);
+    }
+
+    public PSLatencyHistogram getLatencies(Operation operation) {
+        return m_latencies.get(operation);
+    }
+
+    public long getErrorCount(Operation operation) {
+        return m_errors.get(operation).get();
+    }
+
+    public long getCount(Counter counter) {
+        return m_counters.get(counter).get();
+    }
+
+    public String getExitName() {
+        return m_exitName;
+    }
+
+    public String getSlot() {
+        return m_slot;
+    }
+
+    public Map<String, OperationStatistics> getOperations() {
+        Map<String, OperationStatistics> operations = new TreeMap<String, OperationStatistics>();
+        for (Operation operation : Operation.values()) {
+            PSLatencyHistogram latencies = m_latencies.get(operation);
+            if (latencies.getCount() == 0) continue;
+            operations.put(operation.name(), new OperationStatistics(latencies.getCount(),
+                    getErrorCount(operation), latencies.getMeanMillis(),
+                    latencies.getPercentileMillis(50), latencies.getPercentileMillis(95),
+                    latencies.getPercentileMillis(99), latencies.getMaxMillis()));
+        }
+        return operations;
+    }
+
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Counter counter : Counter.values()) {
+            counters.put(counter.name(), getCount(counter));
+        }
+        return counters;
+    }
+
+    /**
+     * @return the value of a gauge, <code>null</code> for the journal gauges
+     *         if the exit has no build journal.
+     */
+    public Long getGauge(Gauge gauge) {
+        PSDuplicateRelationshipCleaner cleaner = PSDuplicateRelationshipCleaner.getInstance();
+        PSBuildJournal journal = ms_journals.get(m_exitName);
+        switch (gauge) {
+            case DUPLICATES_DELETED:
+                return cleaner.getDeletedCount();
+            case DUPLICATE_QUEUE_DEPTH:
+                return (long) cleaner.getQueueDepth();
+            case JOURNAL_BACKLOG:
+                return journal == null ? null : Long.valueOf(journal.getBacklog());
+            case JOURNAL_LAG_MILLIS:
+                return journal == null ? null : Long.valueOf(journal.getLagMillis());
+            default:
+                throw new IllegalArgumentException("Unknown gauge: " + gauge);
+        }
+    }
+
+    public Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new TreeMap<String, Long>();
+        for (Gauge gauge : Gauge.values()) {
+            Long value = getGauge(gauge);
+            if (value != null) gauges.put(gauge.name(), value);
+        }
+        return gauges;
+    }
+
+    public void reset() {
+        for (Operation operation : Operation.values()) {
+            m_latencies.get(operation).reset();
+            m_errors.get(operation).set(0);
+        }
+        for (Counter counter : Counter.values()) {
+            m_counters.get(counter).set(0);
+        }
+    }
+
+    /**
+     * The latencies of an operation at the time they were read.
+     */
+    public static class OperationStatistics {
+        private final long m_count;
+        private final long m_errorCount;
+        private final double m_meanMillis;
+        private final double m_p50Millis;
+        private final double m_p95Millis;
+        private final double m_p99Millis;
+        private final double m_maxMillis;
+
+        @ConstructorProperties({"count", "errorCount", "meanMillis", "p50Millis", "p95Millis",
+                "p99Millis", "maxMillis"})
+        public OperationStatistics(long count, long errorCount, double meanMillis,
+                double p50Millis, double p95Millis, double p99Millis, double maxMillis) {
+            m_count = count;
+            m_errorCount = errorCount;
+            m_meanMillis = meanMillis;
+            m_p50Millis = p50Millis;
+            m_p95Millis = p95Millis;
+            m_p99Millis = p99Millis;
+            m_maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return m_count;
+        }
+
+        public long getErrorCount() {
+            return m_errorCount;
+        }
+
+        public double getMeanMillis() {
+            return m_meanMillis;
+        }
+
+        public double getP50Millis() {
+            return m_p50Millis;
+        }
+
+        public double getP95Millis() {
+            return m_p95Millis;
+        }
+
+        public double getP99Millis() {
+            return m_p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return m_maxMillis;
+        }
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSRelationshipMetrics.class);
+}
@@ -0,0 +1,38 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link PSRelationshipMetrics} of an exit and slot,
+ * registered as
+ * <code>com.percussion.pso.relationshipbuilder:type=RelationshipMetrics,exit=...,slot=...</code>.
+ */
+public interface PSRelationshipMetricsMXBean {
+
+    String getExitName();
+
+    String getSlot();
+
+    /**
+     * @return the latency statistics by operation name, only the operations
+     *         that were called.
+     */
+    Map<String, PSRelationshipMetrics.OperationStatistics> getOperations();
+
+    /**
+     * @return the counters by name, e.g. <code>RELATIONSHIPS_ADDED</code>.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return the values of the background components by name, e.g.
+     *         <code>DUPLICATE_QUEUE_DEPTH</code>. The journal values are left
+     *         out if the exit has no build journal. Not reset.
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * Sets all the latencies and counters back to 0.
+     */
+    void reset();
+}
@@ -0,0 +1,238 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.cms.objectstore.PSComponentSummary;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.server.IPSRequestContext;
+import com.percussion.services.legacy.IPSCmsObjectMgr;
+
+/**
+ * Remembers relationship lookups for the duration of a single content editor
+ * request so that the several exits registered on a content editor do not
+ * fetch the same item's relationships and component summaries over and over.
+ * <p>
+ * The cache is stored as a private object of the {@link IPSRequestContext}
+ * and is made available to the builders and the helper service on the
+ * current thread while an exit is running:
+ *
+ * <pre>
+ * PSRelationshipRequestCache previous = PSRelationshipRequestCache.bind(request);
+ * try {
+ *     // run the builders
+ * }
+ * finally {
+ *     PSRelationshipRequestCache.unbind(previous);
+ * }
+ * </pre>
+ *
+ * When nothing is bound (for example in a unit test or a background job)
+ * lookups simply go to the services.
+ * <p>
+ * Whatever writes relationships or folder membership while a cache is bound
+ * calls {@link #relationshipsWritten(Collection)} or
+ * {@link #itemsWritten(Collection)} so that the exits that run after it in the
+ * same request see the change.
+ * <p>
+ * A request is processed by a single thread so the cache is not synchronized.
+ */
+public class PSRelationshipRequestCache {
+
+    private static final String REQUEST_KEY = PSRelationshipRequestCache.class.getName();
+
+    private static final ThreadLocal<PSRelationshipRequestCache> ms_current =
+        new ThreadLocal<PSRelationshipRequestCache>();
+
+    private final Map<String, Collection<Integer>> m_retrieved =
+        new HashMap<String, Collection<Integer>>();
+
+    private final Map<Integer, PSComponentSummary> m_summaries =
+        new HashMap<Integer, PSComponentSummary>();
+
+    /**
+     * Binds the cache of the given request to the current thread, creating
+     * the cache if this is the first exit of the request to use it.
+     *
+     * @param request the request, not <code>null</code>.
+     * @return the cache that was bound before, <code>null</code> if none. Pass
+     *         it to {@link #unbind(PSRelationshipRequestCache)} when done.
+     */
+    public static PSRelationshipRequestCache bind(IPSRequestContext request) {
+        if (request == null) throw new IllegalArgumentException("request cannot be null");
+        PSRelationshipRequestCache previous = ms_current.get();
+        PSRelationshipRequestCache cache =
+            (PSRelationshipRequestCache) request.getPrivateObject(REQUEST_KEY);
+        if (cache == null) {
+            cache = new PSRelationshipRequestCache();
+            request.setPrivateObject(REQUEST_KEY, cache);
+        }
+        ms_current.set(cache);
+        return previous;
+    }
+
+    /**
+     * Restores the cache that was bound before
+     * {@link #bind(IPSRequestContext)} was called.
+     *
+     * @param previous the value returned by bind, may be <code>null</code>.
+     */
+    public static void unbind(PSRelationshipRequestCache previous) {
+        if (previous == null)
+            ms_current.remove();
+        else
+            ms_current.set(previous);
+    }
+
+    /**
+     * @return the cache bound to the current thread, <code>null</code> if
+     *         there is none.
+     */
+    public static PSRelationshipRequestCache getCurrent() {
+        return ms_current.get();
+    }
+
+    /**
+     * Gets the ids remembered for a builder configuration and item.
+     *
+     * @param builderKey identifies the builder configuration, not
+     *            <code>null</code>.
+     * @param sourceId the item.
+     * @return <code>null</code> if the item has not been retrieved yet.
+     */
+    public Collection<Integer> getRetrieved(String builderKey, int sourceId) {
+        return m_retrieved.get(retrievedKey(builderKey, sourceId));
+    }
+
+    public void putRetrieved(String builderKey, int sourceId, Collection<Integer> ids) {
+        m_retrieved.put(retrievedKey(builderKey, sourceId), ids);
+    }
+
+    /**
+     * Forgets all remembered ids. Called whenever relationships are written
+     * as a write for one builder can change what another builder retrieves.
+     */
+    public void clearRetrieved() {
+        m_retrieved.clear();
+    }
+
+    /**
+     * Forgets all remembered ids and the summaries of the given items, the
+     * summary of an item changes when its relationships or folders are
+     * written, e.g. the tip revision of an item that had to be checked out.
+     *
+     * @param ids the written items, not <code>null</code>.
+     */
+    public void invalidate(Collection<Integer> ids) {
+        m_retrieved.clear();
+        for (Integer id : ids) {
+            m_summaries.remove(id);
+        }
+    }
+
+    /**
+     * Invalidates the owners and dependents of written relationships in the
+     * cache bound to the current thread, if there is one.
+     *
+     * @param relationships the saved or deleted relationships, not
+     *            <code>null</code>.
+     */
+    public static void relationshipsWritten(Collection<PSRelationship> relationships) {
+        PSRelationshipRequestCache cache = getCurrent();
+        if (cache == null) return;
+        PSIntSet ids = new PSIntSet(relationships.size() * 2);
+        for (PSRelationship relationship : relationships) {
+            ids.add(relationship.getOwner().getId());
+            ids.add(relationship.getDependent().getId());
+        }
+        cache.invalidate(ids);
+    }
+
+    /**
+     * Invalidates items in the cache bound to the current thread, if there is
+     * one.
+     *
+     * @param ids the written items, not <code>null</code>.
+     */
+    public static void itemsWritten(Collection<Integer> ids) {
+        PSRelationshipRequestCache cache = getCurrent();
+        if (cache != null) cache.invalidate(ids);
+    }
+
+    private static String retrievedKey(String builderKey, int sourceId) {
+        return builderKey + "#" + sourceId;
+    }
+
+    /**
+     * Loads the component summaries of the given ids using the summaries
+     * already loaded in this request where possible.
+     *
+     * @param cms used to load the summaries that are not cached, not
+     *            <code>null</code>.
+     * @param ids the content ids, not <code>null</code>.
+     * @return the summaries of the ids that exist, never <code>null</code>.
+     */
+    public List<PSComponentSummary> getComponentSummaries(IPSCmsObjectMgr cms,
+            Collection<Integer> ids) {
+        List<PSComponentSummary> summaries = new ArrayList<PSComponentSummary>(ids.size());
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            PSComponentSummary summary = m_summaries.get(id);
+            if (summary != null)
+                summaries.add(summary);
+            else
+                missing.add(id);
+        }
+        if (!missing.isEmpty()) {
+            ms_log.debug("Loading " + missing.size() + " of " + ids.size()
+                    + " summaries, rest are cached for this request");
+            for (PSComponentSummary summary : load(cms, missing)) {
+                m_summaries.put(summary.getContentId(), summary);
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Loads component summaries, through the request cache bound to the
+     * current thread if there is one.
+     *
+     * @param cms not <code>null</code>.
+     * @param ids not <code>null</code>.
+     * @return never <code>null</code>.
+     */
+    public static List<PSComponentSummary> loadComponentSummaries(IPSCmsObjectMgr cms,
+            Collection<Integer> ids) {
+        PSRelationshipRequestCache cache = getCurrent();
+        if (cache == null)
+            return load(cms, ids);
+        return cache.getComponentSummaries(cms, ids);
+    }
+
+    private static List<PSComponentSummary> load(IPSCmsObjectMgr cms, Collection<Integer> ids) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            List<PSComponentSummary> summaries = cms.loadComponentSummaries(ids);
+            succeeded = true;
+            return summaries;
+        }
+        finally {
+            PSRelationshipMetrics.record(Operation.LOAD_SUMMARIES, start, succeeded);
+        }
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSRelationshipRequestCache.class);
+}
@@ -0,0 +1,155 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.percussion.error.PSException;
+import com.percussion.services.assembly.PSAssemblyException;
+
+/**
+ * Remembers the results of {@link #retrieve(int)} in the
+ * {@link PSRelationshipRequestCache} bound to the current request so that an
+ * item's relationships are only fetched once per request for a given builder
+ * configuration. Writes are passed through to the wrapped builder and clear
+ * the remembered results.
+ */
+public class PSRequestCachingRelationshipBuilder implements IPSRelationshipBuilder {
+
+    private final IPSRelationshipBuilder m_builder;
+    private final String m_builderKey;
+
+    /**
+     * @param builder the builder that does the work, not <code>null</code>.
+     * @param builderKey identifies the configuration of the builder, builders
+     *            with the same key must return the same results. Not
+     *            <code>null</code>.
+     */
+    public PSRequestCachingRelationshipBuilder(IPSRelationshipBuilder builder,
+            String builderKey) {
+        if (builder == null) throw new IllegalArgumentException("builder cannot be null");
+        if (builderKey == null) throw new IllegalArgumentException("builderKey cannot be null");
+        m_builder = builder;
+        m_builderKey = builderKey;
+    }
+
+    public Collection<Integer> retrieve(int sourceId) throws PSAssemblyException,
+            PSException {
+        PSRelationshipRequestCache cache = PSRelationshipRequestCache.getCurrent();
+        if (cache == null)
+            return m_builder.retrieve(sourceId);
+        Collection<Integer> ids = cache.getRetrieved(m_builderKey, sourceId);
+        if (ids == null) {
+            ids = m_builder.retrieve(sourceId);
+            if (ids != null) {
+                ids = Collections.unmodifiableCollection(ids);
+                cache.putRetrieved(m_builderKey, sourceId, ids);
+            }
+        }
+        return ids;
+    }
+
+    public void retrieve(int sourceId, PSIntSet relatedIds)
+            throws PSAssemblyException, PSException {
+        Collection<Integer> ids = retrieve(sourceId);
+        if (ids != null) relatedIds.addAll(ids);
+    }
+
+    /**
+     * Pages through the remembered ids if the item was already retrieved in
+     * this request, otherwise opens a cursor on the wrapped builder.
+     */
+    public IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+            throws PSAssemblyException, PSException {
+        PSRelationshipRequestCache cache = PSRelationshipRequestCache.getCurrent();
+        Collection<Integer> ids = cache == null ? null : cache.getRetrieved(m_builderKey, sourceId);
+        if (ids != null)
+            return new PSIntSetCursor(new PSIntSet(ids), pageSize);
+        return m_builder.openCursor(sourceId, pageSize);
+    }
+
+    public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+            throws PSAssemblyException, PSException {
+        PSRelationshipRequestCache cache = PSRelationshipRequestCache.getCurrent();
+        if (cache == null)
+            return m_builder.retrieveAll(sourceIds);
+        Map<Integer, PSIntSet> relatedIds = new LinkedHashMap<Integer, PSIntSet>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer sourceId : sourceIds) {
+            Collection<Integer> ids = cache.getRetrieved(m_builderKey, sourceId);
+            relatedIds.put(sourceId, ids == null ? null : new PSIntSet(ids));
+            if (ids == null) missing.add(sourceId);
+        }
+        if (!missing.isEmpty()) {
+            Map<Integer, PSIntSet> retrieved = m_builder.retrieveAll(missing);
+            for (Integer sourceId : missing) {
+                PSIntSet ids = retrieved.get(sourceId);
+                relatedIds.put(sourceId, ids);
+                cache.putRetrieved(m_builderKey, sourceId, 
+                        Collections.unmodifiableCollection(new PSIntSet(ids)));
+            }
+        }
+        return relatedIds;
+    }
+
+    public void synchronize(int sourceId, Set<Integer> targetIds)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.synchronize(sourceId, targetIds);
+        }
+        finally {
+            clearRetrieved();
+        }
+    }
+
+    public void synchronize(int sourceId, PSIntSet targetIds)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.synchronize(sourceId, targetIds);
+        }
+        finally {
+            clearRetrieved();
+        }
+    }
+
+    public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.synchronizeAll(targetIdsBySourceId);
+        }
+        finally {
+            clearRetrieved();
+        }
+    }
+
+    public void addRelationships(int sourceId, Collection<Integer> ids)
+            throws PSAssemblyException, PSException {
+        try {
+            m_builder.addRelationships(sourceId, ids);
+        }
+        finally {
+            clearRetrieved();
+        }
+    }
+
+    private void clearRetrieved() {
+        PSRelationshipRequestCache cache = PSRelationshipRequestCache.getCurrent();
+        if (cache != null) cache.clearRetrieved();
+    }
+
+    /**
+     * @return the wrapped builder, never <code>null</code>.
+     */
+    public IPSRelationshipBuilder getBuilder() {
+        return m_builder;
+    }
+
+    public String getBuilderKey() {
+        return m_builderKey;
+    }
+
+}
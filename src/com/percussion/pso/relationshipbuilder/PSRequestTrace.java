@@ -0,0 +1,231 @@
+package com.percussion.pso.relationshipbuilder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+
+/**
+ * Times the phases of one exit request and logs a single line when the
+ * request takes longer than a threshold, e.g.
+ *
+ * <pre>
+ * Slow relationship request: exit=pso_BuildAaRelationships slot=rffRelated contentId=321
+ * totalMs=812.4 submittedIds=40 currentIds=38 addedIds=2 removedIds=0 retrieveMs=501.2
+ * revisionFilterMs=3.1 summaryLoadMs=250.7 diffMs=0.2 saveMs=41.9 deleteMs=0.0 domUpdateMs=0.0
+ * otherMs=15.3
+ * </pre>
+ *
+ * (on one line). The extensions start a trace only when a threshold is
+ * configured and bind it to the current thread, the same way as
+ * {@link PSRelationshipRequestCache}:
+ *
+ * <pre>
+ * PSRequestTrace previous = PSRequestTrace.begin(exitName, slot, contentId, thresholdMillis);
+ * try {
+ *     // run the builders
+ * }
+ * finally {
+ *     PSRequestTrace.end(previous);
+ * }
+ * </pre>
+ *
+ * The calls timed for {@link PSRelationshipMetrics} are added to the trace
+ * without reading the clock again, the other phases are only timed when a
+ * trace is bound. Without a trace the cost is a thread local lookup per
+ * phase.
+ * <p>
+ * A trace belongs to one thread and is not synchronized.
+ */
+public class PSRequestTrace {
+
+    /**
+     * The timed phases of a request.
+     */
+    public enum Phase {
+        RETRIEVE("retrieveMs"), REVISION_FILTER("revisionFilterMs"),
+        SUMMARY_LOAD("summaryLoadMs"), DIFF("diffMs"), SAVE("saveMs"), DELETE("deleteMs"),
+        DOM_UPDATE("domUpdateMs");
+
+        private final String m_label;
+
+        private Phase(String label) {
+            m_label = label;
+        }
+    }
+
+    private static final ThreadLocal<PSRequestTrace> ms_current = new ThreadLocal<PSRequestTrace>();
+
+    private final String m_exitName;
+    private final String m_slot;
+    private final String m_contentId;
+    private final long m_thresholdNanos;
+    private final long m_start = System.nanoTime();
+    private final long[] m_phaseNanos = new long[Phase.values().length];
+    /**
+     * The time of all the phases, to time the phases that contain others,
+     * see {@link #mark()}.
+     */
+    private long m_recordedNanos;
+    private int m_submittedIds = -1;
+    private int m_currentIds = -1;
+    private long m_addedIds;
+    private long m_removedIds;
+
+    PSRequestTrace(String exitName, String slot, String contentId, long thresholdMillis) {
+        m_exitName = exitName;
+        m_slot = slot;
+        m_contentId = contentId;
+        m_thresholdNanos = thresholdMillis * 1000000L;
+    }
+
+    /**
+     * Starts a trace and binds it to the current thread.
+     *
+     * @param exitName may be <code>null</code>.
+     * @param slot may be <code>null</code>.
+     * @param contentId may be <code>null</code>.
+     * @param thresholdMillis the request is logged if it takes at least this
+     *            long, not negative.
+     * @return the trace that was bound before, <code>null</code> if none.
+     *         Pass it to {@link #end(PSRequestTrace)} when done.
+     */
+    public static PSRequestTrace begin(String exitName, String slot, String contentId,
+            long thresholdMillis) {
+        if (thresholdMillis < 0) throw new IllegalArgumentException("thresholdMillis cannot be negative");
+        PSRequestTrace previous = ms_current.get();
+        ms_current.set(new PSRequestTrace(exitName, slot, contentId, thresholdMillis));
+        return previous;
+    }
+
+    /**
+     * Ends the trace bound to the current thread, logging it if it is slow,
+     * and binds the trace that was bound before.
+     *
+     * @param previous the value returned by begin, may be <code>null</code>.
+     */
+    public static void end(PSRequestTrace previous) {
+        PSRequestTrace trace = ms_current.get();
+        if (previous == null)
+            ms_current.remove();
+        else
+            ms_current.set(previous);
+        if (trace != null) trace.logIfSlow();
+    }
+
+    /**
+     * @return the trace bound to the current thread, <code>null</code> if
+     *         there is none.
+     */
+    public static PSRequestTrace getCurrent() {
+        return ms_current.get();
+    }
+
+    /**
+     * Adds the time of a call timed for {@link PSRelationshipMetrics}.
+     */
+    void addOperation(Operation operation, long nanos) {
+        switch (operation) {
+            case FIND_BY_FILTER:
+            case GET_FOLDERS:
+                addPhase(Phase.RETRIEVE, nanos);
+                break;
+            case LOAD_SUMMARIES:
+                addPhase(Phase.SUMMARY_LOAD, nanos);
+                break;
+            case SAVE_RELATIONSHIPS:
+                addPhase(Phase.SAVE, nanos);
+                break;
+            case DELETE_RELATIONSHIPS:
+                addPhase(Phase.DELETE, nanos);
+                break;
+            default:
+                // the phases that contain others are timed with mark
+        }
+    }
+
+    public void addPhase(Phase phase, long nanos) {
+        m_phaseNanos[phase.ordinal()] += nanos;
+        m_recordedNanos += nanos;
+    }
+
+    /**
+     * Starts timing a phase that may contain other phases. Pass the mark to
+     * {@link #addSince(Phase, long)}, only the time not spent in the other
+     * phases is added.
+     */
+    public long mark() {
+        return System.nanoTime() - m_recordedNanos;
+    }
+
+    public void addSince(Phase phase, long mark) {
+        addPhase(phase, Math.max(0, System.nanoTime() - m_recordedNanos - mark));
+    }
+
+    /**
+     * Counts relationships added and removed, the counts of
+     * {@link PSRelationshipMetrics} are added without being asked.
+     */
+    void addCount(PSRelationshipMetrics.Counter counter, long count) {
+        if (counter == PSRelationshipMetrics.Counter.RELATIONSHIPS_ADDED)
+            m_addedIds += count;
+        else if (counter == PSRelationshipMetrics.Counter.RELATIONSHIPS_REMOVED)
+            m_removedIds += count;
+    }
+
+    /**
+     * @param count the number of ids submitted for the field.
+     */
+    public void setSubmittedIds(int count) {
+        m_submittedIds = count;
+    }
+
+    /**
+     * @param count the number of ids related to the item before the request.
+     */
+    public void setCurrentIds(int count) {
+        m_currentIds = count;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return m_phaseNanos[phase.ordinal()];
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - m_start;
+    }
+
+    private void logIfSlow() {
+        long total = getElapsedNanos();
+        if (total < m_thresholdNanos) return;
+        ms_log.warn(format(total));
+    }
+
+    String format(long totalNanos) {
+        StringBuilder line = new StringBuilder(256);
+        line.append("Slow relationship request: exit=").append(m_exitName)
+            .append(" slot=").append(m_slot)
+            .append(" contentId=").append(m_contentId)
+            .append(" totalMs=").append(millis(totalNanos));
+        if (m_submittedIds >= 0) line.append(" submittedIds=").append(m_submittedIds);
+        if (m_currentIds >= 0) line.append(" currentIds=").append(m_currentIds);
+        line.append(" addedIds=").append(m_addedIds)
+            .append(" removedIds=").append(m_removedIds);
+        for (Phase phase : Phase.values()) {
+            line.append(' ').append(phase.m_label).append('=')
+                .append(millis(m_phaseNanos[phase.ordinal()]));
+        }
+        line.append(" otherMs=").append(millis(Math.max(0, totalNanos - m_recordedNanos)));
+        return line.toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 100000.0) / 10.0;
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSRequestTrace.class);
+}
@@ -0,0 +1,169 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe least-recently-used cache whose entries expire after a
+ * fixed time to live.
+ * <p>
+ * All operations are synchronized on the cache instance, the critical sections
+ * are short (a hash map lookup) so this is adequate for the lookup rates of
+ * the content editor exits.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+public class PSTimedCache<K, V> {
+
+    private final int m_maxSize;
+    private final long m_timeToLive;
+    private final LinkedHashMap<K, Entry<V>> m_entries;
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_evictions = 0;
+    private long m_expirations = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum number of entries kept, once exceeded the least
+     *            recently used entry is evicted. Must be greater than 0.
+     * @param timeToLive the number of milliseconds an entry is valid for after
+     *            it is put in the cache. If <code>0</code> or less entries
+     *            never expire.
+     */
+    public PSTimedCache(int maxSize, long timeToLive) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        m_maxSize = maxSize;
+        m_timeToLive = timeToLive;
+        m_entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > m_maxSize) {
+                    m_evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets a value from the cache.
+     *
+     * @param key never <code>null</code>.
+     * @return the value or <code>null</code> if it is not cached or has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = m_entries.get(key);
+        if (entry == null) {
+            m_misses++;
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            m_entries.remove(key);
+            m_expirations++;
+            m_misses++;
+            return null;
+        }
+        m_hits++;
+        return entry.value;
+    }
+
+    /**
+     * Puts a value into the cache replacing any existing value.
+     *
+     * @param key never <code>null</code>.
+     * @param value never <code>null</code>.
+     */
+    public synchronized void put(K key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("value cannot be null");
+        long expires = m_timeToLive > 0 ?
+                System.currentTimeMillis() + m_timeToLive : Long.MAX_VALUE;
+        m_entries.put(key, new Entry<V>(value, expires));
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param key never <code>null</code>.
+     * @return the value that was removed, <code>null</code> if there was none.
+     */
+    public synchronized V remove(K key) {
+        Entry<V> entry = m_entries.remove(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Removes all entries. The statistics are kept.
+     */
+    public synchronized void flush() {
+        m_entries.clear();
+    }
+
+    /**
+     * @return a copy of the entries that have not expired, by key. Neither the
+     *         statistics nor the order of use are changed.
+     */
+    public synchronized Map<K, V> getEntries() {
+        long now = System.currentTimeMillis();
+        Map<K, V> entries = new LinkedHashMap<K, V>(m_entries.size() * 2);
+        for (Map.Entry<K, Entry<V>> entry : m_entries.entrySet()) {
+            if (!entry.getValue().isExpired(now)) entries.put(entry.getKey(), entry.getValue().value);
+        }
+        return entries;
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    public int getMaxSize() {
+        return m_maxSize;
+    }
+
+    public long getTimeToLive() {
+        return m_timeToLive;
+    }
+
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    /**
+     * @return the number of entries removed because the cache was full.
+     */
+    public synchronized long getEvictions() {
+        return m_evictions;
+    }
+
+    /**
+     * @return the number of entries removed because their time to live passed.
+     */
+    public synchronized long getExpirations() {
+        return m_expirations;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        private Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.Collection;
+
+import com.percussion.design.objectstore.PSRelationship;
+
+/**
+ * Loads the summaries of the revision specific side of every relationship:
+ * the dependent if it has a revision, otherwise the owner. This is how
+ * relationships were always checked.
+ */
+public class PSTipRevisionStrategy extends PSAbstractRevisionStrategy {
+
+    @Override
+    protected Collection<Integer> selectIdsToResolve(Collection<PSRelationship> relationships) {
+        return selectTipIds(relationships);
+    }
+
+    /**
+     * The ids this strategy resolves, also the baseline the other strategies
+     * are counted against.
+     */
+    static PSIntSet selectTipIds(Collection<PSRelationship> relationships) {
+        PSIntSet ids = new PSIntSet(relationships.size());
+        for (PSRelationship relationship : relationships)  {
+            if (relationship.getDependent().getRevision() > 0) {
+                ids.add(relationship.getDependent().getId());
+            } else {
+                ids.add(relationship.getOwner().getId());
+            }
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.percussion.pso.relationshipbuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The items reached by a traversal of relationships, see
+ * {@link IPSRelationshipHelperService#traverse(int, String, String, boolean, int)}.
+ * <p>
+ * The items are kept as one {@link PSIntSet} per depth, the start item is at
+ * depth 0 and an item is only at the depth it was first reached at.
+ */
+public class PSTraversalResult {
+
+    private final int m_startId;
+    private final PSIntSet m_ids = new PSIntSet();
+    private final List<PSIntSet> m_levels = new ArrayList<PSIntSet>();
+    private boolean m_truncated;
+
+    PSTraversalResult(int startId) {
+        m_startId = startId;
+        PSIntSet start = PSIntSet.of(startId);
+        m_ids.add(startId);
+        m_levels.add(start);
+    }
+
+    /**
+     * Adds the next depth, skipping the items already reached.
+     *
+     * @param ids not <code>null</code>.
+     * @return the items not reached before, never <code>null</code>.
+     */
+    PSIntSet addLevel(PSIntSet ids) {
+        PSIntSet level = new PSIntSet();
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            if (m_ids.add(id)) level.add(id);
+        }
+        if (!level.isEmpty()) m_levels.add(level);
+        return level;
+    }
+
+    void setTruncated(boolean truncated) {
+        m_truncated = truncated;
+    }
+
+    public int getStartId() {
+        return m_startId;
+    }
+
+    /**
+     * @return all items reached including the start item, never
+     *         <code>null</code>. Must not be modified.
+     */
+    public PSIntSet getIds() {
+        return m_ids;
+    }
+
+    /**
+     * @param depth 0 for the start item.
+     * @return the items first reached at the depth, never <code>null</code>,
+     *         empty if no items were reached at the depth. Must not be
+     *         modified.
+     */
+    public PSIntSet getLevel(int depth) {
+        return depth >= 0 && depth < m_levels.size() ? m_levels.get(depth) : new PSIntSet();
+    }
+
+    /**
+     * @return the items by depth, never <code>null</code>.
+     */
+    public List<PSIntSet> getLevels() {
+        return Collections.unmodifiableList(m_levels);
+    }
+
+    /**
+     * @param id the item.
+     * @return the depth the item was first reached at, <code>-1</code> if it
+     *         was not reached.
+     */
+    public int getDepth(int id) {
+        if (!m_ids.contains(id)) return -1;
+        for (int depth = 0; depth < m_levels.size(); depth++) {
+            if (m_levels.get(depth).contains(id)) return depth;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the deepest depth an item was reached at.
+     */
+    public int getMaxDepth() {
+        return m_levels.size() - 1;
+    }
+
+    /**
+     * @return <code>true</code> if the traversal stopped at the maximum depth
+     *         while items of the last depth were related to items not
+     *         reached yet.
+     */
+    public boolean isTruncated() {
+        return m_truncated;
+    }
+
+    @Override
+    public String toString() {
+        return "PSTraversalResult[start=" + m_startId + ", ids=" + m_ids.size()
+                + ", depth=" + getMaxDepth() + ", truncated=" + m_truncated + "]";
+    }
+}
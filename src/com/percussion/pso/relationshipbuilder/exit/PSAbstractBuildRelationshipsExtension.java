@@ -5,8 +5,14 @@ import static com.percussion.pso.relationshipbuilder.exit.PSExtensionHelper.isRe
 import static com.percussion.pso.relationshipbuilder.exit.PSExtensionHelper.logRequestCommand;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.Document;
@@ -24,16 +30,72 @@ import com.percussion.extension.PSExtensionProcessingException;
 import com.percussion.extension.PSParameterMismatchException;
 import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
 import com.percussion.pso.relationshipbuilder.IPSRelationshipHelperService;
-//import com.percussion.pso.relationshipbuilder.PSRelationshipHelperService;
+import com.percussion.pso.relationshipbuilder.PSBuildJournal;
+import com.percussion.pso.relationshipbuilder.PSCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSPendingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipRequestCache;
+import com.percussion.pso.relationshipbuilder.PSRelationshipHelperService;
+import com.percussion.pso.relationshipbuilder.PSRequestCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace;
 import com.percussion.pso.utils.PSOExtensionParamsHelper;
 import com.percussion.server.IPSRequestContext;
+import com.percussion.server.PSRequest;
+import com.percussion.server.PSRequestContext;
+import com.percussion.util.IPSHtmlParameters;
+import com.percussion.utils.request.PSRequestInfo;
 
 public abstract class PSAbstractBuildRelationshipsExtension extends PSDefaultExtension 
     implements IPSUdfProcessor, IPSFieldOutputTransformer, IPSResultDocumentProcessor, IPSItemOutputTransformer {
     
     private static final String MODE_INIT_PARAM = "com.percussion.extension.relationshipbuilder.mode";
-    //private static IPSRelationshipHelperService m_relationshipHelperService;
+    /**
+     * Init parameter, when "yes" a BUILD extension records the submitted ids
+     * in a {@link PSBuildJournal} and returns, the relationships are built in
+     * the background. Until they are built, SELECT extensions of the same
+     * class with the same builder parameters select the recorded ids.
+     */
+    private static final String ASYNC_INIT_PARAM = "com.percussion.extension.relationshipbuilder.async";
+    /**
+     * Init parameter, the directory of the journal in async mode. The code
+     * root of the extension by default.
+     */
+    private static final String JOURNAL_DIR_INIT_PARAM = "com.percussion.extension.relationshipbuilder.journalDir";
+    /**
+     * Init parameter, the number of threads building relationships in async
+     * mode, {@link PSBuildJournal#DEFAULT_SHARDS} by default.
+     */
+    private static final String ASYNC_WORKERS_INIT_PARAM = "com.percussion.extension.relationshipbuilder.asyncWorkers";
+    /**
+     * Init parameter, requests that take at least this many milliseconds are
+     * logged with the time of each phase, see {@link PSRequestTrace}. Not
+     * set or 0 to log none.
+     */
+    private static final String SLOW_THRESHOLD_INIT_PARAM = "com.percussion.extension.relationshipbuilder.slowThresholdMillis";
+    private static final String SELECT_ALL_PARAM = "selectAll";
+    private static final String CACHE_RELATIONSHIPS_PARAM = "cacheRelationships";
+    private static volatile IPSRelationshipHelperService ms_relationshipHelperService;
+    /**
+     * The extensions building asynchronously by the path of their journal. An
+     * extension initialized again with the same journal closes the journal of
+     * the one it replaces, and SELECT extensions read the states not built
+     * yet from them.
+     */
+    private static final ConcurrentMap<String, PSAbstractBuildRelationshipsExtension> ms_asyncExtensions = 
+        new ConcurrentHashMap<String, PSAbstractBuildRelationshipsExtension>();
     private Mode m_mode;
+    private String m_exitName;
+    private long m_slowThresholdMillis;
+    private volatile PSBuildJournal m_journal;
+    /**
+     * Builders hold no request state so one builder is created per
+     * configuration and mode and shared by all requests.
+     */
+    private final ConcurrentMap<String, IPSRelationshipBuilder> m_builders = 
+        new ConcurrentHashMap<String, IPSRelationshipBuilder>();
     /**
      * The log instance to use for this class, never <code>null</code>.
      */
@@ -45,11 +107,7 @@ public abstract class PSAbstractBuildRelationshipsExtension extends PSDefaultExt
     @Override
     public void init(IPSExtensionDef def, File codeRoot) throws PSExtensionException {
         super.init(def, codeRoot);
-       /* if (m_relationshipHelperService == null) {
-            PSRelationshipHelperService helper = new PSRelationshipHelperService();
-            helper.init();
-            m_relationshipHelperService = helper;
-        }*/
+        shutdown();
         String mode = def.getInitParameter(MODE_INIT_PARAM);
         String validValues = " it should be either " + Mode.BUILD + " or " + Mode.SELECT;
         if (mode == null) {
@@ -72,19 +130,209 @@ public abstract class PSAbstractBuildRelationshipsExtension extends PSDefaultExt
             throw new PSExtensionException(IPSExtensionErrors.EXT_INIT_FAILED, errorMsg);
         }
         String name = def.getRef().getFQN();
+        m_exitName = def.getRef().getExtensionName();
+        PSRelationshipMetrics.unregister(m_exitName);
+        String threshold = def.getInitParameter(SLOW_THRESHOLD_INIT_PARAM);
+        try {
+            m_slowThresholdMillis = StringUtils.isBlank(threshold) ? 0 : Long.parseLong(threshold.trim());
+        }
+        catch (NumberFormatException e) {
+            m_slowThresholdMillis = -1;
+        }
+        if (m_slowThresholdMillis < 0) {
+            String errorMsg = "Extension Init parameter: " + SLOW_THRESHOLD_INIT_PARAM 
+                + " should be a number of milliseconds and was set to: " + threshold;
+            ms_log.error(errorMsg);
+            throw new PSExtensionException(IPSExtensionErrors.EXT_INIT_FAILED, errorMsg);
+        }
         ms_log.debug("Setting relationship builder extension mode to " + m_mode + " for " + name);
+        String async = def.getInitParameter(ASYNC_INIT_PARAM);
+        if (m_mode == Mode.BUILD && async != null
+                && ("yes".equalsIgnoreCase(async.trim()) || "true".equalsIgnoreCase(async.trim()))) {
+            m_journal = createBuildJournal(def, codeRoot, name);
+            ms_asyncExtensions.put(m_journal.getFile().getAbsolutePath(), this);
+            PSRelationshipMetrics.registerBuildJournal(m_exitName, m_journal);
+        }
         
     }
 
-  /*  public IPSRelationshipHelperService getRelationshipHelperService() {
-        return m_relationshipHelperService;
+    /**
+     * Stops building relationships in the background and closes the journal
+     * of the async mode, waiting for the builds in progress. The builds not
+     * done yet are done when the journal is opened again. Called when the
+     * extension is initialized again, does nothing if the extension does not
+     * build asynchronously.
+     */
+    public void shutdown() {
+        PSBuildJournal journal = m_journal;
+        if (journal == null) return;
+        m_journal = null;
+        ms_asyncExtensions.remove(journal.getFile().getAbsolutePath(), this);
+        PSRelationshipMetrics.unregisterBuildJournal(m_exitName, journal);
+        journal.close();
+    }
+
+    /**
+     * Creates and opens the journal of the async mode, replaying the builds
+     * that were not done when the server stopped. The journal of an extension
+     * with the same name that was initialized before is closed first.
+     */
+    private PSBuildJournal createBuildJournal(IPSExtensionDef def, File codeRoot, String name) 
+        throws PSExtensionException {
+        String dir = def.getInitParameter(JOURNAL_DIR_INIT_PARAM);
+        File journalDir = StringUtils.isNotBlank(dir) ? new File(dir.trim())
+            : new File(codeRoot != null ? codeRoot : new File(System.getProperty("java.io.tmpdir")), 
+                    "relationshipbuilder-journal");
+        int workers = PSBuildJournal.DEFAULT_SHARDS;
+        String workersParam = def.getInitParameter(ASYNC_WORKERS_INIT_PARAM);
+        try {
+            if (StringUtils.isNotBlank(workersParam)) workers = Integer.parseInt(workersParam.trim());
+            File file = new File(journalDir, name.replaceAll("[^A-Za-z0-9_.-]", "_") + ".journal");
+            PSAbstractBuildRelationshipsExtension previous = 
+                ms_asyncExtensions.get(file.getAbsolutePath());
+            if (previous != null) previous.shutdown();
+            PSBuildJournal journal = new PSBuildJournal(file, workers, new PSBuildJournal.Applier() {
+                public void apply(Map<String, String> parameters, int sourceId, PSIntSet targetIds, 
+                        String user) throws Exception {
+                    applyBuild(parameters, sourceId, targetIds, user);
+                }
+            });
+            journal.open();
+            ms_log.debug("Building relationships asynchronously for " + name + " with journal " 
+                    + journal.getFile());
+            return journal;
+        }
+        catch (IOException e) {
+            String errorMsg = "Cannot open the build journal in " + journalDir + " for " + name;
+            ms_log.error(errorMsg, e);
+            throw new PSExtensionException(IPSExtensionErrors.EXT_INIT_FAILED, errorMsg);
+        }
+        catch (IllegalArgumentException e) {
+            String errorMsg = "Extension Init parameter: " + ASYNC_WORKERS_INIT_PARAM 
+                + " should be a positive number and was set to: " + workersParam;
+            ms_log.error(errorMsg);
+            throw new PSExtensionException(IPSExtensionErrors.EXT_INIT_FAILED, errorMsg);
+        }
+    }
+
+    /**
+     * Builds relationships recorded in the journal, on a worker thread. The
+     * worker has no request so an internal request is bound for the
+     * services, with the user that saved the item.
+     */
+    private void applyBuild(Map<String, String> parameters, int sourceId, PSIntSet targetIds, 
+            String user) throws Exception {
+        PSRelationshipMetrics previous = 
+            PSRelationshipMetrics.bind(m_exitName, getMetricsSlot(parameters));
+        boolean traced = m_slowThresholdMillis > 0;
+        PSRequestTrace previousTrace = traced ? beginTrace(parameters, 
+                String.valueOf(sourceId)) : null;
+        PSRequest request = PSRequest.getContextForRequest();
+        PSRequestInfo.initRequestInfo((Map<String, Object>) null);
+        PSRelationshipRequestCache previousCache = null;
+        try {
+            PSRequestInfo.setRequestInfo(PSRequestInfo.KEY_PSREQUEST, request);
+            if (user != null) PSRequestInfo.setRequestInfo(PSRequestInfo.KEY_USER, user);
+            previousCache = PSRelationshipRequestCache.bind(new PSRequestContext(request));
+            getRelationshipBuilder(parameters, null, Mode.BUILD).synchronize(sourceId, targetIds);
+        }
+        finally {
+            PSRelationshipRequestCache.unbind(previousCache);
+            PSRequestInfo.resetRequestInfo();
+            if (traced) PSRequestTrace.end(previousTrace);
+            PSRelationshipMetrics.unbind(previous);
+        }
+    }
+
+    /**
+     * The desired related ids of an item recorded by the BUILD extensions of
+     * this class in async mode and not built yet.
+     * 
+     * @param builderKey the configuration of the builder, see
+     *            {@link #getBuilderKey(Map)}.
+     * @return the ids of the latest state recorded with the same builder
+     *         configuration, <code>null</code> if nothing is pending.
+     */
+    private PSIntSet getPendingIds(String builderKey, int sourceId) {
+        PSIntSet pending = null;
+        for (PSAbstractBuildRelationshipsExtension extension : ms_asyncExtensions.values()) {
+            PSBuildJournal journal = extension.m_journal;
+            if (journal == null || extension.getClass() != getClass()) continue;
+            for (Map.Entry<Map<String, String>, PSIntSet> state : journal.getPending(sourceId).entrySet()) {
+                if (builderKey.equals(getBuilderKey(state.getKey()))) pending = state.getValue();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * The journal of the async mode, for monitoring its backlog and lag.
+     * 
+     * @return <code>null</code> unless the extension builds asynchronously.
+     */
+    public PSBuildJournal getBuildJournal() {
+        return m_journal;
+    }
+
+    protected Mode getMode() {
+        return m_mode;
+    }
+
+    /**
+     * The name of the exit the metrics are recorded for, see
+     * {@link PSRelationshipMetrics}.
+     */
+    protected String getExitName() {
+        return m_exitName;
+    }
+
+    /**
+     * The slot the metrics of a request are recorded for, see
+     * {@link PSRelationshipMetrics}.
+     * 
+     * @param paramMap the exit parameters, not <code>null</code>.
+     * @return <code>null</code> by default: no slot.
+     */
+    protected String getMetricsSlot(Map<String, String> paramMap) {
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if the parameter is "yes" or "true".
+     */
+    protected static boolean isFlagSet(Map<String,String> paramMap, String name) {
+        String value = paramMap.get(name);
+        return value != null 
+            && ("yes".equalsIgnoreCase(value.trim()) || "true".equalsIgnoreCase(value.trim()));
+    }
+
+    /**
+     * The helper service shared by all the exits, created the first time it
+     * is needed.
+     * 
+     * @return never <code>null</code>.
+     */
+    protected static IPSRelationshipHelperService getRelationshipHelperService() {
+        IPSRelationshipHelperService helper = ms_relationshipHelperService;
+        if (helper == null) {
+            synchronized (PSAbstractBuildRelationshipsExtension.class) {
+                helper = ms_relationshipHelperService;
+                if (helper == null) {
+                    PSRelationshipHelperService service = new PSRelationshipHelperService();
+                    service.init();
+                    helper = service;
+                    ms_relationshipHelperService = helper;
+                }
+            }
+        }
+        return helper;
     }
 
-    public void setRelationshipHelperService(
+    public static void setRelationshipHelperService(
             IPSRelationshipHelperService relationshipHelperService) {
-        m_relationshipHelperService = relationshipHelperService;
+        ms_relationshipHelperService = relationshipHelperService;
     }
-    */
+
     public boolean canModifyStyleSheet() {
         // TODO Auto-generated method stub
         return false;
@@ -94,33 +342,88 @@ public abstract class PSAbstractBuildRelationshipsExtension extends PSDefaultExt
         throws PSParameterMismatchException, PSExtensionProcessingException {
         
         logRequestCommand(request);
-        if ((isRequestToBeProcessedForBuilding(request) && m_mode == Mode.BUILD)
-                || (isRequestToBeProcessedForSelecting(request) && m_mode == Mode.SELECT)) {
-            
-            Map<String, String> paramMap = this.getParameters(params);
-            IPSRelationshipBuilder builder = createRelationshipBuilder(paramMap, request, m_mode);
-            PSOExtensionParamsHelper paramHelper = new PSOExtensionParamsHelper(paramMap, request, null);
-            
-            final PSExtensionHelper helper = new PSExtensionHelper(
-                    builder, this.getParameters(params), request);
-            
-            if (m_mode == Mode.BUILD) {
-                helper.buildRelationships();
-            }
-            else if (m_mode == Mode.SELECT) {
-                boolean selectAll = 
-                    paramHelper.getOptionalParameter("selectAll", null) == null ? false : true;
-                helper.updateDisplayChoices(resultDoc, selectAll);
+        Map<String, String> paramMap = getParameters(params);
+        PSRelationshipMetrics previousMetrics = 
+            PSRelationshipMetrics.bind(m_exitName, getMetricsSlot(paramMap));
+        try {
+            if ((isRequestToBeProcessedForBuilding(request) && m_mode == Mode.BUILD)
+                    || (isRequestToBeProcessedForSelecting(request) && m_mode == Mode.SELECT)) {
+                PSRelationshipMetrics.count(Counter.INVOCATIONS_PROCESSED, 1);
+                boolean traced = m_slowThresholdMillis > 0;
+                PSRequestTrace previousTrace = traced ? beginTrace(paramMap, 
+                        request.getParameter(IPSHtmlParameters.SYS_CONTENTID)) : null;
+                PSRelationshipRequestCache previous = PSRelationshipRequestCache.bind(request);
+                try {
+                    processRequest(paramMap, request, resultDoc);
+                }
+                finally {
+                    PSRelationshipRequestCache.unbind(previous);
+                    if (traced) PSRequestTrace.end(previousTrace);
+                }
             }
             else {
-                throw new IllegalStateException("Programming error with relationship builder mode.");
+                PSRelationshipMetrics.count(Counter.INVOCATIONS_SKIPPED, 1);
             }
-            
-
+        }
+        finally {
+            PSRelationshipMetrics.unbind(previousMetrics);
         }
         return resultDoc;
     }
     
+    /**
+     * Builds or selects the relationships of the field named by the
+     * parameters, depending on the mode. Only called for the requests the
+     * mode applies to.
+     * 
+     * @param paramMap the exit parameters, not <code>null</code>.
+     */
+    protected void processRequest(Map<String, String> paramMap, IPSRequestContext request, 
+            Document resultDoc) throws PSParameterMismatchException, PSExtensionProcessingException {
+        IPSRelationshipBuilder builder = getRelationshipBuilder(paramMap, request, m_mode);
+        PSOExtensionParamsHelper paramHelper = new PSOExtensionParamsHelper(paramMap, request, null);
+        
+        final PSExtensionHelper helper = new PSExtensionHelper(
+                builder, paramMap, request);
+        
+        if (m_mode == Mode.BUILD) {
+            if (m_journal != null) 
+                recordBuild(helper, paramMap, request);
+            else
+                helper.buildRelationships();
+        }
+        else if (m_mode == Mode.SELECT) {
+            boolean selectAll = 
+                paramHelper.getOptionalParameter(SELECT_ALL_PARAM, null) == null ? false : true;
+            helper.updateDisplayChoices(resultDoc, selectAll);
+        }
+        else {
+            throw new IllegalStateException("Programming error with relationship builder mode.");
+        }
+    }
+    
+    /**
+     * Records the submitted ids in the journal instead of building the
+     * relationships, see {@link #ASYNC_INIT_PARAM}.
+     */
+    private void recordBuild(PSExtensionHelper helper, Map<String, String> paramMap, 
+            IPSRequestContext request) throws PSExtensionProcessingException {
+        PSOExtensionParamsHelper extParams = new PSOExtensionParamsHelper(paramMap, request, ms_log);
+        String contentId = extParams.getParameter(IPSHtmlParameters.SYS_CONTENTID);
+        if (!StringUtils.isNumeric(contentId)) return;
+        int cid = Integer.parseInt(contentId);
+        Set<Integer> ids = helper.getSubmittedIds(cid, 
+                extParams.getRequiredParameter(PSExtensionHelper.IDS_FIELD_NAME));
+        if (ids == null) return;
+        try {
+            m_journal.record(paramMap, cid, PSIntSet.valueOf(ids), request.getUserName());
+        }
+        catch (IOException e) {
+            ms_log.error("Failed to record relationships of item " + cid, e);
+            throw new PSExtensionProcessingException(0, e);
+        }
+    }
+    
     public final Object processUdf(Object[] params, IPSRequestContext request)
             throws PSConversionException {
 
@@ -130,16 +433,118 @@ public abstract class PSAbstractBuildRelationshipsExtension extends PSDefaultExt
         Map<String, String> paramMap = getParameters(params);
         IPSRelationshipBuilder builder = null;
         try {
-            builder = createRelationshipBuilder(paramMap, request, Mode.SELECT);
+            builder = getRelationshipBuilder(paramMap, request, Mode.SELECT);
         } catch (IllegalArgumentException e) {
             throw new PSConversionException(0, e);
         }
         PSExtensionHelper helper = new PSExtensionHelper(builder,
                 getParameters(params), request);
-        return helper.retrieveIds();
+        PSRelationshipMetrics previousMetrics = 
+            PSRelationshipMetrics.bind(m_exitName, getMetricsSlot(paramMap));
+        PSRelationshipMetrics.count(Counter.INVOCATIONS_PROCESSED, 1);
+        boolean traced = m_slowThresholdMillis > 0;
+        PSRequestTrace previousTrace = traced ? beginTrace(paramMap, 
+                request.getParameter(IPSHtmlParameters.SYS_CONTENTID)) : null;
+        PSRelationshipRequestCache previous = PSRelationshipRequestCache.bind(request);
+        try {
+            String contentIds = paramMap.get(PSExtensionHelper.CONTENT_IDS_PARAM);
+            if (StringUtils.isNotBlank(contentIds)) {
+                return helper.retrieveIdsForItems(contentIds);
+            }
+            return helper.retrieveIds();
+        }
+        finally {
+            PSRelationshipRequestCache.unbind(previous);
+            if (traced) PSRequestTrace.end(previousTrace);
+            PSRelationshipMetrics.unbind(previousMetrics);
+        }
 
     }
     
+    /**
+     * Starts the trace of a request, see {@link #SLOW_THRESHOLD_INIT_PARAM}.
+     * 
+     * @return the trace that was bound before, see 
+     *         {@link PSRequestTrace#begin(String, String, String, long)}.
+     */
+    private PSRequestTrace beginTrace(Map<String, String> paramMap, String contentId) {
+        return PSRequestTrace.begin(m_exitName, getMetricsSlot(paramMap), contentId, 
+                m_slowThresholdMillis);
+    }
+    
+    /**
+     * Gets the builder for the parameters wrapped so that its retrieved
+     * ids are remembered for the rest of the request, and across requests
+     * if the cacheRelationships parameter is set. In SELECT mode the ids
+     * recorded in async mode and not built yet are read instead, see
+     * {@link #ASYNC_INIT_PARAM}. The builder is only created the first time
+     * a configuration is seen, afterwards the same builder is returned. The
+     * cacheRelationships flag is not part of the builder key, which also
+     * qualifies the cached ids, but a builder with and one without the
+     * relationship cache are kept apart.
+     * 
+     * @see PSRequestCachingRelationshipBuilder
+     * @see PSPendingRelationshipBuilder
+     */
+    protected IPSRelationshipBuilder getRelationshipBuilder(Map<String,String> paramMap, 
+            IPSRequestContext request, Mode mode) throws IllegalArgumentException {
+        String builderKey = getBuilderKey(paramMap);
+        boolean cacheRelationships = isCacheRelationships(paramMap);
+        String cacheKey = mode + "|" + (cacheRelationships ? "cached|" : "") + builderKey;
+        IPSRelationshipBuilder builder = m_builders.get(cacheKey);
+        if (builder == null) {
+            builder = createRelationshipBuilder(paramMap, request, mode);
+            if (cacheRelationships) {
+                builder = new PSCachingRelationshipBuilder(builder, builderKey, 
+                        PSRelationshipCache.getInstance());
+            }
+            builder = new PSRequestCachingRelationshipBuilder(builder, builderKey);
+            if (mode == Mode.SELECT) {
+                final String key = builderKey;
+                builder = new PSPendingRelationshipBuilder(builder, 
+                        new PSPendingRelationshipBuilder.Lookup() {
+                            public PSIntSet getPending(int sourceId) {
+                                return getPendingIds(key, sourceId);
+                            }
+                        });
+            }
+            IPSRelationshipBuilder existing = m_builders.putIfAbsent(cacheKey, builder);
+            if (existing != null) builder = existing;
+            ms_log.debug("Created relationship builder for " + cacheKey);
+        }
+        return builder;
+    }
+    
+    private static boolean isCacheRelationships(Map<String,String> paramMap) {
+        return isFlagSet(paramMap, CACHE_RELATIONSHIPS_PARAM);
+    }
+    
+    /**
+     * Identifies the builder configuration of the parameters: every parameter
+     * except the field name, the content ids and the select all, cache and fingerprint flags, which do not change
+     * what the builder does.
+     * 
+     * @param paramMap the exit parameters, not <code>null</code>.
+     * @return never <code>null</code>.
+     */
+    protected String getBuilderKey(Map<String,String> paramMap) {
+        StringBuilder key = new StringBuilder(getClass().getName());
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(paramMap).entrySet()) {
+            if (PSExtensionHelper.IDS_FIELD_NAME.equals(entry.getKey())
+                    || PSExtensionHelper.CONTENT_IDS_PARAM.equals(entry.getKey())
+                    || PSExtensionHelper.FINGERPRINT_PARAM.equals(entry.getKey())
+                    || CACHE_RELATIONSHIPS_PARAM.equals(entry.getKey())
+                    || SELECT_ALL_PARAM.equals(entry.getKey())) 
+                continue;
+            key.append('|').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return key.toString();
+    }
+    
+    /**
+     * Creates a fully configured builder for the parameters. The builder is
+     * shared by concurrent requests so it must not keep request state.
+     */
     public abstract IPSRelationshipBuilder createRelationshipBuilder(Map<String,String> paramMap, 
             IPSRequestContext request, Mode mode) throws IllegalArgumentException;
 
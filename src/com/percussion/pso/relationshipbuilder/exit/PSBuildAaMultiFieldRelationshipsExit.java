@@ -0,0 +1,207 @@
+package com.percussion.pso.relationshipbuilder.exit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+
+import com.percussion.error.PSException;
+import com.percussion.extension.PSExtensionProcessingException;
+import com.percussion.extension.PSParameterMismatchException;
+import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSActiveAssemblyRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSMultiSlotSynchronizer;
+import com.percussion.pso.utils.PSOExtensionParamsHelper;
+import com.percussion.server.IPSRequestContext;
+import com.percussion.services.assembly.PSAssemblyException;
+import com.percussion.util.IPSHtmlParameters;
+
+/**
+ * Builds the active assembly relationships of several fields of the item
+ * being edited in one pass, instead of one {@link PSBuildAaRelationshipsExit}
+ * per field.
+ * <p>
+ * The fields are given by the <code>fieldMappings</code> parameter, ";"
+ * separated mappings of a field to its slot, template and source item type,
+ * e.g. <code>related=rffRelated,rffSnTitleLink,OWNER;topics=rffTopics,rffSnTitle,DEPENDENT</code>.
+ * The other parameters are the same as {@link PSBuildAaRelationshipsExit}
+ * and apply to all the fields.
+ * <p>
+ * When building, the relationships of the item are fetched for all the slots
+ * together and all the changes are written together, see
+ * {@link PSMultiSlotSynchronizer}. When selecting, the fields are selected
+ * one after the other.
+ */
+public class PSBuildAaMultiFieldRelationshipsExit extends PSBuildAaRelationshipsExit {
+
+    static final String FIELD_MAPPINGS_PARAM = "fieldMappings";
+
+    /**
+     * One synchronizer per configuration, shared by all requests.
+     */
+    private final ConcurrentMap<String, PSMultiSlotSynchronizer> m_synchronizers =
+        new ConcurrentHashMap<String, PSMultiSlotSynchronizer>();
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSBuildAaMultiFieldRelationshipsExit.class);
+
+    @Override
+    protected void processRequest(Map<String, String> paramMap, IPSRequestContext request,
+            Document resultDoc) throws PSParameterMismatchException, PSExtensionProcessingException {
+        Map<String, String[]> mappings = getFieldMappings(paramMap, request);
+        if (getMode() == Mode.SELECT) {
+            for (String fieldName : mappings.keySet()) {
+                super.processRequest(getFieldParameters(paramMap, fieldName), request, resultDoc);
+            }
+            return;
+        }
+        PSOExtensionParamsHelper extParams = new PSOExtensionParamsHelper(paramMap, request, ms_log);
+        String contentId = extParams.getParameter(IPSHtmlParameters.SYS_CONTENTID);
+        if (!StringUtils.isNumeric(contentId)) return;
+        int cid = Integer.parseInt(contentId);
+
+        PSMultiSlotSynchronizer synchronizer = getSynchronizer(paramMap, mappings, request);
+        PSExtensionHelper helper = new PSExtensionHelper(null, paramMap, request);
+        List<PSIntSet> targetIds = new ArrayList<PSIntSet>(mappings.size());
+        for (String fieldName : mappings.keySet()) {
+            Set<Integer> ids = helper.getSubmittedIds(cid, fieldName);
+            targetIds.add(ids == null ? null : PSIntSet.valueOf(ids));
+        }
+        try {
+            synchronizer.synchronize(cid, targetIds);
+        }
+        catch (PSAssemblyException e) {
+            ms_log.error("Failure in assembly API", e);
+            throw new PSExtensionProcessingException(0, e);
+        }
+        catch (PSException e) {
+            ms_log.error("Failure in relationship API", e);
+            throw new PSExtensionProcessingException(0, e);
+        }
+    }
+
+    /**
+     * Creates the builder of the field named by the fieldName parameter, with
+     * the slot, template and source item type of its mapping.
+     */
+    @Override
+    public IPSRelationshipBuilder createRelationshipBuilder(Map<String, String> paramMap,
+            IPSRequestContext request, Mode mode) {
+        String fieldName = paramMap.get(PSExtensionHelper.IDS_FIELD_NAME);
+        String[] mapping = getFieldMappings(paramMap, request).get(fieldName);
+        if (mapping == null)
+            throw new IllegalArgumentException("Field: " + fieldName
+                    + " is not mapped by the " + FIELD_MAPPINGS_PARAM + " parameter");
+        Map<String, String> builderParams = new HashMap<String, String>(paramMap);
+        builderParams.put(SLOT_NAME_PARAM, mapping[0]);
+        builderParams.put(TEMPLATE_NAME_PARAM, mapping[1]);
+        builderParams.put(SOURCE_ITEM_TYPE_PARAM, mapping[2]);
+        return super.createRelationshipBuilder(builderParams, request, mode);
+    }
+
+    /**
+     * The field is part of the key: each field has its own builder.
+     */
+    @Override
+    protected String getBuilderKey(Map<String, String> paramMap) {
+        String fieldName = paramMap.get(PSExtensionHelper.IDS_FIELD_NAME);
+        String key = super.getBuilderKey(paramMap);
+        return fieldName == null ? key : key + "|field=" + fieldName;
+    }
+
+    /**
+     * The metrics are recorded for the slots of all the fields together, e.g.
+     * <code>rffRelated,rffTopics</code>.
+     */
+    @Override
+    protected String getMetricsSlot(Map<String, String> paramMap) {
+        String value = paramMap.get(FIELD_MAPPINGS_PARAM);
+        if (value == null) return null;
+        StringBuilder slots = new StringBuilder();
+        for (String mapping : StringUtils.split(value, PSExtensionHelper.ARRAY_DELIMETER)) {
+            String slotName = StringUtils.substringBefore(
+                    StringUtils.substringAfter(mapping, "="), ",").trim();
+            if (slotName.length() == 0) continue;
+            if (slots.length() > 0) slots.append(',');
+            slots.append(slotName);
+        }
+        return slots.toString();
+    }
+
+    private PSMultiSlotSynchronizer getSynchronizer(Map<String, String> paramMap,
+            Map<String, String[]> mappings, IPSRequestContext request) {
+        String key = getBuilderKey(paramMap);
+        PSMultiSlotSynchronizer synchronizer = m_synchronizers.get(key);
+        if (synchronizer == null) {
+            List<PSActiveAssemblyRelationshipBuilder> builders =
+                new ArrayList<PSActiveAssemblyRelationshipBuilder>(mappings.size());
+            for (String fieldName : mappings.keySet()) {
+                builders.add((PSActiveAssemblyRelationshipBuilder) createRelationshipBuilder(
+                        getFieldParameters(paramMap, fieldName), request, Mode.BUILD));
+            }
+            synchronizer = new PSMultiSlotSynchronizer(builders);
+            PSMultiSlotSynchronizer existing = m_synchronizers.putIfAbsent(key, synchronizer);
+            if (existing != null) synchronizer = existing;
+            ms_log.debug("Created synchronizer for " + key);
+        }
+        return synchronizer;
+    }
+
+    private static Map<String, String> getFieldParameters(Map<String, String> paramMap,
+            String fieldName) {
+        Map<String, String> fieldParams = new HashMap<String, String>(paramMap);
+        fieldParams.put(PSExtensionHelper.IDS_FIELD_NAME, fieldName);
+        return fieldParams;
+    }
+
+    /**
+     * Parses the fieldMappings parameter. Blank mappings are skipped, the
+     * names are trimmed.
+     *
+     * @param paramMap the extension parameters, not <code>null</code>.
+     * @param request used when the parameter is not in the map, may be
+     *            <code>null</code>.
+     * @return the slot, template and source item type by field name, in the
+     *         order of the parameter. Never <code>null</code> or empty.
+     * @throws IllegalArgumentException if the parameter is missing, maps no
+     *             field or has a mapping that is not
+     *             <code>field=slot,template,OWNER|DEPENDENT</code>.
+     */
+    public static Map<String, String[]> getFieldMappings(Map<String, String> paramMap,
+            IPSRequestContext request) {
+        PSOExtensionParamsHelper extParams = new PSOExtensionParamsHelper(paramMap, request, null);
+        String value = extParams.getRequiredParameter(FIELD_MAPPINGS_PARAM);
+        Map<String, String[]> mappings = new LinkedHashMap<String, String[]>();
+        for (String mapping : StringUtils.split(value, PSExtensionHelper.ARRAY_DELIMETER)) {
+            if (StringUtils.isBlank(mapping)) continue;
+            String fieldName = StringUtils.substringBefore(mapping, "=").trim();
+            String[] parts = StringUtils.split(StringUtils.substringAfter(mapping, "="), ",");
+            if (fieldName.length() == 0 || parts == null || parts.length != 3) {
+                throw new IllegalArgumentException("Parameter " + FIELD_MAPPINGS_PARAM + ": mapping '"
+                        + mapping.trim() + "' should be field=slot,template,OWNER|DEPENDENT");
+            }
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = parts[i].trim();
+            }
+            mappings.put(fieldName, parts);
+        }
+        if (mappings.isEmpty())
+            throw new IllegalArgumentException("Parameter " + FIELD_MAPPINGS_PARAM
+                    + ": at least one field must be mapped");
+        return mappings;
+    }
+
+}
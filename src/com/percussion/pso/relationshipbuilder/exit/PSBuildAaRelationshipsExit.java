@@ -19,6 +19,8 @@ import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
 import com.percussion.pso.relationshipbuilder.PSActiveAssemblyRelationshipBuilder;
 import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
 import com.percussion.pso.relationshipbuilder.PSAaOwnerRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSAaRelationshipIndex;
+import com.percussion.pso.relationshipbuilder.PSAbstractRevisionStrategy;
 import com.percussion.pso.utils.PSOExtensionParamsHelper;
 import com.percussion.server.IPSRequestContext;
 
@@ -34,15 +36,16 @@ import com.percussion.server.IPSRequestContext;
 public class PSBuildAaRelationshipsExit extends PSAbstractBuildRelationshipsExtension {
     private static final String SOURCE_ITEM_TYPE_PARAM_DEPENDENT = "DEPENDENT";
     private static final String SOURCE_ITEM_TYPE_PARAM_OWNER = "OWNER";
-    private static final String SOURCE_ITEM_TYPE_PARAM = "sourceItemType";
-    private static final String TEMPLATE_NAME_PARAM = "templateName";
-    private static final String SLOT_NAME_PARAM = "slotName";
+    static final String SOURCE_ITEM_TYPE_PARAM = "sourceItemType";
+    static final String TEMPLATE_NAME_PARAM = "templateName";
+    static final String SLOT_NAME_PARAM = "slotName";
+    private static final String REVISION_STRATEGY_PARAM = "revisionStrategy";
+    private static final String INDEX_RELATIONSHIPS_PARAM = "indexRelationships";
 
 
     /**
      * The log instance to use for this class, never <code>null</code>.
      */
-    @SuppressWarnings("unused")
     private static final Log ms_log = LogFactory
             .getLog(PSBuildAaRelationshipsExit.class);
     
@@ -65,22 +68,45 @@ public class PSBuildAaRelationshipsExit extends PSAbstractBuildRelationshipsExte
         String slotName = extParams.getRequiredParameter(SLOT_NAME_PARAM);
         String templateName = extParams.getRequiredParameter(TEMPLATE_NAME_PARAM);
         String sourceItemType = extParams.getRequiredParameter(SOURCE_ITEM_TYPE_PARAM);
+        String revisionStrategy = extParams.getOptionalParameter(REVISION_STRATEGY_PARAM, null);
+        String indexRelationships = extParams.getOptionalParameter(INDEX_RELATIONSHIPS_PARAM, "no");
         PSActiveAssemblyRelationshipBuilder builder = null;
         
         if (SOURCE_ITEM_TYPE_PARAM_OWNER.equals(sourceItemType.toUpperCase().trim())) {
-            builder = new PSAaOwnerRelationshipBuilder();
+            builder = new PSAaOwnerRelationshipBuilder(slotName, templateName);
         }
         else if (SOURCE_ITEM_TYPE_PARAM_DEPENDENT.equals(sourceItemType.toUpperCase().trim())) {
-            builder = new PSAaDependentRelationshipBuilder();
+            builder = new PSAaDependentRelationshipBuilder(slotName, templateName);
         }
         else {
               extParams.errorOnParameter(SOURCE_ITEM_TYPE_PARAM, 
                       "sourceItemType must either be 'OWNER' or 'DEPENDENT'");
         }
-        //builder.setRelationshipHelperService(getRelationshipHelperService());
-        builder.setSlotName(slotName);
-        builder.setTemplateName(templateName);
+        try {
+            builder.setRevisionStrategy(PSAbstractRevisionStrategy.forName(revisionStrategy));
+            ms_log.debug("Using revision strategy " + builder.getRevisionStrategy() 
+                    + " for slot " + slotName);
+        }
+        catch (IllegalArgumentException e) {
+            extParams.errorOnParameter(REVISION_STRATEGY_PARAM, e.getMessage());
+        }
+        String index = indexRelationships.trim();
+        if ("yes".equalsIgnoreCase(index) || "true".equalsIgnoreCase(index)) {
+            PSAaRelationshipIndex relationshipIndex = 
+                PSAaRelationshipIndex.getInstance(slotName, templateName);
+            relationshipIndex.ensureWarm();
+            builder.setRelationshipIndex(relationshipIndex);
+        }
         return builder;
     }
 
+    /**
+     * The metrics are recorded by slot.
+     */
+    @Override
+    protected String getMetricsSlot(Map<String, String> paramMap) {
+        String slotName = paramMap.get(SLOT_NAME_PARAM);
+        return slotName == null ? null : slotName.trim();
+    }
+
 }
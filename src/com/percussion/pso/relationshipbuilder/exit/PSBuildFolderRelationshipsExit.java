@@ -24,11 +24,10 @@ public class PSBuildFolderRelationshipsExit extends PSAbstractBuildRelationships
             IPSRequestContext request, Mode mode) throws IllegalArgumentException {
         log.debug( mode + " Folder Relationships");
         PSOExtensionParamsHelper extParams = new PSOExtensionParamsHelper(paramMap, request, log);
-        PSFolderRelationshipBuilder builder = new PSFolderRelationshipBuilder();
-       // builder.setRelationshipHelperService(getRelationshipHelperService());
         String jcrQuery = extParams.getRequiredParameter("jcrQuery");
-        builder.setJcrQuery(jcrQuery);
-        return builder;
+        String singleQuery = extParams.getOptionalParameter("singleQuery", "no").trim();
+        return new PSFolderRelationshipBuilder(getRelationshipHelperService(), jcrQuery,
+                "yes".equalsIgnoreCase(singleQuery) || "true".equalsIgnoreCase(singleQuery));
     }
 
 }
@@ -0,0 +1,228 @@
+package com.percussion.pso.relationshipbuilder.exit;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.percussion.pso.relationshipbuilder.PSIdListCodec;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+
+/**
+ * Marks the display entries of a control selected, used by
+ * {@link PSExtensionHelper#updateDisplayChoices(org.w3c.dom.Document, boolean)}.
+ * <p>
+ * Taxonomy controls can have tens of thousands of display entries so the
+ * entries are read once, walking the children of the
+ * <code>DisplayChoices</code> element, and indexed by id in a
+ * {@link PSIntSet}. Selecting ids is then one hash lookup per id and no
+ * element is searched by tag name. Not thread-safe.
+ */
+public class PSDisplayChoiceMarker {
+
+    /**
+     * The distinct ids of the entries, the position of an id is its slot.
+     */
+    private final PSIntSet m_ids;
+    /**
+     * The entries in document order.
+     */
+    private final Element[] m_entries;
+    /**
+     * The first entry of each slot.
+     */
+    private final int[] m_firstEntry;
+    /**
+     * The next entry with the same id, <code>-1</code> for the last one.
+     */
+    private final int[] m_nextEntry;
+    private final boolean[] m_selected;
+    private int m_remaining;
+
+    private PSDisplayChoiceMarker(Element displayChoices) {
+        int count = 0;
+        for (Element e = firstChild(displayChoices, "DisplayEntry"); e != null;
+                e = nextSibling(e, "DisplayEntry")) {
+            count++;
+        }
+        m_ids = new PSIntSet(count);
+        m_entries = new Element[count];
+        m_nextEntry = new int[count];
+        int[] firstEntry = new int[count];
+        int[] lastEntry = new int[count];
+        int i = 0;
+        for (Element e = firstChild(displayChoices, "DisplayEntry"); e != null;
+                e = nextSibling(e, "DisplayEntry"), i++) {
+            m_entries[i] = e;
+            m_nextEntry[i] = -1;
+            int id = parseId(e);
+            if (m_ids.add(id)) {
+                int slot = m_ids.size() - 1;
+                firstEntry[slot] = i;
+                lastEntry[slot] = i;
+            }
+            else {
+                int slot = m_ids.indexOf(id);
+                m_nextEntry[lastEntry[slot]] = i;
+                lastEntry[slot] = i;
+            }
+        }
+        m_firstEntry = Arrays.copyOf(firstEntry, m_ids.size());
+        m_selected = new boolean[m_ids.size()];
+        m_remaining = m_ids.size();
+    }
+
+    /**
+     * Indexes the display entries of a control.
+     *
+     * @param displayChoices the <code>DisplayChoices</code> element, not
+     *            <code>null</code>.
+     * @return never <code>null</code>.
+     */
+    public static PSDisplayChoiceMarker index(Element displayChoices) {
+        if (displayChoices == null) throw new IllegalArgumentException("displayChoices may not be null");
+        return new PSDisplayChoiceMarker(displayChoices);
+    }
+
+    /**
+     * Marks the entries of the ids selected.
+     *
+     * @param ids not <code>null</code>, ids without an entry are skipped.
+     * @return the number of entries newly selected.
+     */
+    public int select(PSIntSet ids) {
+        int selected = 0;
+        for (int i = 0; i < ids.size() && m_remaining > 0; i++) {
+            int slot = m_ids.indexOf(ids.get(i));
+            if (slot < 0 || m_selected[slot]) continue;
+            m_selected[slot] = true;
+            m_remaining--;
+            for (int e = m_firstEntry[slot]; e != -1; e = m_nextEntry[e]) {
+                m_entries[e].setAttribute("selected", "yes");
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the number of display entries.
+     */
+    public int getEntryCount() {
+        return m_entries.length;
+    }
+
+    /**
+     * @return <code>true</code> if every entry is selected, no more ids need
+     *         to be read.
+     */
+    public boolean isComplete() {
+        return m_remaining == 0;
+    }
+
+    /**
+     * Marks every display entry selected without reading the ids.
+     *
+     * @param displayChoices the <code>DisplayChoices</code> element, not
+     *            <code>null</code>.
+     * @return the number of entries.
+     */
+    public static int selectAll(Element displayChoices) {
+        int count = 0;
+        for (Element e = firstChild(displayChoices, "DisplayEntry"); e != null;
+                e = nextSibling(e, "DisplayEntry")) {
+            e.setAttribute("selected", "yes");
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Finds a control by parameter name. Controls are not searched for inside
+     * other controls so the display choices of the other fields are not
+     * walked.
+     *
+     * @param root the element to search, usually the document element. Not
+     *            <code>null</code>.
+     * @param paramName the field name, not <code>null</code>.
+     * @return the <code>Control</code> element, <code>null</code> if there is
+     *         none.
+     */
+    public static Element findControl(Element root, String paramName) {
+        Node node = root;
+        while (node != null) {
+            boolean isControl = false;
+            if (node.getNodeType() == Node.ELEMENT_NODE && "Control".equals(node.getNodeName())) {
+                Element control = (Element) node;
+                if (paramName.equals(control.getAttribute("paramName"))) return control;
+                isControl = true;
+            }
+            Node next = isControl ? null : node.getFirstChild();
+            while (next == null && node != null && node != root) {
+                next = node.getNextSibling();
+                if (next == null) node = node.getParentNode();
+            }
+            node = next;
+        }
+        return null;
+    }
+
+    /**
+     * @param parent not <code>null</code>.
+     * @param name the element name.
+     * @return the first child element with the name, <code>null</code> if
+     *         there is none.
+     */
+    public static Element firstChild(Node parent, String name) {
+        return sibling(parent.getFirstChild(), name);
+    }
+
+    private static Element nextSibling(Node node, String name) {
+        return sibling(node.getNextSibling(), name);
+    }
+
+    private static Element sibling(Node node, String name) {
+        for (; node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName()))
+                return (Element) node;
+        }
+        return null;
+    }
+
+    /**
+     * Joins ids into a value, for example <code>692;651;339</code>.
+     *
+     * @param ids not <code>null</code>.
+     * @return never <code>null</code>, empty if there are no ids.
+     */
+    public static String join(PSIntSet ids) {
+        return PSIdListCodec.format(ids);
+    }
+
+    /**
+     * Reads the id from the <code>Value</code> of an entry.
+     *
+     * @return the id, <code>0</code> if the value is missing or not a number.
+     */
+    private static int parseId(Element entry) {
+        Element value = firstChild(entry, "Value");
+        String idString = value == null ? "" : value.getTextContent().trim();
+        try {
+            return Integer.parseInt(idString);
+        }
+        catch (NumberFormatException e) {
+            // When the Aging Agent tries to move an item from Public the
+            // display entries tend to be empty.
+            ms_log.warn("The value for the control is not appropriately formatted or is not a number. Using 0.");
+            return 0;
+        }
+    }
+
+    /**
+     * The log instance to use for this class, never <code>null</code>.
+     */
+    private static final Log ms_log = LogFactory
+            .getLog(PSDisplayChoiceMarker.class);
+}
@@ -3,8 +3,8 @@ package com.percussion.pso.relationshipbuilder.exit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,7 +13,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.Node;
 
 import com.percussion.cms.handlers.PSContentEditorHandler;
 import com.percussion.cms.handlers.PSEditCommandHandler;
@@ -23,7 +23,20 @@ import com.percussion.data.PSConversionException;
 import com.percussion.error.PSException;
 import com.percussion.extension.PSExtensionProcessingException;
 import com.percussion.extension.PSParameterMismatchException;
+import com.percussion.pso.relationshipbuilder.IPSRelatedIdCursor;
 import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSAaRelationshipIndex;
+import com.percussion.pso.relationshipbuilder.PSActiveAssemblyRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIdListCodec;
+import com.percussion.pso.relationshipbuilder.PSCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSPendingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.pso.relationshipbuilder.PSRequestCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace.Phase;
 import com.percussion.pso.utils.PSOExtensionParamsHelper;
 import com.percussion.server.IPSRequestContext;
 import com.percussion.services.assembly.PSAssemblyException;
@@ -42,13 +55,40 @@ public class PSExtensionHelper
 
    public static final String IDS_FIELD_NAME = "fieldName";
 
+   /**
+    * Optional UDF parameter with ";" separated content ids, when set the
+    * related ids of all of those items are returned.
+    */
+   public static final String CONTENT_IDS_PARAM = "contentIds";
+
+   /**
+    * Optional SELECT parameter, when set to "yes" a hidden field named
+    * after the field with {@link #FINGERPRINT_FIELD_SUFFIX} is added to the
+    * editor with a token for the displayed ids. When the item is saved with
+    * the same ids, the token is still valid and the warm relationship index
+    * still has the displayed ids, nothing is synchronized. Only used when
+    * the builder has a warm {@link PSAaRelationshipIndex}: without it the
+    * check would query the relationships, which is all an unchanged
+    * synchronize costs.
+    */
+   public static final String FINGERPRINT_PARAM = "fingerprint";
+
+   public static final String FINGERPRINT_FIELD_SUFFIX = "_rbfp";
+
    private static final String DEFAULT_OUTPUT = "";
 
+   /**
+    * The number of related ids read at a time when selecting display choices.
+    */
+   private static final int SELECT_PAGE_SIZE = 500;
+
    private final transient IPSRelationshipBuilder m_builder;
 
    private final transient Map<String, String> m_parameters;
 
    private final transient IPSRequestContext m_request;
+
+   private transient PSRelationshipCache m_relationshipCache = PSRelationshipCache.getInstance();
    
    public static final String ARRAY_DELIMETER = ";";
 
@@ -72,6 +112,22 @@ public class PSExtensionHelper
     * @throws PSExtensionProcessingException
     */
    public void updateDisplayChoices(Document resultDoc, boolean selectAll) 
+       throws PSExtensionProcessingException {
+       PSRequestTrace trace = PSRequestTrace.getCurrent();
+       long mark = trace == null ? 0 : trace.mark();
+       long start = System.nanoTime();
+       boolean succeeded = false;
+       try {
+          markDisplayChoices(resultDoc, selectAll);
+          succeeded = true;
+       }
+       finally {
+          PSRelationshipMetrics.record(Operation.UPDATE_DISPLAY_CHOICES, start, succeeded);
+          if (trace != null) trace.addSince(Phase.DOM_UPDATE, mark);
+       }
+   }
+
+   private void markDisplayChoices(Document resultDoc, boolean selectAll) 
        throws PSExtensionProcessingException {
        ms_log.debug("Starting Updating display choices with builder: " + 
                m_builder.getClass().getCanonicalName());
@@ -82,96 +138,59 @@ public class PSExtensionHelper
                m_parameters, m_request, ms_log);
        String fieldName = extParamHelper.getRequiredParameter(IDS_FIELD_NAME);
        
-       Collection<Integer> ids = null;
+       int contentId = 0;
        if ( ! selectAll ) {
-           int contentId = extParamHelper.
+           contentId = extParamHelper.
                getRequiredParameterAsNumber(IPSHtmlParameters.SYS_CONTENTID).intValue();
-           try {
-                ids = m_builder.retrieve(contentId);
-                ms_log.debug("Selecting ids: " + ids);
-           } catch (PSAssemblyException e) {
-               ms_log.error(errorMesg, e);
-               throw new PSExtensionProcessingException(errorMesg,e);
-           } catch (PSException e) {
-               ms_log.error(errorMesg, e);
-               throw new PSExtensionProcessingException(errorMesg,e);
-           }
        }
+       String fingerprint = extParamHelper.getOptionalParameter(FINGERPRINT_PARAM, "no").trim();
+       boolean addFingerprint = !selectAll 
+           && ("yes".equalsIgnoreCase(fingerprint) || "true".equalsIgnoreCase(fingerprint));
        
-       NodeList controlNodes = resultDoc.getElementsByTagName("Control");
-       Element controlElement = null;
-       for(int i = 0; controlNodes != null && i < controlNodes.getLength(); i++) {
-           Element node = (Element) controlNodes.item(i);
-           if (node.hasAttribute("paramName") 
-                   && fieldName.equals(node.getAttribute("paramName"))) {
-               controlElement = node;
-               break;
-           }
-       }
+       Element controlElement = resultDoc.getDocumentElement() == null ? null 
+           : PSDisplayChoiceMarker.findControl(resultDoc.getDocumentElement(), fieldName);
        if (controlElement == null) {
            ms_log.warn("Field: " + fieldName + " could not be found in the content editor xml");
        }
        else {
-           NodeList displayChoicesNodes = controlElement.getElementsByTagName("DisplayChoices");
-           Element displayChoicesElement = displayChoicesNodes != null 
-               && displayChoicesNodes.getLength() == 1 
-               ? (Element) displayChoicesNodes.item(0) : null;
+           Element displayChoicesElement = 
+               PSDisplayChoiceMarker.firstChild(controlElement, "DisplayChoices");
            if (displayChoicesElement == null) {
                ms_log.debug("No DisplayChoice Elements. Checking for Value e.g. multi value no child table, ; separated");
-               NodeList valueNodes = controlElement.getElementsByTagName("Value");
-               if (valueNodes.getLength() > 0) {
-            	  String itemList = valueNodes.item(0).getTextContent();
-            	  ms_log.debug("Found selections " + itemList);
-            	  String replacementString = "";
-            	  for (int id : ids) {
-            		  if (replacementString.length() >0 ) replacementString+=";";
-            		  replacementString += id;
-            	  }
+               Element valueElement = PSDisplayChoiceMarker.firstChild(controlElement, "Value");
+               if (valueElement != null && !selectAll) {
+            	  long generation = m_relationshipCache.getGeneration(contentId);
+            	  PSIntSet ids = retrieveSelectedIds(contentId);
+            	  ms_log.debug("Found selections " + valueElement.getTextContent());
+            	  String replacementString = PSDisplayChoiceMarker.join(ids);
             	  ms_log.debug("Replacing with ids " + replacementString);
-            	  valueNodes.item(0).setTextContent(replacementString);
+            	  valueElement.setTextContent(replacementString);
+            	  if (addFingerprint && getIndexedIds(contentId) != null) {
+            	      addFingerprintField(resultDoc, controlElement, fieldName, contentId, ids, generation);
+            	  }
                }
-               
-               
            }
            else {
                if (ms_log.isTraceEnabled()) {
                    String xml = PSXmlDocumentBuilder.toString(displayChoicesElement);
-                   ms_log.trace("Nabeel changes...");
                    ms_log.trace("Display Choices XML: " + xml);
                }
-               ms_log.debug("Displayed choice... ");
-               NodeList displayEntryNodes = 
-                   displayChoicesElement.getElementsByTagName("DisplayEntry");
-               ms_log.debug("Got display entry elements, there are:  " + displayEntryNodes.getLength());
-               for(int i = 0; displayEntryNodes != null 
-                   && i < displayEntryNodes.getLength(); i++) {
-                   Element displayEntryElement = (Element) displayEntryNodes.item(i);
-                   ms_log.debug("displayEntryElement: " + displayEntryElement);
-                   ms_log.debug("selectALL: " + selectAll);
-                   if (selectAll) {
-                       displayEntryElement.setAttribute("selected", "yes");
+               if (selectAll) {
+                   int count = PSDisplayChoiceMarker.selectAll(displayChoicesElement);
+                   ms_log.debug("Selected all " + count + " display entries");
+               }
+               else {
+                   PSDisplayChoiceMarker marker = PSDisplayChoiceMarker.index(displayChoicesElement);
+                   ms_log.debug("Indexed display entries, there are: " + marker.getEntryCount());
+                   long generation = m_relationshipCache.getGeneration(contentId);
+                   PSIntSet ids = addFingerprint ? getIndexedIds(contentId) : null;
+                   if (ids != null) {
+                       // all the ids are needed for the token, the index has them without a query
+                       marker.select(ids);
+                       addFingerprintField(resultDoc, controlElement, fieldName, contentId, ids, generation);
                    }
-                   else {
-                       String idString = displayEntryElement
-                           .getElementsByTagName("Value").item(0).getTextContent();
-                       ms_log.debug("idString: " + idString);
-                       int id = 0;
-                       
-                      //When the Aging Agent tries to move an item from Public, it tends to fail when the DisplayEntry element
-                      //is null which it tends to be
-                      try
-                      {
-                    	   id = Integer.parseInt(idString);
-                      }
-                      catch (NumberFormatException nfe)
-                      {
-                    	   ms_log.warn("The value for the control is not appropriately formatted or is not a number. Using 0.");
-                    	   id = 0;
-                      }
-                      
-                       if (ids.contains(id)) {
-                           displayEntryElement.setAttribute("selected", "yes");   
-                       }
+                   else if (!marker.isComplete()) {
+                       selectDisplayEntries(contentId, marker);
                    }
                }
            }
@@ -180,6 +199,87 @@ public class PSExtensionHelper
                + m_builder.getClass().getCanonicalName());
    }
    
+   /**
+    * Sets the display entries of the related ids selected. The related ids
+    * are read a page at a time and reading stops as soon as every entry is
+    * selected.
+    * 
+    * @param contentId the item being edited.
+    * @param marker the indexed display entries, assumed not <code>null</code>.
+    */
+   private void selectDisplayEntries(int contentId, PSDisplayChoiceMarker marker) 
+      throws PSExtensionProcessingException
+   {
+      String errorMesg = "Error updating display choices";
+      try {
+         IPSRelatedIdCursor cursor = m_builder.openCursor(contentId, SELECT_PAGE_SIZE);
+         while (!marker.isComplete() && cursor.hasNext()) {
+            PSIntSet page = cursor.nextPage();
+            ms_log.debug("Selecting ids: " + page);
+            marker.select(page);
+         }
+      } catch (PSAssemblyException e) {
+          ms_log.error(errorMesg, e);
+          throw new PSExtensionProcessingException(errorMesg,e);
+      } catch (PSException e) {
+          ms_log.error(errorMesg, e);
+          throw new PSExtensionProcessingException(errorMesg,e);
+      }
+   }
+
+   /**
+    * Adds a hidden field after the field's control with a token for the
+    * displayed ids, see {@link #FINGERPRINT_PARAM}. Nothing is added if the
+    * relationships changed while the ids were read.
+    * 
+    * @param generation the relationship cache generation before the ids were
+    *            read.
+    */
+   private void addFingerprintField(Document resultDoc, Element controlElement, 
+         String fieldName, int contentId, PSIntSet ids, long generation)
+   {
+      String token = m_relationshipCache.issueToken(contentId, fieldName, ids, generation);
+      Node displayField = controlElement.getParentNode();
+      if (token == null || displayField == null || displayField.getParentNode() == null) {
+         ms_log.debug("Not adding a fingerprint for field: " + fieldName);
+         return;
+      }
+      String paramName = fieldName + FINGERPRINT_FIELD_SUFFIX;
+      Element hiddenField = resultDoc.createElement("DisplayField");
+      hiddenField.setAttribute("displayType", "Hidden");
+      hiddenField.setAttribute("submitName", paramName);
+      Element control = resultDoc.createElement("Control");
+      control.setAttribute("name", "sys_HiddenInput");
+      control.setAttribute("paramName", paramName);
+      control.setAttribute("dataType", "text");
+      control.setAttribute("dimension", "single");
+      control.setAttribute("isReadOnly", "no");
+      Element value = resultDoc.createElement("Value");
+      value.setTextContent(token);
+      control.appendChild(value);
+      hiddenField.appendChild(control);
+      displayField.getParentNode().insertBefore(hiddenField, displayField.getNextSibling());
+      ms_log.debug("Added fingerprint " + token + " for field: " + fieldName);
+   }
+
+   private PSIntSet retrieveSelectedIds(int contentId) throws PSExtensionProcessingException
+   {
+      String errorMesg = "Error updating display choices";
+      try {
+         PSIntSet ids = PSIntSet.valueOf(m_builder.retrieve(contentId));
+         PSRequestTrace trace = PSRequestTrace.getCurrent();
+         if (trace != null) trace.setCurrentIds(ids.size());
+         ms_log.debug("Selecting ids: " + ids);
+         return ids;
+      } catch (PSAssemblyException e) {
+          ms_log.error(errorMesg, e);
+          throw new PSExtensionProcessingException(errorMesg,e);
+      } catch (PSException e) {
+          ms_log.error(errorMesg, e);
+          throw new PSExtensionProcessingException(errorMesg,e);
+      }
+   }
+
    /**
     * Returns a list of the owner content ids from the relationships in the slot
     * identified by the "slotname" parameter that have the request's content
@@ -233,6 +333,50 @@ public class PSExtensionHelper
       return idsString;
    }
 
+   /**
+    * Returns the related ids for a page of items, for example the rows of a
+    * listing, with one call to the builder.
+    * 
+    * @param contentIds ";" separated content ids, not <code>null</code>.
+    * @return the related ids of each item as a ";" delimited string, see
+    *         {@link #convertToFieldValue(Collection)}, by content id in the
+    *         order of <code>contentIds</code>. Never <code>null</code>.
+    * @throws PSConversionException if a content id is not a number or if
+    *            relationship API throws exception.
+    */
+   public Map<Integer, String> retrieveIdsForItems(String contentIds)
+         throws PSConversionException
+   {
+      ms_log.debug("Started retrieving target ids for items " + contentIds 
+            + " using exit: " + m_builder.getClass().getName());
+      Set<Integer> cids = new LinkedHashSet<Integer>();
+      Collection<Object> invalid = convert(new Object[] {contentIds}, cids);
+      if (!invalid.isEmpty()) 
+      {
+         throw new PSConversionException(0, "Invalid content ids: " + invalid);
+      }
+      Map<Integer, String> idsByItem = new LinkedHashMap<Integer, String>();
+      try
+      {
+         Map<Integer, PSIntSet> relatedIds = m_builder.retrieveAll(cids);
+         for (Map.Entry<Integer, PSIntSet> entry : relatedIds.entrySet())
+         {
+            idsByItem.put(entry.getKey(), convertToFieldValue(entry.getValue()));
+         }
+      }
+      catch (PSAssemblyException e)
+      {
+         throw new PSConversionException(0, e);
+      }
+      catch (PSException e)
+      {
+         ms_log.error("\tFailure in relationship API", e);
+         throw new PSConversionException(0, e);
+      }
+      ms_log.debug("\tReturned " + idsByItem.size() + " items for udf");
+      return idsByItem;
+   }
+
    /**
     * Maintains active-assembly-style relationships between the request's
     * content item and a list of content items -- missing relationships will be
@@ -268,8 +412,10 @@ public class PSExtensionHelper
             String fieldName = extParamHelper.getRequiredParameter(IDS_FIELD_NAME);
             try
             {
-                Object[] fieldValues = m_request.getParameterList(fieldName);
-                buildFromFieldValues(m_builder, cid, fieldName, fieldValues );
+                Set<Integer> ids = getSubmittedIds(cid, fieldName);
+                if (ids != null) {
+                    m_builder.synchronize(cid, ids);
+                }
             }
             catch (PSAssemblyException e)
             {
@@ -294,30 +440,134 @@ public class PSExtensionHelper
    }
 
 
+   /**
+    * Checks the submitted ids against the token of the hidden field added
+    * when the item was displayed, see {@link #FINGERPRINT_PARAM}. The token
+    * is not enough: relationships can be changed by Active Assembly, Content
+    * Explorer or another server without invalidating it. So the related ids
+    * in the warm relationship index, which bypasses the relationship cache,
+    * must still be the displayed ones. Without a warm index the field is
+    * always synchronized: reading the relationships to compare them is the
+    * query synchronize makes, and synchronize writes nothing when they are
+    * unchanged.
+    * 
+    * @return <code>true</code> if the ids are the ones displayed and the
+    *         relationships did not change since.
+    */
+   private boolean isUnchanged(int cid, String fieldName, Set<Integer> ids)
+   {
+      if (m_builder == null) return false;
+      String token = m_request.getParameter(fieldName + FINGERPRINT_FIELD_SUFFIX);
+      if (StringUtils.isBlank(token)) return false;
+      token = token.trim();
+      if (!m_relationshipCache.isDisplayed(cid, fieldName, token, ids)) return false;
+      PSIntSet currentIds = getIndexedIds(cid);
+      if (currentIds == null) {
+         ms_log.debug("\tThe relationship index is not warm, cannot check the fingerprint of field: "
+               + fieldName);
+         return false;
+      }
+      return m_relationshipCache.isUnchanged(cid, fieldName, token, ids, currentIds);
+   }
+
+   /**
+    * @return the related ids from the relationship index of the builder,
+    *         <code>null</code> if there is no builder, it has no index or the
+    *         index is not warm.
+    */
+   private PSIntSet getIndexedIds(int contentId)
+   {
+      if (m_builder == null) return null;
+      IPSRelationshipBuilder builder = getUncachedBuilder(m_builder);
+      if (!(builder instanceof PSActiveAssemblyRelationshipBuilder)) return null;
+      return ((PSActiveAssemblyRelationshipBuilder) builder).getIndexedIds(contentId);
+   }
+
+   /**
+    * Unwraps the builders the extensions put around the builder that reads
+    * the repository: the request cache, the relationship cache and the ids
+    * not built yet in async mode.
+    * 
+    * @param builder not <code>null</code>.
+    * @return the builder that reads the repository, never <code>null</code>.
+    */
+   private static IPSRelationshipBuilder getUncachedBuilder(IPSRelationshipBuilder builder)
+   {
+      while (true) {
+         if (builder instanceof PSRequestCachingRelationshipBuilder)
+            builder = ((PSRequestCachingRelationshipBuilder) builder).getBuilder();
+         else if (builder instanceof PSCachingRelationshipBuilder)
+            builder = ((PSCachingRelationshipBuilder) builder).getBuilder();
+         else if (builder instanceof PSPendingRelationshipBuilder)
+            builder = ((PSPendingRelationshipBuilder) builder).getBuilder();
+         else
+            return builder;
+      }
+   }
+
+   public void setRelationshipCache(PSRelationshipCache relationshipCache)
+   {
+      m_relationshipCache = relationshipCache;
+   }
+
+   /**
+    * Reads the ids submitted for a field, for {@link #buildRelationships()}
+    * and for building several fields at once.
+    * 
+    * @param cid the item being saved.
+    * @param fieldName the field, not <code>null</code>.
+    * @return the ids, empty to remove all relationships, <code>null</code>
+    *         if the field must not be synchronized: invalid ids were
+    *         submitted or the ids are unchanged since they were displayed.
+    */
+   public Set<Integer> getSubmittedIds(int cid, String fieldName)
+   {
+      Set<Integer> ids = parseFieldValues(fieldName, m_request.getParameterList(fieldName));
+      if (ids != null && isUnchanged(cid, fieldName, ids)) {
+         ms_log.debug("\tField '" + fieldName + "' is unchanged since it was displayed. "
+               + "Not synchronizing.");
+         return null;
+      }
+      return ids;
+   }
+
    public void buildFromFieldValues(
            IPSRelationshipBuilder m_builder, 
            int cid, String fieldName, Object[] fieldValues ) throws PSAssemblyException, PSException {
-       /*
-        * Remove Duplicate entries so that we don't get multiple
-        * relationships to the same item. This is usually caused by
-        * child fields.
-        */
-       Set <Integer> fieldValuesSet = new HashSet<Integer>();
-       Collection <Object> invalid = convert (fieldValues, fieldValuesSet);
-       ms_log.debug("\tField values for fieldname '" + fieldName +"' is : " + 
-             fieldValuesSet);
-       if (invalid.size() == 1 && invalid.contains("")) {
-           ms_log.debug("\tEmpty String only.  No items checked.  Removing relationships");
-           m_builder.synchronize(cid, fieldValuesSet);
-       }
-       else if (invalid.size() != 0) {
-          ms_log.debug("\tInvalid id(s) were passed. Not building any relationships");
-          ms_log.debug("\tInvalid: " + invalid);
-       }
-       else {
-          m_builder.synchronize(cid, fieldValuesSet);
+       Set<Integer> ids = parseFieldValues(fieldName, fieldValues);
+       if (ids != null) {
+           m_builder.synchronize(cid, ids);
        }
    }
+
+   /**
+    * Parses and validates the values submitted for a field, the only place
+    * they are. Duplicate entries are removed so that we don't get multiple
+    * relationships to the same item, they are usually caused by child
+    * fields. A single empty value means no items are checked.
+    * 
+    * @param fieldName the field, for the log.
+    * @param fieldValues the submitted values, may be <code>null</code>.
+    * @return the ids, empty to remove all relationships, <code>null</code>
+    *         if invalid ids were submitted and nothing must be built.
+    */
+   private Set<Integer> parseFieldValues(String fieldName, Object[] fieldValues)
+   {
+      Set<Integer> fieldValuesSet = new PSIntSet();
+      Collection<Object> invalid = convert(fieldValues, fieldValuesSet);
+      PSRequestTrace trace = PSRequestTrace.getCurrent();
+      if (trace != null) trace.setSubmittedIds(fieldValuesSet.size());
+      ms_log.debug("\tField values for fieldname '" + fieldName + "' is : " + fieldValuesSet);
+      if (invalid.size() == 1 && invalid.contains("")) {
+         ms_log.debug("\tEmpty String only.  No items checked.  Removing relationships");
+      }
+      else if (invalid.size() != 0) {
+         ms_log.debug("\tInvalid id(s) were passed. Not building relationships for " + fieldName);
+         ms_log.debug("\tInvalid: " + invalid);
+         return null;
+      }
+      return fieldValuesSet;
+   }
    
    public static void logRequestCommand(IPSRequestContext request) {
        String command = request.getParameter(IPSHtmlParameters.SYS_COMMAND);  
@@ -367,33 +617,23 @@ public class PSExtensionHelper
              && (processInlineLink == null || !processInlineLink.equals("yes")));
    }
    
+   /**
+    * Joins ids into a field value, for example <code>692;651;339</code>,
+    * see {@link PSIdListCodec#format(Collection)}.
+    * 
+    * @param ids may be <code>null</code>.
+    * @return never <code>null</code>, empty if there are no ids.
+    */
    public static String convertToFieldValue(Collection<Integer> ids) {
-       StringBuffer idsStringBuffer = new StringBuffer();
-       if (ids != null && ids.size() > 0)
-       {
-          idsStringBuffer.append("");
-          Iterator<Integer> iter = ids.iterator();
-          while (iter.hasNext())
-          {
-             int id = iter.next();
-             idsStringBuffer.append("" + id);
-             if (iter.hasNext())
-             {
-                idsStringBuffer.append(ARRAY_DELIMETER);
-             }
-          }
-       }
-       else
-       {
-        idsStringBuffer.append(DEFAULT_OUTPUT);
-       }
-
-       return idsStringBuffer.toString();
+       return ids == null || ids.isEmpty() ? DEFAULT_OUTPUT : PSIdListCodec.format(ids);
    }
    
    /**
     * Converts an array of objects to a list of integers. Non-parsable elements
-    * indicies in the inputIds array are returned.
+    * indicies in the inputIds array are returned. A single element is split
+    * on ";" by {@link PSIdListCodec}, only the elements that cannot be parsed
+    * are made into strings. The ids are added without boxing when the output
+    * is a {@link PSIntSet}.
     * 
     * @param inputIds
     * @param output list of converted ids
@@ -402,40 +642,60 @@ public class PSExtensionHelper
    public static Collection<Object> convert(Object[] inputIds,
          final Set<Integer> output)
    {
-      Collection<Object> invalid = new ArrayList<Object>();
+      final Collection<Object> invalid = new ArrayList<Object>();
 
       if (output == null)
       {
          throw new IllegalArgumentException("Output Set cannot be null.");
       }
-      if (inputIds != null)
+      if (inputIds == null)
       {
-    	 if (inputIds.length == 1 ) {
-    		 //split up ; separated value
-    		 inputIds = inputIds[0].toString().split(";");
-    		 
-    	 }
-         for (int i = 0; i < inputIds.length; i++)
-         {
-            Object contentId = inputIds[i];
-            if (contentId instanceof Integer)
-            {
-               output.add((Integer) contentId);
-            }
-            else if (contentId != null 
-                  && StringUtils.isNotBlank(contentId.toString())
-                  && StringUtils.isNumeric(contentId.toString()))
-            {
-               output.add(Integer.valueOf(contentId.toString()));
-            }
-            else
+         return invalid;
+      }
+      if (inputIds.length == 1 && !(inputIds[0] instanceof Integer)
+            && inputIds[0] != null)
+      {
+         //split up ; separated value
+         String value = inputIds[0].toString();
+         PSIntSet ids = output instanceof PSIntSet ? (PSIntSet) output : new PSIntSet();
+         PSIdListCodec.parse(value, ids, new PSIdListCodec.InvalidTokenHandler() {
+            public void invalidToken(CharSequence v, int start, int end)
             {
-               // log and return any non-parsables
-               ms_log
-                     .warn("\ttaking note of non-parsable element in array <"
-                           + contentId + ">");
-               invalid.add(contentId);               
+               String token = v.subSequence(start, end).toString();
+               ms_log.warn("\ttaking note of non-parsable element in array <"
+                     + token + ">");
+               invalid.add(token);
             }
+         });
+         if (ids != output) output.addAll(ids);
+         return invalid;
+      }
+      for (int i = 0; i < inputIds.length; i++)
+      {
+         Object contentId = inputIds[i];
+         if (contentId instanceof Integer)
+         {
+            output.add((Integer) contentId);
+            continue;
+         }
+         long id = -1;
+         if (contentId != null)
+         {
+            String value = contentId.toString();
+            id = PSIdListCodec.parseId(value, 0, value.length());
+         }
+         if (id >= 0)
+         {
+            if (output instanceof PSIntSet) ((PSIntSet) output).add((int) id);
+            else output.add(Integer.valueOf((int) id));
+         }
+         else
+         {
+            // log and return any non-parsables
+            ms_log
+                  .warn("\ttaking note of non-parsable element in array <"
+                        + contentId + ">");
+            invalid.add(contentId);
          }
       }
       return invalid;
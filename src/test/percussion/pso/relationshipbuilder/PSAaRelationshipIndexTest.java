@@ -0,0 +1,142 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSAaRelationshipIndex;
+import com.percussion.pso.relationshipbuilder.PSDesignObjectCache;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+
+public class PSAaRelationshipIndexTest {
+
+    private static final int ITEM_ID = 401;
+
+    private PSTestServices m_services;
+    private PSAaRelationshipIndex m_index;
+    private PSRelationshipMetrics m_previousMetrics;
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("indexTest", PSTestServices.SLOT_NAME);
+        m_services = new PSTestServices();
+        m_services.addItem(1000, 1, 1);
+        m_services.addItem(1001, 1, 2);
+        m_services.addItem(ITEM_ID, 1, 1);
+        m_index = new PSAaRelationshipIndex(PSTestServices.SLOT_NAME,
+                PSTestServices.TEMPLATE_NAME);
+        m_index.setRelationshipService(m_services.getRelationshipService());
+        m_index.setAssemblyService(m_services.getAssemblyService());
+        m_index.setDesignObjectCache(new PSDesignObjectCache(10, 60000));
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testChangesMadeWhileWarmingAreReplayed() throws Exception {
+        final PSRelationship removed = m_services.addRelationship(new PSLocator(1000, 1),
+                new PSLocator(ITEM_ID, -1));
+        m_services.setFinder(new PSTestServices.Finder() {
+            private boolean m_loaded = false;
+
+            public List<PSRelationship> find(Object filter) throws Exception {
+                List<PSRelationship> found = new ArrayList<PSRelationship>(
+                        m_services.getRelationships());
+                if (m_loaded) return found;
+                m_loaded = true;
+                // the load read the old relationships, then an editor writes
+                m_services.getRelationships().remove(removed);
+                PSRelationship added = m_services.addRelationship(new PSLocator(1001, 1),
+                        new PSLocator(ITEM_ID, -1));
+                m_index.refresh(asList(removed, added));
+                return found;
+            }
+        });
+        m_index.warm();
+        assertEquals(PSIntSet.of(1001), m_index.getOwners(ITEM_ID));
+        assertEquals(PSIntSet.of(), m_index.getDependents(1000));
+        assertEquals(PSIntSet.of(ITEM_ID), m_index.getDependents(1001));
+        assertEquals(1, m_index.getRelationshipCount());
+    }
+
+    @Test
+    public void testDeletingADuplicateKeepsThePair() throws Exception {
+        PSRelationship first = m_services.addRelationship(new PSLocator(1000, 1),
+                new PSLocator(ITEM_ID, -1));
+        PSRelationship duplicate = m_services.addRelationship(new PSLocator(1000, 1),
+                new PSLocator(ITEM_ID, -1));
+        m_index.warm();
+        assertEquals(1, m_index.getRelationshipCount());
+
+        m_services.getRelationships().remove(duplicate);
+        m_index.refresh(asList(duplicate));
+        assertEquals(PSIntSet.of(1000), m_index.getOwners(ITEM_ID));
+        assertEquals(1, m_index.getRelationshipCount());
+
+        m_services.getRelationships().remove(first);
+        m_index.refresh(asList(first));
+        assertEquals(PSIntSet.of(), m_index.getOwners(ITEM_ID));
+        assertEquals(0, m_index.getRelationshipCount());
+        assertEquals(2L, m_index.getRefreshCount());
+    }
+
+    @Test
+    public void testWritesToOtherOwnerRevisionsAreNotIndexed() throws Exception {
+        // the service only returns the edit or current owner revisions
+        m_services.setFinder(new PSTestServices.Finder() {
+            public List<PSRelationship> find(Object filter) {
+                List<PSRelationship> found = new ArrayList<PSRelationship>();
+                for (PSRelationship relationship : m_services.getRelationships()) {
+                    if (relationship.getOwner().getRevision() == 1) found.add(relationship);
+                }
+                return found;
+            }
+        });
+        m_index.warm();
+        PSRelationship tip = m_services.addRelationship(new PSLocator(1001, 2),
+                new PSLocator(ITEM_ID, -1));
+        m_index.refresh(asList(tip));
+        assertEquals(PSIntSet.of(), m_index.getOwners(ITEM_ID));
+        assertEquals(0, m_index.getRelationshipCount());
+
+        PSRelationship current = m_services.addRelationship(new PSLocator(1001, 1),
+                new PSLocator(ITEM_ID, -1));
+        m_index.refresh(asList(current));
+        assertEquals(PSIntSet.of(1001), m_index.getOwners(ITEM_ID));
+    }
+
+    @Test
+    public void testFailedRefreshInvalidates() throws Exception {
+        m_services.addRelationship(new PSLocator(1000, 1), new PSLocator(ITEM_ID, -1));
+        m_index.warm();
+        m_services.setFailingCall(1);
+        m_index.refresh(new ArrayList<PSRelationship>(m_services.getRelationships()));
+        assertTrue(m_index.awaitWarm(10000));
+        assertEquals(PSIntSet.of(1000), m_index.getOwners(ITEM_ID));
+        assertEquals(2L, m_index.getWarmCount());
+    }
+
+    @Test
+    public void testFailedWarmIsRetried() throws Exception {
+        m_services.addRelationship(new PSLocator(1000, 1), new PSLocator(ITEM_ID, -1));
+        m_services.setFailingCall(0);
+        m_index.setRetryDelay(1);
+        m_index.ensureWarm();
+        assertTrue(m_index.awaitWarm(10000));
+        assertEquals(1L, m_index.getWarmFailureCount());
+        assertEquals(PSIntSet.of(1000), m_index.getOwners(ITEM_ID));
+        assertEquals(asList("findByFilter", "findByFilter"), m_services.getCalls());
+    }
+}
@@ -0,0 +1,259 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSBuildJournal;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+
+public class PSBuildJournalTest {
+
+    private File m_file;
+    private PSBuildJournal m_journal;
+    private final List<String> m_applied = Collections.synchronizedList(new ArrayList<String>());
+    /**
+     * Counted down when the worker takes a state.
+     */
+    private final CountDownLatch m_taken = new CountDownLatch(1);
+    /**
+     * The number of calls of the applier that fail.
+     */
+    private final AtomicInteger m_failures = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        m_file = File.createTempFile("PSBuildJournalTest", ".journal");
+        m_file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (m_journal != null) m_journal.close();
+        m_file.delete();
+        new File(m_file.getPath() + ".failed").delete();
+        new File(m_file.getPath() + ".tmp").delete();
+    }
+
+    private PSBuildJournal.Applier collect(final CountDownLatch gate) {
+        return new PSBuildJournal.Applier() {
+            public void apply(Map<String, String> parameters, int sourceId, PSIntSet targetIds,
+                    String user) throws Exception {
+                m_taken.countDown();
+                if (gate != null) gate.await(5, TimeUnit.SECONDS);
+                if (m_failures.getAndDecrement() > 0) throw new IllegalStateException("failing");
+                m_applied.add(parameters.get("slotName") + ":" + sourceId + "=" + targetIds
+                        + (user == null ? "" : " by " + user));
+            }
+        };
+    }
+
+    @Test
+    public void testLatestStateOfAnItemIsApplied() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        m_journal = new PSBuildJournal(m_file, 2, collect(gate));
+        m_journal.open();
+        Map<String, String> params = Collections.singletonMap("slotName", "s");
+        m_journal.record(params, 5, PSIntSet.of(1));
+        assertTrue(m_taken.await(5, TimeUnit.SECONDS));
+        m_journal.record(params, 5, PSIntSet.of(2));
+        m_journal.record(params, 5, PSIntSet.of(3));
+        assertEquals(3L, m_journal.getBacklog() + m_journal.getCoalescedCount());
+        gate.countDown();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[s:5=[1], s:5=[3]]", m_applied.toString());
+        assertEquals(1L, m_journal.getCoalescedCount());
+        assertEquals(2L, m_journal.getAppliedCount());
+        assertEquals(0L, m_journal.getLagMillis());
+    }
+
+    @Test
+    public void testUnappliedStatesAreReplayed() throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(m_file), "UTF-8");
+        writer.write("R\t1\t100\t5\t1;2\tslotName=a%20slot\n");
+        writer.write("R\t2\t100\t6\t\tslotName=b\n");
+        writer.write("R\t3\t100\t7\t4\tslotName=c\n");
+        writer.write("D\t2\n");
+        writer.write("R\t5\t100\t9\t3\tslotName=e\teditor+1\n");
+        writer.write("R\t4\t10");
+        writer.close();
+
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.open();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[a slot:5=[1, 2], c:7=[4], e:9=[3] by editor 1]", m_applied.toString());
+        assertEquals(3L, m_journal.getReplayedCount());
+
+        m_journal.record(Collections.singletonMap("slotName", "d"), 8, new PSIntSet());
+        assertTrue(m_journal.awaitIdle(5000));
+        m_journal.close();
+
+        m_applied.clear();
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.open();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertTrue(m_applied.isEmpty());
+    }
+
+    @Test
+    public void testRestartAfterACompactionWasCutShort() throws Exception {
+        File tmp = new File(m_file.getPath() + ".tmp");
+        // stopped after the journal was deleted, before the compaction was renamed
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        writer.write("R\t1\t100\t5\t1;2\tslotName=a\n");
+        writer.close();
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.open();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[a:5=[1, 2]]", m_applied.toString());
+        assertFalse(tmp.exists());
+        m_journal.close();
+
+        // stopped while writing the compaction, the journal is still whole
+        m_applied.clear();
+        writer = new OutputStreamWriter(new FileOutputStream(m_file), "UTF-8");
+        writer.write("R\t2\t100\t6\t3\tslotName=b\n");
+        writer.close();
+        writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        writer.write("R\t1\t100\t5\t1;2\tslotName=a\nR\t2\t10");
+        writer.close();
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.open();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[b:6=[3]]", m_applied.toString());
+        assertFalse(tmp.exists());
+    }
+
+    @Test
+    public void testUserIsPassedToTheApplier() throws Exception {
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.open();
+        m_journal.record(Collections.singletonMap("slotName", "s"), 5, PSIntSet.of(1), "editor 1");
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[s:5=[1] by editor 1]", m_applied.toString());
+    }
+
+    @Test
+    public void testFailedStatesAreRetried() throws Exception {
+        m_failures.set(2);
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.setRetryDelay(1);
+        m_journal.open();
+        m_journal.record(Collections.singletonMap("slotName", "s"), 5, PSIntSet.of(1));
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[s:5=[1]]", m_applied.toString());
+        assertEquals(2L, m_journal.getFailedCount());
+        assertEquals(2L, m_journal.getRetriedCount());
+        assertEquals(0L, m_journal.getDeadLetterCount());
+        assertFalse(m_journal.getDeadLetterFile().exists());
+    }
+
+    @Test
+    public void testStatesFailingEveryAttemptAreDeadLettered() throws Exception {
+        m_failures.set(3);
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.setRetryDelay(1);
+        m_journal.open();
+        m_journal.record(Collections.singletonMap("slotName", "s"), 5, PSIntSet.of(1, 2), "editor");
+        assertTrue(m_journal.awaitIdle(5000));
+        assertTrue(m_applied.isEmpty());
+        assertEquals(3L, m_journal.getFailedCount());
+        assertEquals(1L, m_journal.getDeadLetterCount());
+        List<String> lines = readLines(m_journal.getDeadLetterFile());
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches("R\t1\t\\d+\t5\t1;2\tslotName=s\teditor"));
+        m_journal.close();
+
+        // a dead lettered state is done
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.open();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals(0L, m_journal.getReplayedCount());
+    }
+
+    @Test
+    public void testNewerStateReplacesARetry() throws Exception {
+        m_failures.set(1);
+        m_journal = new PSBuildJournal(m_file, 1, collect(null));
+        m_journal.setRetryDelay(60000);
+        m_journal.open();
+        Map<String, String> params = Collections.singletonMap("slotName", "s");
+        m_journal.record(params, 5, PSIntSet.of(1));
+        assertTrue(m_taken.await(5, TimeUnit.SECONDS));
+        m_journal.record(params, 5, PSIntSet.of(2));
+        assertTrue(m_journal.awaitIdle(5000));
+        assertEquals("[s:5=[2]]", m_applied.toString());
+        assertEquals(0L, m_journal.getRetriedCount());
+        assertEquals(1L, m_journal.getCoalescedCount());
+    }
+
+    @Test
+    public void testPendingStatesUntilApplied() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        m_journal = new PSBuildJournal(m_file, 1, collect(gate));
+        m_journal.open();
+        Map<String, String> params = Collections.singletonMap("slotName", "s");
+        Map<String, String> otherParams = Collections.singletonMap("slotName", "t");
+        m_journal.record(params, 5, PSIntSet.of(1));
+        assertTrue(m_taken.await(5, TimeUnit.SECONDS));
+        m_journal.record(params, 5, PSIntSet.of(2));
+        m_journal.record(otherParams, 5, PSIntSet.of(3));
+        Map<Map<String, String>, PSIntSet> pending = m_journal.getPending(5);
+        assertEquals("the latest state of each builder", 2, pending.size());
+        assertEquals(PSIntSet.of(2), pending.get(params));
+        assertEquals(PSIntSet.of(3), pending.get(otherParams));
+        assertTrue(m_journal.getPending(6).isEmpty());
+        gate.countDown();
+        assertTrue(m_journal.awaitIdle(5000));
+        assertTrue(m_journal.getPending(5).isEmpty());
+    }
+
+    @Test
+    public void testCloseStopsTheWorkers() throws Exception {
+        m_journal = new PSBuildJournal(m_file, 2, collect(null));
+        m_journal.open();
+        m_journal.close();
+        assertTrue(m_journal.isClosed());
+        m_journal.close();
+        try {
+            m_journal.record(Collections.singletonMap("slotName", "s"), 5, PSIntSet.of(1));
+            fail("the journal is closed");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static List<String> readLines(File file) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
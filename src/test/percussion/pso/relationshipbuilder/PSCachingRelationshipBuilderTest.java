@@ -0,0 +1,84 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+
+public class PSCachingRelationshipBuilderTest {
+
+    private final PSRelationshipCache m_cache = new PSRelationshipCache(100, 60000);
+
+    /**
+     * Ids invalidated while the wrapped builder reads, as a concurrent write
+     * would.
+     */
+    private Collection<Integer> m_writtenWhileReading = new PSIntSet();
+
+    private int m_reads = 0;
+
+    @Test
+    public void testWritesToOtherItemsDoNotPreventCaching() throws Exception {
+        PSCachingRelationshipBuilder builder = builder();
+        m_writtenWhileReading = PSIntSet.of(2, 3);
+        assertEquals(PSIntSet.of(10), builder.retrieve(1));
+        assertEquals(PSIntSet.of(10), builder.retrieve(1));
+        assertEquals(1, m_reads);
+    }
+
+    @Test
+    public void testWriteToTheItemPreventsCaching() throws Exception {
+        PSCachingRelationshipBuilder builder = builder();
+        m_writtenWhileReading = PSIntSet.of(1);
+        builder.retrieve(1);
+        m_writtenWhileReading = PSIntSet.of();
+        builder.retrieve(1);
+        builder.retrieve(1);
+        assertEquals(2, m_reads);
+    }
+
+    @Test
+    public void testRetrieveAllCachesTheItemsNotWritten() throws Exception {
+        PSCachingRelationshipBuilder builder = builder();
+        m_writtenWhileReading = PSIntSet.of(2);
+        Map<Integer, PSIntSet> ids = builder.retrieveAll(asList(1, 2));
+        assertEquals(PSIntSet.of(20), ids.get(2));
+        assertEquals(1, m_reads);
+        assertEquals(PSIntSet.of(10), m_cache.get(1, "test"));
+        assertNull(m_cache.get(2, "test"));
+    }
+
+    private PSCachingRelationshipBuilder builder() {
+        IPSRelationshipBuilder builder = PSTestServices.proxy(IPSRelationshipBuilder.class,
+                new PSTestServices.Answer() {
+                    @SuppressWarnings("unchecked")
+                    public Object answer(String method, Object[] args) {
+                        m_reads++;
+                        m_cache.invalidate(m_writtenWhileReading);
+                        if (method.equals("retrieve")) return related((Integer) args[0]);
+                        if (method.equals("retrieveAll")) {
+                            Map<Integer, PSIntSet> ids = new LinkedHashMap<Integer, PSIntSet>();
+                            for (Integer id : (Collection<Integer>) args[0]) {
+                                ids.put(id, related(id));
+                            }
+                            return ids;
+                        }
+                        throw unsupported(method);
+                    }
+                });
+        return new PSCachingRelationshipBuilder(builder, "test", m_cache);
+    }
+
+    private static PSIntSet related(int id) {
+        return PSIntSet.of(id * 10);
+    }
+}
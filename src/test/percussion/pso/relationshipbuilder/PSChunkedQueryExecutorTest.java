@@ -0,0 +1,200 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.cms.PSCmsException;
+import com.percussion.cms.objectstore.PSRelationshipFilter;
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSChunkedQueryExecutor;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.services.relationship.IPSRelationshipService;
+
+public class PSChunkedQueryExecutorTest {
+
+    private PSRelationshipMetrics m_previousMetrics;
+    private List<PSRelationship> m_relationships = new ArrayList<PSRelationship>();
+    private List<String> m_queries = new ArrayList<String>();
+    private List<Thread> m_threads = new ArrayList<Thread>();
+    private String m_failingQuery;
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("executorTest", "slot");
+        m_relationships.add(new PSRelationship(1, new PSLocator(10, 1), new PSLocator(1, 1)));
+        m_relationships.add(new PSRelationship(2, new PSLocator(20, 1), new PSLocator(1, 1)));
+        m_relationships.add(new PSRelationship(3, new PSLocator(10, 1), new PSLocator(2, 1)));
+        m_relationships.add(new PSRelationship(4, new PSLocator(30, 1), new PSLocator(3, 1)));
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testCreateFilters() throws Exception {
+        assertEquals(asList("owner=any dependents=any"), describe(
+                PSChunkedQueryExecutor.createFilters(null, null, 2, factory())));
+        assertEquals(asList("owner=any dependents=[1, 2]", "owner=any dependents=[3]"), describe(
+                PSChunkedQueryExecutor.createFilters(null, asList(1, 2, 3), 2, factory())));
+        assertEquals(asList("owner=10 dependents=any", "owner=20 dependents=any"), describe(
+                PSChunkedQueryExecutor.createFilters(asList(10, 20), null, 2, factory())));
+        assertEquals(asList("owner=10 dependents=[1, 2]", "owner=10 dependents=[3]",
+                "owner=20 dependents=[1, 2]", "owner=20 dependents=[3]"), describe(
+                PSChunkedQueryExecutor.createFilters(asList(10, 20), asList(1, 2, 3), 2,
+                        factory())));
+    }
+
+    @Test
+    public void testFindByFiltersKeepsTheOrderOfTheFilters() throws Exception {
+        long calls = PSRelationshipMetrics.getCurrent().getLatencies(Operation.FIND_BY_FILTER)
+                .getCount();
+        List<PSRelationship> found = new PSChunkedQueryExecutor().findByFilters(service(),
+                PSChunkedQueryExecutor.createFilters(null, asList(3, 2, 1), 1, factory()));
+        assertEquals(asList(4, 3, 1, 2), ids(found));
+        assertEquals(asList("owner=any dependents=[3]", "owner=any dependents=[2]",
+                "owner=any dependents=[1]"), m_queries);
+        assertEquals("runs on the calling thread", asList(Thread.currentThread(),
+                Thread.currentThread(), Thread.currentThread()), m_threads);
+        assertEquals("each query is recorded", calls + 3, PSRelationshipMetrics.getCurrent()
+                .getLatencies(Operation.FIND_BY_FILTER).getCount());
+    }
+
+    @Test
+    public void testFindByFiltersWithOneFilter() throws Exception {
+        List<PSRelationship> found = new PSChunkedQueryExecutor().findByFilters(service(),
+                PSChunkedQueryExecutor.createFilters(asList(10), null, 2, factory()));
+        assertEquals(asList(1, 3), ids(found));
+        assertEquals(asList("owner=10 dependents=any"), m_queries);
+    }
+
+    @Test
+    public void testFindByFiltersPropagatesTheFirstError() throws Exception {
+        m_failingQuery = "owner=any dependents=[2]";
+        try {
+            new PSChunkedQueryExecutor().findByFilters(service(),
+                    PSChunkedQueryExecutor.createFilters(null, asList(1, 2, 3), 1, factory()));
+            fail("the second filter fails");
+        }
+        catch (PSCmsException e) {
+            assertEquals(asList("owner=any dependents=[1]", "owner=any dependents=[2]"),
+                    m_queries);
+        }
+    }
+
+    @Test
+    public void testFindFewOwnersQueriesEachOwner() throws Exception {
+        List<PSRelationship> found = new PSChunkedQueryExecutor().find(service(),
+                asList(10, 30), asList(1, 2, 3), 2, factory());
+        assertEquals(asList(1, 3, 4), ids(found));
+        assertEquals(asList("owner=10 dependents=[1, 2]", "owner=10 dependents=[3]",
+                "owner=30 dependents=[1, 2]", "owner=30 dependents=[3]"), m_queries);
+    }
+
+    @Test
+    public void testFindManyOwnersQueriesTheChunksOfDependents() throws Exception {
+        PSChunkedQueryExecutor executor = new PSChunkedQueryExecutor();
+        executor.setMaxOwnerQueries(3);
+        List<PSRelationship> found = executor.find(service(),
+                asList(10, 30), asList(1, 2, 3), 2, factory());
+        assertEquals(asList(1, 3, 4), ids(found));
+        assertEquals(asList("owner=any dependents=[1, 2]", "owner=any dependents=[3]"),
+                m_queries);
+    }
+
+    @Test
+    public void testFindOneOwner() throws Exception {
+        List<PSRelationship> found = new PSChunkedQueryExecutor().find(service(),
+                asList(10), asList(1, 2, 3), 2, factory());
+        assertEquals(asList(1, 3), ids(found));
+        assertEquals(asList("owner=10 dependents=[1, 2]", "owner=10 dependents=[3]"),
+                m_queries);
+    }
+
+    /**
+     * Finds the relationships matching the recorded owner and dependents.
+     */
+    private IPSRelationshipService service() {
+        return PSTestServices.proxy(IPSRelationshipService.class, new PSTestServices.Answer() {
+            public Object answer(String method, Object[] args) throws Exception {
+                if (!method.equals("findByFilter")) throw unsupported(method);
+                RecordingFilter filter = (RecordingFilter) args[0];
+                m_queries.add(filter.toString());
+                m_threads.add(Thread.currentThread());
+                if (filter.toString().equals(m_failingQuery))
+                    throw new PSCmsException(0, "Query fails");
+                List<PSRelationship> found = new ArrayList<PSRelationship>();
+                for (PSRelationship relationship : m_relationships) {
+                    if (filter.matches(relationship)) found.add(relationship);
+                }
+                return found;
+            }
+        });
+    }
+
+    private static PSChunkedQueryExecutor.FilterFactory factory() {
+        return new PSChunkedQueryExecutor.FilterFactory() {
+            public PSRelationshipFilter createFilter() throws PSException {
+                return new RecordingFilter();
+            }
+        };
+    }
+
+    private static List<String> describe(List<PSRelationshipFilter> filters) {
+        List<String> descriptions = new ArrayList<String>();
+        for (PSRelationshipFilter filter : filters) {
+            descriptions.add(filter.toString());
+        }
+        return descriptions;
+    }
+
+    private static List<Integer> ids(List<PSRelationship> relationships) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (PSRelationship relationship : relationships) {
+            ids.add(relationship.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Remembers the owner and dependents it was limited to.
+     */
+    private static class RecordingFilter extends PSRelationshipFilter {
+        private Integer m_ownerId;
+        private List<Integer> m_dependentIds;
+
+        @Override
+        public void setOwnerId(int id) {
+            m_ownerId = id;
+        }
+
+        @Override
+        public void setDependentIds(Collection<Integer> ids) {
+            m_dependentIds = new ArrayList<Integer>(ids);
+        }
+
+        private boolean matches(PSRelationship relationship) {
+            return (m_ownerId == null || m_ownerId == relationship.getOwner().getId())
+                && (m_dependentIds == null
+                        || m_dependentIds.contains(relationship.getDependent().getId()));
+        }
+
+        @Override
+        public String toString() {
+            return "owner=" + (m_ownerId == null ? "any" : m_ownerId) + " dependents="
+                + (m_dependentIds == null ? "any" : m_dependentIds);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSDuplicateRelationshipCleaner;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.services.relationship.IPSRelationshipService;
+
+public class PSDuplicateRelationshipCleanerTest {
+
+    private static final int ITEM_ID = 301;
+
+    private PSTestServices m_services;
+    private PSRelationshipMetrics m_previousMetrics;
+    private PSRelationship m_first;
+    private PSRelationship m_duplicate;
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("cleanerTest", PSTestServices.SLOT_NAME);
+        m_services = new PSTestServices();
+        m_services.addItem(ITEM_ID, 1, 1);
+        m_services.addItem(1000, 1, 1);
+        m_services.addItem(1001, 1, 1);
+        m_first = m_services.addRelationship(new PSLocator(1000, 1), new PSLocator(ITEM_ID, -1));
+        m_services.addRelationship(new PSLocator(1001, 1), new PSLocator(ITEM_ID, -1));
+        m_duplicate = m_services.addRelationship(new PSLocator(1000, 1),
+                new PSLocator(ITEM_ID, -1));
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testDuplicatesFoundByAReadAreDeleted() throws Exception {
+        PSDuplicateRelationshipCleaner cleaner = new PSDuplicateRelationshipCleaner(10, 10,
+                60 * 60 * 1000L);
+        try {
+            cleaner.setRelationshipService(m_services.getRelationshipService());
+            PSAaDependentRelationshipBuilder builder = builder(cleaner);
+
+            assertEquals(PSIntSet.of(1000, 1001), PSIntSet.valueOf(builder.retrieve(ITEM_ID)));
+            assertEquals(PSIntSet.of(1000, 1001), PSIntSet.valueOf(builder.retrieve(ITEM_ID)));
+            assertEquals("reads only queue, a duplicate is queued once", 1,
+                    cleaner.getQueueDepth());
+            assertEquals(3, m_services.getRelationships().size());
+
+            assertEquals(1, cleaner.flush());
+            assertEquals(0, cleaner.getQueueDepth());
+            assertEquals(1L, cleaner.getDeletedCount());
+            assertFalse(m_services.getRelationships().contains(m_duplicate));
+            assertTrue(m_services.getRelationships().contains(m_first));
+            assertEquals(PSIntSet.of(1000, 1001), PSIntSet.valueOf(builder.retrieve(ITEM_ID)));
+            assertEquals(0, cleaner.getQueueDepth());
+        }
+        finally {
+            cleaner.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueuedDuplicatesAreDeletedInTheBackground() throws Exception {
+        final IPSRelationshipService service = m_services.getRelationshipService();
+        final CountDownLatch deleted = new CountDownLatch(1);
+        PSDuplicateRelationshipCleaner cleaner = new PSDuplicateRelationshipCleaner(10, 10, 10);
+        try {
+            cleaner.setRelationshipService(PSTestServices.proxy(IPSRelationshipService.class,
+                    new PSTestServices.Answer() {
+                        @SuppressWarnings("unchecked")
+                        public Object answer(String method, Object[] args) throws Exception {
+                            if (!method.equals("deleteRelationship")) throw unsupported(method);
+                            service.deleteRelationship((Collection<PSRelationship>) args[0]);
+                            deleted.countDown();
+                            return null;
+                        }
+                    }));
+            builder(cleaner).retrieve(ITEM_ID);
+            assertTrue(deleted.await(10, TimeUnit.SECONDS));
+            assertEquals(asList(m_first, m_services.getRelationships().get(1)),
+                    m_services.getRelationships());
+        }
+        finally {
+            cleaner.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedDeletesAreCounted() throws Exception {
+        PSDuplicateRelationshipCleaner cleaner = new PSDuplicateRelationshipCleaner(10, 10,
+                60 * 60 * 1000L);
+        try {
+            cleaner.setRelationshipService(m_services.getRelationshipService());
+            m_services.setFailingCall(0);
+            assertEquals(1, cleaner.submit(asList(m_duplicate)));
+            assertEquals(0, cleaner.flush());
+            assertEquals(1L, cleaner.getFailedCount());
+            assertEquals(0, cleaner.getQueueDepth());
+            assertTrue(m_services.getRelationships().contains(m_duplicate));
+        }
+        finally {
+            cleaner.shutdown();
+        }
+    }
+
+    private PSAaDependentRelationshipBuilder builder(PSDuplicateRelationshipCleaner cleaner) {
+        PSAaDependentRelationshipBuilder builder = new PSAaDependentRelationshipBuilder(
+                PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+        m_services.wire(builder);
+        builder.setDuplicateCleaner(cleaner);
+        return builder;
+    }
+}
@@ -0,0 +1,148 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSFolderMembershipWriter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.services.guidmgr.IPSGuidManager;
+import com.percussion.utils.guid.IPSGuid;
+import com.percussion.webservices.PSErrorException;
+import com.percussion.webservices.content.IPSContentWs;
+
+public class PSFolderMembershipWriterTest {
+
+    private PSTestServices m_services;
+    private PSFolderMembershipWriter m_writer;
+    private PSRelationshipMetrics m_previousMetrics;
+    private List<String> m_webServiceCalls = new ArrayList<String>();
+    private boolean m_webServiceFails = false;
+    private boolean m_evictLocators = false;
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("folderWriterTest", "folders");
+        m_services = new PSTestServices();
+        for (int id : new int[] {601, 602, 603, 700, 701, 702}) {
+            m_services.addItem(id, 1, 1);
+        }
+        addFolderRelationship(700, 601);
+        addFolderRelationship(700, 602);
+        addFolderRelationship(701, 603);
+        addFolderRelationship(702, 604);
+        m_writer = new PSFolderMembershipWriter();
+        m_writer.setRelationshipService(m_services.getRelationshipService());
+        m_writer.setCmsObjectManager(m_services.getCmsObjectManager());
+        m_writer.setGuidManager(PSTestServices.proxy(IPSGuidManager.class,
+                new PSTestServices.Answer() {
+                    public Object answer(String method, Object[] args) {
+                        if (!method.equals("makeGuid")) throw unsupported(method);
+                        // another request fills the cache
+                        if (m_evictLocators) PSFolderMembershipWriter.getLocatorCache().flush();
+                        return PSTestServices.guid(((PSLocator) args[0]).getId());
+                    }
+                }));
+        m_writer.setContentWs(PSTestServices.proxy(IPSContentWs.class,
+                new PSTestServices.Answer() {
+                    @SuppressWarnings("unchecked")
+                    public Object answer(String method, Object[] args) throws Exception {
+                        List<Long> children = new ArrayList<Long>();
+                        for (IPSGuid guid : (List<IPSGuid>) args[1]) {
+                            children.add(guid.longValue());
+                        }
+                        m_webServiceCalls.add(method + " " + ((IPSGuid) args[0]).longValue()
+                                + " " + children);
+                        if (m_webServiceFails) throw new PSErrorException();
+                        return null;
+                    }
+                }));
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+        PSFolderMembershipWriter.getLocatorCache().flush();
+    }
+
+    @Test
+    public void testRemoveGoesThroughTheWebServicePerFolder() throws Exception {
+        m_writer.remove(asList(700, 701, 702), asList(601, 602, 603));
+        assertEquals(asList("removeFolderChildren 700 [601, 602]",
+                "removeFolderChildren 701 [603]"), m_webServiceCalls);
+        assertEquals("relationships are not deleted directly", asList("findByFilter"),
+                m_services.getCalls());
+    }
+
+    @Test
+    public void testRemoveBatchesTheItemsOfAFolder() throws Exception {
+        m_writer.setBatchSize(1);
+        m_writer.remove(asList(700), asList(601, 602, 603));
+        assertEquals(asList("findByFilter", "findByFilter", "findByFilter"),
+                m_services.getCalls());
+        assertEquals(asList("removeFolderChildren 700 [601]",
+                "removeFolderChildren 700 [602]"), m_webServiceCalls);
+    }
+
+    @Test
+    public void testRemoveMembersSkipsTheFolderQuery() throws Exception {
+        long saved = PSRelationshipMetrics.getCurrent().getCount(Counter.FOLDER_ROUND_TRIPS_SAVED);
+        m_writer.removeMembers(asList(700, 701), asList(601, 603));
+        assertFalse(m_services.getCalls().contains("findByFilter"));
+        assertEquals(asList("removeFolderChildren 700 [601, 603]",
+                "removeFolderChildren 701 [601, 603]"), m_webServiceCalls);
+        assertEquals("the folder query", 1L, m_writer.getRoundTripsSaved());
+        assertEquals(saved + 1, PSRelationshipMetrics.getCurrent()
+                .getCount(Counter.FOLDER_ROUND_TRIPS_SAVED));
+    }
+
+    @Test
+    public void testLoadedLocatorsAreUsedEvenIfEvicted() throws Exception {
+        PSFolderMembershipWriter.getLocatorCache().flush();
+        m_evictLocators = true;
+        m_writer.add(asList(700), asList(601, 602));
+        assertEquals(asList("addFolderChildren 700 [601, 602]"), m_webServiceCalls);
+    }
+
+    @Test
+    public void testRemoveSkipsFoldersWithoutTheItems() throws Exception {
+        m_writer.remove(asList(702), asList(601, 602, 603));
+        assertEquals(asList(), m_webServiceCalls);
+    }
+
+    @Test
+    public void testWebServiceErrorsArePropagated() throws Exception {
+        m_webServiceFails = true;
+        try {
+            m_writer.remove(asList(700, 701), asList(601, 603));
+            fail("the web service fails");
+        }
+        catch (PSException e) {
+            assertTrue(e.getCause() instanceof PSErrorException);
+        }
+        assertEquals(asList("removeFolderChildren 700 [601]"), m_webServiceCalls);
+    }
+
+    @Test
+    public void testAddGoesThroughTheWebServicePerFolder() throws Exception {
+        m_writer.add(asList(700, 701), asList(603));
+        assertEquals(asList("addFolderChildren 700 [603]", "addFolderChildren 701 [603]"),
+                m_webServiceCalls);
+    }
+
+    private void addFolderRelationship(int folderId, int itemId) {
+        m_services.getRelationships().add(new PSRelationship(
+                m_services.getRelationships().size() + 1, new PSLocator(folderId, 1),
+                new PSLocator(itemId, 1)));
+    }
+}
@@ -0,0 +1,65 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSIdListCodec;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+
+public class PSIdListCodecTest {
+
+    private final List<String> m_invalid = new ArrayList<String>();
+
+    private final PSIdListCodec.InvalidTokenHandler m_handler = new PSIdListCodec.InvalidTokenHandler() {
+        public void invalidToken(CharSequence value, int start, int end) {
+            m_invalid.add(value.subSequence(start, end).toString());
+        }
+    };
+
+    private String parse(String value) {
+        PSIntSet ids = new PSIntSet();
+        int invalid = PSIdListCodec.parse(value, ids, m_handler);
+        assertEquals(m_invalid.size(), invalid);
+        return ids.toString();
+    }
+
+    @Test
+    public void testParseSplitsLikeStringSplit() {
+        String[] values = {"", ";", "692", "692;651;339", "1;;2", ";1", "1;2;;", "7;7;8", "a;1;-2;3 "};
+        for (String value : values) {
+            m_invalid.clear();
+            List<String> expected = new ArrayList<String>();
+            List<String> invalid = new ArrayList<String>();
+            for (String token : value.split(";")) {
+                if (token.matches("[0-9]+")) {
+                    if (!expected.contains(token)) expected.add(token);
+                }
+                else invalid.add(token);
+            }
+            assertEquals(value, expected.toString().replace(" ", ""), parse(value).replace(" ", ""));
+            assertEquals(value, invalid, m_invalid);
+        }
+    }
+
+    @Test
+    public void testParseRejectsIdsOutOfRange() {
+        assertEquals("[2147483647]", parse("2147483647;2147483648;99999999999"));
+        assertEquals(Arrays.asList("2147483648", "99999999999"), m_invalid);
+        assertEquals(-1L, PSIdListCodec.parseId("x12", 0, 1));
+        assertEquals(12L, PSIdListCodec.parseId("x12", 1, 3));
+    }
+
+    @Test
+    public void testFormatAppendsToReusedBuilder() {
+        StringBuilder out = new StringBuilder("ids=");
+        assertEquals("ids=692;651;339", PSIdListCodec.append(out, PSIntSet.of(692, 651, 339)).toString());
+        assertEquals("1;2", PSIdListCodec.format(Arrays.asList(1, 2)));
+        assertEquals("3", PSIdListCodec.format(PSIntSet.of(3)));
+        assertEquals("", PSIdListCodec.format(new PSIntSet()));
+    }
+}
@@ -0,0 +1,115 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSIntSetCursor;
+
+public class PSIntSetTest {
+
+    @Test
+    public void testAddKeepsOrderAndDropsDuplicates() {
+        PSIntSet set = PSIntSet.of(5, 3, 5, 9, 3);
+        assertEquals(3, set.size());
+        assertTrue(Arrays.equals(new int[] {5, 3, 9}, set.toIntArray()));
+        assertEquals(9, set.get(2));
+    }
+
+    @Test
+    public void testContainsAfterGrowing() {
+        PSIntSet set = new PSIntSet(1);
+        for (int i = -1000; i < 1000; i += 3) {
+            assertTrue(set.add(i));
+        }
+        for (int i = -1000; i < 1000; i++) {
+            assertEquals((i + 1000) % 3 == 0, set.contains(i));
+        }
+        assertFalse(set.contains((Object) null));
+    }
+
+    @Test
+    public void testEqualsOtherSets() {
+        Set<Integer> expected = new HashSet<Integer>(asList(1, 2, 3));
+        assertEquals(expected, PSIntSet.of(3, 2, 1));
+        assertEquals(expected, new PSIntSet(asList(1, 2, 2, 3)));
+    }
+
+    @Test
+    public void testDifference() {
+        PSIntSet retain = PSIntSet.of(9, 1, 4, 7, 2);
+        PSIntSet suppress = PSIntSet.of(4, 8, 1, 10);
+        assertTrue(Arrays.equals(new int[] {2, 7, 9},
+                PSIntSet.difference(retain, suppress).toIntArray()));
+        assertEquals(0, PSIntSet.difference(suppress, suppress).size());
+        assertEquals(suppress, PSIntSet.difference(suppress, new PSIntSet()));
+    }
+
+    @Test
+    public void testRemoveKeepsOrder() {
+        PSIntSet set = PSIntSet.of(5, 3, 9, 7, 1);
+        assertTrue(set.remove(3));
+        assertFalse(set.remove(3));
+        assertFalse(set.remove((Object) "9"));
+        assertTrue(Arrays.equals(new int[] {5, 9, 7, 1}, set.toIntArray()));
+        assertFalse(set.contains(3));
+        assertEquals(2, set.indexOf(7));
+
+        assertTrue(set.removeAll(asList(1, 5, 4)));
+        assertTrue(Arrays.equals(new int[] {9, 7}, set.toIntArray()));
+        assertFalse(set.removeAll(PSIntSet.of(4)));
+        set.addAll(asList(2, 3));
+        assertTrue(set.retainAll(PSIntSet.of(3, 9, 4)));
+        assertTrue(Arrays.equals(new int[] {9, 3}, set.toIntArray()));
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(7));
+        set.add(7);
+        assertEquals(2, set.indexOf(7));
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        PSIntSet set = PSIntSet.of(1, 2, 3, 4);
+        for (Iterator<Integer> i = set.iterator(); i.hasNext();) {
+            if (i.next() % 2 == 0) i.remove();
+        }
+        assertEquals(PSIntSet.of(1, 3), set);
+        assertTrue(Arrays.equals(new int[] {1, 3}, set.toIntArray()));
+        Iterator<Integer> i = set.iterator();
+        try {
+            i.remove();
+            fail("next() was not called");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClear() {
+        PSIntSet set = PSIntSet.of(1, 2);
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(1));
+        set.add(2);
+        assertTrue(set.contains(2));
+    }
+
+    @Test
+    public void testCursorPages() {
+        PSIntSetCursor cursor = new PSIntSetCursor(PSIntSet.of(4, 5, 6, 7, 8), 2);
+        assertEquals(PSIntSet.of(4, 5), cursor.nextPage());
+        assertEquals(PSIntSet.of(6, 7), cursor.nextPage());
+        assertTrue(cursor.hasNext());
+        assertEquals(PSIntSet.of(8), cursor.nextPage());
+        assertFalse(cursor.hasNext());
+    }
+
+}
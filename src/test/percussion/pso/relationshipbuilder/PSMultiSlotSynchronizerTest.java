@@ -0,0 +1,136 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSAaOwnerRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSActiveAssemblyRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSMultiSlotSynchronizer;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+
+/**
+ * Synchronizes a field listing the dependents of item 1 and a field listing
+ * its owners. Item 1 owns 2 and is owned by 10.
+ */
+public class PSMultiSlotSynchronizerTest {
+
+    private static final int ITEM_ID = 1;
+
+    private PSTestServices m_services;
+    private PSMultiSlotSynchronizer m_synchronizer;
+    private PSRelationshipMetrics m_previousMetrics;
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("synchronizerTest", PSTestServices.SLOT_NAME);
+        m_services = new PSTestServices();
+        for (int id : new int[] {ITEM_ID, 2, 3, 10, 11}) {
+            m_services.addItem(id, 1, 1);
+        }
+        m_services.addRelationship(new PSLocator(ITEM_ID, 1), new PSLocator(2, -1));
+        m_services.addRelationship(new PSLocator(10, 1), new PSLocator(ITEM_ID, -1));
+        PSActiveAssemblyRelationshipBuilder dependents = new PSAaOwnerRelationshipBuilder(
+                PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+        PSActiveAssemblyRelationshipBuilder owners = new PSAaDependentRelationshipBuilder(
+                PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+        m_services.wire(dependents);
+        m_services.wire(owners);
+        m_synchronizer = new PSMultiSlotSynchronizer(asList(dependents, owners));
+        m_synchronizer.setRelationshipService(m_services.getRelationshipService());
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testChangesOfAllFieldsAreWrittenTogether() throws Exception {
+        m_synchronizer.synchronize(ITEM_ID, asList(PSIntSet.of(3), PSIntSet.of(11)));
+        assertEquals(PSIntSet.of(3), dependentsOf(ITEM_ID));
+        assertEquals(PSIntSet.of(11), ownersOf(ITEM_ID));
+        assertEquals("one filter per direction, one delete and one save",
+                asList("findByFilter", "findByFilter", "deleteRelationship 2",
+                        "saveRelationship 2"), m_services.getCalls());
+    }
+
+    @Test
+    public void testWritesAreBatched() throws Exception {
+        m_synchronizer.setBatchSize(1);
+        m_synchronizer.synchronize(ITEM_ID, asList(PSIntSet.of(3), PSIntSet.of(11)));
+        assertEquals(asList("findByFilter", "findByFilter", "deleteRelationship 1",
+                "deleteRelationship 1", "saveRelationship 1", "saveRelationship 1"),
+                m_services.getCalls());
+    }
+
+    @Test
+    public void testFieldsWithoutTargetIdsAreLeftAlone() throws Exception {
+        m_synchronizer.synchronize(ITEM_ID, asList(PSIntSet.of(2, 3), null));
+        assertEquals(PSIntSet.of(2, 3), dependentsOf(ITEM_ID));
+        assertEquals(PSIntSet.of(10), ownersOf(ITEM_ID));
+        assertEquals("only the relationships the item owns are fetched",
+                asList("findByFilter", "saveRelationship 1"), m_services.getCalls());
+
+        m_services.getCalls().clear();
+        m_synchronizer.synchronize(ITEM_ID, asList((PSIntSet) null, null));
+        assertEquals(asList(), m_services.getCalls());
+    }
+
+    @Test
+    public void testUnchangedFieldsWriteNothing() throws Exception {
+        m_synchronizer.synchronize(ITEM_ID, asList(PSIntSet.of(2), PSIntSet.of(10)));
+        assertEquals(asList("findByFilter", "findByFilter"), m_services.getCalls());
+    }
+
+    @Test
+    public void testFailedDeleteSavesNothing() throws Exception {
+        m_services.setFailingCall(2);
+        try {
+            m_synchronizer.synchronize(ITEM_ID, asList(PSIntSet.of(3), PSIntSet.of(11)));
+            fail("the delete fails");
+        }
+        catch (PSException e) {
+            // expected
+        }
+        assertEquals(PSIntSet.of(2), dependentsOf(ITEM_ID));
+        assertEquals(PSIntSet.of(10), ownersOf(ITEM_ID));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTargetIdsForEachBuilder() throws Exception {
+        m_synchronizer.synchronize(ITEM_ID, asList(PSIntSet.of(3)));
+    }
+
+    private PSIntSet dependentsOf(int ownerId) {
+        PSIntSet ids = new PSIntSet();
+        for (PSRelationship relationship : relationships()) {
+            if (relationship.getOwner().getId() == ownerId)
+                ids.add(relationship.getDependent().getId());
+        }
+        return ids;
+    }
+
+    private PSIntSet ownersOf(int dependentId) {
+        PSIntSet ids = new PSIntSet();
+        for (PSRelationship relationship : relationships()) {
+            if (relationship.getDependent().getId() == dependentId)
+                ids.add(relationship.getOwner().getId());
+        }
+        return ids;
+    }
+
+    private List<PSRelationship> relationships() {
+        return m_services.getRelationships();
+    }
+}
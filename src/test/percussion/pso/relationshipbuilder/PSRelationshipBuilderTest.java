@@ -0,0 +1,156 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.IPSRelatedIdCursor;
+import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSPartialSynchronizationException;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+
+public class PSRelationshipBuilderTest {
+
+    private PSTestServices m_services;
+    private PSAaDependentRelationshipBuilder m_builder;
+    private PSRelationshipMetrics m_previousMetrics;
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("builderTest", PSTestServices.SLOT_NAME);
+        m_services = new PSTestServices();
+        for (int id : new int[] {1, 2, 3, 10, 11, 20, 21, 30, 31}) {
+            m_services.addItem(id, 1, 1);
+        }
+        m_services.addRelationship(new PSLocator(10, 1), new PSLocator(1, -1));
+        m_services.addRelationship(new PSLocator(20, 1), new PSLocator(2, -1));
+        m_services.addRelationship(new PSLocator(30, 1), new PSLocator(3, -1));
+        m_builder = new PSAaDependentRelationshipBuilder(PSTestServices.SLOT_NAME,
+                PSTestServices.TEMPLATE_NAME);
+        m_services.wire(m_builder);
+        m_builder.setBatchSize(4);
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testSynchronizeAllWritesWholeItemsPerBatch() throws Exception {
+        m_builder.synchronizeAll(replaceAll());
+        assertEquals(PSIntSet.of(11), relatedIds(1));
+        assertEquals(PSIntSet.of(21), relatedIds(2));
+        assertEquals(PSIntSet.of(31), relatedIds(3));
+        // items 1 and 2 fit in a batch of 4, item 3 goes in the next one
+        assertEquals(asList("findByFilter", "deleteRelationship 2", "saveRelationship 2",
+                "deleteRelationship 1", "saveRelationship 1"), m_services.getCalls());
+    }
+
+    @Test
+    public void testSynchronizeAllReportsAppliedItems() throws Exception {
+        m_services.setFailingCall(3);
+        try {
+            m_builder.synchronizeAll(replaceAll());
+            fail("the delete of item 3 fails");
+        }
+        catch (PSPartialSynchronizationException e) {
+            assertEquals(PSIntSet.of(1, 2), e.getAppliedIds());
+        }
+        assertEquals(PSIntSet.of(11), relatedIds(1));
+        assertEquals(PSIntSet.of(21), relatedIds(2));
+        assertEquals(PSIntSet.of(30), relatedIds(3));
+    }
+
+    @Test
+    public void testUnchangedItemsAreApplied() throws Exception {
+        m_services.setFailingCall(1);
+        Map<Integer, Set<Integer>> targetIds = new LinkedHashMap<Integer, Set<Integer>>();
+        targetIds.put(1, PSIntSet.of(10));
+        targetIds.put(2, PSIntSet.of(21));
+        try {
+            m_builder.synchronizeAll(targetIds);
+            fail("the delete of item 2 fails");
+        }
+        catch (PSPartialSynchronizationException e) {
+            assertEquals(PSIntSet.of(1), e.getAppliedIds());
+        }
+    }
+
+    @Test
+    public void testUnchangedIdsWriteNothing() throws Exception {
+        m_services.addRelationship(new PSLocator(11, 1), new PSLocator(1, -1));
+        m_builder.synchronize(1, PSIntSet.of(11, 10));
+        m_builder.synchronize(1, (Set<Integer>) new HashSet<Integer>(asList(10, 11)));
+        assertEquals(asList("findByFilter", "findByFilter"), m_services.getCalls());
+        assertEquals(PSIntSet.of(10, 11), relatedIds(1));
+    }
+
+    @Test
+    public void testRetrieveAllQueriesTheItemsTogether() throws Exception {
+        m_services.addRelationship(new PSLocator(11, 1), new PSLocator(1, -1));
+        Map<Integer, PSIntSet> relatedIds = m_builder.retrieveAll(asList(1, 2, 3, 10));
+        assertEquals(asList(1, 2, 3, 10), new ArrayList<Integer>(relatedIds.keySet()));
+        assertEquals(PSIntSet.of(10, 11), relatedIds.get(1));
+        assertEquals(PSIntSet.of(20), relatedIds.get(2));
+        assertEquals(PSIntSet.of(30), relatedIds.get(3));
+        assertEquals("no relationships", PSIntSet.of(), relatedIds.get(10));
+        assertEquals(asList("findByFilter"), m_services.getCalls());
+
+        m_services.getCalls().clear();
+        m_builder.setBatchSize(2);
+        assertEquals(relatedIds, m_builder.retrieveAll(asList(1, 2, 3, 10)));
+        assertEquals("one query per batch of ids", asList("findByFilter", "findByFilter"), 
+                m_services.getCalls());
+    }
+
+    @Test
+    public void testCursorChecksARelationshipPageAtATime() throws Exception {
+        m_services.addRelationship(new PSLocator(11, 1), new PSLocator(1, -1));
+        // a duplicate in the next page
+        m_services.addRelationship(new PSLocator(11, 1), new PSLocator(1, -1));
+        m_services.addRelationship(new PSLocator(21, 1), new PSLocator(1, -1));
+        IPSRelatedIdCursor cursor = m_builder.openCursor(1, 2);
+        assertEquals(PSIntSet.of(10), cursor.nextPage());
+        assertEquals("only the first page is checked", 1, m_services.getSummaryLoads().size());
+        assertEquals(asList("findByFilter"), m_services.getCalls());
+
+        assertEquals(PSIntSet.of(11), cursor.nextPage());
+        assertEquals("an id is only returned once", PSIntSet.of(21), cursor.nextPage());
+        assertFalse(cursor.hasNext());
+        assertEquals(3, m_services.getSummaryLoads().size());
+        assertEquals("queried once", asList("findByFilter"), m_services.getCalls());
+    }
+
+    private Map<Integer, Set<Integer>> replaceAll() {
+        Map<Integer, Set<Integer>> targetIds = new LinkedHashMap<Integer, Set<Integer>>();
+        targetIds.put(1, PSIntSet.of(11));
+        targetIds.put(2, PSIntSet.of(21));
+        targetIds.put(3, PSIntSet.of(31));
+        return targetIds;
+    }
+
+    /**
+     * The items are the dependents, the related ids the owners.
+     */
+    private PSIntSet relatedIds(int dependentId) {
+        PSIntSet ids = new PSIntSet();
+        for (PSRelationship relationship : m_services.getRelationships()) {
+            if (relationship.getDependent().getId() == dependentId)
+                ids.add(relationship.getOwner().getId());
+        }
+        return ids;
+    }
+}
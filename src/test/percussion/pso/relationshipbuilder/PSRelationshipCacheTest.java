@@ -0,0 +1,56 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+
+public class PSRelationshipCacheTest {
+
+    @Test
+    public void testFingerprintIgnoresOrder() {
+        assertEquals(PSRelationshipCache.fingerprint(asList(3, 1, 2)),
+                PSRelationshipCache.fingerprint(PSIntSet.of(1, 2, 3)));
+        assertFalse(PSRelationshipCache.fingerprint(asList(1, 2)).equals(
+                PSRelationshipCache.fingerprint(asList(1, 3))));
+    }
+
+    @Test
+    public void testTokenIsValidUntilInvalidated() {
+        PSRelationshipCache cache = new PSRelationshipCache(10, 0);
+        String token = cache.issueToken(5, "field", PSIntSet.of(7, 8), cache.getGeneration(5));
+        assertNotNull(token);
+        assertTrue(cache.isDisplayed(5, "field", token, asList(8, 7)));
+        assertFalse(cache.isDisplayed(5, "field", token, asList(7)));
+        assertFalse(cache.isDisplayed(5, "other", token, asList(7, 8)));
+        cache.invalidate(8);
+        assertTrue(cache.isDisplayed(5, "field", token, asList(7, 8)));
+        cache.invalidate(5);
+        assertFalse(cache.isDisplayed(5, "field", token, asList(7, 8)));
+    }
+
+    @Test
+    public void testUnchangedNeedsTheCurrentIds() {
+        PSRelationshipCache cache = new PSRelationshipCache(10, 0);
+        String token = cache.issueToken(5, "field", PSIntSet.of(7, 8), cache.getGeneration(5));
+        assertTrue(cache.isUnchanged(5, "field", token, asList(8, 7), PSIntSet.of(7, 8)));
+        assertFalse("changed elsewhere",
+                cache.isUnchanged(5, "field", token, asList(7, 8), PSIntSet.of(7)));
+        assertFalse(cache.isUnchanged(5, "field", token, asList(7), PSIntSet.of(7)));
+        assertFalse(cache.isUnchanged(5, "field", null, asList(7, 8), PSIntSet.of(7, 8)));
+    }
+
+    @Test
+    public void testNoTokenWhenChangedWhileReading() {
+        PSRelationshipCache cache = new PSRelationshipCache(10, 0);
+        long generation = cache.getGeneration(5);
+        cache.invalidate(1);
+        assertNotNull("other items do not matter",
+                cache.issueToken(5, "field", PSIntSet.of(7), generation));
+        cache.invalidate(asList(2, 5));
+        assertNull(cache.issueToken(5, "field", PSIntSet.of(7), generation));
+    }
+}
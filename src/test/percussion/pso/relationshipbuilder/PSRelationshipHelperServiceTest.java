@@ -0,0 +1,174 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSFolderMembershipWriter;
+import com.percussion.pso.relationshipbuilder.PSFolderQueryCache;
+import com.percussion.pso.relationshipbuilder.PSFolderRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+import com.percussion.pso.relationshipbuilder.PSRelationshipHelperService;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+
+public class PSRelationshipHelperServiceTest {
+
+    private static final String FOLDER_QUERY =
+        "select rx:sys_folderid from nt:base where jcr:path like '//Sites/%'";
+    private static final String ITEM_FOLDERS_QUERY =
+        "select rx:sys_contentid, rx:sys_folderid from nt:base where rx:sys_contentid = :contentId";
+
+    private PSRelationshipMetrics m_previousMetrics;
+    private PSRelationshipHelperService m_helper;
+    private PSFolderQueryCache m_folderQueryCache;
+    private PSTestServices m_services = new PSTestServices();
+    private List<String> m_folderWrites = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("helperTest", "folders");
+        m_folderQueryCache = new PSFolderQueryCache(10, 60 * 60 * 1000L);
+        m_helper = new PSRelationshipHelperService();
+        m_helper.setFolderQueryCache(m_folderQueryCache);
+        m_helper.setRelationshipCache(new PSRelationshipCache(10, 0));
+        // the folder query selects folder 10, the item is in folders 10 and 20
+        m_services.setFolders(PSIntSet.of(10), PSIntSet.of(10, 20));
+        m_helper.setContentManager(m_services.getContentManager());
+        m_helper.setFolderMembershipWriter(new PSFolderMembershipWriter() {
+            @Override
+            public void add(Collection<Integer> folderIds, Collection<Integer> itemIds) {
+                if (!folderIds.isEmpty()) m_folderWrites.add("add " + folderIds);
+            }
+
+            @Override
+            public void remove(Collection<Integer> folderIds, Collection<Integer> itemIds) {
+                if (!folderIds.isEmpty()) m_folderWrites.add("remove " + folderIds);
+            }
+
+            @Override
+            public void removeMembers(Collection<Integer> folderIds, Collection<Integer> itemIds) {
+                if (!folderIds.isEmpty()) m_folderWrites.add("removeMembers " + folderIds);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testAddItemConstraint() {
+        assertEquals("select rx:sys_folderid from nt:base where rx:sys_contentid = :contentId",
+                PSRelationshipHelperService.addItemConstraint("select rx:sys_folderid from nt:base"));
+        assertEquals("select rx:sys_folderid from nt:base where (jcr:path like '//Sites/%' or a = 1) "
+                + "and rx:sys_contentid = :contentId order by rx:sys_folderid",
+                PSRelationshipHelperService.addItemConstraint("select rx:sys_folderid from nt:base "
+                        + "WHERE jcr:path like '//Sites/%' or a = 1 order by rx:sys_folderid"));
+    }
+
+    @Test
+    public void testAddItemConstraintMatchesWholeKeywords() {
+        assertEquals("select rx:sys_folderid\nfrom nt:base where (jcr:path like '//Sites/%') "
+                + "and rx:sys_contentid = :contentId order\tby rx:sys_folderid",
+                PSRelationshipHelperService.addItemConstraint("select rx:sys_folderid\nfrom nt:base"
+                        + "\nwhere\tjcr:path like '//Sites/%'\norder\tby rx:sys_folderid\n"));
+        assertEquals("select rx:sys_folderid from nt:base where (rx:sys_title = 'a where b order by c' "
+                + "and rx:sys_title <> 'it''s where') and rx:sys_contentid = :contentId",
+                PSRelationshipHelperService.addItemConstraint("select rx:sys_folderid from nt:base "
+                        + "where rx:sys_title = 'a where b order by c' and rx:sys_title <> 'it''s where'"));
+        assertEquals("select rx:sys_folderid from nt:base where ((a = 1) or (b in "
+                + "(select x from y where z = 2))) and rx:sys_contentid = :contentId",
+                PSRelationshipHelperService.addItemConstraint("select rx:sys_folderid from nt:base "
+                        + "where (a = 1) or (b in (select x from y where z = 2))"));
+        assertEquals("select rx:sys_folderid, rx:wherever from nt:border where (rx:orderby = 1) "
+                + "and rx:sys_contentid = :contentId",
+                PSRelationshipHelperService.addItemConstraint(
+                        "select rx:sys_folderid, rx:wherever from nt:border where rx:orderby = 1"));
+    }
+
+    @Test
+    public void testAddItemConstraintGivesUpWhenAmbiguous() {
+        assertNull(PSRelationshipHelperService.addItemConstraint(
+                "select rx:sys_folderid from nt:base where a = 'unterminated"));
+        assertNull(PSRelationshipHelperService.addItemConstraint(
+                "select rx:sys_folderid from nt:base where (a = 1"));
+        assertNull(PSRelationshipHelperService.addItemConstraint(
+                "select rx:sys_folderid from nt:base where a = 1) or (b = 2"));
+        assertNull(PSRelationshipHelperService.addItemConstraint(
+                "select rx:sys_folderid from nt:base where a = 1 where b = 2"));
+        assertNull(PSRelationshipHelperService.addItemConstraint(
+                "select rx:sys_folderid from nt:base where order by rx:sys_folderid"));
+    }
+
+    @Test
+    public void testSingleQueryFallsBackWhenTheItemCannotBeAdded() throws Exception {
+        List<String> queries = m_services.getQueries();
+        assertEquals(PSIntSet.of(10), m_helper.getFolders(1, FOLDER_QUERY + " where b = 2", true));
+        assertEquals(asList(FOLDER_QUERY + " where b = 2", ITEM_FOLDERS_QUERY), queries);
+        queries.clear();
+        assertEquals("the repository filters the folders", PSIntSet.of(10, 20),
+                m_helper.getFolders(1, FOLDER_QUERY, true));
+        assertEquals(asList(PSRelationshipHelperService.addItemConstraint(FOLDER_QUERY)), queries);
+    }
+
+    @Test
+    public void testWritesSeeFoldersCreatedSinceTheyWereCached() throws Exception {
+        assertEquals(PSIntSet.of(10), m_helper.getFolders(1, FOLDER_QUERY));
+        // folder 20 moves under the site in Content Explorer
+        m_services.setFolders(PSIntSet.of(10, 20), PSIntSet.of(10, 20));
+        assertEquals("displayed from the cache", PSIntSet.of(10),
+                m_helper.getFolders(1, FOLDER_QUERY));
+
+        PSFolderRelationshipBuilder builder = new PSFolderRelationshipBuilder(m_helper,
+                FOLDER_QUERY);
+        builder.synchronize(1, PSIntSet.of(10, 20));
+        assertEquals("already in both folders", asList(), m_folderWrites);
+        assertEquals(PSIntSet.of(10, 20), m_helper.getFolders(1, FOLDER_QUERY));
+    }
+
+    @Test
+    public void testFolderWritesOnlyDropTheFolderIdsOfMovedFolders() throws Exception {
+        m_helper.getFolders(1, FOLDER_QUERY);
+        assertEquals(1, m_folderQueryCache.getFolderIdCache().size());
+        m_helper.addFolderRelationships(asList(10), asList(30));
+        m_helper.deleteFolderRelationships(asList(10), asList(30));
+        assertEquals("item 30 is not a selected folder", 1,
+                m_folderQueryCache.getFolderIdCache().size());
+        m_helper.deleteFolderRelationships(asList(20), asList(10));
+        assertEquals("folder 10 moved", 0, m_folderQueryCache.getFolderIdCache().size());
+    }
+
+    @Test
+    public void testCurrentFoldersAreQueriedForTheItemOnly() throws Exception {
+        List<String> queries = m_services.getQueries();
+        m_helper.getFolders(1, FOLDER_QUERY);
+        queries.clear();
+        m_services.setFolders(PSIntSet.of(10), PSIntSet.of(10));
+        assertEquals(PSIntSet.of(10), m_helper.getCurrentFolders(1, FOLDER_QUERY, false));
+        assertEquals(PSIntSet.of(10), m_helper.getCurrentFolders(1, FOLDER_QUERY, false));
+        assertEquals("parsed once, the folder ids are not queried again",
+                asList(PSRelationshipHelperService.addItemConstraint(FOLDER_QUERY)), queries);
+        assertEquals("the cached folder ids have all the folders", 1,
+                m_folderQueryCache.getFolderIdCache().size());
+    }
+
+    @Test
+    public void testParsedQueriesAreReused() throws Exception {
+        List<String> queries = m_services.getQueries();
+        m_helper.getFolders(1, FOLDER_QUERY + " where b = 2");
+        m_helper.getFolders(2, FOLDER_QUERY + " where b = 2");
+        m_helper.getFolders(1, FOLDER_QUERY, true);
+        m_helper.getFolders(2, FOLDER_QUERY, true);
+        assertEquals(asList(FOLDER_QUERY + " where b = 2", ITEM_FOLDERS_QUERY,
+                PSRelationshipHelperService.addItemConstraint(FOLDER_QUERY)), queries);
+    }
+}
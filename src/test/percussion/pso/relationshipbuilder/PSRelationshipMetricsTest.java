@@ -0,0 +1,152 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSBuildJournal;
+import com.percussion.pso.relationshipbuilder.PSDuplicateRelationshipCleaner;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSLatencyHistogram;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Gauge;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+
+public class PSRelationshipMetricsTest {
+
+    @Test
+    public void testPercentilesAreWithinABucket() {
+        PSLatencyHistogram histogram = new PSLatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * 1000000L);
+        }
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(1000.0, histogram.getMaxMillis(), 0.001);
+        assertEquals(500, histogram.getPercentileMillis(50), 500 * 0.125);
+        assertEquals(950, histogram.getPercentileMillis(95), 950 * 0.125);
+        assertEquals(990, histogram.getPercentileMillis(99), 990 * 0.125);
+        assertTrue(histogram.getPercentileMillis(100) <= 1000.0);
+        histogram.reset();
+        assertEquals(0.0, histogram.getPercentileMillis(99), 0);
+    }
+
+    @Test
+    public void testCallsAreRecordedForTheBoundExitAndSlot() throws Exception {
+        PSRelationshipMetrics previous = PSRelationshipMetrics.bind("testExit", "testSlot");
+        try {
+            PSRelationshipMetrics.record(Operation.SAVE_RELATIONSHIPS, System.nanoTime(), true);
+            PSRelationshipMetrics.record(Operation.SAVE_RELATIONSHIPS, System.nanoTime(), false);
+            PSRelationshipMetrics.count(Counter.RELATIONSHIPS_ADDED, 3);
+        }
+        finally {
+            PSRelationshipMetrics.unbind(previous);
+        }
+        PSRelationshipMetrics metrics = PSRelationshipMetrics.getInstance("testExit", "testSlot");
+        assertEquals(2L, metrics.getLatencies(Operation.SAVE_RELATIONSHIPS).getCount());
+        assertEquals(1L, metrics.getErrorCount(Operation.SAVE_RELATIONSHIPS));
+        assertEquals(3L, metrics.getCount(Counter.RELATIONSHIPS_ADDED));
+        assertEquals(0L, PSRelationshipMetrics.getCurrent().getCount(Counter.RELATIONSHIPS_ADDED));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        TabularData operations = (TabularData) server.getAttribute(metrics.getObjectName(), "Operations");
+        CompositeData save = (CompositeData) operations.get(new Object[] {"SAVE_RELATIONSHIPS"})
+                .get("value");
+        assertEquals(2L, save.get("count"));
+        assertEquals(1L, save.get("errorCount"));
+        server.invoke(metrics.getObjectName(), "reset", null, null);
+        assertEquals(0L, metrics.getCount(Counter.RELATIONSHIPS_ADDED));
+    }
+
+    @Test
+    public void testGaugesReadTheCleanerAndTheJournalOfTheExit() throws Exception {
+        PSRelationshipMetrics metrics = PSRelationshipMetrics.getInstance("journalExit", "s");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(asList("DUPLICATES_DELETED", "DUPLICATE_QUEUE_DEPTH"),
+                gaugeNames((TabularData) server.getAttribute(metrics.getObjectName(), "Gauges")));
+        assertEquals(Long.valueOf(PSDuplicateRelationshipCleaner.getInstance().getQueueDepth()),
+                metrics.getGauge(Gauge.DUPLICATE_QUEUE_DEPTH));
+
+        // not opened, nothing is written
+        PSBuildJournal journal = new PSBuildJournal(new File(System.getProperty("java.io.tmpdir"),
+                "metricsTest.journal"), 1, new PSBuildJournal.Applier() {
+            public void apply(Map<String, String> parameters, int sourceId, PSIntSet targetIds,
+                    String user) {
+            }
+        });
+        PSRelationshipMetrics.registerBuildJournal("journalExit", journal);
+        try {
+            assertEquals(Long.valueOf(0), metrics.getGauge(Gauge.JOURNAL_BACKLOG));
+            assertEquals(asList("DUPLICATES_DELETED", "DUPLICATE_QUEUE_DEPTH",
+                    "JOURNAL_BACKLOG", "JOURNAL_LAG_MILLIS"), gaugeNames((TabularData) server
+                    .getAttribute(metrics.getObjectName(), "Gauges")));
+            assertNull("other exits do not report it", PSRelationshipMetrics.getInstance(
+                    "otherJournalExit", "s").getGauge(Gauge.JOURNAL_BACKLOG));
+        }
+        finally {
+            PSRelationshipMetrics.unregisterBuildJournal("journalExit", journal);
+            PSRelationshipMetrics.unregister("journalExit");
+            PSRelationshipMetrics.unregister("otherJournalExit");
+        }
+        assertNull(metrics.getGauge(Gauge.JOURNAL_BACKLOG));
+    }
+
+    @Test
+    public void testMetricsOfAnExitAreUnregistered() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        // stands for metrics registered by the class loader of the
+        // extensions before the server reloaded them
+        ObjectName stale = new ObjectName(PSRelationshipMetrics.DOMAIN
+                + ":type=RelationshipMetrics,exit=\"reloadedExit\",slot=\"old\"");
+        server.registerMBean(new StandardMBean(new Runnable() {
+            public void run() {
+            }
+        }, Runnable.class), stale);
+        server.registerMBean(new StandardMBean(new Runnable() {
+            public void run() {
+            }
+        }, Runnable.class), new ObjectName(PSRelationshipMetrics.DOMAIN
+                + ":type=RelationshipMetrics,exit=\"reloadedExit\",slot=\"s\""));
+        PSRelationshipMetrics metrics = PSRelationshipMetrics.getInstance("reloadedExit", "s");
+        PSRelationshipMetrics other = PSRelationshipMetrics.getInstance("otherExit", "s");
+        assertEquals("replaces the stale registration", "s",
+                server.getAttribute(metrics.getObjectName(), "Slot"));
+
+        PSRelationshipMetrics.unregister("reloadedExit");
+        assertFalse(server.isRegistered(stale));
+        assertFalse(server.isRegistered(metrics.getObjectName()));
+        assertFalse(PSRelationshipMetrics.getAll().contains(metrics));
+        assertTrue(server.isRegistered(other.getObjectName()));
+        assertSame(other, PSRelationshipMetrics.getInstance("otherExit", "s"));
+
+        PSRelationshipMetrics created = PSRelationshipMetrics.getInstance("reloadedExit", "s");
+        assertNotSame(metrics, created);
+        assertTrue(server.isRegistered(created.getObjectName()));
+        PSRelationshipMetrics.unregister("reloadedExit");
+        PSRelationshipMetrics.unregister("otherExit");
+    }
+
+    private static List<String> gaugeNames(TabularData gauges) {
+        List<String> names = new ArrayList<String>();
+        for (Object key : gauges.keySet()) {
+            names.add((String) ((List<?>) key).get(0));
+        }
+        Collections.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,118 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipRequestCache;
+import com.percussion.services.legacy.IPSCmsObjectMgr;
+
+public class PSRelationshipRequestCacheTest {
+
+    private static final int ITEM_ID = 301;
+
+    private PSTestServices m_services;
+    private IPSCmsObjectMgr m_cms;
+    private PSRelationshipRequestCache m_previous;
+    private PSRelationshipMetrics m_previousMetrics;
+
+    @Before
+    public void setUp() {
+        m_services = new PSTestServices();
+        m_services.addItem(ITEM_ID, 1, 1);
+        m_services.addItem(1000, 1, 1);
+        m_services.addItem(1001, 1, 1);
+        m_services.addItem(1002, 1, 1);
+        m_cms = m_services.getCmsObjectManager();
+        m_previousMetrics = PSRelationshipMetrics.bind("requestCacheTest",
+                PSTestServices.SLOT_NAME);
+        m_previous = PSRelationshipRequestCache.bind(
+                PSTestServices.requestContext(new HashMap<String, String>()));
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipRequestCache.unbind(m_previous);
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testSummariesAreLoadedOncePerRequest() {
+        load(1000, 1001);
+        load(1001, 1002);
+        List<Collection<Integer>> loads = m_services.getSummaryLoads();
+        assertEquals(2, loads.size());
+        assertEquals(singletonList(1002), loads.get(1));
+    }
+
+    @Test
+    public void testWrittenItemsAreReloaded() {
+        load(ITEM_ID, 1000, 1001);
+        PSRelationship written = new PSRelationship(1, new PSLocator(1000, 1),
+                new PSLocator(ITEM_ID, 1));
+        PSRelationshipRequestCache.relationshipsWritten(singletonList(written));
+        load(ITEM_ID, 1000, 1001);
+        assertEquals(asList(ITEM_ID, 1000), last());
+
+        PSRelationshipRequestCache.itemsWritten(PSIntSet.of(1001));
+        load(ITEM_ID, 1000, 1001);
+        assertEquals(singletonList(1001), last());
+    }
+
+    @Test
+    public void testWritesForgetRetrievedIds() {
+        PSRelationshipRequestCache cache = PSRelationshipRequestCache.getCurrent();
+        cache.putRetrieved("builder", ITEM_ID, PSIntSet.of(1000));
+        PSRelationshipRequestCache.itemsWritten(PSIntSet.of(1002));
+        assertNull(cache.getRetrieved("builder", ITEM_ID));
+    }
+
+    @Test
+    public void testBuilderWritesInvalidateSummaries() throws Exception {
+        m_services.addRelationship(new PSLocator(1000, 1), new PSLocator(ITEM_ID, -1));
+        PSAaDependentRelationshipBuilder builder = new PSAaDependentRelationshipBuilder(
+                PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+        m_services.wire(builder);
+        assertEquals(PSIntSet.of(1000), PSIntSet.valueOf(builder.retrieve(ITEM_ID)));
+
+        builder.synchronize(ITEM_ID, PSIntSet.of(1000, 1001));
+        assertEquals(2, m_services.getRelationships().size());
+        load(ITEM_ID, 1000, 1001);
+        assertEquals(asList(ITEM_ID, 1001), last());
+
+        builder.synchronize(ITEM_ID, PSIntSet.of(1001));
+        load(ITEM_ID, 1000, 1001);
+        assertEquals(asList(ITEM_ID, 1000), last());
+    }
+
+    @Test
+    public void testNothingBound() {
+        PSRelationshipRequestCache.unbind(null);
+        PSRelationshipRequestCache.itemsWritten(PSIntSet.of(1000));
+        load(1000);
+        load(1000);
+        assertEquals(2, m_services.getSummaryLoads().size());
+    }
+
+    private void load(Integer... ids) {
+        PSRelationshipRequestCache.loadComponentSummaries(m_cms, asList(ids));
+    }
+
+    private Collection<Integer> last() {
+        List<Collection<Integer>> loads = m_services.getSummaryLoads();
+        return loads.get(loads.size() - 1);
+    }
+}
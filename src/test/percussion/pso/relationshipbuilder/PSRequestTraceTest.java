@@ -0,0 +1,44 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Counter;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics.Operation;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace.Phase;
+
+public class PSRequestTraceTest {
+
+    @Test
+    public void testPhasesAreExclusive() throws Exception {
+        assertNull(PSRequestTrace.begin("testExit", "testSlot", "321", 60000));
+        PSRequestTrace trace = PSRequestTrace.getCurrent();
+        PSRelationshipMetrics previous = PSRelationshipMetrics.bind("testExit", "traceSlot");
+        try {
+            long mark = trace.mark();
+            long start = System.nanoTime();
+            Thread.sleep(50);
+            PSRelationshipMetrics.record(Operation.FIND_BY_FILTER, start, true);
+            PSRelationshipMetrics.count(Counter.RELATIONSHIPS_ADDED, 2);
+            trace.addSince(Phase.DOM_UPDATE, mark);
+        }
+        finally {
+            PSRelationshipMetrics.unbind(previous);
+            PSRequestTrace.end(null);
+        }
+        assertNull(PSRequestTrace.getCurrent());
+        assertTrue(trace.getPhaseNanos(Phase.RETRIEVE) >= 50000000L);
+        assertTrue(trace.getPhaseNanos(Phase.DOM_UPDATE) < 50000000L);
+        assertTrue(trace.getPhaseNanos(Phase.DOM_UPDATE) + trace.getPhaseNanos(Phase.RETRIEVE)
+                <= trace.getElapsedNanos());
+    }
+
+    @Test
+    public void testNothingIsTracedWhenNotBound() {
+        PSRelationshipMetrics.record(Operation.SAVE_RELATIONSHIPS, System.nanoTime(), true);
+        assertNull(PSRequestTrace.getCurrent());
+    }
+}
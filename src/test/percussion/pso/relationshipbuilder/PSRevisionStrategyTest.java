@@ -0,0 +1,112 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static org.junit.Assert.*;
+
+import static java.util.Arrays.asList;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.IPSRevisionStrategy;
+import com.percussion.pso.relationshipbuilder.PSAbstractRevisionStrategy;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSLazyRevisionStrategy;
+import com.percussion.pso.relationshipbuilder.PSNoRevisionStrategy;
+import com.percussion.pso.relationshipbuilder.PSRequestTrace;
+import com.percussion.pso.relationshipbuilder.PSTipRevisionStrategy;
+
+public class PSRevisionStrategyTest {
+
+    @Test
+    public void testForName() {
+        assertTrue(PSAbstractRevisionStrategy.forName(null) instanceof PSTipRevisionStrategy);
+        assertTrue(PSAbstractRevisionStrategy.forName(" Lazy ") instanceof PSLazyRevisionStrategy);
+        assertTrue(PSAbstractRevisionStrategy.forName("NONE") instanceof PSNoRevisionStrategy);
+        assertSame(PSAbstractRevisionStrategy.forName("tip"), PSAbstractRevisionStrategy.forName(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForUnknownName() {
+        PSAbstractRevisionStrategy.forName("head");
+    }
+
+    @Test
+    public void testIsCurrent() {
+        Map<Integer, Integer> tips = new HashMap<Integer, Integer>();
+        tips.put(1, 3);
+        IPSRevisionStrategy tip = PSAbstractRevisionStrategy.forName("tip");
+        assertTrue(tip.isCurrent(new PSLocator(1, 3), tips));
+        assertFalse(tip.isCurrent(new PSLocator(1, 2), tips));
+        assertTrue(tip.isCurrent(new PSLocator(2, -1), tips));
+        // no summary for the item, e.g. purged
+        assertFalse(tip.isCurrent(new PSLocator(2, 1), tips));
+        assertTrue(PSAbstractRevisionStrategy.forName("none").isCurrent(new PSLocator(1, 2), tips));
+    }
+
+    @Test
+    public void testLazyOnlyResolvesTheRevisionsToCompare() {
+        // active assembly: owner 10 is checked out, 11 is found with one revision
+        List<PSRelationship> aa = asList(
+                new PSRelationship(1, new PSLocator(10, 2), new PSLocator(1, -1)),
+                new PSRelationship(2, new PSLocator(10, 3), new PSLocator(1, -1)),
+                new PSRelationship(3, new PSLocator(11, 1), new PSLocator(1, -1)),
+                new PSRelationship(4, new PSLocator(12, -1), new PSLocator(2, 4)));
+        IPSRevisionStrategy lazy = new PSLazyRevisionStrategy();
+        assertEquals(PSIntSet.of(2, 10), new PSIntSet(lazy.getIdsToResolve(aa)));
+
+        Map<Integer, Integer> tips = new HashMap<Integer, Integer>();
+        tips.put(10, 3);
+        tips.put(2, 5);
+        assertTrue(lazy.isCurrent(new PSLocator(10, 3), tips));
+        assertFalse(lazy.isCurrent(new PSLocator(10, 2), tips));
+        assertTrue("not resolved", lazy.isCurrent(new PSLocator(11, 1), tips));
+        assertFalse(lazy.isCurrent(new PSLocator(2, 4), tips));
+    }
+
+    @Test
+    public void testSummariesAvoidedAreCountedAgainstTip() {
+        // active assembly: revision specific owners, the dependent is any revision
+        List<PSRelationship> aa = asList(
+                new PSRelationship(1, new PSLocator(10, 2), new PSLocator(1, -1)),
+                new PSRelationship(2, new PSLocator(11, 1), new PSLocator(1, -1)));
+        // e.g. folders: neither side is revision specific
+        List<PSRelationship> folder = asList(
+                new PSRelationship(3, new PSLocator(20, -1), new PSLocator(1, -1)));
+
+        PSRequestTrace previous = PSRequestTrace.begin("testExit", "testSlot", "1", 60000);
+        try {
+            PSAbstractRevisionStrategy tip = new PSTipRevisionStrategy();
+            assertEquals(2, tip.getIdsToResolve(aa).size());
+            assertEquals(1, tip.getIdsToResolve(folder).size());
+            assertEquals(3L, tip.getSummariesRequested());
+            assertEquals(0L, tip.getSummariesAvoided());
+
+            PSAbstractRevisionStrategy lazy = new PSLazyRevisionStrategy();
+            assertEquals(0, lazy.getIdsToResolve(aa).size());
+            assertEquals(2L, lazy.getSummariesAvoided());
+            assertEquals(0, lazy.getIdsToResolve(folder).size());
+            assertEquals(3L, lazy.getSummariesAvoided());
+
+            PSAbstractRevisionStrategy none = new PSNoRevisionStrategy();
+            none.getIdsToResolve(aa);
+            assertEquals(2L, none.getSummariesAvoided());
+            none.resetCounters();
+            assertEquals(0L, none.getSummariesAvoided());
+        }
+        finally {
+            PSRequestTrace.end(previous);
+        }
+        PSAbstractRevisionStrategy none = new PSNoRevisionStrategy();
+        none.getIdsToResolve(aa);
+        assertEquals(2L, none.getRelationshipCount());
+        if (!LogFactory.getLog(PSAbstractRevisionStrategy.class).isDebugEnabled())
+            assertEquals("only counted while traced", 0L, none.getSummariesAvoided());
+    }
+
+}
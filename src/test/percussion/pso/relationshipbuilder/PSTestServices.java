@@ -0,0 +1,471 @@
+package test.percussion.pso.relationshipbuilder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+import com.percussion.cms.PSCmsException;
+import com.percussion.cms.objectstore.PSAaRelationship;
+import com.percussion.cms.objectstore.PSComponentSummary;
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSActiveAssemblyRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSDesignObjectCache;
+import com.percussion.pso.relationshipbuilder.PSDuplicateRelationshipCleaner;
+import com.percussion.pso.relationshipbuilder.PSFolderQueryCache;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipHelperService;
+import com.percussion.server.IPSRequestContext;
+import com.percussion.services.assembly.IPSAssemblyService;
+import com.percussion.services.assembly.IPSAssemblyTemplate;
+import com.percussion.services.assembly.IPSTemplateSlot;
+import com.percussion.services.contentmgr.IPSContentMgr;
+import com.percussion.services.legacy.IPSCmsObjectMgr;
+import com.percussion.services.relationship.IPSRelationshipService;
+import com.percussion.utils.guid.IPSGuid;
+
+/**
+ * In-memory stand-ins for the Rhythmyx services used by the tests and the
+ * benchmarks in src-bench. The services are dynamic proxies that answer only
+ * the methods the builders call, any other call fails with
+ * {@link UnsupportedOperationException}.
+ * <p>
+ * The relationship service keeps the relationships in a list. Without a
+ * {@link Finder} every filter finds all of them, which is what the tests
+ * that work on a single item expect. The benchmarks turn off
+ * {@link #setRecording(boolean) recording}: the calls are not remembered
+ * and saves and deletes are only counted, so that every invocation sees the
+ * same relationships.
+ */
+public class PSTestServices {
+
+    public static final String SLOT_NAME = "testSlot";
+    public static final String TEMPLATE_NAME = "testTemplate";
+    public static final long SLOT_ID = 510;
+    public static final long TEMPLATE_ID = 520;
+
+    /**
+     * Answers a filter in place of the whole list.
+     */
+    public interface Finder {
+        List<PSRelationship> find(Object filter) throws Exception;
+    }
+
+    private final List<PSRelationship> m_relationships = new ArrayList<PSRelationship>();
+    private final Map<Integer, PSComponentSummary> m_summaries =
+        new HashMap<Integer, PSComponentSummary>();
+    private final List<Collection<Integer>> m_summaryLoads = new ArrayList<Collection<Integer>>();
+    private final List<String> m_calls = new ArrayList<String>();
+    private final IPSTemplateSlot m_slot;
+    private final IPSAssemblyTemplate m_template;
+    private final List<String> m_queries = new ArrayList<String>();
+    private PSIntSet m_folderIds = new PSIntSet();
+    private PSIntSet m_itemFolderIds = new PSIntSet();
+    private Finder m_finder;
+    private int m_failingCall = -1;
+    private int m_nextId = 1;
+    private boolean m_recording = true;
+    private final AtomicLong m_saved = new AtomicLong();
+    private final AtomicLong m_deleted = new AtomicLong();
+
+    public PSTestServices() {
+        m_slot = proxy(IPSTemplateSlot.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("getGUID")) return guid(SLOT_ID);
+                if (method.equals("getName")) return SLOT_NAME;
+                if (method.equals("getRelationshipName")) return "ActiveAssembly";
+                throw unsupported(method);
+            }
+        });
+        m_template = proxy(IPSAssemblyTemplate.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("getGUID")) return guid(TEMPLATE_ID);
+                if (method.equals("getName")) return TEMPLATE_NAME;
+                throw unsupported(method);
+            }
+        });
+    }
+
+    /**
+     * Relates an item, as the dependent, to <code>fanOut</code> owners with
+     * consecutive content ids, the way a popular item is used from many
+     * others.
+     *
+     * @param itemId the content id of the item.
+     * @param firstOwnerId the content id of the first owner.
+     * @param fanOut the number of owners.
+     * @param duplicateRatio the share of the owners with a second,
+     *            duplicate, relationship to the item.
+     * @param checkedOutRatio the share of the owners that are checked out.
+     *            The relationship service returns the relationship of both
+     *            their current and edit revisions, the revision strategy has
+     *            to drop the current one.
+     * @param seed picks the duplicated and checked out owners.
+     */
+    public void addOwners(int itemId, int firstOwnerId, int fanOut, double duplicateRatio,
+            double checkedOutRatio, long seed) {
+        Random random = new Random(seed);
+        addItem(itemId, 1, 1);
+        PSLocator dependent = new PSLocator(itemId, -1);
+        for (int i = 0; i < fanOut; i++) {
+            int ownerId = firstOwnerId + i;
+            boolean checkedOut = random.nextDouble() < checkedOutRatio;
+            int tip = checkedOut ? 2 : 1;
+            addItem(ownerId, 1, tip);
+            if (checkedOut) addRelationship(new PSLocator(ownerId, 1), dependent);
+            addRelationship(new PSLocator(ownerId, tip), dependent);
+            if (random.nextDouble() < duplicateRatio)
+                addRelationship(new PSLocator(ownerId, tip), dependent);
+        }
+    }
+
+    /**
+     * Adds the summary of an item.
+     */
+    public void addItem(int contentId, int currentRevision, int tipRevision) {
+        PSComponentSummary summary = new PSComponentSummary();
+        summary.setContentId(contentId);
+        summary.setCurrentLocator(new PSLocator(contentId, currentRevision));
+        summary.setTipLocator(new PSLocator(contentId, tipRevision));
+        m_summaries.put(contentId, summary);
+    }
+
+    /**
+     * Adds a relationship in the test slot with the test template, as if it
+     * was saved.
+     */
+    public PSRelationship addRelationship(PSLocator owner, PSLocator dependent) {
+        PSRelationship relationship = new PSAaRelationship(owner, dependent, m_slot, m_template);
+        relationship.setId(m_nextId++);
+        m_relationships.add(relationship);
+        return relationship;
+    }
+
+    /**
+     * @return the saved relationships, not a copy.
+     */
+    public List<PSRelationship> getRelationships() {
+        return m_relationships;
+    }
+
+    /**
+     * @return the ids of each summary load.
+     */
+    public List<Collection<Integer>> getSummaryLoads() {
+        return m_summaryLoads;
+    }
+
+    /**
+     * @return the service calls made, e.g. <code>saveRelationship 2</code>
+     *         for a save of two relationships.
+     */
+    public List<String> getCalls() {
+        return m_calls;
+    }
+
+    /**
+     * @param recording <code>false</code> to neither remember the calls and
+     *            summary loads nor apply the saves and deletes, for the
+     *            benchmarks. On by default.
+     */
+    public void setRecording(boolean recording) {
+        m_recording = recording;
+    }
+
+    /**
+     * @return the number of relationships passed to save.
+     */
+    public long getSavedCount() {
+        return m_saved.get();
+    }
+
+    /**
+     * @return the number of relationships passed to delete.
+     */
+    public long getDeletedCount() {
+        return m_deleted.get();
+    }
+
+    /**
+     * @param folderIds the folders selected by any folder query.
+     * @param itemFolderIds the folders of the item, the result of the queries
+     *            with a <code>contentId</code> parameter.
+     */
+    public void setFolders(PSIntSet folderIds, PSIntSet itemFolderIds) {
+        m_folderIds = folderIds;
+        m_itemFolderIds = itemFolderIds;
+    }
+
+    /**
+     * @return the statements of the queries created, while recording.
+     */
+    public List<String> getQueries() {
+        return m_queries;
+    }
+
+    public void setFinder(Finder finder) {
+        m_finder = finder;
+    }
+
+    /**
+     * Makes a call to the relationship service fail.
+     *
+     * @param call the index of the call, from 0, <code>-1</code> for none.
+     */
+    public void setFailingCall(int call) {
+        m_failingCall = call;
+    }
+
+    public IPSTemplateSlot getSlot() {
+        return m_slot;
+    }
+
+    public IPSAssemblyTemplate getTemplate() {
+        return m_template;
+    }
+
+    /**
+     * Sets the services on a builder, with its own design object cache and a
+     * duplicate cleaner that deletes through the test service.
+     */
+    public void wire(PSActiveAssemblyRelationshipBuilder builder) {
+        builder.setRelationshipService(getRelationshipService());
+        builder.setCmsObjectManager(getCmsObjectManager());
+        builder.setM_assemblyService(getAssemblyService());
+        builder.setDesignObjectCache(new PSDesignObjectCache(10, 60000));
+        PSDuplicateRelationshipCleaner cleaner = new PSDuplicateRelationshipCleaner(100, 10, 60000);
+        cleaner.setRelationshipService(getRelationshipService());
+        builder.setDuplicateCleaner(cleaner);
+    }
+
+    /**
+     * Sets the services on a helper service, with its own design object and
+     * folder query caches. The helper is not initialized.
+     */
+    public void wire(PSRelationshipHelperService helper) {
+        helper.setRelationshipService(getRelationshipService());
+        helper.setCmsObjectManager(getCmsObjectManager());
+        helper.setAssemblyService(getAssemblyService());
+        helper.setContentManager(getContentManager());
+        helper.setDesignObjectCache(new PSDesignObjectCache(10, 60000));
+        helper.setFolderQueryCache(new PSFolderQueryCache(10, 60 * 60 * 1000L));
+    }
+
+    public IPSRelationshipService getRelationshipService() {
+        return proxy(IPSRelationshipService.class, new Answer() {
+            @SuppressWarnings("unchecked")
+            public Object answer(String method, Object[] args) throws Exception {
+                if (method.equals("findByFilter")) {
+                    if (!m_recording) return m_relationships;
+                    call(method, -1);
+                    return m_finder != null ? m_finder.find(args[0])
+                            : new ArrayList<PSRelationship>(m_relationships);
+                }
+                if (method.equals("saveRelationship")) {
+                    Collection<PSRelationship> saved = (Collection<PSRelationship>) args[0];
+                    m_saved.addAndGet(saved.size());
+                    if (!m_recording) return null;
+                    call(method, saved.size());
+                    for (PSRelationship relationship : saved) {
+                        if (relationship.getId() <= 0) relationship.setId(m_nextId++);
+                        m_relationships.add(relationship);
+                    }
+                    return null;
+                }
+                if (method.equals("deleteRelationship")) {
+                    Collection<PSRelationship> deleted = (Collection<PSRelationship>) args[0];
+                    m_deleted.addAndGet(deleted.size());
+                    if (!m_recording) return null;
+                    call(method, deleted.size());
+                    for (PSRelationship relationship : deleted) {
+                        for (int i = 0; i < m_relationships.size(); i++) {
+                            if (m_relationships.get(i).getId() == relationship.getId()) {
+                                m_relationships.remove(i);
+                                break;
+                            }
+                        }
+                    }
+                    return null;
+                }
+                throw unsupported(method);
+            }
+        });
+    }
+
+    private synchronized void call(String method, int count) throws PSCmsException {
+        int index = m_calls.size();
+        m_calls.add(count < 0 ? method : method + " " + count);
+        if (index == m_failingCall) throw new PSCmsException(0, "Call " + index + " fails");
+    }
+
+    public IPSCmsObjectMgr getCmsObjectManager() {
+        return proxy(IPSCmsObjectMgr.class, new Answer() {
+            @SuppressWarnings("unchecked")
+            public Object answer(String method, Object[] args) {
+                if (!method.equals("loadComponentSummaries")) throw unsupported(method);
+                Collection<Integer> ids = (Collection<Integer>) args[0];
+                if (m_recording) m_summaryLoads.add(new ArrayList<Integer>(ids));
+                List<PSComponentSummary> summaries = new ArrayList<PSComponentSummary>();
+                for (Integer id : ids) {
+                    PSComponentSummary summary = m_summaries.get(id);
+                    if (summary != null) summaries.add(summary);
+                }
+                return summaries;
+            }
+        });
+    }
+
+    public IPSAssemblyService getAssemblyService() {
+        return proxy(IPSAssemblyService.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("findSlotByName") && SLOT_NAME.equals(args[0])) return m_slot;
+                if (method.equals("findTemplateByName") && TEMPLATE_NAME.equals(args[0]))
+                    return m_template;
+                throw unsupported(method + " " + args[0]);
+            }
+        });
+    }
+
+    /**
+     * @return a content manager whose queries return the folders set with
+     *         {@link #setFolders(PSIntSet, PSIntSet)}.
+     */
+    public IPSContentMgr getContentManager() {
+        return proxy(IPSContentMgr.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("createQuery")) {
+                    if (m_recording) m_queries.add((String) args[0]);
+                    return query((String) args[0]);
+                }
+                if (method.equals("executeQuery")) {
+                    Map<?, ?> params = (Map<?, ?>) args[2];
+                    boolean forItem = params != null && params.containsKey("contentId");
+                    return result(forItem ? m_itemFolderIds : m_folderIds);
+                }
+                throw unsupported(method);
+            }
+        });
+    }
+
+    private static Query query(final String statement) {
+        return proxy(Query.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("getStatement")) return statement;
+                throw unsupported(method);
+            }
+        });
+    }
+
+    private static QueryResult result(final PSIntSet folderIds) {
+        return proxy(QueryResult.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (!method.equals("getRows")) throw unsupported(method);
+                final Iterator<Integer> ids = folderIds.iterator();
+                return proxy(RowIterator.class, new Answer() {
+                    public Object answer(String method, Object[] args) {
+                        if (method.equals("hasNext")) return ids.hasNext();
+                        if (method.equals("nextRow")) return row(ids.next());
+                        throw unsupported(method);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Row row(final int folderId) {
+        return proxy(Row.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (!method.equals("getValue") || !"rx:sys_folderid".equals(args[0]))
+                    throw unsupported(method);
+                return proxy(Value.class, new Answer() {
+                    public Object answer(String method, Object[] args) {
+                        if (method.equals("getLong")) return (long) folderId;
+                        throw unsupported(method);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param parameters the request parameters, not <code>null</code>.
+     * @return a request with the parameters and private objects.
+     */
+    public static IPSRequestContext requestContext(final Map<String, String> parameters) {
+        final Map<Object, Object> privateObjects = new HashMap<Object, Object>();
+        return proxy(IPSRequestContext.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("getParameter")) {
+                    String value = parameters.get(args[0]);
+                    return value == null && args.length > 1 ? args[1] : value;
+                }
+                if (method.equals("getParameterList")) {
+                    String value = parameters.get(args[0]);
+                    return value == null ? null : new Object[] {value};
+                }
+                if (method.equals("getPrivateObject")) return privateObjects.get(args[0]);
+                if (method.equals("setPrivateObject")) {
+                    privateObjects.put(args[0], args[1]);
+                    return null;
+                }
+                throw unsupported(method);
+            }
+        });
+    }
+
+    public static IPSGuid guid(final long value) {
+        return proxy(IPSGuid.class, new Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("longValue")) return value;
+                throw unsupported(method);
+            }
+        });
+    }
+
+    /**
+     * Answers the calls to a stand-in by method name.
+     */
+    public abstract static class Answer {
+        public abstract Object answer(String method, Object[] args) throws Exception;
+
+        protected UnsupportedOperationException unsupported(String method) {
+            return new UnsupportedOperationException(method + " is not answered by the test service");
+        }
+    }
+
+    public static <T> T proxy(final Class<T> type, final Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            if (method.getName().equals("equals")) return proxy == args[0];
+                            if (method.getName().equals("hashCode"))
+                                return System.identityHashCode(proxy);
+                            return type.getSimpleName() + " stand-in";
+                        }
+                        try {
+                            return answer.answer(method.getName(), args);
+                        }
+                        catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                }));
+    }
+}
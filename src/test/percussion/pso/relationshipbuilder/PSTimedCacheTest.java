@@ -0,0 +1,54 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.PSTimedCache;
+
+public class PSTimedCacheTest {
+
+    @Test
+    public void testGetPut() {
+        PSTimedCache<String, Integer> cache = new PSTimedCache<String, Integer>(10, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        PSTimedCache<String, Integer> cache = new PSTimedCache<String, Integer>(2, 0);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.get("a");
+        cache.put("c", 3);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1L, cache.getEvictions());
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+        PSTimedCache<String, Integer> cache = new PSTimedCache<String, Integer>(10, 1);
+        cache.put("a", 1);
+        Thread.sleep(5);
+        assertNull(cache.get("a"));
+        assertEquals(1L, cache.getExpirations());
+    }
+
+    @Test
+    public void testFlush() {
+        PSTimedCache<String, Integer> cache = new PSTimedCache<String, Integer>(10, 0);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.flush();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+    }
+
+}
@@ -0,0 +1,160 @@
+package test.percussion.pso.relationshipbuilder;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.design.objectstore.PSLocator;
+import com.percussion.design.objectstore.PSRelationship;
+import com.percussion.pso.relationshipbuilder.PSDesignObjectCache;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipHelperService;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSTraversalResult;
+
+public class PSTraversalResultTest {
+
+    private PSRelationshipMetrics m_previousMetrics;
+    private PSTestServices m_services;
+    private PSRelationshipHelperService m_helper;
+    /**
+     * The answers of the relationship service in order, the last one is
+     * repeated. The filters cannot be inspected.
+     */
+    private List<List<PSRelationship>> m_answers = new ArrayList<List<PSRelationship>>();
+
+    @Before
+    public void setUp() {
+        m_previousMetrics = PSRelationshipMetrics.bind("traversalTest", PSTestServices.SLOT_NAME);
+        m_services = new PSTestServices();
+        // 1 -> 2, 3; 2 -> 4; 3 -> 4; 4 -> 5
+        relate(1, 2);
+        relate(1, 3);
+        relate(2, 4);
+        relate(3, 4);
+        relate(4, 5);
+        m_services.setFinder(new PSTestServices.Finder() {
+            public List<PSRelationship> find(Object filter) {
+                return m_answers.size() > 1 ? m_answers.remove(0) : m_answers.get(0);
+            }
+        });
+        m_helper = new PSRelationshipHelperService();
+        m_helper.setRelationshipService(m_services.getRelationshipService());
+        m_helper.setAssemblyService(m_services.getAssemblyService());
+        m_helper.setDesignObjectCache(new PSDesignObjectCache(10, 60000));
+    }
+
+    @After
+    public void tearDown() {
+        PSRelationshipMetrics.unbind(m_previousMetrics);
+    }
+
+    @Test
+    public void testDownwardTraversalQueriesEachOwner() throws Exception {
+        answerOwners(1, 2, 3, 4, 5);
+        PSTraversalResult result = traverse(1, true, 10);
+        assertEquals(asList(PSIntSet.of(1), PSIntSet.of(2, 3), PSIntSet.of(4), PSIntSet.of(5)),
+                result.getLevels());
+        assertEquals(PSIntSet.of(1, 2, 3, 4, 5), result.getIds());
+        assertEquals(3, result.getMaxDepth());
+        assertFalse(result.isTruncated());
+        assertEquals("one query per item, never the whole slot", asList("findByFilter",
+                "findByFilter", "findByFilter", "findByFilter", "findByFilter"),
+                m_services.getCalls());
+    }
+
+    @Test
+    public void testTruncatedOnlyWhenItemsRemain() throws Exception {
+        answerOwners(1, 2, 3, 4);
+        PSTraversalResult result = traverse(1, true, 2);
+        assertEquals(2, result.getMaxDepth());
+        assertTrue("4 -> 5 is not followed", result.isTruncated());
+
+        m_answers.clear();
+        answerOwners(1, 2, 3, 4, 5);
+        result = traverse(1, true, 3);
+        assertEquals(3, result.getMaxDepth());
+        assertFalse("5 has no dependents", result.isTruncated());
+    }
+
+    @Test
+    public void testCyclesAreNotTruncated() throws Exception {
+        relate(5, 1);
+        answerOwners(1, 2, 3, 4, 5);
+        PSTraversalResult result = traverse(1, true, 4);
+        assertEquals(PSIntSet.of(1, 2, 3, 4, 5), result.getIds());
+        assertFalse("1 was already reached", result.isTruncated());
+    }
+
+    @Test
+    public void testUpwardTraversal() throws Exception {
+        m_answers.add(withDependent(5));
+        m_answers.add(withDependent(4));
+        PSTraversalResult result = traverse(5, false, 1);
+        assertEquals(asList(PSIntSet.of(5), PSIntSet.of(4)), result.getLevels());
+        assertTrue(result.isTruncated());
+        assertEquals(asList("findByFilter", "findByFilter"), m_services.getCalls());
+    }
+
+    @Test
+    public void testDepths() throws Exception {
+        answerOwners(1, 2, 3, 4, 5);
+        PSTraversalResult result = traverse(1, true, 10);
+        assertEquals(1, result.getStartId());
+        assertEquals(0, result.getDepth(1));
+        assertEquals(1, result.getDepth(3));
+        assertEquals(2, result.getDepth(4));
+        assertEquals(-1, result.getDepth(99));
+        assertEquals(PSIntSet.of(), result.getLevel(7));
+        assertEquals(PSIntSet.of(), result.getLevel(-1));
+    }
+
+    @Test
+    public void testMaxDepthZero() throws Exception {
+        m_answers.add(withOwner(1));
+        PSTraversalResult result = traverse(1, true, 0);
+        assertEquals(asList(PSIntSet.of(1)), result.getLevels());
+        assertTrue(result.isTruncated());
+    }
+
+    private PSTraversalResult traverse(int startId, boolean isOwner, int maxDepth)
+            throws Exception {
+        return m_helper.traverse(startId, PSTestServices.SLOT_NAME,
+                PSTestServices.TEMPLATE_NAME, isOwner, maxDepth);
+    }
+
+    private void relate(int ownerId, int dependentId) {
+        m_services.addRelationship(new PSLocator(ownerId, 1), new PSLocator(dependentId, -1));
+    }
+
+    /**
+     * Answers the queries of the dependents of the owners, in order.
+     */
+    private void answerOwners(int... ownerIds) {
+        for (int ownerId : ownerIds) {
+            m_answers.add(withOwner(ownerId));
+        }
+    }
+
+    private List<PSRelationship> withOwner(int ownerId) {
+        List<PSRelationship> found = new ArrayList<PSRelationship>();
+        for (PSRelationship relationship : m_services.getRelationships()) {
+            if (relationship.getOwner().getId() == ownerId) found.add(relationship);
+        }
+        return found;
+    }
+
+    private List<PSRelationship> withDependent(int dependentId) {
+        List<PSRelationship> found = new ArrayList<PSRelationship>();
+        for (PSRelationship relationship : m_services.getRelationships()) {
+            if (relationship.getDependent().getId() == dependentId) found.add(relationship);
+        }
+        return found;
+    }
+}
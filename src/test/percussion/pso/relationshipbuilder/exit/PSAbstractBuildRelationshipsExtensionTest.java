@@ -0,0 +1,196 @@
+package test.percussion.pso.relationshipbuilder.exit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.percussion.extension.IPSExtensionDef;
+import com.percussion.extension.PSExtensionRef;
+import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSBuildJournal;
+import com.percussion.pso.relationshipbuilder.PSCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSRelationshipMetrics;
+import com.percussion.pso.relationshipbuilder.PSRequestCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.exit.PSAbstractBuildRelationshipsExtension;
+import com.percussion.server.IPSRequestContext;
+import com.percussion.utils.request.PSRequestInfo;
+
+import test.percussion.pso.relationshipbuilder.PSTestServices;
+
+/**
+ * The async mode of the extensions, with a builder that keeps the related
+ * ids of each item in a map.
+ */
+public class PSAbstractBuildRelationshipsExtensionTest {
+
+    private static final Map<String, String> PARAMETERS =
+        Collections.singletonMap("slotName", "s");
+
+    private File m_journalDir;
+    private final List<TestExtension> m_extensions = new ArrayList<TestExtension>();
+    private final Map<Integer, PSIntSet> m_relatedIds = new HashMap<Integer, PSIntSet>();
+    private final List<Object> m_users = Collections.synchronizedList(new ArrayList<Object>());
+    /**
+     * Holds the builds until counted down.
+     */
+    private final CountDownLatch m_gate = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        m_journalDir = File.createTempFile("PSAbstractBuildRelationshipsExtensionTest", "");
+        m_journalDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        m_gate.countDown();
+        for (TestExtension extension : m_extensions) {
+            extension.shutdown();
+        }
+        File[] files = m_journalDir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        m_journalDir.delete();
+    }
+
+    @Test
+    public void testInitAgainClosesTheJournal() throws Exception {
+        TestExtension extension = init("BUILD", "pso_Test");
+        PSBuildJournal first = extension.getBuildJournal();
+        assertNotNull(first);
+        assertFalse(first.isClosed());
+
+        init(extension, "BUILD", "pso_Test");
+        assertTrue(first.isClosed());
+        assertNotSame(first, extension.getBuildJournal());
+        assertFalse(extension.getBuildJournal().isClosed());
+
+        // the server reloaded the extension
+        TestExtension reloaded = init("BUILD", "pso_Test");
+        assertNull(extension.getBuildJournal());
+        assertFalse(reloaded.getBuildJournal().isClosed());
+        assertEquals(first.getFile(), reloaded.getBuildJournal().getFile());
+
+        reloaded.shutdown();
+        assertNull(reloaded.getBuildJournal());
+    }
+
+    @Test
+    public void testInitAgainUnregistersTheMetrics() throws Exception {
+        TestExtension extension = init("BUILD", "pso_Test");
+        PSRelationshipMetrics metrics = PSRelationshipMetrics.getInstance("pso_Test", "s");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                metrics.getObjectName()));
+
+        init(extension, "BUILD", "pso_Test");
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                metrics.getObjectName()));
+        assertNotSame(metrics, PSRelationshipMetrics.getInstance("pso_Test", "s"));
+        PSRelationshipMetrics.unregister("pso_Test");
+    }
+
+    @Test
+    public void testSelectReadsTheIdsNotBuiltYet() throws Exception {
+        m_relatedIds.put(5, PSIntSet.of(1));
+        TestExtension build = init("BUILD", "pso_Test");
+        TestExtension select = init("SELECT", "pso_TestSelect");
+        IPSRelationshipBuilder builder = select.getBuilder(PARAMETERS);
+        assertEquals(PSIntSet.of(1), new PSIntSet(builder.retrieve(5)));
+
+        build.getBuildJournal().record(PARAMETERS, 5, PSIntSet.of(2, 3), "editor");
+        assertEquals("recorded", PSIntSet.of(2, 3), new PSIntSet(builder.retrieve(5)));
+        assertEquals(PSIntSet.of(2, 3), builder.retrieveAll(PSIntSet.of(5)).get(5));
+        assertEquals("other builder", PSIntSet.of(1), new PSIntSet(
+                select.getBuilder(Collections.singletonMap("slotName", "t")).retrieve(5)));
+
+        m_gate.countDown();
+        assertTrue(build.getBuildJournal().awaitIdle(5000));
+        assertEquals("built", PSIntSet.of(2, 3), m_relatedIds.get(5));
+        assertEquals(PSIntSet.of(2, 3), new PSIntSet(builder.retrieve(5)));
+        assertEquals("the worker runs as the user who saved the item",
+                Collections.singletonList("editor"), m_users);
+    }
+
+    @Test
+    public void testCacheFlagSelectsAnotherBuilder() throws Exception {
+        TestExtension extension = init("BUILD", "pso_Test");
+        Map<String, String> cached = new HashMap<String, String>(PARAMETERS);
+        cached.put("cacheRelationships", "yes");
+        IPSRelationshipBuilder withCache = extension.getBuilder(cached);
+        IPSRelationshipBuilder withoutCache = extension.getBuilder(PARAMETERS);
+        assertNotSame(withCache, withoutCache);
+        assertTrue(((PSRequestCachingRelationshipBuilder) withCache).getBuilder() 
+                instanceof PSCachingRelationshipBuilder);
+        assertFalse(((PSRequestCachingRelationshipBuilder) withoutCache).getBuilder() 
+                instanceof PSCachingRelationshipBuilder);
+        assertSame(withCache, extension.getBuilder(cached));
+        assertSame(withoutCache, extension.getBuilder(PARAMETERS));
+    }
+
+    private TestExtension init(String mode, String name) throws Exception {
+        TestExtension extension = new TestExtension();
+        m_extensions.add(extension);
+        init(extension, mode, name);
+        return extension;
+    }
+
+    private void init(TestExtension extension, String mode, String name) throws Exception {
+        final Map<String, String> initParams = new HashMap<String, String>();
+        initParams.put("com.percussion.extension.relationshipbuilder.mode", mode);
+        initParams.put("com.percussion.extension.relationshipbuilder.async", "yes");
+        initParams.put("com.percussion.extension.relationshipbuilder.journalDir",
+                m_journalDir.getPath());
+        final PSExtensionRef ref = new PSExtensionRef("Java", "global/percussion/test/", name);
+        extension.init(PSTestServices.proxy(IPSExtensionDef.class, new PSTestServices.Answer() {
+            public Object answer(String method, Object[] args) {
+                if (method.equals("getInitParameter")) return initParams.get(args[0]);
+                if (method.equals("getRef")) return ref;
+                throw unsupported(method);
+            }
+        }), null);
+    }
+
+    private class TestExtension extends PSAbstractBuildRelationshipsExtension {
+
+        @Override
+        public IPSRelationshipBuilder createRelationshipBuilder(Map<String, String> paramMap,
+                IPSRequestContext request, Mode mode) {
+            return PSTestServices.proxy(IPSRelationshipBuilder.class, new PSTestServices.Answer() {
+                public Object answer(String method, Object[] args) throws Exception {
+                    if (method.equals("retrieve") && args.length == 1) {
+                        PSIntSet ids = m_relatedIds.get(args[0]);
+                        return ids != null ? ids : new PSIntSet();
+                    }
+                    if (method.equals("retrieveAll")) {
+                        throw new AssertionError("the pending ids are not read again");
+                    }
+                    if (method.equals("synchronize")) {
+                        assertTrue(m_gate.await(5, TimeUnit.SECONDS));
+                        m_users.add(PSRequestInfo.getRequestInfo(PSRequestInfo.KEY_USER));
+                        m_relatedIds.put((Integer) args[0], (PSIntSet) args[1]);
+                        return null;
+                    }
+                    throw unsupported(method);
+                }
+            });
+        }
+
+        private IPSRelationshipBuilder getBuilder(Map<String, String> paramMap) {
+            return getRelationshipBuilder(paramMap, null, getMode());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package test.percussion.pso.relationshipbuilder.exit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.percussion.pso.relationshipbuilder.exit.PSBuildAaMultiFieldRelationshipsExit;
+
+public class PSBuildAaMultiFieldRelationshipsExitTest {
+
+    @Test
+    public void testFieldMappings() {
+        Map<String, String[]> mappings = getFieldMappings(
+                " topics = rffTopics, rffSnTitle ,DEPENDENT;; related=rffRelated,rffSnTitleLink,OWNER ;");
+        assertEquals("in the order of the parameter", asList("topics", "related"),
+                new ArrayList<String>(mappings.keySet()));
+        assertEquals(asList("rffTopics", "rffSnTitle", "DEPENDENT"),
+                asList(mappings.get("topics")));
+        assertEquals(asList("rffRelated", "rffSnTitleLink", "OWNER"),
+                asList(mappings.get("related")));
+    }
+
+    @Test
+    public void testMalformedFieldMappings() {
+        for (String value : new String[] {
+                "related", "related=", "related=rffRelated,rffSnTitleLink",
+                "related=rffRelated,rffSnTitleLink,OWNER,extra", "=rffRelated,rffSnTitleLink,OWNER",
+                "topics=rffTopics,rffSnTitle,DEPENDENT;related", "", " ; ;"}) {
+            try {
+                getFieldMappings(value);
+                fail("'" + value + "' is not valid");
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Parameter fieldMappings"));
+            }
+        }
+    }
+
+    private static Map<String, String[]> getFieldMappings(String value) {
+        Map<String, String> paramMap = new HashMap<String, String>();
+        paramMap.put("fieldMappings", value);
+        return PSBuildAaMultiFieldRelationshipsExit.getFieldMappings(paramMap, null);
+    }
+}
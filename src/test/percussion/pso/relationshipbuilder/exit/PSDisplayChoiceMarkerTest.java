@@ -0,0 +1,121 @@
+package test.percussion.pso.relationshipbuilder.exit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.exit.PSDisplayChoiceMarker;
+import com.percussion.xml.PSXmlDocumentBuilder;
+
+/**
+ * Marks large versions of the <code>BeforeCe.xml</code> editor, a taxonomy
+ * tree with {@link #ENTRY_COUNT} display entries behind other fields with
+ * large display choices. The time it takes is measured by
+ * <code>PSDisplayChoiceMarkerBenchmark</code> in <code>src-bench</code>.
+ */
+public class PSDisplayChoiceMarkerTest {
+
+    private static final int ENTRY_COUNT = 20000;
+
+    private Document m_doc;
+
+    @Before
+    public void setUp() throws Exception {
+        String basePath = "src/test/percussion/pso/relationshipbuilder/exit";
+        m_doc = PSXmlDocumentBuilder.createXmlDocument(
+                new FileInputStream(new File(basePath + "/" + "BeforeCe.xml")), false);
+        Element tree = PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), "tree");
+        Element displayField = (Element) tree.getParentNode();
+        // other fields before the tree
+        for (int f = 0; f < 5; f++) {
+            Element other = (Element) displayField.cloneNode(true);
+            Element control = PSDisplayChoiceMarker.firstChild(other, "Control");
+            control.setAttribute("paramName", "other" + f);
+            grow(PSDisplayChoiceMarker.firstChild(control, "DisplayChoices"), 1000000 * (f + 1));
+            displayField.getParentNode().insertBefore(other, displayField);
+        }
+        grow(PSDisplayChoiceMarker.firstChild(tree, "DisplayChoices"), 0);
+    }
+
+    /**
+     * Replaces the display entries with {@link #ENTRY_COUNT} entries with ids
+     * from <code>base + 1</code>.
+     */
+    private static void grow(Element displayChoices, int base) {
+        Element entry = PSDisplayChoiceMarker.firstChild(displayChoices, "DisplayEntry");
+        Node child;
+        while ((child = displayChoices.getFirstChild()) != null) {
+            displayChoices.removeChild(child);
+        }
+        for (int i = 1; i <= ENTRY_COUNT; i++) {
+            Element e = (Element) entry.cloneNode(true);
+            PSDisplayChoiceMarker.firstChild(e, "Value").setTextContent(String.valueOf(base + i));
+            PSDisplayChoiceMarker.firstChild(e, "DisplayLabel").setTextContent(String.valueOf(base + i));
+            displayChoices.appendChild(e);
+        }
+    }
+
+    @Test
+    public void testFindControlSkipsOtherControls() {
+        Element tree = PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), "tree");
+        assertNotNull(tree);
+        assertEquals("tree", tree.getAttribute("paramName"));
+        assertNull(PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), "missing"));
+    }
+
+    @Test
+    public void testSelectLargeTree() {
+        PSIntSet ids = new PSIntSet();
+        for (int i = 2; i <= ENTRY_COUNT; i += 2) {
+            ids.add(i);
+        }
+        ids.add(ENTRY_COUNT + 1);
+
+        Element tree = PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), "tree");
+        PSDisplayChoiceMarker marker = PSDisplayChoiceMarker.index(
+                PSDisplayChoiceMarker.firstChild(tree, "DisplayChoices"));
+        int selected = marker.select(ids);
+
+        assertEquals(ENTRY_COUNT, marker.getEntryCount());
+        assertEquals(ENTRY_COUNT / 2, selected);
+        assertFalse(marker.isComplete());
+        assertEquals(0, marker.select(ids));
+        int yes = 0;
+        for (Node n = PSDisplayChoiceMarker.firstChild(tree, "DisplayChoices").getFirstChild();
+                n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && "yes".equals(((Element) n).getAttribute("selected"))) yes++;
+        }
+        assertEquals(ENTRY_COUNT / 2, yes);
+    }
+
+    @Test
+    public void testDuplicateAndBadValues() throws Exception {
+        Element tree = PSDisplayChoiceMarker.findControl(m_doc.getDocumentElement(), "tree");
+        Element displayChoices = PSDisplayChoiceMarker.firstChild(tree, "DisplayChoices");
+        Element first = PSDisplayChoiceMarker.firstChild(displayChoices, "DisplayEntry");
+        Element duplicate = (Element) first.cloneNode(true);
+        displayChoices.appendChild(duplicate);
+        Element bad = (Element) first.cloneNode(true);
+        PSDisplayChoiceMarker.firstChild(bad, "Value").setTextContent("abc");
+        displayChoices.appendChild(bad);
+
+        PSDisplayChoiceMarker marker = PSDisplayChoiceMarker.index(displayChoices);
+        assertEquals(3, marker.select(PSIntSet.of(1, 0)));
+        assertEquals("yes", duplicate.getAttribute("selected"));
+        assertEquals("yes", bad.getAttribute("selected"));
+    }
+
+    @Test
+    public void testJoin() {
+        assertEquals("", PSDisplayChoiceMarker.join(new PSIntSet()));
+        assertEquals("692;651;339", PSDisplayChoiceMarker.join(PSIntSet.of(692, 651, 339)));
+    }
+}
@@ -2,26 +2,45 @@ package test.percussion.pso.relationshipbuilder.exit;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.custommonkey.xmlunit.XMLUnit;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 import static org.custommonkey.xmlunit.XMLAssert.*;
 
+import com.percussion.cms.handlers.PSContentEditorHandler;
+import com.percussion.cms.handlers.PSModifyCommandHandler;
+import com.percussion.cms.handlers.PSQueryCommandHandler;
+import com.percussion.design.objectstore.PSLocator;
 import com.percussion.error.PSException;
+import com.percussion.pso.relationshipbuilder.IPSRelatedIdCursor;
 import com.percussion.pso.relationshipbuilder.IPSRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSAaDependentRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSAaRelationshipIndex;
+import com.percussion.pso.relationshipbuilder.PSCachingRelationshipBuilder;
+import com.percussion.pso.relationshipbuilder.PSDesignObjectCache;
+import com.percussion.pso.relationshipbuilder.PSIntSet;
+import com.percussion.pso.relationshipbuilder.PSIntSetCursor;
+import com.percussion.pso.relationshipbuilder.PSRelationshipCache;
+import com.percussion.pso.relationshipbuilder.PSRequestCachingRelationshipBuilder;
 import com.percussion.pso.relationshipbuilder.exit.PSExtensionHelper;
 import com.percussion.services.assembly.PSAssemblyException;
+import com.percussion.server.IPSRequestContext;
 import com.percussion.util.IPSHtmlParameters;
 import com.percussion.xml.PSXmlDocumentBuilder;
 
 import junit.framework.TestCase;
+import test.percussion.pso.relationshipbuilder.PSTestServices;
 
 public class PSExtensionHelperTest extends TestCase
 {
@@ -113,12 +132,35 @@ public class PSExtensionHelperTest extends TestCase
                 return null;
             }
 
+            public void retrieve(int sourceId, PSIntSet relatedIds)
+                    throws PSAssemblyException, PSException {
+            }
+
+            public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds)
+                    throws PSAssemblyException, PSException {
+                return null;
+            }
+
+            public IPSRelatedIdCursor openCursor(int sourceId, int pageSize)
+                    throws PSAssemblyException, PSException {
+                return null;
+            }
+
             public void synchronize(int sourceId, Set<Integer> targetIds)
                     throws PSAssemblyException, PSException {
 
             }
+
+            public void synchronize(int sourceId, PSIntSet targetIds)
+                    throws PSAssemblyException, PSException {
+
+            }
+            
+            public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId)
+                    throws PSAssemblyException, PSException {
+            }
             
-            public void addRelationships(Collection<Integer> ids)
+            public void addRelationships(int sourceId, Collection<Integer> ids)
 					throws PSAssemblyException, PSException {
 			}
 
@@ -149,12 +191,33 @@ public class PSExtensionHelperTest extends TestCase
                return Arrays.asList(307,318);
            }
        
+           public void retrieve(int sourceId, PSIntSet relatedIds) throws PSAssemblyException, PSException {
+               relatedIds.addAll(retrieve(sourceId));
+           }
+       
+           public Map<Integer, PSIntSet> retrieveAll(Collection<Integer> sourceIds) throws PSAssemblyException, PSException {
+               throw new IllegalStateException("Should not be called");
+           }
+       
+           public IPSRelatedIdCursor openCursor(int sourceId, int pageSize) throws PSAssemblyException, PSException {
+               return new PSIntSetCursor(PSIntSet.valueOf(retrieve(sourceId)), pageSize);
+           }
+       
            public void synchronize(int sourceId, Set<Integer> targetIds) throws PSAssemblyException, PSException {
                throw new IllegalStateException("Should not be called");
                
            }
            
-           public void addRelationships(Collection<Integer> ids)
+           public void synchronize(int sourceId, PSIntSet targetIds) throws PSAssemblyException, PSException {
+               throw new IllegalStateException("Should not be called");
+               
+           }
+           
+           public void synchronizeAll(Map<Integer, Set<Integer>> targetIdsBySourceId) throws PSAssemblyException, PSException {
+               throw new IllegalStateException("Should not be called");
+           }
+           
+           public void addRelationships(int sourceId, Collection<Integer> ids)
 					throws PSAssemblyException, PSException {
 			}
           
@@ -176,4 +239,173 @@ public class PSExtensionHelperTest extends TestCase
        
    }
 
+   public void testFingerprintIsCheckedAgainstTheRelationshipIndex() throws Exception
+   {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put(PSExtensionHelper.IDS_FIELD_NAME, "tree");
+      PSTestServices services = relatedServices();
+      PSAaDependentRelationshipBuilder builder = indexedBuilder(services);
+      PSRelationshipCache cache = new PSRelationshipCache(10, 0);
+      String token = cache.issueToken(100, "tree", PSIntSet.of(307, 318), cache.getGeneration(100));
+      IPSRequestContext request = request(token, "318", "307");
+      PSExtensionHelper helper = new PSExtensionHelper(builder, params, request);
+      helper.setRelationshipCache(cache);
+      assertEquals("the index is cold", PSIntSet.of(307, 318), helper.getSubmittedIds(100, "tree"));
+      assertEquals("checked without a query", 0, services.getCalls().size());
+
+      builder.getRelationshipIndex().warm();
+      services.getCalls().clear();
+      assertNull("unchanged", helper.getSubmittedIds(100, "tree"));
+      assertEquals("checked without a query", 0, services.getCalls().size());
+
+      // changed in Active Assembly, which does not invalidate the token
+      services.getRelationships().remove(1);
+      builder.getRelationshipIndex().warm();
+      assertEquals(PSIntSet.of(307, 318), helper.getSubmittedIds(100, "tree"));
+
+      PSExtensionHelper withoutBuilder = new PSExtensionHelper(null, params, request);
+      withoutBuilder.setRelationshipCache(cache);
+      assertEquals("cannot be checked", PSIntSet.of(307, 318), 
+            withoutBuilder.getSubmittedIds(100, "tree"));
+   }
+
+   public void testFingerprintIsCheckedWithoutTheCaches() throws Exception
+   {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put(PSExtensionHelper.IDS_FIELD_NAME, "tree");
+      PSTestServices services = relatedServices();
+      PSAaDependentRelationshipBuilder indexed = indexedBuilder(services);
+      indexed.getRelationshipIndex().warm();
+      PSRelationshipCache cache = new PSRelationshipCache(10, 60000);
+      // wrapped the way the extensions wrap their builders
+      IPSRelationshipBuilder builder = new PSRequestCachingRelationshipBuilder(
+            new PSCachingRelationshipBuilder(indexed, "tree", cache), "tree");
+      assertEquals(PSIntSet.of(307, 318), builder.retrieve(100));
+      String token = cache.issueToken(100, "tree", PSIntSet.of(307, 318), cache.getGeneration(100));
+      PSExtensionHelper helper = new PSExtensionHelper(builder, params, request(token, "318", "307"));
+      helper.setRelationshipCache(cache);
+
+      // changed in Active Assembly, the cache still has the displayed ids
+      services.getRelationships().remove(1);
+      indexed.getRelationshipIndex().warm();
+      assertEquals(PSIntSet.of(307, 318), builder.retrieve(100));
+      assertEquals(PSIntSet.of(307, 318), helper.getSubmittedIds(100, "tree"));
+   }
+
+   public void testFingerprintIsOnlyAddedWithAWarmIndex() throws Exception
+   {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put(PSExtensionHelper.IDS_FIELD_NAME, "tree");
+      params.put(IPSHtmlParameters.SYS_CONTENTID, "100");
+      params.put(PSExtensionHelper.FINGERPRINT_PARAM, "yes");
+      PSTestServices services = relatedServices();
+      PSAaDependentRelationshipBuilder builder = indexedBuilder(services);
+      PSExtensionHelper helper = new PSExtensionHelper(builder, params, null);
+      helper.setRelationshipCache(new PSRelationshipCache(10, 0));
+      Document doc = editor();
+      helper.updateDisplayChoices(doc, false);
+      assertFalse("the ids would have to be queried again on save", hasFingerprint(doc));
+
+      builder.getRelationshipIndex().warm();
+      services.getCalls().clear();
+      doc = editor();
+      helper.updateDisplayChoices(doc, false);
+      assertTrue(hasFingerprint(doc));
+      assertEquals("read from the index", 0, services.getCalls().size());
+   }
+
+   public void testBuildRelationshipsValidatesTheSubmittedIds() throws Exception
+   {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put(PSExtensionHelper.IDS_FIELD_NAME, "tree");
+      params.put(IPSHtmlParameters.SYS_CONTENTID, "100");
+      final List<Object> synchronizedIds = new ArrayList<Object>();
+      IPSRelationshipBuilder builder = PSTestServices.proxy(IPSRelationshipBuilder.class,
+            new PSTestServices.Answer() {
+               public Object answer(String method, Object[] args)
+               {
+                  if (!method.equals("synchronize")) throw unsupported(method);
+                  synchronizedIds.add(args[1]);
+                  return null;
+               }
+            });
+      Map<String, String> requestParams = new HashMap<String, String>(params);
+      requestParams.put(IPSHtmlParameters.SYS_COMMAND, PSModifyCommandHandler.COMMAND_NAME);
+      requestParams.put(PSContentEditorHandler.PAGE_ID_PARAM_NAME, 
+            String.valueOf(PSQueryCommandHandler.ROOT_PARENT_PAGE_ID));
+
+      requestParams.put("tree", "307;abc");
+      new PSExtensionHelper(builder, params, PSTestServices.requestContext(requestParams))
+         .buildRelationships();
+      assertEquals("invalid ids are not built", 0, synchronizedIds.size());
+
+      requestParams.put("tree", "");
+      new PSExtensionHelper(builder, params, PSTestServices.requestContext(requestParams))
+         .buildRelationships();
+      requestParams.put("tree", "318;307;318");
+      new PSExtensionHelper(builder, params, PSTestServices.requestContext(requestParams))
+         .buildRelationships();
+      assertEquals(Arrays.asList(PSIntSet.of(), PSIntSet.of(318, 307)), synchronizedIds);
+   }
+
+   /**
+    * @return services where items 307 and 318 are the owners of item 100.
+    */
+   private PSTestServices relatedServices()
+   {
+      PSTestServices services = new PSTestServices();
+      services.addItem(100, 1, 1);
+      services.addItem(307, 1, 1);
+      services.addItem(318, 1, 1);
+      services.addRelationship(new PSLocator(307, 1), new PSLocator(100, -1));
+      services.addRelationship(new PSLocator(318, 1), new PSLocator(100, -1));
+      return services;
+   }
+
+   /**
+    * @return a builder of the owners with a cold relationship index.
+    */
+   private PSAaDependentRelationshipBuilder indexedBuilder(PSTestServices services)
+   {
+      PSAaDependentRelationshipBuilder builder = new PSAaDependentRelationshipBuilder(
+            PSTestServices.SLOT_NAME, PSTestServices.TEMPLATE_NAME);
+      services.wire(builder);
+      PSAaRelationshipIndex index = new PSAaRelationshipIndex(PSTestServices.SLOT_NAME,
+            PSTestServices.TEMPLATE_NAME);
+      index.setRelationshipService(services.getRelationshipService());
+      index.setAssemblyService(services.getAssemblyService());
+      index.setDesignObjectCache(new PSDesignObjectCache(10, 60000));
+      builder.setRelationshipIndex(index);
+      return builder;
+   }
+
+   private Document editor() throws Exception
+   {
+      return PSXmlDocumentBuilder.createXmlDocument(new FileInputStream(
+            new File("src/test/percussion/pso/relationshipbuilder/exit/BeforeCe.xml")), false);
+   }
+
+   private boolean hasFingerprint(Document doc)
+   {
+      NodeList fields = doc.getElementsByTagName("DisplayField");
+      for (int i = 0; i < fields.getLength(); i++) {
+         if (("tree" + PSExtensionHelper.FINGERPRINT_FIELD_SUFFIX).equals(
+               ((Element) fields.item(i)).getAttribute("submitName")))
+            return true;
+      }
+      return false;
+   }
+
+   private IPSRequestContext request(final String token, final Object... ids)
+   {
+      return PSTestServices.proxy(IPSRequestContext.class, new PSTestServices.Answer() {
+         public Object answer(String method, Object[] args)
+         {
+            if (method.equals("getParameter") && args[0].equals("tree_rbfp")) return token;
+            if (method.equals("getParameterList") && args[0].equals("tree")) return ids;
+            throw unsupported(method + " " + args[0]);
+         }
+      });
+   }
+
 }